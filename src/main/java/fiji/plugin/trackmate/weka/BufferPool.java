@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of primitive arrays, recycled across frames.
+ * <p>
+ * Frames of a movie have the same size, so the buffers needed to process one
+ * frame can be reused for the next one. Borrowed arrays are taken from the
+ * pool when an array of the same type and length was released before, and
+ * allocated otherwise. Their content is undefined. Released arrays are kept
+ * as long as the total size of the pooled arrays fits in the memory budget,
+ * and dropped otherwise. An array must not be used after it is released.
+ * <p>
+ * A pool with a budget of 0 never keeps arrays, and behaves like plain
+ * allocation.
+ */
+public class BufferPool
+{
+
+	private final Map< Integer, ArrayDeque< float[] > > floats = new HashMap<>();
+
+	private final Map< Integer, ArrayDeque< byte[] > > bytes = new HashMap<>();
+
+	private final Map< Integer, ArrayDeque< int[] > > ints = new HashMap<>();
+
+	private long budget;
+
+	private long pooledBytes;
+
+	private long nAllocated;
+
+	private long nReused;
+
+	/**
+	 * Creates a pool.
+	 * 
+	 * @param budget
+	 *            the maximal total size of the pooled arrays, in bytes.
+	 */
+	public BufferPool( final long budget )
+	{
+		this.budget = budget;
+	}
+
+	public synchronized float[] borrowFloats( final int length )
+	{
+		final float[] array = take( floats, length, 4l * length );
+		return ( array != null ) ? array : new float[ length ];
+	}
+
+	public synchronized byte[] borrowBytes( final int length )
+	{
+		final byte[] array = take( bytes, length, length );
+		return ( array != null ) ? array : new byte[ length ];
+	}
+
+	public synchronized int[] borrowInts( final int length )
+	{
+		final int[] array = take( ints, length, 4l * length );
+		return ( array != null ) ? array : new int[ length ];
+	}
+
+	public synchronized void release( final float[] array )
+	{
+		if ( array != null )
+			put( floats, array, array.length, 4l * array.length );
+	}
+
+	public synchronized void release( final byte[] array )
+	{
+		if ( array != null )
+			put( bytes, array, array.length, array.length );
+	}
+
+	public synchronized void release( final int[] array )
+	{
+		if ( array != null )
+			put( ints, array, array.length, 4l * array.length );
+	}
+
+	/**
+	 * Sets the memory budget. Pooled arrays are dropped if they do not fit
+	 * in the new budget.
+	 * 
+	 * @param budget
+	 *            the maximal total size of the pooled arrays, in bytes.
+	 */
+	public synchronized void setBudget( final long budget )
+	{
+		this.budget = budget;
+		if ( pooledBytes > budget )
+			clear();
+	}
+
+	public synchronized long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Returns the total size of the arrays currently in the pool.
+	 * 
+	 * @return a size in bytes.
+	 */
+	public synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/**
+	 * Returns the fraction of the borrowed arrays that were taken from the
+	 * pool rather than allocated.
+	 * 
+	 * @return a ratio, {@link Double#NaN} if no array was borrowed.
+	 */
+	public synchronized double getReuseRatio()
+	{
+		final long n = nAllocated + nReused;
+		return ( n == 0 ) ? Double.NaN : ( double ) nReused / n;
+	}
+
+	/**
+	 * Drops all the pooled arrays.
+	 */
+	public synchronized void clear()
+	{
+		floats.clear();
+		bytes.clear();
+		ints.clear();
+		pooledBytes = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "%s: %d arrays allocated, %d reused, %.1f / %.1f MB pooled.",
+				getClass().getSimpleName(), nAllocated, nReused, pooledBytes / 1e6, budget / 1e6 );
+	}
+
+	private < A > A take( final Map< Integer, ArrayDeque< A > > shelf, final int length, final long size )
+	{
+		final ArrayDeque< A > deque = shelf.get( length );
+		if ( deque == null || deque.isEmpty() )
+		{
+			nAllocated++;
+			return null;
+		}
+		nReused++;
+		pooledBytes -= size;
+		return deque.pop();
+	}
+
+	private < A > void put( final Map< Integer, ArrayDeque< A > > shelf, final A array, final int length, final long size )
+	{
+		if ( pooledBytes + size > budget )
+			return;
+		shelf.computeIfAbsent( length, k -> new ArrayDeque<>() ).push( array );
+		pooledBytes += size;
+	}
+}
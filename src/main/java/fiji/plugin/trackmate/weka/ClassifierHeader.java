@@ -0,0 +1,384 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import fiji.plugin.trackmate.weka.SerializationWalker.JavaObject;
+
+/**
+ * The metadata of a classifier saved by the 'Trainable Weka segmentation'
+ * plugin: class labels, feature names and whether it was trained on 2D or 3D
+ * images.
+ * <p>
+ * The metadata is read from the Weka header stored in the <code>.model</code>
+ * file, without deserializing the classifier itself, so it is much faster
+ * than loading the classifier. Classifier snapshots are also supported, see
+ * {@link ClassifierSnapshot}. Headers are cached per file, so repeated calls
+ * on an unchanged file are instantaneous.
+ */
+public class ClassifierHeader
+{
+
+	/**
+	 * Feature name prefixes only found in classifiers trained on 2D images.
+	 */
+	private static final String[] FEATURES_2D = new String[] {
+			"Sobel_filter", "Difference_of_gaussians", "Membrane_projections", "Anisotropic_diffusion",
+			"Bilateral", "Lipschitz", "Kuwahara", "Gabor", "Entropy", "Neighbors" };
+
+	/**
+	 * Feature name prefixes only found in classifiers trained on 3D images.
+	 */
+	private static final String[] FEATURES_3D = new String[] { "Edges", "Difference_of_Gaussian_" };
+
+	private static final Map< String, CachedHeader > CACHE = new HashMap<>();
+
+	private final String classifierClassName;
+
+	private final String relationName;
+
+	private final List< String > featureNames;
+
+	private final List< String > classLabels;
+
+	private final Boolean is3D;
+
+	ClassifierHeader( final String classifierClassName, final String relationName, final List< String > featureNames, final List< String > classLabels )
+	{
+		this.classifierClassName = classifierClassName;
+		this.relationName = relationName;
+		this.featureNames = Collections.unmodifiableList( featureNames );
+		this.classLabels = Collections.unmodifiableList( classLabels );
+		this.is3D = inferDimensionality( featureNames );
+	}
+
+	/**
+	 * Returns the class name of the serialized classifier.
+	 */
+	public String getClassifierClassName()
+	{
+		return classifierClassName;
+	}
+
+	/**
+	 * Returns the name of the Weka relation the classifier was trained on.
+	 */
+	public String getRelationName()
+	{
+		return relationName;
+	}
+
+	/**
+	 * Returns the names of the features the classifier uses, in the order of
+	 * the Weka attributes.
+	 */
+	public List< String > getFeatureNames()
+	{
+		return featureNames;
+	}
+
+	/**
+	 * Returns the class labels.
+	 */
+	public List< String > getClassLabels()
+	{
+		return classLabels;
+	}
+
+	public int getNumClasses()
+	{
+		return classLabels.size();
+	}
+
+	/**
+	 * Returns whether the classifier was trained on 3D images.
+	 *
+	 * @return <code>true</code> for 3D, <code>false</code> for 2D, and
+	 *         <code>null</code> if this cannot be determined from the feature
+	 *         names.
+	 */
+	public Boolean is3D()
+	{
+		return is3D;
+	}
+
+	/**
+	 * Compares the features of this classifier to those of another one.
+	 * Classifiers with the same features, in the same order, can be
+	 * evaluated on the same feature stack.
+	 * 
+	 * @param other
+	 *            the header of the other classifier.
+	 * @return <code>null</code> if the features are the same, and a
+	 *         description of the differences otherwise.
+	 */
+	public String compareFeatures( final ClassifierHeader other )
+	{
+		if ( featureNames.equals( other.featureNames ) )
+			return null;
+
+		final List< String > missing = new ArrayList<>( featureNames );
+		missing.removeAll( other.featureNames );
+		final List< String > extra = new ArrayList<>( other.featureNames );
+		extra.removeAll( featureNames );
+		if ( missing.isEmpty() && extra.isEmpty() )
+			return "same features in a different order";
+
+		final StringBuilder str = new StringBuilder();
+		if ( !missing.isEmpty() )
+			str.append( missing.size() ).append( " features missing " ).append( missing );
+		if ( !extra.isEmpty() )
+			str.append( missing.isEmpty() ? "" : ", " ).append( extra.size() ).append( " extra features " ).append( extra );
+		return str.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s on '%s': %d features, classes %s, %s",
+				classifierClassName, relationName, featureNames.size(), classLabels,
+				( is3D == null ) ? "2D or 3D" : ( is3D ? "3D" : "2D" ) );
+	}
+
+	/**
+	 * Reads the header of the specified classifier file.
+	 *
+	 * @param classifierFilePath
+	 *            the path to a <code>.model</code> file, possibly
+	 *            gzip-compressed.
+	 * @return the classifier header.
+	 * @throws IOException
+	 *             if the file cannot be read or does not contain a Weka
+	 *             header.
+	 */
+	public static ClassifierHeader read( final String classifierFilePath ) throws IOException
+	{
+		final File file = new File( classifierFilePath ).getAbsoluteFile();
+		final String key = file.getPath();
+		synchronized ( CACHE )
+		{
+			final CachedHeader cached = CACHE.get( key );
+			if ( cached != null && cached.lastModified == file.lastModified() && cached.length == file.length() )
+				return cached.header;
+		}
+
+		final ClassifierHeader header = readHeader( file );
+		synchronized ( CACHE )
+		{
+			CACHE.put( key, new CachedHeader( header, file.lastModified(), file.length() ) );
+		}
+		return header;
+	}
+
+	private static ClassifierHeader readHeader( final File file ) throws IOException
+	{
+		if ( ClassifierSnapshot.isSnapshot( file.getPath() ) )
+			return ClassifierSnapshot.readHeader( file.getPath() );
+
+		try (InputStream is = open( file ))
+		{
+			final SerializationWalker walker = new SerializationWalker( is,
+					name -> name.startsWith( "weka.core." ) || name.startsWith( "java." ) );
+
+			/*
+			 * The Trainable Weka Segmentation writes the classifier, then the
+			 * training header. If the header is missing, we look for the one
+			 * the classifier may store.
+			 */
+			final Object classifier = walker.readObject();
+			if ( !( classifier instanceof JavaObject ) )
+				throw new IOException( "The file does not contain a serialized classifier." );
+
+			final String classifierClassName = ( ( JavaObject ) classifier ).getClassName();
+			JavaObject instances = null;
+			final Object header = walker.readObject();
+			if ( isInstances( header ) )
+				instances = ( JavaObject ) header;
+			else
+				instances = findInstances( ( JavaObject ) classifier );
+
+			if ( instances == null )
+				throw new IOException( "Could not find the Weka header in classifier file." );
+
+			return parseInstances( classifierClassName, instances );
+		}
+	}
+
+	static InputStream open( final File file ) throws IOException
+	{
+		final BufferedInputStream is = new BufferedInputStream( new FileInputStream( file ), 1 << 16 );
+		is.mark( 2 );
+		final int b1 = is.read();
+		final int b2 = is.read();
+		is.reset();
+		if ( b1 == 0x1f && b2 == 0x8b )
+			return new BufferedInputStream( new GZIPInputStream( is, 1 << 16 ), 1 << 16 );
+		return is;
+	}
+
+	private static boolean isInstances( final Object o )
+	{
+		return ( o instanceof JavaObject ) && ( ( JavaObject ) o ).getClassName().equals( "weka.core.Instances" );
+	}
+
+	private static JavaObject findInstances( final JavaObject classifier )
+	{
+		for ( final String field : new String[] { "m_Info", "m_Header", "m_Data", "m_Instances" } )
+		{
+			final Object o = classifier.get( field );
+			if ( isInstances( o ) )
+				return ( JavaObject ) o;
+		}
+		return null;
+	}
+
+	private static ClassifierHeader parseInstances( final String classifierClassName, final JavaObject instances ) throws IOException
+	{
+		final Object relation = instances.get( "m_RelationName" );
+		final Object classIndexObj = instances.get( "m_ClassIndex" );
+		final List< Object > attributes = elements( instances.get( "m_Attributes" ) );
+		if ( attributes == null || !( classIndexObj instanceof Integer ) )
+			throw new IOException( "Unexpected Weka header format." );
+
+		int classIndex = ( ( Integer ) classIndexObj ).intValue();
+		if ( classIndex < 0 )
+			classIndex = attributes.size() - 1;
+
+		final List< String > featureNames = new ArrayList<>( attributes.size() );
+		List< String > classLabels = null;
+		for ( int i = 0; i < attributes.size(); i++ )
+		{
+			final Object o = attributes.get( i );
+			if ( !( o instanceof JavaObject ) )
+				throw new IOException( "Unexpected attribute format in Weka header." );
+			final JavaObject attribute = ( JavaObject ) o;
+			if ( i == classIndex )
+				classLabels = nominalValues( attribute );
+			else
+				featureNames.add( String.valueOf( attribute.get( "m_Name" ) ) );
+		}
+		if ( classLabels == null )
+			throw new IOException( "Could not read class labels from Weka header." );
+
+		return new ClassifierHeader( classifierClassName, String.valueOf( relation ), featureNames, classLabels );
+	}
+
+	private static List< String > nominalValues( final JavaObject attribute ) throws IOException
+	{
+		// Weka >= 3.7 stores the values in an AttributeInfo object.
+		Object values = null;
+		final Object info = attribute.get( "m_AttributeInfo" );
+		if ( info instanceof JavaObject )
+			values = ( ( JavaObject ) info ).get( "m_Values" );
+		if ( values == null )
+			values = attribute.get( "m_Values" );
+
+		final List< Object > elements = elements( values );
+		if ( elements == null )
+			throw new IOException( "The class attribute of the Weka header is not nominal." );
+
+		final List< String > labels = new ArrayList<>( elements.size() );
+		for ( final Object e : elements )
+			labels.add( String.valueOf( e ) );
+		return labels;
+	}
+
+	/**
+	 * Returns the elements of a serialized list.
+	 */
+	private static List< Object > elements( final Object list )
+	{
+		if ( !( list instanceof JavaObject ) )
+			return null;
+		final JavaObject obj = ( JavaObject ) list;
+
+		// ArrayList, Vector and FastVector write their elements themselves.
+		final List< Object > annotations = obj.getAnnotations();
+		final Object size = obj.get( "size" );
+		if ( size instanceof Integer && annotations.size() >= ( Integer ) size )
+			return annotations.subList( 0, ( Integer ) size );
+
+		// Vector and old FastVector keep them in an array field.
+		for ( final String field : new String[] { "elementData", "m_Objects" } )
+		{
+			final Object array = obj.get( field );
+			if ( array instanceof Object[] )
+			{
+				int n = ( ( Object[] ) array ).length;
+				final Object count = obj.get( field.equals( "elementData" ) ? "elementCount" : "m_Size" );
+				if ( count instanceof Integer )
+					n = Math.min( n, ( Integer ) count );
+				final List< Object > out = new ArrayList<>( n );
+				for ( int i = 0; i < n; i++ )
+					out.add( ( ( Object[] ) array )[ i ] );
+				return out;
+			}
+		}
+		return null;
+	}
+
+	private static Boolean inferDimensionality( final List< String > featureNames )
+	{
+		boolean has2D = false;
+		boolean has3D = false;
+		for ( final String name : featureNames )
+		{
+			for ( final String prefix : FEATURES_2D )
+				if ( name.startsWith( prefix ) )
+					has2D = true;
+			for ( final String prefix : FEATURES_3D )
+				if ( name.startsWith( prefix ) )
+					has3D = true;
+		}
+		if ( has2D == has3D )
+			return null;
+		return Boolean.valueOf( has3D );
+	}
+
+	private static final class CachedHeader
+	{
+
+		private final ClassifierHeader header;
+
+		private final long lastModified;
+
+		private final long length;
+
+		private CachedHeader( final ClassifierHeader header, final long lastModified, final long length )
+		{
+			this.header = header;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
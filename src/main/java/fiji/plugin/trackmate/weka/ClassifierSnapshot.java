@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * A compact binary snapshot of a classifier trained with the 'Trainable Weka
+ * segmentation' plugin.
+ * <p>
+ * Java-serialized <code>.model</code> files are slow to load for large
+ * forests, because the whole object graph has to be rebuilt. A snapshot
+ * stores the forest as a {@link FlatForest}, in primitive arrays, together
+ * with the feature names and class labels of the Weka header. It is
+ * memory-mapped and read with bulk copies.
+ * <p>
+ * Snapshots can be created from <code>FastRandomForest</code> classifiers
+ * with {@link #convert(String, String)}. They can be used wherever a
+ * <code>.model</code> file is expected by the detector.
+ */
+public class ClassifierSnapshot
+{
+
+	/** The file extension of classifier snapshots. */
+	public static final String EXTENSION = "wsnap";
+
+	private static final byte[] MAGIC = "TMWSNAP".getBytes( StandardCharsets.US_ASCII );
+
+	private static final int VERSION = 1;
+
+	private final ClassifierHeader header;
+
+	private final FlatForest forest;
+
+	private ClassifierSnapshot( final ClassifierHeader header, final FlatForest forest )
+	{
+		this.header = header;
+		this.forest = forest;
+	}
+
+	public ClassifierHeader getHeader()
+	{
+		return header;
+	}
+
+	public FlatForest getForest()
+	{
+		return forest;
+	}
+
+	/**
+	 * Creates a Weka header equivalent to the one the classifier was trained
+	 * with: one numeric attribute per feature, then the nominal class
+	 * attribute.
+	 *
+	 * @return a new Weka header.
+	 */
+	public Instances createWekaHeader()
+	{
+		final ArrayList< Attribute > attributes = new ArrayList<>();
+		for ( final String name : header.getFeatureNames() )
+			attributes.add( new Attribute( name ) );
+		attributes.add( new Attribute( "class", new ArrayList<>( header.getClassLabels() ) ) );
+		final Instances instances = new Instances( header.getRelationName(), attributes, 0 );
+		instances.setClassIndex( attributes.size() - 1 );
+		return instances;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified file is a classifier
+	 * snapshot.
+	 */
+	public static boolean isSnapshot( final String path )
+	{
+		final File file = new File( path );
+		if ( !file.isFile() || file.length() < MAGIC.length )
+			return false;
+		try (InputStream is = new FileInputStream( file ))
+		{
+			final byte[] magic = new byte[ MAGIC.length ];
+			int read = 0;
+			while ( read < magic.length )
+			{
+				final int n = is.read( magic, read, magic.length - read );
+				if ( n < 0 )
+					return false;
+				read += n;
+			}
+			return Arrays.equals( magic, MAGIC );
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a classifier snapshot.
+	 *
+	 * @param path
+	 *            the path to the snapshot file.
+	 * @return the snapshot.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a snapshot.
+	 */
+	public static ClassifierSnapshot read( final String path ) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open( new File( path ).toPath(), StandardOpenOption.READ ))
+		{
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+
+			final ClassifierHeader header = readHeader( buffer );
+			final int numClasses = header.getNumClasses();
+			final int numTrees = buffer.getInt();
+			final int numNodes = buffer.getInt();
+			final int numLeafValues = buffer.getInt();
+
+			final int[] roots = new int[ numTrees ];
+			final int[] attribute = new int[ numNodes ];
+			final int[] child = new int[ numNodes ];
+			final double[] split = new double[ numNodes ];
+			final double[] leafValues = new double[ numLeafValues ];
+			readInts( buffer, roots );
+			readInts( buffer, attribute );
+			readInts( buffer, child );
+			readDoubles( buffer, split );
+			readDoubles( buffer, leafValues );
+
+			final FlatForest forest = new FlatForest( numClasses, roots, attribute, child, split, leafValues );
+			return new ClassifierSnapshot( header, forest );
+		}
+	}
+
+	/**
+	 * Reads the header of a classifier snapshot, without reading the forest.
+	 */
+	static ClassifierHeader readHeader( final String path ) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open( new File( path ).toPath(), StandardOpenOption.READ ))
+		{
+			final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			buffer.order( ByteOrder.LITTLE_ENDIAN );
+			return readHeader( buffer );
+		}
+	}
+
+	/**
+	 * Converts a <code>.model</code> file saved by the 'Trainable Weka
+	 * segmentation' plugin to a snapshot.
+	 *
+	 * @param modelPath
+	 *            the path to the <code>.model</code> file.
+	 * @param snapshotPath
+	 *            the path to the snapshot file to write.
+	 * @throws IOException
+	 *             if the model cannot be read or converted, or if the
+	 *             snapshot cannot be written.
+	 */
+	public static void convert( final String modelPath, final String snapshotPath ) throws IOException
+	{
+		final ClassifierHeader header = ClassifierHeader.read( modelPath );
+		final Object classifier;
+		try (ObjectInputStream ois = new ObjectInputStream( ClassifierHeader.open( new File( modelPath ) ) ))
+		{
+			classifier = ois.readObject();
+		}
+		catch ( final ClassNotFoundException e )
+		{
+			throw new IOException( "Cannot deserialize classifier: " + e.getMessage(), e );
+		}
+
+		final FlatForest forest;
+		try
+		{
+			forest = FlatForest.flatten( classifier, header.getNumClasses() );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			throw new IOException( e.getMessage(), e );
+		}
+		write( header, forest, snapshotPath );
+	}
+
+	/**
+	 * Writes a classifier snapshot.
+	 *
+	 * @param header
+	 *            the classifier header.
+	 * @param forest
+	 *            the forest.
+	 * @param path
+	 *            the path to the snapshot file to write.
+	 * @throws IOException
+	 *             if the snapshot cannot be written.
+	 */
+	public static void write( final ClassifierHeader header, final FlatForest forest, final String path ) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( path ), 1 << 16 ) ))
+		{
+			out.write( MAGIC );
+			writeInt( out, VERSION );
+			writeString( out, header.getClassifierClassName() );
+			writeString( out, header.getRelationName() );
+			writeInt( out, header.getFeatureNames().size() );
+			for ( final String name : header.getFeatureNames() )
+				writeString( out, name );
+			writeInt( out, header.getNumClasses() );
+			for ( final String label : header.getClassLabels() )
+				writeString( out, label );
+
+			writeInt( out, forest.roots.length );
+			writeInt( out, forest.attribute.length );
+			writeInt( out, forest.leafValues.length );
+			for ( final int v : forest.roots )
+				writeInt( out, v );
+			for ( final int v : forest.attribute )
+				writeInt( out, v );
+			for ( final int v : forest.child )
+				writeInt( out, v );
+			for ( final double v : forest.split )
+				writeLong( out, Double.doubleToRawLongBits( v ) );
+			for ( final double v : forest.leafValues )
+				writeLong( out, Double.doubleToRawLongBits( v ) );
+		}
+	}
+
+	private static ClassifierHeader readHeader( final ByteBuffer buffer ) throws IOException
+	{
+		final byte[] magic = new byte[ MAGIC.length ];
+		buffer.get( magic );
+		if ( !Arrays.equals( magic, MAGIC ) )
+			throw new IOException( "Not a classifier snapshot." );
+		final int version = buffer.getInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported classifier snapshot version: " + version );
+
+		final String classifierClassName = readString( buffer );
+		final String relationName = readString( buffer );
+		final int numFeatures = buffer.getInt();
+		final List< String > featureNames = new ArrayList<>( numFeatures );
+		for ( int i = 0; i < numFeatures; i++ )
+			featureNames.add( readString( buffer ) );
+		final int numClasses = buffer.getInt();
+		final List< String > classLabels = new ArrayList<>( numClasses );
+		for ( int i = 0; i < numClasses; i++ )
+			classLabels.add( readString( buffer ) );
+		return new ClassifierHeader( classifierClassName, relationName, featureNames, classLabels );
+	}
+
+	private static void readInts( final ByteBuffer buffer, final int[] out )
+	{
+		buffer.asIntBuffer().get( out );
+		buffer.position( buffer.position() + 4 * out.length );
+	}
+
+	private static void readDoubles( final ByteBuffer buffer, final double[] out )
+	{
+		buffer.asDoubleBuffer().get( out );
+		buffer.position( buffer.position() + 8 * out.length );
+	}
+
+	private static String readString( final ByteBuffer buffer )
+	{
+		final byte[] bytes = new byte[ buffer.getInt() ];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static void writeString( final DataOutputStream out, final String s ) throws IOException
+	{
+		final byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+		writeInt( out, bytes.length );
+		out.write( bytes );
+	}
+
+	/*
+	 * DataOutputStream is big-endian, we write little-endian to match the
+	 * native order of most platforms.
+	 */
+
+	private static void writeInt( final DataOutputStream out, final int v ) throws IOException
+	{
+		out.writeInt( Integer.reverseBytes( v ) );
+	}
+
+	private static void writeLong( final DataOutputStream out, final long v ) throws IOException
+	{
+		out.writeLong( Long.reverseBytes( v ) );
+	}
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+/**
+ * Converts a classifier saved by the 'Trainable Weka segmentation' plugin to
+ * a {@link ClassifierSnapshot}, that the Weka detector loads faster.
+ */
+@Plugin( type = Command.class, menuPath = "Plugins>Tracking>Convert Weka classifier to snapshot" )
+public class ConvertClassifierCommand implements Command
+{
+
+	@Parameter( label = "Weka classifier file", style = FileWidget.OPEN_STYLE )
+	private File modelFile;
+
+	@Parameter( label = "Snapshot file", style = FileWidget.SAVE_STYLE, required = false )
+	private File snapshotFile;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run()
+	{
+		if ( snapshotFile == null )
+		{
+			final String name = modelFile.getName();
+			final int dot = name.lastIndexOf( '.' );
+			final String base = ( dot > 0 ) ? name.substring( 0, dot ) : name;
+			snapshotFile = new File( modelFile.getParentFile(), base + "." + ClassifierSnapshot.EXTENSION );
+		}
+
+		final long start = System.currentTimeMillis();
+		try
+		{
+			ClassifierSnapshot.convert( modelFile.getAbsolutePath(), snapshotFile.getAbsolutePath() );
+		}
+		catch ( final IOException e )
+		{
+			log.error( "Could not convert " + modelFile + " to a classifier snapshot: " + e.getMessage() );
+			return;
+		}
+		final long end = System.currentTimeMillis();
+		log.info( String.format( "Converted %s to %s in %.1f s.", modelFile, snapshotFile, ( end - start ) / 1000. ) );
+	}
+}
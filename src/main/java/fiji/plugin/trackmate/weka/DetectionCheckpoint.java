@@ -0,0 +1,476 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * An append-only file of the spots detected in each frame, so that a
+ * detection that crashed or was canceled can be resumed without detecting
+ * the finished frames again.
+ * <p>
+ * Checkpoint files are named after a key that hashes the classifier file,
+ * the detector settings and the image, so that a run only resumes from the
+ * frames of an identical run. Each frame is one record followed by its CRC,
+ * and is forced to disk when written: a record torn by a crash is dropped
+ * when the file is opened again. Records also hold a hash of the pixels of
+ * their frame, so that a frame edited since it was detected is detected
+ * again. Once all the frames of the image are finished, the checkpoint is
+ * deleted.
+ */
+public class DetectionCheckpoint implements Closeable
+{
+
+	private static final int MAGIC = 0x574b4350;
+
+	private static final int VERSION = 2;
+
+	private static final String EXTENSION = ".checkpoint";
+
+	/** Checkpoints not written to for this long are deleted, in ms. */
+	private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+	/** Settings that do not change the detected spots. */
+	private static final List< String > IGNORED_KEYS = Arrays.asList(
+			WekaDetectorFactory.KEY_NUM_WORKERS,
+			WekaDetectorFactory.KEY_CHECKPOINT,
+			WekaDetectorFactory.KEY_AUTOTUNE_THREADS,
+			WekaDetectorFactory.KEY_WARMUP,
+			WekaDetectorFactory.KEY_METRICS_LOG_INTERVAL );
+
+	/** Checkpoints open in this JVM, that a new run replaces. */
+	private static final Map< File, DetectionCheckpoint > OPEN = new HashMap<>();
+
+	private final File file;
+
+	private final FileOutputStream out;
+
+	private final FileLock lock;
+
+	/** The spots of finished frames, per frame. */
+	private final Map< Integer, List< Record > > completed;
+
+	/** Frames finished, before this checkpoint was opened and since. */
+	private final Set< Integer > finished;
+
+	private int numFrames;
+
+	private boolean deleted;
+
+	private DetectionCheckpoint( final File file, final FileOutputStream out, final FileLock lock, final Map< Integer, List< Record > > completed )
+	{
+		this.file = file;
+		this.out = out;
+		this.lock = lock;
+		this.completed = completed;
+		this.finished = new HashSet<>( completed.keySet() );
+	}
+
+	/**
+	 * Returns the default folder of checkpoint files, in the home folder of
+	 * the user.
+	 */
+	public static File defaultFolder()
+	{
+		return new File( System.getProperty( "user.home" ), ".trackmate-weka" + File.separator + "checkpoints" );
+	}
+
+	/**
+	 * Returns the key of the checkpoint of a detection.
+	 * 
+	 * @param classifierFilePath
+	 *            the path to the classifier file, that is hashed.
+	 * @param settings
+	 *            the detector settings.
+	 * @param img
+	 *            the image to detect in, of which the name, source,
+	 *            dimensions and calibration are hashed.
+	 * @return the key, in hexadecimal.
+	 * @throws IOException
+	 *             if the classifier file cannot be read.
+	 */
+	public static String key( final String classifierFilePath, final Map< String, Object > settings, final ImgPlus< ? > img ) throws IOException
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new IOException( e );
+		}
+		final byte[] buffer = new byte[ 1 << 16 ];
+		try (final InputStream in = new FileInputStream( classifierFilePath ))
+		{
+			int n;
+			while ( ( n = in.read( buffer ) ) > 0 )
+				digest.update( buffer, 0, n );
+		}
+
+		final StringBuilder str = new StringBuilder();
+		for ( final Map.Entry< String, Object > entry : new TreeMap<>( settings ).entrySet() )
+			if ( !IGNORED_KEYS.contains( entry.getKey() ) )
+				str.append( entry.getKey() ).append( '=' ).append( entry.getValue() ).append( '\n' );
+		str.append( img.getName() ).append( '\n' );
+		str.append( img.getSource() ).append( '\n' );
+		str.append( Arrays.toString( Intervals.dimensionsAsLongArray( img ) ) ).append( '\n' );
+		str.append( Arrays.toString( TMUtils.getSpatialCalibration( img ) ) ).append( '\n' );
+		digest.update( str.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+		final StringBuilder key = new StringBuilder();
+		for ( final byte b : digest.digest() )
+			key.append( String.format( "%02x", b ) );
+		return key.toString();
+	}
+
+	/**
+	 * Opens the checkpoint with the specified key, creating it if needed, and
+	 * loads its finished frames. A checkpoint with the same key already open
+	 * in this JVM is closed. Checkpoints of the folder that were not written
+	 * to for 30 days are deleted.
+	 * 
+	 * @param folder
+	 *            the folder of checkpoint files.
+	 * @param key
+	 *            the key of the checkpoint.
+	 * @return the checkpoint.
+	 * @throws IOException
+	 *             if the checkpoint cannot be read or created, or if another
+	 *             process uses it.
+	 */
+	public static DetectionCheckpoint open( final File folder, final String key ) throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Cannot create the checkpoint folder " + folder );
+		deleteOld( folder );
+
+		final File file = new File( folder, key + EXTENSION ).getAbsoluteFile();
+		synchronized ( OPEN )
+		{
+			final DetectionCheckpoint previous = OPEN.remove( file );
+			if ( previous != null )
+				previous.close();
+
+			final Map< Integer, List< Record > > completed = new HashMap<>();
+			final long length = file.exists() ? load( file, key, completed ) : 0;
+			if ( length < file.length() )
+			{
+				Logger.IJ_LOGGER.log( ( length == 0 )
+						? "Replaced the unreadable checkpoint " + file.getName() + "."
+						: "Dropped an incomplete frame from the checkpoint " + file.getName() + "." );
+				try (final RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+				{
+					raf.setLength( length );
+				}
+			}
+
+			final FileOutputStream out = new FileOutputStream( file, true );
+			final FileLock lock = out.getChannel().tryLock();
+			if ( lock == null )
+			{
+				out.close();
+				throw new IOException( "The checkpoint " + file + " is used by another process." );
+			}
+			if ( length == 0 )
+			{
+				final DataOutputStream header = new DataOutputStream( out );
+				header.writeInt( MAGIC );
+				header.writeInt( VERSION );
+				header.writeUTF( key );
+				header.flush();
+				out.getChannel().force( false );
+			}
+			final DetectionCheckpoint checkpoint = new DetectionCheckpoint( file, out, lock, completed );
+			OPEN.put( file, checkpoint );
+			return checkpoint;
+		}
+	}
+
+	/**
+	 * Returns a hash of the pixels of an image in an interval, that changes
+	 * when the pixels are edited.
+	 * 
+	 * @param img
+	 *            the image.
+	 * @param interval
+	 *            the interval.
+	 * @return the hash.
+	 */
+	public static long hash( final RandomAccessibleInterval< ? extends RealType< ? > > img, final Interval interval )
+	{
+		// FNV-1a over the float bits of the pixels.
+		long hash = 0xcbf29ce484222325L;
+		final Cursor< ? extends RealType< ? > > cursor = Views.flatIterable( Views.interval( img, interval ) ).cursor();
+		while ( cursor.hasNext() )
+		{
+			hash ^= Float.floatToIntBits( cursor.next().getRealFloat() );
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Sets the number of frames of the image. Once that many frames are
+	 * finished, the checkpoint is closed and deleted, so that a later run
+	 * detects all frames again.
+	 * 
+	 * @param numFrames
+	 *            the number of frames, 0 to keep the checkpoint.
+	 */
+	public synchronized void setNumFrames( final int numFrames )
+	{
+		this.numFrames = numFrames;
+	}
+
+	/**
+	 * Returns the spots of a finished frame, if its pixels did not change.
+	 * 
+	 * @param frame
+	 *            the frame.
+	 * @param interval
+	 *            the interval the frame was processed in.
+	 * @param hash
+	 *            the hash of the pixels of the frame in the interval, see
+	 *            {@link #hash(RandomAccessibleInterval, Interval)}.
+	 * @return a new list of the spots, or <code>null</code> if the frame was
+	 *         not finished in this interval with these pixels.
+	 */
+	public synchronized List< Spot > get( final int frame, final Interval interval, final long hash )
+	{
+		final List< Record > records = completed.get( Integer.valueOf( frame ) );
+		if ( records == null )
+			return null;
+		final long[] min = Intervals.minAsLongArray( interval );
+		final long[] max = Intervals.maxAsLongArray( interval );
+		for ( final Record record : records )
+			if ( Arrays.equals( min, record.min ) && Arrays.equals( max, record.max ) && record.hash == hash )
+				return new ArrayList<>( record.spots );
+		return null;
+	}
+
+	/**
+	 * Appends the spots of a finished frame, and forces them to disk.
+	 * 
+	 * @param frame
+	 *            the frame.
+	 * @param interval
+	 *            the interval the frame was processed in.
+	 * @param hash
+	 *            the hash of the pixels of the frame in the interval.
+	 * @param spots
+	 *            the spots detected in the frame.
+	 * @throws IOException
+	 *             if the spots cannot be written.
+	 */
+	public synchronized void append( final int frame, final Interval interval, final long hash, final List< Spot > spots ) throws IOException
+	{
+		if ( deleted )
+			return;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream body = new DataOutputStream( bytes );
+		body.writeInt( frame );
+		body.writeLong( hash );
+		body.writeInt( interval.numDimensions() );
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+		{
+			body.writeLong( interval.min( d ) );
+			body.writeLong( interval.max( d ) );
+		}
+		ShardProtocol.writeSpots( body, spots );
+		body.flush();
+
+		final CRC32 crc = new CRC32();
+		crc.update( bytes.toByteArray() );
+		final ByteArrayOutputStream framed = new ByteArrayOutputStream( bytes.size() + 12 );
+		final DataOutputStream record = new DataOutputStream( framed );
+		record.writeInt( bytes.size() );
+		bytes.writeTo( record );
+		record.writeLong( crc.getValue() );
+		record.flush();
+		// Written at once, so that a crash can only tear the last record.
+		framed.writeTo( out );
+		out.getChannel().force( false );
+
+		finished.add( Integer.valueOf( frame ) );
+		if ( numFrames > 0 && finished.size() >= numFrames )
+		{
+			close();
+			deleted = file.delete();
+			if ( deleted )
+				Logger.IJ_LOGGER.log( "All frames detected, deleted the checkpoint " + file.getName() + "." );
+		}
+	}
+
+	/**
+	 * Returns the number of frames finished before this checkpoint was
+	 * opened.
+	 */
+	public synchronized int numCompletedFrames()
+	{
+		return completed.size();
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		synchronized ( OPEN )
+		{
+			if ( OPEN.get( file ) == this )
+				OPEN.remove( file );
+		}
+		if ( lock.isValid() )
+			lock.release();
+		out.close();
+	}
+
+	/**
+	 * Loads the records of a checkpoint file, up to the first incomplete or
+	 * corrupted one.
+	 * 
+	 * @return the length of the valid part of the file, 0 if its header does
+	 *         not match.
+	 */
+	private static long load( final File file, final String key, final Map< Integer, List< Record > > completed ) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			try
+			{
+				if ( in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals( in.readUTF() ) )
+					return 0;
+			}
+			catch ( final EOFException e )
+			{
+				return 0;
+			}
+			long length = 8 + 2 + key.getBytes( StandardCharsets.UTF_8 ).length;
+			while ( true )
+			{
+				final byte[] bytes;
+				try
+				{
+					final int size = in.readInt();
+					if ( size < 0 || size > file.length() - length )
+						return length;
+					bytes = new byte[ size ];
+					in.readFully( bytes );
+					final CRC32 crc = new CRC32();
+					crc.update( bytes );
+					if ( in.readLong() != crc.getValue() )
+						return length;
+				}
+				catch ( final EOFException e )
+				{
+					return length;
+				}
+
+				final DataInputStream body = new DataInputStream( new ByteArrayInputStream( bytes ) );
+				final int frame = body.readInt();
+				final long hash = body.readLong();
+				final int n = body.readInt();
+				final long[] min = new long[ n ];
+				final long[] max = new long[ n ];
+				for ( int d = 0; d < n; d++ )
+				{
+					min[ d ] = body.readLong();
+					max[ d ] = body.readLong();
+				}
+				final List< Spot > spots = ShardProtocol.readSpots( body );
+				completed.computeIfAbsent( Integer.valueOf( frame ), k -> new ArrayList<>() ).add( new Record( min, max, hash, spots ) );
+				length += 4 + bytes.length + 8;
+			}
+		}
+	}
+
+	private static void deleteOld( final File folder )
+	{
+		final File[] files = folder.listFiles( ( dir, name ) -> name.endsWith( EXTENSION ) );
+		if ( files == null )
+			return;
+		final long oldest = System.currentTimeMillis() - MAX_AGE;
+		for ( final File f : files )
+			if ( f.lastModified() < oldest )
+				f.delete();
+	}
+
+	private static final class Record
+	{
+
+		private final long[] min;
+
+		private final long[] max;
+
+		private final long hash;
+
+		private final List< Spot > spots;
+
+		private Record( final long[] min, final long[] max, final long hash, final List< Spot > spots )
+		{
+			this.min = min;
+			this.max = max;
+			this.hash = hash;
+			this.spots = spots;
+		}
+	}
+}
@@ -0,0 +1,576 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Collects the metrics of a Weka detection while it runs: frames done,
+ * throughput, latency of each processing stage, buffer pool occupancy,
+ * cache hit ratios and heap usage.
+ * <p>
+ * Metrics are published as an MXBean named after the image and the
+ * classifier, in the {@value #DOMAIN} domain, and can optionally be logged
+ * periodically. Recording is thread-safe and cheap enough to be done for
+ * every plane.
+ */
+public class DetectionMetrics implements DetectionMetricsMXBean
+{
+
+	public static final String DOMAIN = "fiji.plugin.trackmate.weka";
+
+	/** Whole frame, from the detector point of view. */
+	public static final String STAGE_FRAME = "frame";
+
+	/** Feature computation by the native feature engine, per plane. */
+	public static final String STAGE_FEATURES = "features";
+
+	/** Classification by the flat forest, per plane. */
+	public static final String STAGE_CLASSIFICATION = "classification";
+
+	/** Feature computation and classification by the Weka segmentation. */
+	public static final String STAGE_WEKA = "weka";
+
+	/** Thresholding, labeling and creation of spots. */
+	public static final String STAGE_OBJECTS = "objects";
+
+	/** Metrics registered by this JVM, that a new run replaces. */
+	private static final Map< ObjectName, DetectionMetrics > REGISTERED = new HashMap<>();
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	private final ConcurrentMap< String, LatencyHistogram > stages = new ConcurrentHashMap<>();
+
+	private final AtomicLong framesDone = new AtomicLong();
+
+	private final AtomicLong framesFromCheckpoint = new AtomicLong();
+
+	private final AtomicLong framesFailed = new AtomicLong();
+
+	private final AtomicInteger framesInProgress = new AtomicInteger();
+
+	private final AtomicLong pixelsProcessed = new AtomicLong();
+
+	private final AtomicLong heapHighWater = new AtomicLong();
+
+	private final AtomicLong framePeakHeap = new AtomicLong();
+
+	private volatile long lastFramePeakHeap;
+
+	private volatile double lastFramePixelsPerSecond = Double.NaN;
+
+	/** Start of the first frame, in ns, 0 if none started. */
+	private volatile long firstStart;
+
+	private volatile long lastEnd;
+
+	private volatile BufferPool bufferPool;
+
+	private ObjectName name;
+
+	private ScheduledExecutorService ticker;
+
+	/**
+	 * Sets the buffer pool whose occupancy is reported.
+	 */
+	public void setBufferPool( final BufferPool bufferPool )
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Registers these metrics to the platform MBean server, replacing the
+	 * metrics registered with the same name, if any.
+	 * 
+	 * @param imageName
+	 *            the name of the image processed.
+	 * @param classifierFilePath
+	 *            the path to the classifier file.
+	 * @return <code>true</code> if the metrics were registered.
+	 */
+	public boolean register( final String imageName, final String classifierFilePath )
+	{
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			final String classifierName = new File( classifierFilePath ).getName();
+			final ObjectName objectName = new ObjectName( DOMAIN + ":type=DetectionMetrics"
+					+ ",image=" + ObjectName.quote( String.valueOf( imageName ) )
+					+ ",classifier=" + ObjectName.quote( classifierName ) );
+			synchronized ( REGISTERED )
+			{
+				if ( server.isRegistered( objectName ) )
+					server.unregisterMBean( objectName );
+				server.registerMBean( this, objectName );
+				REGISTERED.put( objectName, this );
+			}
+			synchronized ( this )
+			{
+				name = objectName;
+			}
+			return true;
+		}
+		catch ( final JMException | SecurityException e )
+		{
+			Logger.IJ_LOGGER.log( "Could not publish detection metrics through JMX: " + e.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Logs these metrics periodically, while frames are being detected.
+	 * Logging stops once no frame has been in progress for two periods, and
+	 * resumes if frames are detected again.
+	 * 
+	 * @param logger
+	 *            the logger to write to.
+	 * @param periodSeconds
+	 *            the period, in seconds.
+	 */
+	public synchronized void startLogging( final Logger logger, final int periodSeconds )
+	{
+		stopLogging();
+		if ( periodSeconds <= 0 )
+			return;
+		ticker = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "TrackMate-Weka metrics logger" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		final long[] idleTicks = new long[ 1 ];
+		final long[] lastDone = new long[] { -1l };
+		ticker.scheduleAtFixedRate( () -> {
+			sampleHeap();
+			final long done = framesDone.get() + framesFailed.get();
+			if ( firstStart == 0l || ( framesInProgress.get() == 0 && done == lastDone[ 0 ] ) )
+			{
+				idleTicks[ 0 ]++;
+				if ( idleTicks[ 0 ] > 2 )
+					return;
+			}
+			else
+			{
+				idleTicks[ 0 ] = 0;
+			}
+			lastDone[ 0 ] = done;
+			if ( firstStart != 0l )
+				logger.log( toString() );
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS );
+	}
+
+	/**
+	 * Stops logging and unregisters these metrics.
+	 */
+	public synchronized void close()
+	{
+		stopLogging();
+		if ( name == null )
+			return;
+		synchronized ( REGISTERED )
+		{
+			// Do not unregister the metrics of a newer run.
+			if ( REGISTERED.get( name ) == this )
+			{
+				REGISTERED.remove( name );
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean( name );
+				}
+				catch ( final JMException e )
+				{
+					// Already unregistered.
+				}
+			}
+		}
+		name = null;
+	}
+
+	private void stopLogging()
+	{
+		if ( ticker == null )
+			return;
+		ticker.shutdownNow();
+		ticker = null;
+	}
+
+	/*
+	 * RECORDING.
+	 */
+
+	/**
+	 * Notifies that the detection of a frame starts.
+	 */
+	public void frameStarted()
+	{
+		final long now = System.nanoTime();
+		synchronized ( this )
+		{
+			if ( firstStart == 0l )
+			{
+				firstStart = now;
+				lastEnd = now;
+			}
+		}
+		framesInProgress.incrementAndGet();
+		sampleHeap();
+	}
+
+	/**
+	 * Notifies that the detection of a frame finished.
+	 * 
+	 * @param numPixels
+	 *            the number of pixels of the frame.
+	 * @param nanos
+	 *            the time it took, in ns.
+	 * @param fromCheckpoint
+	 *            whether the spots were read from the checkpoint.
+	 */
+	public void frameFinished( final long numPixels, final long nanos, final boolean fromCheckpoint )
+	{
+		sampleHeap();
+		framesInProgress.decrementAndGet();
+		framesDone.incrementAndGet();
+		if ( fromCheckpoint )
+		{
+			framesFromCheckpoint.incrementAndGet();
+		}
+		else
+		{
+			pixelsProcessed.addAndGet( numPixels );
+			lastFramePixelsPerSecond = numPixels * 1e9 / Math.max( 1l, nanos );
+			record( STAGE_FRAME, nanos );
+		}
+		lastFramePeakHeap = framePeakHeap.getAndSet( 0l );
+		lastEnd = System.nanoTime();
+	}
+
+	/**
+	 * Notifies that the detection of a frame failed.
+	 */
+	public void frameFailed()
+	{
+		framesInProgress.decrementAndGet();
+		framesFailed.incrementAndGet();
+		lastEnd = System.nanoTime();
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 * 
+	 * @param stage
+	 *            the stage name.
+	 * @param nanos
+	 *            the time it took, in ns.
+	 */
+	public void record( final String stage, final long nanos )
+	{
+		stages.computeIfAbsent( stage, k -> new LatencyHistogram() ).add( nanos );
+		sampleHeap();
+	}
+
+	private void sampleHeap()
+	{
+		final long used = memory.getHeapMemoryUsage().getUsed();
+		heapHighWater.accumulateAndGet( used, Math::max );
+		framePeakHeap.accumulateAndGet( used, Math::max );
+	}
+
+	/*
+	 * MXBEAN.
+	 */
+
+	@Override
+	public long getFramesDone()
+	{
+		return framesDone.get();
+	}
+
+	@Override
+	public long getFramesFromCheckpoint()
+	{
+		return framesFromCheckpoint.get();
+	}
+
+	@Override
+	public long getFramesFailed()
+	{
+		return framesFailed.get();
+	}
+
+	@Override
+	public int getFramesInProgress()
+	{
+		return framesInProgress.get();
+	}
+
+	@Override
+	public long getPixelsProcessed()
+	{
+		return pixelsProcessed.get();
+	}
+
+	@Override
+	public double getPixelsPerSecond()
+	{
+		final long start = firstStart;
+		if ( start == 0l )
+			return Double.NaN;
+		// Idle time after the last frame does not count.
+		final long end = ( framesInProgress.get() > 0 ) ? System.nanoTime() : lastEnd;
+		return pixelsProcessed.get() * 1e9 / Math.max( 1l, end - start );
+	}
+
+	@Override
+	public double getLastFramePixelsPerSecond()
+	{
+		return lastFramePixelsPerSecond;
+	}
+
+	@Override
+	public long getMillisSinceLastFrame()
+	{
+		return ( firstStart == 0l ) ? 0l : ( System.nanoTime() - lastEnd ) / 1000000l;
+	}
+
+	@Override
+	public Map< String, Long > getStageCounts()
+	{
+		final Map< String, Long > map = new TreeMap<>();
+		stages.forEach( ( stage, h ) -> map.put( stage, h.count() ) );
+		return map;
+	}
+
+	@Override
+	public Map< String, Double > getStageMeanMillis()
+	{
+		return stageMillis( LatencyHistogram::mean );
+	}
+
+	@Override
+	public Map< String, Double > getStageMedianMillis()
+	{
+		return stageMillis( h -> h.percentile( 0.5 ) );
+	}
+
+	@Override
+	public Map< String, Double > getStageP99Millis()
+	{
+		return stageMillis( h -> h.percentile( 0.99 ) );
+	}
+
+	@Override
+	public Map< String, Double > getStageMaxMillis()
+	{
+		return stageMillis( LatencyHistogram::max );
+	}
+
+	private Map< String, Double > stageMillis( final ToDoubleFunction< LatencyHistogram > nanos )
+	{
+		final Map< String, Double > map = new TreeMap<>();
+		stages.forEach( ( stage, h ) -> map.put( stage, nanos.applyAsDouble( h ) / 1e6 ) );
+		return map;
+	}
+
+	@Override
+	public long getBufferPoolBytes()
+	{
+		final BufferPool pool = bufferPool;
+		return ( pool == null ) ? 0l : pool.getPooledBytes();
+	}
+
+	@Override
+	public long getBufferPoolBudget()
+	{
+		final BufferPool pool = bufferPool;
+		return ( pool == null ) ? 0l : pool.getBudget();
+	}
+
+	@Override
+	public double getBufferPoolReuseRatio()
+	{
+		final BufferPool pool = bufferPool;
+		return ( pool == null ) ? Double.NaN : pool.getReuseRatio();
+	}
+
+	@Override
+	public double getCheckpointHitRatio()
+	{
+		final long done = framesDone.get();
+		return ( done == 0l ) ? Double.NaN : ( double ) framesFromCheckpoint.get() / done;
+	}
+
+	@Override
+	public long getHeapUsedBytes()
+	{
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	@Override
+	public long getHeapHighWaterBytes()
+	{
+		return heapHighWater.get();
+	}
+
+	@Override
+	public long getFramePeakHeapBytes()
+	{
+		return lastFramePeakHeap;
+	}
+
+	/**
+	 * Returns a one-line summary of these metrics, for logs.
+	 */
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "Detection: %d frames done", getFramesDone() ) );
+		if ( getFramesFromCheckpoint() > 0 )
+			str.append( String.format( " (%d from checkpoint)", getFramesFromCheckpoint() ) );
+		if ( getFramesFailed() > 0 )
+			str.append( String.format( ", %d failed", getFramesFailed() ) );
+		str.append( String.format( ", %d in progress, %.2f Mpx/s", getFramesInProgress(), getPixelsPerSecond() / 1e6 ) );
+		final LatencyHistogram frame = stages.get( STAGE_FRAME );
+		if ( frame != null )
+			str.append( String.format( ", frame median %.1f s, p99 %.1f s", frame.percentile( 0.5 ) / 1e9, frame.percentile( 0.99 ) / 1e9 ) );
+
+		// Where time goes.
+		double total = 0.;
+		for ( final Map.Entry< String, LatencyHistogram > entry : stages.entrySet() )
+			if ( !entry.getKey().equals( STAGE_FRAME ) )
+				total += entry.getValue().sum();
+		if ( total > 0. )
+		{
+			str.append( ", time in" );
+			for ( final Map.Entry< String, LatencyHistogram > entry : new TreeMap<>( stages ).entrySet() )
+				if ( !entry.getKey().equals( STAGE_FRAME ) )
+					str.append( String.format( " %s %.0f%%", entry.getKey(), 100. * entry.getValue().sum() / total ) );
+		}
+		if ( bufferPool != null )
+			str.append( String.format( ", pool %.0f / %.0f MB (%.0f%% reused)",
+					getBufferPoolBytes() / 1e6, getBufferPoolBudget() / 1e6, 100. * getBufferPoolReuseRatio() ) );
+		str.append( String.format( ", heap peak %.0f MB", getHeapHighWaterBytes() / 1e6 ) );
+		if ( getFramesInProgress() > 0 )
+			str.append( String.format( ", last frame %.0f s ago", getMillisSinceLastFrame() / 1e3 ) );
+		str.append( '.' );
+		return str.toString();
+	}
+
+	/**
+	 * A histogram of latencies, with 4 buckets per power of 2, so that
+	 * percentiles are exact within 20%.
+	 */
+	static final class LatencyHistogram
+	{
+
+		private static final int SUB_BUCKETS = 4;
+
+		private final long[] counts = new long[ 64 * SUB_BUCKETS ];
+
+		private long count;
+
+		private double sum;
+
+		private long max;
+
+		synchronized void add( final long nanos )
+		{
+			final long v = Math.max( 1l, nanos );
+			counts[ index( v ) ]++;
+			count++;
+			sum += v;
+			max = Math.max( max, v );
+		}
+
+		synchronized long count()
+		{
+			return count;
+		}
+
+		synchronized double sum()
+		{
+			return sum;
+		}
+
+		synchronized double mean()
+		{
+			return ( count == 0 ) ? Double.NaN : sum / count;
+		}
+
+		synchronized double max()
+		{
+			return ( count == 0 ) ? Double.NaN : max;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the specified
+		 * quantile, in ns, at most the maximum.
+		 */
+		synchronized double percentile( final double q )
+		{
+			if ( count == 0 )
+				return Double.NaN;
+			final long rank = Math.max( 1l, ( long ) Math.ceil( q * count ) );
+			long seen = 0;
+			for ( int i = 0; i < counts.length; i++ )
+			{
+				seen += counts[ i ];
+				if ( seen >= rank )
+					return Math.min( upperBound( i ), max );
+			}
+			return max;
+		}
+
+		static int index( final long v )
+		{
+			final int e = 63 - Long.numberOfLeadingZeros( v );
+			final long mantissa = ( e >= 2 ) ? ( v >> ( e - 2 ) ) : ( v << ( 2 - e ) );
+			return e * SUB_BUCKETS + ( int ) ( mantissa & ( SUB_BUCKETS - 1 ) );
+		}
+
+		static double upperBound( final int index )
+		{
+			final int e = index / SUB_BUCKETS;
+			final int sub = index % SUB_BUCKETS;
+			return Math.scalb( ( double ) ( SUB_BUCKETS + sub + 1 ), e ) / SUB_BUCKETS;
+		}
+	}
+}
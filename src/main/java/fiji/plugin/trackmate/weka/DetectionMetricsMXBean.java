@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.Map;
+
+/**
+ * Live metrics of a Weka detection, published through JMX so that they can
+ * be watched with standard JVM tools, such as JConsole or VisualVM, while
+ * detection runs.
+ * <p>
+ * Stage latencies are given per stage name, see
+ * {@link DetectionMetrics#STAGE_FRAME} and the other stage constants.
+ * Percentiles are read from a histogram, and are exact within 20%.
+ */
+public interface DetectionMetricsMXBean
+{
+
+	/** Number of frames detected, including those read from the checkpoint. */
+	long getFramesDone();
+
+	/** Number of frames read from the detection checkpoint. */
+	long getFramesFromCheckpoint();
+
+	/** Number of frames whose detection failed. */
+	long getFramesFailed();
+
+	/** Number of frames being detected. */
+	int getFramesInProgress();
+
+	/** Number of pixels classified, not counting checkpointed frames. */
+	long getPixelsProcessed();
+
+	/**
+	 * Pixels classified per second, from the start of the first frame to now,
+	 * or to the end of the last frame if none is in progress.
+	 */
+	double getPixelsPerSecond();
+
+	/** Pixels classified per second, for the last frame. */
+	double getLastFramePixelsPerSecond();
+
+	/**
+	 * Time since the last frame finished, or since the first frame started
+	 * if none did. Grows while detection stalls.
+	 */
+	long getMillisSinceLastFrame();
+
+	Map< String, Long > getStageCounts();
+
+	Map< String, Double > getStageMeanMillis();
+
+	Map< String, Double > getStageMedianMillis();
+
+	Map< String, Double > getStageP99Millis();
+
+	Map< String, Double > getStageMaxMillis();
+
+	/** Total size of the arrays held by the buffer pool, in bytes. */
+	long getBufferPoolBytes();
+
+	/** Memory budget of the buffer pool, in bytes. */
+	long getBufferPoolBudget();
+
+	/** Fraction of the arrays borrowed from the buffer pool that were reused. */
+	double getBufferPoolReuseRatio();
+
+	/** Fraction of the frames that were read from the detection checkpoint. */
+	double getCheckpointHitRatio();
+
+	long getHeapUsedBytes();
+
+	/** Highest heap usage observed since detection started, in bytes. */
+	long getHeapHighWaterBytes();
+
+	/** Highest heap usage observed during the last frame, in bytes. */
+	long getFramePeakHeapBytes();
+}
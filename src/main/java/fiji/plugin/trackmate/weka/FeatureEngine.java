@@ -0,0 +1,500 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ij.plugin.filter.Convolver;
+import ij.plugin.filter.GaussianBlur;
+import ij.plugin.filter.RankFilters;
+import ij.process.FloatProcessor;
+
+/**
+ * Computes the features of the 'Trainable Weka segmentation' plugin directly
+ * on primitive float buffers, and classifies pixels with a
+ * {@link FlatForest}.
+ * <p>
+ * The Weka feature stack works on <code>ImagePlus</code> copies and computes
+ * one feature after the other. This engine computes the features named in
+ * the classifier header from a single float copy of the input, in parallel
+ * over features and over lines. Gaussian blurs are separable convolutions
+ * that reproduce the ImageJ <code>GaussianBlur</code> used by the Weka
+ * feature stack, kernel and edge handling included, and are shared between
+ * the features that need them. Other filters reuse the ImageJ
+ * implementations on the engine buffers. The features therefore match the
+ * Weka ones, so existing classifiers can be used as they are.
+ * <p>
+ * Only 2D images and a subset of the features are supported:
+ * <code>original</code>, Gaussian blur, difference of Gaussians, Sobel
+ * filter, mean, variance, minimum, maximum and median. Use
+ * {@link #create(List)} to know whether a classifier can be processed.
+ */
+public class FeatureEngine
+{
+
+	/**
+	 * The accuracy of Gaussian kernels, as in the Weka feature stack.
+	 */
+	static final double GAUSSIAN_ACCURACY = 0.0002;
+
+	/**
+	 * Ratio between the sigma in feature names and the Gaussian sigma, as in
+	 * the Weka feature stack.
+	 */
+	private static final double SIGMA_FACTOR = 0.4;
+
+	/**
+	 * Above this sigma, ImageJ blurs on a downscaled line. We delegate to
+	 * ImageJ in that case.
+	 */
+	private static final double DOWNSCALING_SIGMA = 2 * 2 + 0.5;
+
+	private static final Pattern FEATURE_PATTERN = Pattern.compile( "^([A-Za-z_]+?)_(\\d+(?:\\.\\d+)?)(?:_(\\d+(?:\\.\\d+)?))?$" );
+
+	private enum Type
+	{
+		ORIGINAL, GAUSSIAN, DOG, SOBEL, MEAN, VARIANCE, MINIMUM, MAXIMUM, MEDIAN;
+	}
+
+	private static final class Feature
+	{
+
+		private final Type type;
+
+		private final float sigma1;
+
+		private final float sigma2;
+
+		private Feature( final Type type, final float sigma1, final float sigma2 )
+		{
+			this.type = type;
+			this.sigma1 = sigma1;
+			this.sigma2 = sigma2;
+		}
+	}
+
+	private final List< Feature > features;
+
+	private FeatureEngine( final List< Feature > features )
+	{
+		this.features = features;
+	}
+
+	/**
+	 * Creates an engine for the specified features.
+	 *
+	 * @param featureNames
+	 *            the feature names, as found in the classifier header.
+	 * @return a new engine, or <code>null</code> if some features are not
+	 *         supported.
+	 */
+	public static FeatureEngine create( final List< String > featureNames )
+	{
+		final List< Feature > features = new ArrayList<>( featureNames.size() );
+		for ( final String name : featureNames )
+		{
+			final Feature feature = parse( name );
+			if ( feature == null )
+				return null;
+			features.add( feature );
+		}
+		return new FeatureEngine( Collections.unmodifiableList( features ) );
+	}
+
+	public int numFeatures()
+	{
+		return features.size();
+	}
+
+	/**
+	 * Returns the number of Gaussian blurs computed and kept in memory while
+	 * computing the features.
+	 * 
+	 * @return the number of blurred planes.
+	 */
+	public int numBlurPlanes()
+	{
+		return blurSigmas().size();
+	}
+
+	private List< Float > blurSigmas()
+	{
+		final Set< Float > sigmas = new LinkedHashSet<>();
+		for ( final Feature feature : features )
+		{
+			if ( feature.type == Type.GAUSSIAN || feature.type == Type.SOBEL )
+				sigmas.add( feature.sigma1 );
+			else if ( feature.type == Type.DOG )
+			{
+				sigmas.add( feature.sigma1 );
+				sigmas.add( feature.sigma2 );
+			}
+		}
+		return new ArrayList<>( sigmas );
+	}
+
+	/**
+	 * Computes the features of a 2D image.
+	 *
+	 * @param image
+	 *            the image pixels, in row-major order. Not modified.
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the feature planes, in the order of the feature names.
+	 */
+	public float[][] computeFeatures( final float[] image, final int width, final int height, final int numThreads )
+	{
+		final FeaturePlanes planes = FeaturePlanes.onHeap( features.size(), width * height, new BufferPool( 0 ) );
+		computeFeatures( image, width, height, numThreads, planes );
+		return planes.arrays();
+	}
+
+	/**
+	 * Computes the features of a 2D image in the specified planes.
+	 *
+	 * @param image
+	 *            the image pixels, in row-major order. Not modified.
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param planes
+	 *            the storage for the feature planes. Temporary buffers are
+	 *            borrowed from its pool.
+	 */
+	public void computeFeatures( final float[] image, final int width, final int height, final int numThreads, final FeaturePlanes planes )
+	{
+		final int size = width * height;
+		final BufferPool pool = planes.getPool();
+
+		// Shared Gaussian blurs.
+		final Map< Float, float[] > blurs = new HashMap<>();
+		final List< Float > sigmas = blurSigmas();
+		final float[][] blurred = new float[ sigmas.size() ][];
+		final float[] scratch = pool.borrowFloats( size );
+		for ( int i = 0; i < sigmas.size(); i++ )
+		{
+			blurred[ i ] = pool.borrowFloats( size );
+			System.arraycopy( image, 0, blurred[ i ], 0, size );
+			gaussianBlur( blurred[ i ], width, height, SIGMA_FACTOR * sigmas.get( i ), numThreads, scratch );
+			blurs.put( sigmas.get( i ), blurred[ i ] );
+		}
+		pool.release( scratch );
+
+		// Features, in parallel.
+		ParallelUtils.forEachBlock( features.size(), numThreads, ( from, to ) -> {
+			for ( int f = from; f < to; f++ )
+			{
+				final Feature feature = features.get( f );
+				final float[] out = planes.borrowPlane();
+				switch ( feature.type )
+				{
+				case ORIGINAL:
+					System.arraycopy( image, 0, out, 0, size );
+					break;
+				case GAUSSIAN:
+					System.arraycopy( blurs.get( feature.sigma1 ), 0, out, 0, size );
+					break;
+				case DOG:
+				{
+					final float[] large = blurs.get( feature.sigma1 );
+					final float[] small = blurs.get( feature.sigma2 );
+					for ( int i = 0; i < size; i++ )
+						out[ i ] = small[ i ] - large[ i ];
+					break;
+				}
+				case SOBEL:
+					sobel( blurs.get( feature.sigma1 ), width, height, out, pool );
+					break;
+				case MEAN:
+					rank( image, width, height, feature.sigma1, RankFilters.MEAN, out );
+					break;
+				case VARIANCE:
+					rank( image, width, height, feature.sigma1, RankFilters.VARIANCE, out );
+					break;
+				case MINIMUM:
+					rank( image, width, height, feature.sigma1, RankFilters.MIN, out );
+					break;
+				case MAXIMUM:
+					rank( image, width, height, feature.sigma1, RankFilters.MAX, out );
+					break;
+				case MEDIAN:
+					rank( image, width, height, feature.sigma1, RankFilters.MEDIAN, out );
+					break;
+				}
+				planes.store( f, out );
+			}
+		} );
+		for ( final float[] b : blurred )
+			pool.release( b );
+	}
+
+	/**
+	 * Classifies pixels from their features, and returns the probability of
+	 * one class.
+	 *
+	 * @param planes
+	 *            the feature planes, in the order of the Weka attributes.
+	 * @param forest
+	 *            the classifier.
+	 * @param classId
+	 *            the index of the class to return the probability of.
+	 * @param out
+	 *            the output probabilities.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public static void classify( final float[][] planes, final FlatForest forest, final int classId, final float[] out, final int numThreads )
+	{
+		classify( planes, forest, classId, Double.NaN, out, numThreads );
+	}
+
+	/**
+	 * Classifies pixels from their features, and returns the probability of
+	 * one class.
+	 *
+	 * @param planes
+	 *            the feature planes, in the order of the Weka attributes.
+	 * @param forest
+	 *            the classifier.
+	 * @param classId
+	 *            the index of the class to return the probability of.
+	 * @param out
+	 *            the output probabilities.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public static void classify( final FeaturePlanes planes, final FlatForest forest, final int classId, final float[] out, final int numThreads )
+	{
+		classify( planes, forest, classId, Double.NaN, out, numThreads );
+	}
+
+	/**
+	 * Classifies pixels from their features with early-exit voting, and
+	 * returns the probability of one class. Probabilities are exact only
+	 * relative to the threshold: whether they are above it is the same as
+	 * with a full evaluation of the forest, but their values are approximate
+	 * away from it.
+	 *
+	 * @param planes
+	 *            the feature planes, in the order of the Weka attributes.
+	 * @param forest
+	 *            the classifier.
+	 * @param classId
+	 *            the index of the class to return the probability of.
+	 * @param threshold
+	 *            the probability threshold, or {@link Double#NaN} to evaluate
+	 *            all trees.
+	 * @param out
+	 *            the output probabilities.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the number of trees evaluated, summed over all pixels.
+	 */
+	public static long classify( final float[][] planes, final FlatForest forest, final int classId, final double threshold, final float[] out, final int numThreads )
+	{
+		final int nFeatures = planes.length;
+		final AtomicLong nTrees = new AtomicLong();
+		ParallelUtils.forEachBlock( out.length, numThreads, ( from, to ) -> {
+			// Class attribute comes last and is never tested.
+			final double[] x = new double[ nFeatures + 1 ];
+			final double[] distribution = new double[ forest.numClasses() ];
+			long n = 0;
+			for ( int i = from; i < to; i++ )
+			{
+				for ( int f = 0; f < nFeatures; f++ )
+					x[ f ] = planes[ f ][ i ];
+				n += classify( x, forest, classId, threshold, distribution );
+				out[ i ] = ( float ) distribution[ classId ];
+			}
+			nTrees.addAndGet( n );
+		} );
+		return nTrees.get();
+	}
+
+	/**
+	 * Classifies pixels from their features with early-exit voting, and
+	 * returns the probability of one class.
+	 *
+	 * @param planes
+	 *            the feature planes, in the order of the Weka attributes.
+	 * @param forest
+	 *            the classifier.
+	 * @param classId
+	 *            the index of the class to return the probability of.
+	 * @param threshold
+	 *            the probability threshold, or {@link Double#NaN} to evaluate
+	 *            all trees.
+	 * @param out
+	 *            the output probabilities.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the number of trees evaluated, summed over all pixels.
+	 * @see #classify(float[][], FlatForest, int, double, float[], int)
+	 */
+	public static long classify( final FeaturePlanes planes, final FlatForest forest, final int classId, final double threshold, final float[] out, final int numThreads )
+	{
+		final float[][] arrays = planes.arrays();
+		if ( arrays != null )
+			return classify( arrays, forest, classId, threshold, out, numThreads );
+
+		final int nFeatures = planes.numPlanes();
+		final FloatBuffer[] buffers = new FloatBuffer[ nFeatures ];
+		for ( int f = 0; f < nFeatures; f++ )
+			buffers[ f ] = planes.plane( f );
+		final AtomicLong nTrees = new AtomicLong();
+		ParallelUtils.forEachBlock( out.length, numThreads, ( from, to ) -> {
+			final double[] x = new double[ nFeatures + 1 ];
+			final double[] distribution = new double[ forest.numClasses() ];
+			long n = 0;
+			for ( int i = from; i < to; i++ )
+			{
+				for ( int f = 0; f < nFeatures; f++ )
+					x[ f ] = buffers[ f ].get( i );
+				n += classify( x, forest, classId, threshold, distribution );
+				out[ i ] = ( float ) distribution[ classId ];
+			}
+			nTrees.addAndGet( n );
+		} );
+		return nTrees.get();
+	}
+
+	/**
+	 * Classifies one pixel. Without threshold, the full distribution is
+	 * computed, as the Weka segmentation does, otherwise only the probability
+	 * of the target class is. Returns the number of trees evaluated.
+	 */
+	private static int classify( final double[] x, final FlatForest forest, final int classId, final double threshold, final double[] distribution )
+	{
+		if ( Double.isNaN( threshold ) )
+		{
+			forest.distribution( x, distribution );
+			return forest.numTrees();
+		}
+		return forest.probability( x, classId, threshold, distribution );
+	}
+
+	/**
+	 * Blurs a 2D float image in place, like
+	 * <code>GaussianBlur.blurGaussian( ip, sigma, sigma, 0.0002 )</code>
+	 * does.
+	 */
+	static void gaussianBlur( final float[] pixels, final int width, final int height, final double sigma, final int numThreads, final float[] scratch )
+	{
+		if ( sigma <= 0. )
+			return;
+		blur1Direction( pixels, width, height, sigma, true, numThreads, scratch );
+		blur1Direction( pixels, width, height, sigma, false, numThreads, scratch );
+	}
+
+	private static void blur1Direction( final float[] pixels, final int width, final int height, final double sigma, final boolean xDirection, final int numThreads, final float[] scratch )
+	{
+		if ( sigma > DOWNSCALING_SIGMA )
+		{
+			final FloatProcessor fp = new FloatProcessor( width, height, pixels );
+			new GaussianBlur().blur1Direction( fp, sigma, GAUSSIAN_ACCURACY, xDirection, 0 );
+			return;
+		}
+
+		final int length = xDirection ? width : height;
+		final float[][] kernel = new GaussianBlur().makeGaussianKernel( sigma, GAUSSIAN_ACCURACY, length );
+		FloatKernels.convolve( pixels, width, height, kernel, xDirection, numThreads, scratch );
+	}
+
+	private static void sobel( final float[] blurred, final int width, final int height, final float[] out, final BufferPool pool )
+	{
+		final float[] sobelX = new float[] { 1f, 2f, 1f, 0f, 0f, 0f, -1f, -2f, -1f };
+		final float[] sobelY = new float[] { 1f, 0f, -1f, 2f, 0f, -2f, 1f, 0f, -1f };
+		final float[] gx = pool.borrowFloats( out.length );
+		final float[] gy = pool.borrowFloats( out.length );
+		System.arraycopy( blurred, 0, gx, 0, out.length );
+		System.arraycopy( blurred, 0, gy, 0, out.length );
+		final Convolver convolver = new Convolver();
+		convolver.convolveFloat( new FloatProcessor( width, height, gx ), sobelX, 3, 3 );
+		convolver.convolveFloat( new FloatProcessor( width, height, gy ), sobelY, 3, 3 );
+		for ( int i = 0; i < out.length; i++ )
+			out[ i ] = ( float ) Math.sqrt( gx[ i ] * gx[ i ] + gy[ i ] * gy[ i ] );
+		pool.release( gx );
+		pool.release( gy );
+	}
+
+	private static void rank( final float[] image, final int width, final int height, final double radius, final int type, final float[] out )
+	{
+		System.arraycopy( image, 0, out, 0, out.length );
+		final RankFilters filter = new RankFilters();
+		filter.rank( new FloatProcessor( width, height, out ), radius, type );
+	}
+
+	private static Feature parse( final String name )
+	{
+		if ( name.equals( "original" ) )
+			return new Feature( Type.ORIGINAL, 0f, 0f );
+
+		final Matcher matcher = FEATURE_PATTERN.matcher( name );
+		if ( !matcher.matches() )
+			return null;
+
+		final String prefix = matcher.group( 1 );
+		final float sigma1 = Float.parseFloat( matcher.group( 2 ) );
+		final String s2 = matcher.group( 3 );
+		if ( prefix.equals( "Difference_of_gaussians" ) )
+			return ( s2 == null ) ? null : new Feature( Type.DOG, sigma1, Float.parseFloat( s2 ) );
+		if ( s2 != null )
+			return null;
+
+		switch ( prefix )
+		{
+		case "Gaussian_blur":
+			return new Feature( Type.GAUSSIAN, sigma1, 0f );
+		case "Sobel_filter":
+			return new Feature( Type.SOBEL, sigma1, 0f );
+		case "Mean":
+			return new Feature( Type.MEAN, sigma1, 0f );
+		case "Variance":
+			return new Feature( Type.VARIANCE, sigma1, 0f );
+		case "Minimum":
+			return new Feature( Type.MINIMUM, sigma1, 0f );
+		case "Maximum":
+			return new Feature( Type.MAXIMUM, sigma1, 0f );
+		case "Median":
+			return new Feature( Type.MEDIAN, sigma1, 0f );
+		default:
+			return null;
+		}
+	}
+}
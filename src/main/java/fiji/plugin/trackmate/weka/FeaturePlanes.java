@@ -0,0 +1,305 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Storage for the feature planes of one frame.
+ * <p>
+ * Planes are stored on the heap, in direct buffers, or in a memory-mapped
+ * scratch file. Off-heap storage keeps the heap small when there are many
+ * features on large frames: features are computed one at a time on the
+ * heap, then copied off-heap. With a scratch file, the operating system
+ * pages planes in and out of memory as needed, so large frames degrade to
+ * page-cache speed instead of exhausting memory.
+ * <p>
+ * The storage must be closed at the end of each frame. This frees the
+ * off-heap memory and deletes the scratch file right away, without waiting
+ * for the garbage collector.
+ */
+public class FeaturePlanes implements AutoCloseable
+{
+
+	/**
+	 * Where feature planes are stored.
+	 */
+	public enum Storage
+	{
+		/** Arrays on the heap, recycled with the buffer pool. */
+		HEAP,
+		/** Direct buffers, outside the heap. */
+		DIRECT,
+		/** A memory-mapped file in a scratch folder. */
+		MAPPED;
+	}
+
+	private final Storage storage;
+
+	private final int planeSize;
+
+	private final BufferPool pool;
+
+	private final float[][] arrays;
+
+	private final ByteBuffer[] buffers;
+
+	private final FloatBuffer[] floatBuffers;
+
+	private final File scratchFile;
+
+	private FeaturePlanes( final Storage storage, final int planeSize, final BufferPool pool, final ByteBuffer[] buffers, final File scratchFile )
+	{
+		this.storage = storage;
+		this.planeSize = planeSize;
+		this.pool = pool;
+		this.arrays = new float[ buffers.length ][];
+		this.buffers = buffers;
+		this.scratchFile = scratchFile;
+		this.floatBuffers = new FloatBuffer[ buffers.length ];
+		for ( int i = 0; i < buffers.length; i++ )
+			if ( buffers[ i ] != null )
+				floatBuffers[ i ] = buffers[ i ].order( ByteOrder.nativeOrder() ).asFloatBuffer();
+	}
+
+	/**
+	 * Creates a heap storage for feature planes.
+	 * 
+	 * @param nPlanes
+	 *            the number of planes.
+	 * @param planeSize
+	 *            the number of pixels in a plane.
+	 * @param pool
+	 *            the pool planes are borrowed from and released to.
+	 * @return a new storage.
+	 */
+	public static FeaturePlanes onHeap( final int nPlanes, final int planeSize, final BufferPool pool )
+	{
+		return new FeaturePlanes( Storage.HEAP, planeSize, pool, new ByteBuffer[ nPlanes ], null );
+	}
+
+	/**
+	 * Creates a storage for feature planes.
+	 * 
+	 * @param storage
+	 *            where to store the planes.
+	 * @param nPlanes
+	 *            the number of planes.
+	 * @param planeSize
+	 *            the number of pixels in a plane.
+	 * @param pool
+	 *            the pool heap planes are borrowed from and released to.
+	 * @param scratchDir
+	 *            the folder of the scratch file, for mapped storage. If
+	 *            <code>null</code>, the default temporary folder is used.
+	 * @return a new storage.
+	 * @throws IOException
+	 *             if the scratch file cannot be created.
+	 */
+	public static FeaturePlanes create( final Storage storage, final int nPlanes, final int planeSize, final BufferPool pool, final File scratchDir ) throws IOException
+	{
+		final long planeBytes = 4l * planeSize;
+		final ByteBuffer[] buffers = new ByteBuffer[ nPlanes ];
+		switch ( storage )
+		{
+		case HEAP:
+			return onHeap( nPlanes, planeSize, pool );
+
+		case DIRECT:
+			for ( int i = 0; i < nPlanes; i++ )
+				buffers[ i ] = ByteBuffer.allocateDirect( ( int ) planeBytes );
+			return new FeaturePlanes( storage, planeSize, pool, buffers, null );
+
+		case MAPPED:
+			final File scratchFile = File.createTempFile( "trackmate-weka-", ".features", scratchDir );
+			scratchFile.deleteOnExit();
+			try (final RandomAccessFile raf = new RandomAccessFile( scratchFile, "rw" );
+					final FileChannel channel = raf.getChannel())
+			{
+				raf.setLength( planeBytes * nPlanes );
+				// Mappings stay valid after the channel is closed.
+				for ( int i = 0; i < nPlanes; i++ )
+					buffers[ i ] = channel.map( MapMode.READ_WRITE, planeBytes * i, planeBytes );
+			}
+			catch ( final IOException e )
+			{
+				new FeaturePlanes( storage, planeSize, pool, buffers, scratchFile ).close();
+				throw e;
+			}
+			return new FeaturePlanes( storage, planeSize, pool, buffers, scratchFile );
+
+		default:
+			throw new IllegalArgumentException( "Unknown storage: " + storage );
+		}
+	}
+
+	public Storage getStorage()
+	{
+		return storage;
+	}
+
+	public BufferPool getPool()
+	{
+		return pool;
+	}
+
+	public int numPlanes()
+	{
+		return arrays.length;
+	}
+
+	public int planeSize()
+	{
+		return planeSize;
+	}
+
+	/**
+	 * Returns an array to compute a plane in, to be passed to
+	 * {@link #store(int, float[])} once filled.
+	 * 
+	 * @return a heap array of the plane size.
+	 */
+	public float[] borrowPlane()
+	{
+		return pool.borrowFloats( planeSize );
+	}
+
+	/**
+	 * Stores a plane. With heap storage, the array is kept. Otherwise it is
+	 * copied and released to the pool. Different planes may be stored
+	 * concurrently.
+	 * 
+	 * @param i
+	 *            the plane index.
+	 * @param plane
+	 *            the plane pixels, borrowed from {@link #borrowPlane()}.
+	 */
+	public void store( final int i, final float[] plane )
+	{
+		if ( storage == Storage.HEAP )
+		{
+			arrays[ i ] = plane;
+			return;
+		}
+		final FloatBuffer target = floatBuffers[ i ].duplicate();
+		target.clear();
+		target.put( plane, 0, planeSize );
+		pool.release( plane );
+	}
+
+	/**
+	 * Returns the heap arrays of the planes.
+	 * 
+	 * @return the arrays, or <code>null</code> if planes are not stored on
+	 *         the heap.
+	 */
+	public float[][] arrays()
+	{
+		return ( storage == Storage.HEAP ) ? arrays : null;
+	}
+
+	/**
+	 * Returns a plane as a float buffer. Absolute <code>get</code> calls on
+	 * the buffer can be made from several threads.
+	 * 
+	 * @param i
+	 *            the plane index.
+	 * @return a new buffer view on the plane.
+	 */
+	public FloatBuffer plane( final int i )
+	{
+		if ( storage == Storage.HEAP )
+			return FloatBuffer.wrap( arrays[ i ] );
+		return floatBuffers[ i ].duplicate();
+	}
+
+	/**
+	 * Releases heap planes to the pool, frees off-heap memory and deletes
+	 * the scratch file. The planes must not be used afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		for ( int i = 0; i < arrays.length; i++ )
+		{
+			pool.release( arrays[ i ] );
+			arrays[ i ] = null;
+			floatBuffers[ i ] = null;
+			if ( buffers[ i ] != null )
+			{
+				free( buffers[ i ] );
+				buffers[ i ] = null;
+			}
+		}
+		if ( scratchFile != null )
+			scratchFile.delete();
+	}
+
+	/**
+	 * Frees the memory of a direct or mapped buffer now. Best effort: if the
+	 * JVM does not permit it, the memory is freed when the buffer is garbage
+	 * collected.
+	 */
+	private static void free( final ByteBuffer buffer )
+	{
+		try
+		{
+			// Java 9 and later.
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+			return;
+		}
+		catch ( final NoSuchMethodException e )
+		{
+			// Java 8, see below.
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return;
+		}
+
+		try
+		{
+			final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( buffer );
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Left to the garbage collector.
+		}
+	}
+}
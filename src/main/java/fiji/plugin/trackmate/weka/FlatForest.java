@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A random forest stored in flat primitive arrays.
+ * <p>
+ * Nodes of all trees are stored in breadth-first order, so that the two
+ * children of a node are contiguous. For a split node, {@link #attribute}
+ * is the index of the Weka attribute tested and {@link #child} the index of
+ * the left child. For a leaf, {@link #attribute} is -1 and {@link #child} is
+ * the offset of the class distribution in {@link #leafValues}.
+ * <p>
+ * The evaluation is the one of the <code>FastRandomForest</code> classifier
+ * used by default by the 'Trainable Weka segmentation' plugin: the class
+ * distributions of the leaves reached in all trees are summed, then
+ * normalized. Feature values are never missing in pixel classification, so
+ * missing values are not supported.
+ */
+public class FlatForest implements Serializable
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String FAST_RANDOM_FOREST = "hr.irb.fastRandomForest.FastRandomForest";
+
+	/**
+	 * Distance to the threshold under which early-exit voting does not stop,
+	 * so that rounding cannot move the probability across it.
+	 */
+	private static final double EARLY_EXIT_MARGIN = 1e-6;
+
+	final int numClasses;
+
+	final int[] roots;
+
+	final int[] attribute;
+
+	final int[] child;
+
+	final double[] split;
+
+	final double[] leafValues;
+
+	/**
+	 * For each tree, the largest sum of leaf values the trees from this one
+	 * on can add. Computed on first use of early-exit voting.
+	 */
+	private transient double[] remainingVotes;
+
+	FlatForest( final int numClasses, final int[] roots, final int[] attribute, final int[] child, final double[] split, final double[] leafValues )
+	{
+		this.numClasses = numClasses;
+		this.roots = roots;
+		this.attribute = attribute;
+		this.child = child;
+		this.split = split;
+		this.leafValues = leafValues;
+	}
+
+	public int numClasses()
+	{
+		return numClasses;
+	}
+
+	public int numTrees()
+	{
+		return roots.length;
+	}
+
+	public int numNodes()
+	{
+		return attribute.length;
+	}
+
+	/**
+	 * Returns the index of the leaf reached in the specified tree.
+	 *
+	 * @param tree
+	 *            the tree index.
+	 * @param features
+	 *            the feature values, indexed by Weka attribute index.
+	 * @return the leaf node index.
+	 */
+	public int leaf( final int tree, final double[] features )
+	{
+		int n = roots[ tree ];
+		while ( attribute[ n ] >= 0 )
+			n = child[ n ] + ( features[ attribute[ n ] ] < split[ n ] ? 0 : 1 );
+		return n;
+	}
+
+	/**
+	 * Computes the class distribution for the specified feature vector.
+	 *
+	 * @param features
+	 *            the feature values, indexed by Weka attribute index.
+	 * @param distribution
+	 *            the array to write the class probabilities in. Must have at
+	 *            least {@link #numClasses()} elements.
+	 */
+	public void distribution( final double[] features, final double[] distribution )
+	{
+		for ( int c = 0; c < numClasses; c++ )
+			distribution[ c ] = 0.;
+
+		for ( int t = 0; t < roots.length; t++ )
+		{
+			final int offset = child[ leaf( t, features ) ];
+			for ( int c = 0; c < numClasses; c++ )
+				distribution[ c ] += leafValues[ offset + c ];
+		}
+
+		double sum = 0.;
+		for ( int c = 0; c < numClasses; c++ )
+			sum += distribution[ c ];
+		if ( sum != 0. )
+			for ( int c = 0; c < numClasses; c++ )
+				distribution[ c ] /= sum;
+	}
+
+	/**
+	 * Computes the probability of a class with early-exit voting. Trees are
+	 * evaluated in sequence, and the evaluation stops as soon as the
+	 * remaining trees cannot move the probability across the threshold. The
+	 * probability returned is then only approximate, but it is on the same
+	 * side of the threshold as the one {@link #distribution(double[], double[])}
+	 * computes.
+	 *
+	 * @param features
+	 *            the feature values, indexed by Weka attribute index.
+	 * @param classId
+	 *            the index of the class.
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param distribution
+	 *            the array to write the class probability in, at the class
+	 *            index. Other elements are not modified.
+	 * @return the number of trees evaluated.
+	 */
+	public int probability( final double[] features, final int classId, final double threshold, final double[] distribution )
+	{
+		final double[] remaining = remainingVotes();
+		double votes = 0.;
+		double total = 0.;
+		int t = 0;
+		while ( t < roots.length )
+		{
+			final int offset = child[ leaf( t, features ) ];
+			for ( int c = 0; c < numClasses; c++ )
+				total += leafValues[ offset + c ];
+			votes += leafValues[ offset + classId ];
+			t++;
+
+			// Bounds on the final probability, margin for rounding.
+			final double r = remaining[ t ];
+			if ( votes / ( total + r ) > threshold + EARLY_EXIT_MARGIN
+					|| ( votes + r ) / ( total + r ) < threshold - EARLY_EXIT_MARGIN )
+				break;
+		}
+		distribution[ classId ] = ( total == 0. ) ? 0. : votes / total;
+		return t;
+	}
+
+	private double[] remainingVotes()
+	{
+		if ( remainingVotes == null )
+		{
+			final double[] remaining = new double[ roots.length + 1 ];
+			for ( int t = roots.length - 1; t >= 0; t-- )
+				remaining[ t ] = remaining[ t + 1 ] + maxLeafSum( roots[ t ] );
+			remainingVotes = remaining;
+		}
+		return remainingVotes;
+	}
+
+	/**
+	 * Returns the largest sum of class values over the leaves of a tree.
+	 */
+	private double maxLeafSum( final int root )
+	{
+		double max = 0.;
+		final Deque< Integer > stack = new ArrayDeque<>();
+		stack.push( root );
+		while ( !stack.isEmpty() )
+		{
+			final int n = stack.pop();
+			if ( attribute[ n ] >= 0 )
+			{
+				stack.push( child[ n ] );
+				stack.push( child[ n ] + 1 );
+				continue;
+			}
+			double sum = 0.;
+			for ( int c = 0; c < numClasses; c++ )
+				sum += leafValues[ child[ n ] + c ];
+			max = Math.max( max, sum );
+		}
+		return max;
+	}
+
+	/**
+	 * Flattens a trained <code>FastRandomForest</code> classifier.
+	 *
+	 * @param classifier
+	 *            the classifier.
+	 * @param numClasses
+	 *            the number of classes.
+	 * @return a new flat forest.
+	 * @throws IllegalArgumentException
+	 *             if the classifier is not a <code>FastRandomForest</code>.
+	 */
+	public static FlatForest flatten( final Object classifier, final int numClasses )
+	{
+		if ( !classifier.getClass().getName().equals( FAST_RANDOM_FOREST ) )
+			throw new IllegalArgumentException( "Only " + FAST_RANDOM_FOREST + " classifiers can be flattened, got "
+					+ classifier.getClass().getName() + "." );
+
+		final Object bagger = get( classifier, "m_bagger" );
+		final Object[] trees = ( Object[] ) get( bagger, "m_Classifiers" );
+
+		final List< Object > nodes = new ArrayList<>();
+		final int[] roots = new int[ trees.length ];
+		for ( int t = 0; t < trees.length; t++ )
+		{
+			// Breadth-first, so that siblings are contiguous.
+			roots[ t ] = nodes.size();
+			final Deque< Object > queue = new ArrayDeque<>();
+			queue.add( trees[ t ] );
+			while ( !queue.isEmpty() )
+			{
+				final Object node = queue.poll();
+				nodes.add( node );
+				if ( ( Integer ) get( node, "m_Attribute" ) >= 0 )
+					for ( final Object successor : ( Object[] ) get( node, "m_Successors" ) )
+						queue.add( successor );
+			}
+		}
+
+		final int n = nodes.size();
+		final int[] attribute = new int[ n ];
+		final int[] child = new int[ n ];
+		final double[] split = new double[ n ];
+		final List< double[] > leaves = new ArrayList<>();
+
+		// Children of a node are numbered in the order their parents are met.
+		int nextChild = 0;
+		int currentTree = -1;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( currentTree + 1 < roots.length && roots[ currentTree + 1 ] == i )
+			{
+				currentTree++;
+				nextChild = i + 1;
+			}
+			final Object node = nodes.get( i );
+			final int att = ( Integer ) get( node, "m_Attribute" );
+			attribute[ i ] = att;
+			if ( att >= 0 )
+			{
+				final Object[] successors = ( Object[] ) get( node, "m_Successors" );
+				if ( successors.length != 2 )
+					throw new IllegalArgumentException( "Only binary splits on numeric features are supported." );
+				split[ i ] = ( Double ) get( node, "m_SplitPoint" );
+				child[ i ] = nextChild;
+				nextChild += 2;
+			}
+			else
+			{
+				final double[] probs = ( double[] ) get( node, "m_ClassProbs" );
+				child[ i ] = leaves.size() * numClasses;
+				final double[] values = new double[ numClasses ];
+				if ( probs != null )
+					System.arraycopy( probs, 0, values, 0, Math.min( numClasses, probs.length ) );
+				leaves.add( values );
+			}
+		}
+
+		final double[] leafValues = new double[ leaves.size() * numClasses ];
+		for ( int l = 0; l < leaves.size(); l++ )
+			System.arraycopy( leaves.get( l ), 0, leafValues, l * numClasses, numClasses );
+
+		return new FlatForest( numClasses, roots, attribute, child, split, leafValues );
+	}
+
+	private static Object get( final Object obj, final String fieldName )
+	{
+		for ( Class< ? > c = obj.getClass(); c != null; c = c.getSuperclass() )
+		{
+			try
+			{
+				final Field field = c.getDeclaredField( fieldName );
+				field.setAccessible( true );
+				return field.get( obj );
+			}
+			catch ( final NoSuchFieldException e )
+			{
+				continue;
+			}
+			catch ( final IllegalAccessException e )
+			{
+				throw new IllegalArgumentException( "Cannot access field " + fieldName + " of " + c.getName() + ".", e );
+			}
+		}
+		throw new IllegalArgumentException( "Field " + fieldName + " not found in " + obj.getClass().getName() + "." );
+	}
+}
@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import weka.classifiers.AbstractClassifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Exposes a {@link FlatForest} as a Weka classifier, so that it can be used
+ * by the 'Trainable Weka segmentation' plugin. It can only be used for
+ * prediction.
+ */
+public class FlatForestClassifier extends AbstractClassifier
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final FlatForest forest;
+
+	public FlatForestClassifier( final FlatForest forest )
+	{
+		this.forest = forest;
+	}
+
+	public FlatForest getForest()
+	{
+		return forest;
+	}
+
+	@Override
+	public void buildClassifier( final Instances data ) throws Exception
+	{
+		throw new Exception( "A flat forest cannot be trained." );
+	}
+
+	@Override
+	public double[] distributionForInstance( final Instance instance ) throws Exception
+	{
+		final double[] features = instance.toDoubleArray();
+		final double[] distribution = new double[ forest.numClasses() ];
+		forest.distribution( features, distribution );
+		return distribution;
+	}
+}
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.Arrays;
+
+/**
+ * Per-pixel kernels over primitive float buffers.
+ * <p>
+ * The convolution has two loop layouts. In the pixel-outer layout, pixels
+ * are processed one after the other, accumulating over the kernel in an
+ * inner loop. In the kernel-outer layout, the loops are swapped: the outer
+ * loop iterates over the kernel and the inner loop adds one weighted term to
+ * a whole run of pixels. These inner loops have no loop-carried dependency,
+ * which lets the JIT compile them to SIMD instructions when it can. Whether
+ * it does depends on the JVM and the CPU, and is not checked here. For each
+ * pixel, the same float operations are done in the same order in both
+ * layouts, so the results are identical.
+ * <p>
+ * The kernel-outer layout is used unless the
+ * <code>trackmate.weka.pixelOuterLoop</code> system property is set to
+ * <code>true</code>. The quantization kernel is written as a straight loop
+ * without branches, for the same reason.
+ */
+public class FloatKernels
+{
+
+	/**
+	 * Whether the convolution uses the kernel-outer loop layout.
+	 */
+	public static final boolean KERNEL_OUTER_LOOP = !Boolean.getBoolean( "trackmate.weka.pixelOuterLoop" );
+
+	private FloatKernels()
+	{}
+
+	/**
+	 * Convolves all the lines of a 2D image with a symmetric kernel, in place.
+	 * Out-of-bounds pixels take the value of the nearest edge pixel.
+	 * 
+	 * @param pixels
+	 *            the image pixels, in row-major order.
+	 * @param width
+	 *            the image width.
+	 * @param height
+	 *            the image height.
+	 * @param kernel
+	 *            the kernel, as returned by ImageJ
+	 *            <code>GaussianBlur.makeGaussianKernel</code>: one half of
+	 *            the kernel, and its running sums.
+	 * @param xDirection
+	 *            whether to convolve along X or along Y.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param scratch
+	 *            a buffer as large as the image, used to store a copy of the
+	 *            input. May be <code>null</code>, in which case it is
+	 *            allocated when needed.
+	 */
+	public static void convolve( final float[] pixels, final int width, final int height, final float[][] kernel, final boolean xDirection, final int numThreads, final float[] scratch )
+	{
+		convolve( pixels, width, height, kernel, xDirection, numThreads, KERNEL_OUTER_LOOP, scratch );
+	}
+
+	static void convolve( final float[] pixels, final int width, final int height, final float[][] kernel, final boolean xDirection, final int numThreads, final boolean kernelOuter, final float[] scratch )
+	{
+		final float[] kern = kernel[ 0 ];
+		final float[] kernSum = kernel[ 1 ];
+		if ( !xDirection && kernelOuter )
+		{
+			final float[] input = ( scratch == null ) ? new float[ pixels.length ] : scratch;
+			System.arraycopy( pixels, 0, input, 0, pixels.length );
+			ParallelUtils.forEachBlock( height, numThreads, ( from, to ) -> {
+				final float[] v = new float[ width ];
+				for ( int y = from; y < to; y++ )
+					convolveRow( input, pixels, width, height, y, kern, kernSum, v );
+			} );
+			return;
+		}
+
+		final int length = xDirection ? width : height;
+		final int nLines = xDirection ? height : width;
+		final int pointInc = xDirection ? 1 : width;
+		final int lineInc = xDirection ? width : 1;
+		ParallelUtils.forEachBlock( nLines, numThreads, ( from, to ) -> {
+			final float[] cache = new float[ length ];
+			for ( int line = from; line < to; line++ )
+			{
+				final int pixel0 = line * lineInc;
+				for ( int i = 0, p = pixel0; i < length; i++, p += pointInc )
+					cache[ i ] = pixels[ p ];
+				if ( kernelOuter )
+					convolveLineKernelOuter( cache, pixels, kern, kernSum, pixel0 );
+				else
+					convolveLine( cache, pixels, kern, kernSum, pixel0, pointInc );
+			}
+		} );
+	}
+
+	/**
+	 * Convolves a line with a symmetric kernel, one pixel after the other.
+	 * Same arithmetic as in ImageJ <code>GaussianBlur</code>, so that results
+	 * are identical.
+	 */
+	static void convolveLine( final float[] input, final float[] pixels, final float[] kern, final float[] kernSum, final int point0, final int pointInc )
+	{
+		final int length = input.length;
+		final int kRadius = kern.length;
+		final int firstPart = kRadius < length ? kRadius : length;
+		final int iEndInside = length - kRadius;
+		int p = point0;
+		int i = 0;
+		for ( ; i < firstPart; i++, p += pointInc )
+			pixels[ p ] = convolveEdgePoint( input, kern, kernSum, i, true );
+		for ( ; i < iEndInside; i++, p += pointInc )
+		{
+			float result = input[ i ] * kern[ 0 ];
+			for ( int k = 1; k < kRadius; k++ )
+				result += kern[ k ] * ( input[ i - k ] + input[ i + k ] );
+			pixels[ p ] = result;
+		}
+		for ( ; i < length; i++, p += pointInc )
+			pixels[ p ] = convolveEdgePoint( input, kern, kernSum, i, false );
+	}
+
+	/**
+	 * Convolves a line stored contiguously in the output, with the kernel
+	 * loop outside the pixel loop.
+	 */
+	private static void convolveLineKernelOuter( final float[] input, final float[] pixels, final float[] kern, final float[] kernSum, final int point0 )
+	{
+		final int length = input.length;
+		final int kRadius = kern.length;
+		final int firstPart = kRadius < length ? kRadius : length;
+		final int iEndInside = Math.max( firstPart, length - kRadius );
+
+		for ( int i = 0; i < firstPart; i++ )
+			pixels[ point0 + i ] = convolveEdgePoint( input, kern, kernSum, i, true );
+
+		final float kern0 = kern[ 0 ];
+		for ( int i = firstPart; i < iEndInside; i++ )
+			pixels[ point0 + i ] = input[ i ] * kern0;
+		for ( int k = 1; k < kRadius; k++ )
+		{
+			final float kk = kern[ k ];
+			for ( int i = firstPart; i < iEndInside; i++ )
+				pixels[ point0 + i ] += kk * ( input[ i - k ] + input[ i + k ] );
+		}
+
+		for ( int i = iEndInside; i < length; i++ )
+			pixels[ point0 + i ] = convolveEdgePoint( input, kern, kernSum, i, false );
+	}
+
+	/**
+	 * Convolves along Y the row <code>y</code> of an image, all columns at
+	 * once.
+	 */
+	private static void convolveRow( final float[] input, final float[] pixels, final int width, final int length, final int y, final float[] kern, final float[] kernSum, final float[] v )
+	{
+		final int kRadius = kern.length;
+		final int firstPart = kRadius < length ? kRadius : length;
+		final int iEndInside = Math.max( firstPart, length - kRadius );
+		final int row = y * width;
+
+		final float kern0 = kern[ 0 ];
+		for ( int x = 0; x < width; x++ )
+			pixels[ row + x ] = input[ row + x ] * kern0;
+
+		if ( y >= firstPart && y < iEndInside )
+		{
+			for ( int k = 1; k < kRadius; k++ )
+			{
+				final float kk = kern[ k ];
+				final int above = ( y - k ) * width;
+				final int below = ( y + k ) * width;
+				for ( int x = 0; x < width; x++ )
+					pixels[ row + x ] += kk * ( input[ above + x ] + input[ below + x ] );
+			}
+			return;
+		}
+
+		// Edge rows: same conditions as in convolveEdgePoint().
+		final int lastRow = ( length - 1 ) * width;
+		final boolean addFirst = y < firstPart || y < kRadius;
+		final boolean addLast = ( y < firstPart ) ? y + kRadius > length : y + kRadius >= length;
+		if ( addFirst )
+		{
+			final float ks = kernSum[ y ];
+			for ( int x = 0; x < width; x++ )
+				pixels[ row + x ] += ks * input[ x ];
+		}
+		if ( addLast )
+		{
+			final float ks = kernSum[ length - y - 1 ];
+			for ( int x = 0; x < width; x++ )
+				pixels[ row + x ] += ks * input[ lastRow + x ];
+		}
+		for ( int k = 1; k < kRadius; k++ )
+		{
+			final float kk = kern[ k ];
+			Arrays.fill( v, 0f );
+			if ( y - k >= 0 )
+			{
+				final int above = ( y - k ) * width;
+				for ( int x = 0; x < width; x++ )
+					v[ x ] += input[ above + x ];
+			}
+			if ( y + k < length )
+			{
+				final int below = ( y + k ) * width;
+				for ( int x = 0; x < width; x++ )
+					v[ x ] += input[ below + x ];
+			}
+			for ( int x = 0; x < width; x++ )
+				pixels[ row + x ] += kk * v[ x ];
+		}
+	}
+
+	/**
+	 * Convolves one pixel close to the line ends, where the kernel extends
+	 * out of the line.
+	 * 
+	 * @param firstPart
+	 *            whether the pixel is in the first <code>kRadius</code>
+	 *            pixels of the line. ImageJ uses slightly different tests in
+	 *            the first part and in the last part of the line, that we
+	 *            reproduce.
+	 */
+	private static float convolveEdgePoint( final float[] input, final float[] kern, final float[] kernSum, final int i, final boolean firstPart )
+	{
+		final int length = input.length;
+		final int kRadius = kern.length;
+		float result = input[ i ] * kern[ 0 ];
+		if ( firstPart )
+		{
+			result += kernSum[ i ] * input[ 0 ];
+			if ( i + kRadius > length )
+				result += kernSum[ length - i - 1 ] * input[ length - 1 ];
+		}
+		else
+		{
+			if ( i < kRadius )
+				result += kernSum[ i ] * input[ 0 ];
+			if ( i + kRadius >= length )
+				result += kernSum[ length - i - 1 ] * input[ length - 1 ];
+		}
+		for ( int k = 1; k < kRadius; k++ )
+		{
+			float v = 0;
+			if ( i - k >= 0 )
+				v += input[ i - k ];
+			if ( i + k < length )
+				v += input[ i + k ];
+			result += kern[ k ] * v;
+		}
+		return result;
+	}
+
+	/**
+	 * Quantizes values in regular levels between a min and a max. Values out
+	 * of the range go to the first or last level.
+	 * 
+	 * @param values
+	 *            the values.
+	 * @param min
+	 *            the value of the first level.
+	 * @param max
+	 *            the value above which values go in the last level.
+	 * @param nLevels
+	 *            the number of levels, at most 65536.
+	 * @param out
+	 *            the levels, as unsigned shorts, at least as long as the
+	 *            values.
+	 */
+	public static void quantize( final float[] values, final float min, final float max, final int nLevels, final short[] out )
+	{
+		final float scale = nLevels / ( max - min );
+		final int maxLevel = nLevels - 1;
+		for ( int i = 0; i < values.length; i++ )
+		{
+			final int level = ( int ) ( ( values[ i ] - min ) * scale );
+			out[ i ] = ( short ) Math.min( maxLevel, Math.max( 0, level ) );
+		}
+	}
+}
@@ -0,0 +1,380 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.detection.MaskUtils;
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ByteProcessor;
+import ij.process.FloatPolygon;
+import ij.process.ImageProcessor;
+
+/**
+ * Static utilities to create TrackMate spots from objects found in
+ * probability maps, and to store the statistics of these objects as spot
+ * features.
+ * <p>
+ * Conventions are the same as in TrackMate: pixel centers lie at integer
+ * coordinates, and spot positions and contours are in physical units. 2D
+ * objects have the contour, position and radius {@link MaskUtils} would give
+ * them, and their pixel centroid is stored as a feature.
+ */
+public class LabelUtils
+{
+
+	/**
+	 * Interval, in pixels, at which contours are interpolated before they are
+	 * simplified. Same as in {@link MaskUtils}.
+	 */
+	private static final double SMOOTH_INTERVAL = 2.;
+
+	/**
+	 * Maximal distance, in pixels, of a contour vertex to the simplified
+	 * contour. Same as in {@link MaskUtils}.
+	 */
+	private static final double SIMPLIFY_EPSILON = 0.5;
+
+	/** Number of pixels or voxels in the object. */
+	public static final String NUM_PIXELS = "WEKA_NUM_PIXELS";
+
+	/** Maximal probability in the object. Also the spot quality. */
+	public static final String MAX_PROBA = "WEKA_MAX_PROBA";
+
+	/** Mean probability in the object. */
+	public static final String MEAN_PROBA = "WEKA_MEAN_PROBA";
+
+	/** Probability summed over the object. */
+	public static final String TOTAL_PROBA = "WEKA_TOTAL_PROBA";
+
+	/** Centroid of the object pixels, in physical units. */
+	public static final String[] PIXEL_POSITION = new String[] { "WEKA_PIXEL_X", "WEKA_PIXEL_Y", "WEKA_PIXEL_Z" };
+
+	/** Centroid of the object weighted by probabilities, in physical units. */
+	public static final String[] WEIGHTED_POSITION = new String[] { "WEKA_WEIGHTED_X", "WEKA_WEIGHTED_Y", "WEKA_WEIGHTED_Z" };
+
+	/** Lower bounds of the object bounding box, in physical units. */
+	public static final String[] BBOX_MIN = new String[] { "WEKA_BBOX_X_MIN", "WEKA_BBOX_Y_MIN", "WEKA_BBOX_Z_MIN" };
+
+	/** Upper bounds of the object bounding box, in physical units. */
+	public static final String[] BBOX_MAX = new String[] { "WEKA_BBOX_X_MAX", "WEKA_BBOX_Y_MAX", "WEKA_BBOX_Z_MAX" };
+
+	private LabelUtils()
+	{}
+
+	/**
+	 * Creates a spot from the pixel statistics of an object.
+	 *
+	 * @param x
+	 *            the X position of the object, in pixel coordinates.
+	 * @param y
+	 *            the Y position of the object, in pixel coordinates.
+	 * @param z
+	 *            the Z position of the object, in pixel coordinates.
+	 * @param size
+	 *            the number of pixels in the object.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param is3D
+	 *            whether the object is a 3D object.
+	 * @param quality
+	 *            the spot quality.
+	 * @return a new spot.
+	 */
+	public static Spot createSpot( final double x, final double y, final double z, final long size, final double[] calibration, final boolean is3D, final double quality )
+	{
+		final double radius;
+		if ( is3D )
+		{
+			final double volume = size * calibration[ 0 ] * calibration[ 1 ] * calibration[ 2 ];
+			radius = Math.cbrt( 3. * volume / ( 4. * Math.PI ) );
+		}
+		else
+		{
+			final double area = size * calibration[ 0 ] * calibration[ 1 ];
+			radius = Math.sqrt( area / Math.PI );
+		}
+		final double zc = is3D ? z * calibration[ 2 ] : 0.;
+		return new Spot( x * calibration[ 0 ], y * calibration[ 1 ], zc, radius, quality );
+	}
+
+	/**
+	 * Stores the statistics of an object, accumulated while labeling it, as
+	 * features of its spot.
+	 *
+	 * @param spot
+	 *            the spot of the object.
+	 * @param size
+	 *            the number of pixels in the object.
+	 * @param max
+	 *            the maximal probability in the object.
+	 * @param sum
+	 *            the probability summed over the object.
+	 * @param centroid
+	 *            the centroid of the object pixels, in pixel coordinates, X, Y,
+	 *            and Z if 3D.
+	 * @param weightedSum
+	 *            the pixel coordinates summed over the object, weighted by
+	 *            probabilities, X, Y, and Z if 3D.
+	 * @param bbox
+	 *            the bounding box of the object, in pixel coordinates, as
+	 *            <code>{ xmin, ymin, zmin, xmax, ymax, zmax }</code>.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param is3D
+	 *            whether the object is a 3D object.
+	 */
+	public static void putFeatures( final Spot spot, final long size, final double max, final double sum, final double[] centroid, final double[] weightedSum, final long[] bbox, final double[] calibration, final boolean is3D )
+	{
+		spot.putFeature( NUM_PIXELS, Double.valueOf( size ) );
+		spot.putFeature( MAX_PROBA, Double.valueOf( max ) );
+		spot.putFeature( MEAN_PROBA, Double.valueOf( sum / size ) );
+		spot.putFeature( TOTAL_PROBA, Double.valueOf( sum ) );
+		final int nDims = is3D ? 3 : 2;
+		for ( int d = 0; d < nDims; d++ )
+		{
+			spot.putFeature( PIXEL_POSITION[ d ], Double.valueOf( centroid[ d ] * calibration[ d ] ) );
+			final double weighted = ( sum > 0. ) ? weightedSum[ d ] / sum : Double.NaN;
+			spot.putFeature( WEIGHTED_POSITION[ d ], Double.valueOf( weighted * calibration[ d ] ) );
+			spot.putFeature( BBOX_MIN[ d ], Double.valueOf( bbox[ d ] * calibration[ d ] ) );
+			spot.putFeature( BBOX_MAX[ d ], Double.valueOf( bbox[ 3 + d ] * calibration[ d ] ) );
+		}
+	}
+
+	/**
+	 * Computes the contour of a 2D object from a mask, and stores it in a row
+	 * of a table with the position and radius of the spot: the centroid and
+	 * the equivalent radius of the polygon. The contour is traced and
+	 * simplified directly on the mask, the way {@link MaskUtils} does, so that
+	 * spots have the same geometry as with the TrackMate detectors.
+	 *
+	 * @param mask
+	 *            the mask of the object. Non-zero pixels belong to the object.
+	 *            It will be thresholded by this method.
+	 * @param xmin
+	 *            the X position of the mask top-left pixel in the source
+	 *            image.
+	 * @param ymin
+	 *            the Y position of the mask top-left pixel in the source
+	 *            image.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param simplify
+	 *            if <code>true</code>, the contour will be simplified.
+	 * @param table
+	 *            the table.
+	 * @param row
+	 *            the row of the object in the table.
+	 */
+	static void contour( final ByteProcessor mask, final long xmin, final long ymin, final double[] calibration, final boolean simplify, final SpotTable table, final int row )
+	{
+		final FloatPolygon traced = outerPolygon( mask );
+		if ( traced == null )
+			return;
+		final FloatPolygon polygon = simplify ? simplify( traced ) : traced;
+		final int n = polygon.npoints;
+		if ( n < 3 )
+			return;
+
+		// Vertices lie on pixel corners, pixel centers on integers.
+		final double[] x = new double[ n ];
+		final double[] y = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			x[ i ] = ( xmin + polygon.xpoints[ i ] - 0.5 ) * calibration[ 0 ];
+			y[ i ] = ( ymin + polygon.ypoints[ i ] - 0.5 ) * calibration[ 1 ];
+		}
+
+		// Polygon centroid and equivalent radius, as for TrackMate SpotRoi.
+		double area = 0.;
+		double cx = 0.;
+		double cy = 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int j = ( i + 1 ) % n;
+			final double cross = x[ i ] * y[ j ] - x[ j ] * y[ i ];
+			area += cross;
+			cx += ( x[ i ] + x[ j ] ) * cross;
+			cy += ( y[ i ] + y[ j ] ) * cross;
+		}
+		area /= 2.;
+		if ( area == 0. )
+			return;
+		cx /= 6. * area;
+		cy /= 6. * area;
+
+		table.setOutline( row, cx, cy, Math.sqrt( Math.abs( area ) / Math.PI ) );
+		table.startContour( row );
+		for ( int i = 0; i < n; i++ )
+			table.addVertex( x[ i ], y[ i ] );
+	}
+
+	/**
+	 * Returns the outer polygon with the largest area of a mask, or
+	 * <code>null</code> if the mask is empty.
+	 */
+	private static FloatPolygon outerPolygon( final ByteProcessor mask )
+	{
+		mask.setThreshold( 1, 255, ImageProcessor.NO_LUT_UPDATE );
+		final Roi roi = ThresholdToSelection.run( new ImagePlus( "Mask", mask ) );
+		if ( roi == null )
+			return null;
+
+		// Holes are polygons too, but they are inside the outer one.
+		FloatPolygon polygon = null;
+		if ( roi instanceof ShapeRoi )
+		{
+			double maxArea = -1.;
+			for ( final Roi r : ( ( ShapeRoi ) roi ).getRois() )
+			{
+				final FloatPolygon p = r.getFloatPolygon();
+				final double area = Math.abs( signedArea( p ) );
+				if ( area > maxArea )
+				{
+					maxArea = area;
+					polygon = p;
+				}
+			}
+		}
+		else
+		{
+			polygon = roi.getFloatPolygon();
+		}
+		if ( polygon == null || polygon.npoints < 3 )
+			return null;
+		return polygon;
+	}
+
+	/**
+	 * Smooths a polygon by interpolating it, then removes the vertices closer
+	 * to the contour than a fraction of a pixel, with the same parameters as
+	 * {@link MaskUtils}.
+	 */
+	private static FloatPolygon simplify( final FloatPolygon polygon )
+	{
+		final FloatPolygon smooth = new PolygonRoi( polygon, Roi.POLYGON ).getInterpolatedPolygon( SMOOTH_INTERVAL, true );
+		final int n = smooth.npoints;
+		final boolean[] keep = new boolean[ n ];
+		douglasPeucker( smooth.xpoints, smooth.ypoints, n, keep );
+		final FloatPolygon simplified = new FloatPolygon();
+		for ( int i = 0; i < n; i++ )
+			if ( keep[ i ] )
+				simplified.addPoint( smooth.xpoints[ i ], smooth.ypoints[ i ] );
+		return simplified;
+	}
+
+	private static double signedArea( final FloatPolygon p )
+	{
+		double a = 0.;
+		for ( int i = 0; i < p.npoints; i++ )
+		{
+			final int j = ( i + 1 ) % p.npoints;
+			a += ( double ) p.xpoints[ i ] * p.ypoints[ j ] - ( double ) p.xpoints[ j ] * p.ypoints[ i ];
+		}
+		return a / 2.;
+	}
+
+	/**
+	 * Marks the vertices of a closed polygon to keep after Douglas-Peucker
+	 * simplification.
+	 */
+	private static void douglasPeucker( final float[] x, final float[] y, final int n, final boolean[] keep )
+	{
+		if ( n <= 4 )
+		{
+			Arrays.fill( keep, 0, n, true );
+			return;
+		}
+		// Split the closed polygon at the vertex farthest from vertex 0.
+		int far = 0;
+		double maxD = -1.;
+		for ( int i = 1; i < n; i++ )
+		{
+			final double dx = x[ i ] - x[ 0 ];
+			final double dy = y[ i ] - y[ 0 ];
+			final double d = dx * dx + dy * dy;
+			if ( d > maxD )
+			{
+				maxD = d;
+				far = i;
+			}
+		}
+		keep[ 0 ] = true;
+		keep[ far ] = true;
+		simplifySegment( x, y, 0, far, n, keep );
+		simplifySegment( x, y, far, n, n, keep );
+	}
+
+	/**
+	 * Iterative Douglas-Peucker between vertices <code>start</code> and
+	 * <code>end</code>. Index <code>end</code> may be equal to
+	 * <code>n</code>, in which case it wraps to vertex 0.
+	 */
+	private static void simplifySegment( final float[] x, final float[] y, final int start, final int end, final int n, final boolean[] keep )
+	{
+		final int[] stack = new int[ 2 * ( end - start + 1 ) ];
+		int sp = 0;
+		stack[ sp++ ] = start;
+		stack[ sp++ ] = end;
+		while ( sp > 0 )
+		{
+			final int b = stack[ --sp ];
+			final int a = stack[ --sp ];
+			if ( b - a < 2 )
+				continue;
+
+			final double ax = x[ a ];
+			final double ay = y[ a ];
+			final double bx = x[ b % n ];
+			final double by = y[ b % n ];
+			final double dx = bx - ax;
+			final double dy = by - ay;
+			final double len = Math.sqrt( dx * dx + dy * dy );
+			int farthest = -1;
+			double maxDist = SIMPLIFY_EPSILON;
+			for ( int i = a + 1; i < b; i++ )
+			{
+				final double d = ( len == 0. )
+						? Math.sqrt( ( x[ i ] - ax ) * ( x[ i ] - ax ) + ( y[ i ] - ay ) * ( y[ i ] - ay ) )
+						: Math.abs( dy * ( x[ i ] - ax ) - dx * ( y[ i ] - ay ) ) / len;
+				if ( d > maxDist )
+				{
+					maxDist = d;
+					farthest = i;
+				}
+			}
+			if ( farthest < 0 )
+				continue;
+
+			keep[ farthest ] = true;
+			stack[ sp++ ] = a;
+			stack[ sp++ ] = farthest;
+			stack[ sp++ ] = farthest;
+			stack[ sp++ ] = b;
+		}
+	}
+}
@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How a frame is processed so that it fits in a memory budget.
+ * <p>
+ * The peak memory needed to process a frame is estimated from the number of
+ * pixels, the number of features of the classifier, the number of classes,
+ * and whether the native feature engine can be used. If a whole frame does
+ * not fit, the feature planes of the native engine are moved off-heap, and
+ * otherwise frames are processed in XY tiles, with a halo wide enough for
+ * the largest filter of the classifier so that tiles join seamlessly. Stacks
+ * are preferably streamed in Z-slabs, labeled as they come, so that the
+ * probabilities of the whole stack are not kept. Frames are processed one at
+ * a time, and use all threads.
+ * <p>
+ * Plans are created by {@link #create(long[], int, int, int, boolean, int, int, int, long)},
+ * and are not feasible if even the smallest tiles do not fit in the budget.
+ */
+public class MemoryPlan
+{
+
+	/**
+	 * Tile sizes that are tried, from the largest to the smallest.
+	 */
+	private static final int[] TILE_SIZES = new int[] { 4096, 2048, 1024, 512, 256, 128, 64 };
+
+	private static final Pattern SCALE_PATTERN = Pattern.compile( "_(\\d+(?:\\.\\d+)?)" );
+
+	private final long budget;
+
+	private final long[] dims;
+
+	private final FeaturePlanes.Storage storage;
+
+	private final int engineTileSize;
+
+	private final int wekaTileSize;
+
+	private final int slabThickness;
+
+	private final int halo;
+
+	private final int zHalo;
+
+	private final long engineBytes;
+
+	private final long wekaBytes;
+
+	private final boolean engineUsable;
+
+	private final String errorMessage;
+
+	private MemoryPlan(
+			final long budget,
+			final long[] dims,
+			final FeaturePlanes.Storage storage,
+			final int engineTileSize,
+			final int wekaTileSize,
+			final int slabThickness,
+			final int halo,
+			final int zHalo,
+			final long engineBytes,
+			final long wekaBytes,
+			final boolean engineUsable,
+			final String errorMessage )
+	{
+		this.budget = budget;
+		this.dims = dims;
+		this.storage = storage;
+		this.engineTileSize = engineTileSize;
+		this.wekaTileSize = wekaTileSize;
+		this.slabThickness = slabThickness;
+		this.halo = halo;
+		this.zHalo = zHalo;
+		this.engineBytes = engineBytes;
+		this.wekaBytes = wekaBytes;
+		this.engineUsable = engineUsable;
+		this.errorMessage = errorMessage;
+	}
+
+	/**
+	 * Plans the processing of frames.
+	 * 
+	 * @param dims
+	 *            the frame dimensions, X, Y, and Z if any.
+	 * @param nFeatures
+	 *            the number of features of the classifier.
+	 * @param nClasses
+	 *            the number of classes of the classifier.
+	 * @param nBlurPlanes
+	 *            the number of planes the native engine keeps for blurs.
+	 * @param engineUsable
+	 *            whether the native feature engine can be used.
+	 * @param numThreads
+	 *            the number of threads used to compute features.
+	 * @param halo
+	 *            the tile halo, in pixels.
+	 * @param zHalo
+	 *            the slab halo, in planes. 0 when the planes of stacks are
+	 *            classified independently.
+	 * @param budget
+	 *            the memory budget, in bytes.
+	 * @return a new plan.
+	 */
+	public static MemoryPlan create(
+			final long[] dims,
+			final int nFeatures,
+			final int nClasses,
+			final int nBlurPlanes,
+			final boolean engineUsable,
+			final int numThreads,
+			final int halo,
+			final int zHalo,
+			final long budget )
+	{
+		/*
+		 * Bytes per pixel. Weka: feature stack, probabilities of all
+		 * classes, and float copies of the input. Engine: input copy,
+		 * blurs, and the feature planes, or only those being computed when
+		 * they are stored off-heap. The probabilities of the whole frame are
+		 * always on the heap.
+		 */
+		final long wekaPerPixel = 4l * ( nFeatures + nClasses + 2 );
+		final long enginePerPixelHeap = 4l * ( nFeatures + nBlurPlanes + 1 );
+		final long enginePerPixelOffHeap = 4l * ( Math.min( numThreads, nFeatures ) + nBlurPlanes + 1 );
+
+		int wekaTileSize = tileSize( dims, halo, wekaPerPixel, budget );
+		long wekaBytes = peakBytes( dims, wekaTileSize, halo, wekaPerPixel );
+		int slabThickness = 0;
+		if ( dims.length > 2 && wekaTileSize != 0 )
+		{
+			// Stacks: stream Z-slabs rather than tile in XY if possible.
+			slabThickness = slabThickness( dims, zHalo, wekaPerPixel, budget );
+			if ( slabThickness > 0 )
+			{
+				wekaTileSize = 0;
+				wekaBytes = slabPeakBytes( dims, slabThickness, zHalo, wekaPerPixel );
+			}
+		}
+		if ( !engineUsable )
+		{
+			final String errorMessage = ( wekaTileSize < 0 ) ? notEnoughMemory( dims, halo, wekaPerPixel, budget ) : null;
+			return new MemoryPlan( budget, dims, FeaturePlanes.Storage.HEAP, wekaTileSize, wekaTileSize, slabThickness, halo, zHalo, wekaBytes, wekaBytes, false, errorMessage );
+		}
+
+		FeaturePlanes.Storage storage = FeaturePlanes.Storage.HEAP;
+		int engineTileSize = tileSize( dims, halo, enginePerPixelHeap, budget );
+		long engineBytes = peakBytes( dims, engineTileSize, halo, enginePerPixelHeap );
+		if ( engineTileSize != 0 )
+		{
+			// Try moving feature planes off-heap before tiling.
+			final int offHeapTileSize = tileSize( dims, halo, enginePerPixelOffHeap, budget );
+			if ( offHeapTileSize >= 0 )
+			{
+				final long offHeapBytes = 4l * nFeatures * numPixels( dims, offHeapTileSize, halo );
+				storage = ( offHeapBytes < freePhysicalMemory() / 2 ) ? FeaturePlanes.Storage.DIRECT : FeaturePlanes.Storage.MAPPED;
+				engineTileSize = offHeapTileSize;
+				engineBytes = peakBytes( dims, engineTileSize, halo, enginePerPixelOffHeap );
+			}
+		}
+		final String errorMessage = ( engineTileSize < 0 ) ? notEnoughMemory( dims, halo, enginePerPixelOffHeap, budget ) : null;
+		return new MemoryPlan( budget, dims, storage, engineTileSize, wekaTileSize, slabThickness, halo, zHalo, engineBytes, wekaBytes, true, errorMessage );
+	}
+
+	/**
+	 * Returns the memory budget to use when none is configured: a large part
+	 * of the memory that can still be allocated on the heap.
+	 * 
+	 * @return a budget in bytes.
+	 */
+	public static long defaultBudget()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long used = runtime.totalMemory() - runtime.freeMemory();
+		return ( long ) ( 0.8 * ( runtime.maxMemory() - used ) );
+	}
+
+	/**
+	 * Returns the halo that tiles need so that features are computed as on
+	 * the whole frame, from the feature names of a classifier.
+	 * 
+	 * @param featureNames
+	 *            the feature names, in which scales are suffixes such as
+	 *            <code>_8.0</code>.
+	 * @return a halo, in pixels.
+	 */
+	public static int halo( final List< String > featureNames )
+	{
+		double maxScale = 0.;
+		for ( final String name : featureNames )
+		{
+			final Matcher matcher = SCALE_PATTERN.matcher( name );
+			while ( matcher.find() )
+				maxScale = Math.max( maxScale, Double.parseDouble( matcher.group( 1 ) ) );
+		}
+		// Gaussian kernels of the features reach ~1.7 times the scale.
+		return ( int ) Math.ceil( 2. * maxScale ) + 8;
+	}
+
+	public boolean isFeasible()
+	{
+		return errorMessage == null;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns where the native engine stores feature planes.
+	 * 
+	 * @return the feature storage.
+	 */
+	public FeaturePlanes.Storage getStorage()
+	{
+		return storage;
+	}
+
+	/**
+	 * Returns the tile size to use with the native feature engine.
+	 * 
+	 * @return the tile size, or 0 to process whole frames.
+	 */
+	public int getEngineTileSize()
+	{
+		return engineTileSize;
+	}
+
+	/**
+	 * Returns the tile size to use with the Weka segmentation.
+	 * 
+	 * @return the tile size, or 0 to process whole frames.
+	 */
+	public int getWekaTileSize()
+	{
+		return wekaTileSize;
+	}
+
+	/**
+	 * Returns whether whole frames are processed with feature planes on the
+	 * heap, which is the case when memory is not scarce.
+	 * 
+	 * @return <code>true</code> if frames are not tiled and features are on
+	 *         the heap.
+	 */
+	public boolean isWholeFrameOnHeap()
+	{
+		return engineTileSize == 0 && wekaTileSize == 0 && slabThickness == 0 && storage == FeaturePlanes.Storage.HEAP;
+	}
+
+	/**
+	 * Returns the thickness of the Z-slabs stacks are streamed in with the
+	 * Weka segmentation.
+	 * 
+	 * @return the number of planes per slab, or 0 if stacks are processed
+	 *         whole or in XY tiles.
+	 */
+	public int getSlabThickness()
+	{
+		return slabThickness;
+	}
+
+	public int getHalo()
+	{
+		return halo;
+	}
+
+	/**
+	 * Returns the halo of Z-slabs.
+	 * 
+	 * @return the number of planes added on each side of slabs, 0 when the
+	 *         planes of stacks are classified independently.
+	 */
+	public int getZHalo()
+	{
+		return zHalo;
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( "Memory plan for frames of " );
+		for ( int d = 0; d < dims.length; d++ )
+			str.append( ( d == 0 ? "" : " x " ) + dims[ d ] );
+		str.append( String.format( " pixels, budget %.0f MB:\n", budget / 1e6 ) );
+		if ( !isFeasible() )
+			return str.append( " - " + errorMessage ).toString();
+		if ( engineUsable )
+			str.append( String.format( " - native features: %s, %s storage, peak %.0f MB.\n",
+					tiling( engineTileSize ), storage.name().toLowerCase(), engineBytes / 1e6 ) );
+		final String wekaTiling = ( slabThickness > 0 )
+				? String.format( "Z-slabs of %d planes with a %d-plane halo, labeled as they come", slabThickness, zHalo )
+				: tiling( wekaTileSize );
+		str.append( String.format( " - Weka features%s: %s, peak %.0f MB.\n",
+				engineUsable ? " (fallback)" : "", wekaTiling, wekaBytes / 1e6 ) );
+		str.append( " - frames processed one at a time with all threads." );
+		return str.toString();
+	}
+
+	private String tiling( final int tileSize )
+	{
+		return ( tileSize == 0 ) ? "whole frames" : String.format( "%d x %d tiles with a %d-pixel halo", tileSize, tileSize, halo );
+	}
+
+	/**
+	 * Returns 0 if the whole frame fits, the largest tile size that fits
+	 * otherwise, and -1 if no tile size fits.
+	 */
+	private static int tileSize( final long[] dims, final int halo, final long perPixel, final long budget )
+	{
+		if ( peakBytes( dims, 0, halo, perPixel ) <= budget )
+			return 0;
+		for ( final int tileSize : TILE_SIZES )
+		{
+			if ( tileSize >= Math.max( dims[ 0 ], dims[ 1 ] ) )
+				continue;
+			if ( peakBytes( dims, tileSize, halo, perPixel ) <= budget )
+				return tileSize;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the largest slab thickness that fits, or -1 if none fits.
+	 */
+	private static int slabThickness( final long[] dims, final int halo, final long perPixel, final long budget )
+	{
+		for ( long thickness = dims[ 2 ] / 2; thickness >= 1; thickness /= 2 )
+			if ( slabPeakBytes( dims, ( int ) thickness, halo, perPixel ) <= budget )
+				return ( int ) thickness;
+		return -1;
+	}
+
+	/**
+	 * Peak memory when streaming slabs: the buffers of a slab and its halo,
+	 * and the probabilities and labels of the slab core. The probabilities of
+	 * the whole stack are not kept.
+	 */
+	private static long slabPeakBytes( final long[] dims, final int thickness, final int halo, final long perPixel )
+	{
+		final long planeSize = dims[ 0 ] * dims[ 1 ];
+		final long nSlab = planeSize * Math.min( dims[ 2 ], thickness + 2l * halo );
+		return nSlab * perPixel + 8l * planeSize * thickness;
+	}
+
+	/**
+	 * Peak memory: the output probabilities of the whole frame, plus the
+	 * buffers of a tile and its output.
+	 */
+	private static long peakBytes( final long[] dims, final int tileSize, final int halo, final long perPixel )
+	{
+		final long nTile = numPixels( dims, Math.max( 0, tileSize ), halo );
+		final long output = 4l * numPixels( dims, 0, 0 );
+		return output + nTile * perPixel + ( tileSize > 0 ? 4l * nTile : 0l );
+	}
+
+	private static long numPixels( final long[] dims, final int tileSize, final int halo )
+	{
+		long n = 1;
+		for ( int d = 0; d < dims.length; d++ )
+			n *= ( d < 2 && tileSize > 0 ) ? Math.min( dims[ d ], tileSize + 2l * halo ) : dims[ d ];
+		return n;
+	}
+
+	private static String notEnoughMemory( final long[] dims, final int halo, final long perPixel, final long budget )
+	{
+		final int smallest = TILE_SIZES[ TILE_SIZES.length - 1 ];
+		return String.format( "Not enough memory: processing frames needs at least %.0f MB with %d x %d tiles, but the memory budget is %.0f MB.",
+				peakBytes( dims, smallest, halo, perPixel ) / 1e6, smallest, smallest, budget / 1e6 );
+	}
+
+	private static long freePhysicalMemory()
+	{
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if ( os instanceof com.sun.management.OperatingSystemMXBean )
+			return ( ( com.sun.management.OperatingSystemMXBean ) os ).getFreePhysicalMemorySize();
+		return 0l;
+	}
+}
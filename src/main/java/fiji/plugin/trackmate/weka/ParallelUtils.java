@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Minimal helpers to run loops over primitive buffers in parallel.
+ */
+public class ParallelUtils
+{
+
+	/**
+	 * Processes a range of indices.
+	 */
+	@FunctionalInterface
+	public interface RangeConsumer
+	{
+		void accept( int from, int to );
+	}
+
+	private ParallelUtils()
+	{}
+
+	/**
+	 * Splits the range <code>[0, n)</code> in contiguous blocks and processes
+	 * them in parallel. Returns when all blocks are processed.
+	 *
+	 * @param n
+	 *            the size of the range.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param body
+	 *            the block processor.
+	 */
+	public static void forEachBlock( final int n, final int numThreads, final RangeConsumer body )
+	{
+		final int nThreads = Math.max( 1, Math.min( numThreads, n ) );
+		if ( nThreads == 1 )
+		{
+			body.accept( 0, n );
+			return;
+		}
+
+		// A few blocks per thread, for load balancing.
+		final int nBlocks = Math.min( n, 4 * nThreads );
+		final ExecutorService executor = Executors.newFixedThreadPool( nThreads );
+		try
+		{
+			final List< Future< ? > > futures = new ArrayList<>( nBlocks );
+			for ( int b = 0; b < nBlocks; b++ )
+			{
+				final int from = ( int ) ( ( long ) n * b / nBlocks );
+				final int to = ( int ) ( ( long ) n * ( b + 1 ) / nBlocks );
+				futures.add( executor.submit( () -> body.accept( from, to ) ) );
+			}
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			throw new RuntimeException( cause );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * The histogram of a probability map, in regular bins between 0 and 1, to
+ * estimate the foreground of any threshold and suggest thresholds without
+ * extracting objects.
+ * <p>
+ * Bin <code>i</code> counts the probabilities in
+ * <code>[i / n, (i + 1) / n)</code>, where <code>n</code> is the number of
+ * bins. Probabilities out of <code>[0, 1]</code> are counted in the first or
+ * last bin.
+ */
+public class ProbabilityHistogram
+{
+
+	/** Default number of bins, fine enough for threshold values. */
+	public static final int DEFAULT_BINS = 1024;
+
+	private final long[] counts;
+
+	private final long total;
+
+	/**
+	 * Creates a histogram from bin counts.
+	 * 
+	 * @param counts
+	 *            the bin counts. Not copied.
+	 */
+	public ProbabilityHistogram( final long[] counts )
+	{
+		this.counts = counts;
+		long sum = 0l;
+		for ( final long c : counts )
+			sum += c;
+		this.total = sum;
+	}
+
+	/**
+	 * Builds the histogram of probabilities stored in an array, in parallel.
+	 * 
+	 * @param values
+	 *            the probabilities.
+	 * @param n
+	 *            the number of probabilities, from the start of the array.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new histogram with {@link #DEFAULT_BINS} bins.
+	 */
+	public static ProbabilityHistogram build( final float[] values, final int n, final int numThreads )
+	{
+		final long[] counts = new long[ DEFAULT_BINS ];
+		ParallelUtils.forEachBlock( n, numThreads, ( from, to ) -> {
+			final long[] local = new long[ DEFAULT_BINS ];
+			final float scale = DEFAULT_BINS;
+			for ( int i = from; i < to; i++ )
+				local[ Math.min( DEFAULT_BINS - 1, Math.max( 0, ( int ) ( values[ i ] * scale ) ) ) ]++;
+			merge( local, counts );
+		} );
+		return new ProbabilityHistogram( counts );
+	}
+
+	/**
+	 * Builds the histogram of a probability image, in parallel over rows.
+	 * 
+	 * @param proba
+	 *            the probability image, 2D or 3D.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new histogram with {@link #DEFAULT_BINS} bins.
+	 */
+	public static < T extends RealType< T > > ProbabilityHistogram build( final RandomAccessibleInterval< T > proba, final int numThreads )
+	{
+		final int width = ( int ) proba.dimension( 0 );
+		final int height = ( int ) proba.dimension( 1 );
+		final int nz = ( proba.numDimensions() > 2 ) ? ( int ) proba.dimension( 2 ) : 1;
+		final long[] counts = new long[ DEFAULT_BINS ];
+		ParallelUtils.forEachBlock( nz * height, numThreads, ( from, to ) -> {
+			final float[] row = new float[ width ];
+			final short[] bins = new short[ width ];
+			final long[] local = new long[ DEFAULT_BINS ];
+			for ( int r = from; r < to; r++ )
+			{
+				final long[] min = Intervals.minAsLongArray( proba );
+				final long[] max = Intervals.maxAsLongArray( proba );
+				min[ 1 ] += r % height;
+				max[ 1 ] = min[ 1 ];
+				if ( min.length > 2 )
+				{
+					min[ 2 ] += r / height;
+					max[ 2 ] = min[ 2 ];
+				}
+				final Cursor< T > cursor = Views.flatIterable( Views.interval( proba, new FinalInterval( min, max ) ) ).cursor();
+				int x = 0;
+				while ( cursor.hasNext() )
+					row[ x++ ] = cursor.next().getRealFloat();
+				accumulate( row, bins, local );
+			}
+			merge( local, counts );
+		} );
+		return new ProbabilityHistogram( counts );
+	}
+
+	/**
+	 * Adds values to bin counts.
+	 * 
+	 * @param values
+	 *            the values.
+	 * @param bins
+	 *            a buffer at least as long as the values.
+	 * @param counts
+	 *            the bin counts to increment.
+	 */
+	static void accumulate( final float[] values, final short[] bins, final long[] counts )
+	{
+		FloatKernels.quantize( values, 0f, 1f, counts.length, bins );
+		for ( int i = 0; i < values.length; i++ )
+			counts[ bins[ i ] & 0xffff ]++;
+	}
+
+	/**
+	 * Adds bin counts to shared ones.
+	 */
+	static void merge( final long[] local, final long[] counts )
+	{
+		synchronized ( counts )
+		{
+			for ( int i = 0; i < local.length; i++ )
+				counts[ i ] += local[ i ];
+		}
+	}
+
+	public int numBins()
+	{
+		return counts.length;
+	}
+
+	/**
+	 * Returns the total number of probabilities counted.
+	 * 
+	 * @return a number of pixels.
+	 */
+	public long getTotal()
+	{
+		return total;
+	}
+
+	/**
+	 * Returns the bin counts.
+	 * 
+	 * @return a copy of the bin counts.
+	 */
+	public long[] getCounts()
+	{
+		return counts.clone();
+	}
+
+	/**
+	 * Estimates the number of pixels strictly above a threshold. Counts are
+	 * exact at bin edges, and interpolated linearly within a bin.
+	 * 
+	 * @param threshold
+	 *            the probability threshold.
+	 * @return the estimated number of foreground pixels.
+	 */
+	public double countAbove( final double threshold )
+	{
+		final int n = counts.length;
+		final double b = Math.max( 0., Math.min( n, threshold * n ) );
+		final int i0 = ( int ) Math.floor( b );
+		double count = 0.;
+		for ( int i = i0 + 1; i < n; i++ )
+			count += counts[ i ];
+		if ( i0 < n )
+			count += counts[ i0 ] * ( i0 + 1 - b );
+		return count;
+	}
+
+	/**
+	 * Estimates the fraction of pixels strictly above a threshold.
+	 * 
+	 * @param threshold
+	 *            the probability threshold.
+	 * @return the estimated foreground fraction, from 0 to 1.
+	 */
+	public double getForegroundFraction( final double threshold )
+	{
+		return ( total == 0 ) ? 0. : countAbove( threshold ) / total;
+	}
+
+	/**
+	 * Returns the threshold that maximizes the variance between the
+	 * background and the foreground (Otsu's method).
+	 * 
+	 * @return a probability threshold, at a bin edge.
+	 */
+	public double otsu()
+	{
+		final int n = counts.length;
+		double sumAll = 0.;
+		for ( int i = 0; i < n; i++ )
+			sumAll += ( double ) i * counts[ i ];
+
+		double sumBackground = 0.;
+		long background = 0l;
+		double bestVariance = -1.;
+		int best = n / 2;
+		for ( int k = 0; k < n - 1; k++ )
+		{
+			background += counts[ k ];
+			sumBackground += ( double ) k * counts[ k ];
+			final long foreground = total - background;
+			if ( background == 0 || foreground == 0 )
+				continue;
+			final double meanBackground = sumBackground / background;
+			final double meanForeground = ( sumAll - sumBackground ) / foreground;
+			final double d = meanBackground - meanForeground;
+			final double variance = ( double ) background * foreground * d * d;
+			if ( variance > bestVariance )
+			{
+				bestVariance = variance;
+				best = k;
+			}
+		}
+		return ( best + 1. ) / n;
+	}
+
+	/**
+	 * Returns the threshold of the triangle method: the non-empty bin
+	 * furthest from the line joining the histogram peak to the end of its
+	 * longest tail. It suits maps where the foreground is a small fraction of
+	 * the pixels.
+	 * 
+	 * @return a probability threshold, at a bin edge.
+	 */
+	public double triangle()
+	{
+		final int n = counts.length;
+		int first = -1;
+		int last = -1;
+		int peak = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			if ( counts[ i ] == 0 )
+				continue;
+			if ( first < 0 )
+				first = i;
+			last = i;
+			if ( counts[ i ] > counts[ peak ] )
+				peak = i;
+		}
+		if ( first < 0 || first == last )
+			return 0.5;
+
+		// Use the longest tail.
+		final boolean right = ( last - peak ) >= ( peak - first );
+		final int end = right ? last : first;
+		final double dx = end - peak;
+		final double dy = -counts[ peak ];
+		final double norm = Math.sqrt( dx * dx + dy * dy );
+		double bestDistance = -1.;
+		int best = peak;
+		final int step = right ? 1 : -1;
+		for ( int i = peak; i != end + step; i += step )
+		{
+			// Probabilities voted by a forest are quantized: skip empty bins.
+			if ( counts[ i ] == 0 )
+				continue;
+			// Distance from (i, counts[i]) to the line from the peak to the end.
+			final double distance = Math.abs( dy * ( i - peak ) - dx * ( counts[ i ] - counts[ peak ] ) ) / norm;
+			if ( distance > bestDistance )
+			{
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return right ? ( best + 1. ) / n : ( double ) best / n;
+	}
+
+	/**
+	 * Returns the lowest threshold, at a bin edge, for which at most the
+	 * specified fraction of the pixels is foreground.
+	 * 
+	 * @param fraction
+	 *            the target foreground fraction, from 0 to 1.
+	 * @return a probability threshold.
+	 */
+	public double thresholdForFraction( final double fraction )
+	{
+		final int n = counts.length;
+		final double target = fraction * total;
+		double above = 0.;
+		for ( int i = n - 1; i >= 0; i-- )
+		{
+			if ( above + counts[ i ] > target )
+				return ( i + 1. ) / n;
+			above += counts[ i ];
+		}
+		return 0.;
+	}
+}
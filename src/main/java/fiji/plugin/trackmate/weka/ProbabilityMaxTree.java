@@ -0,0 +1,597 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import ij.process.ByteProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A max-tree (component tree) of a probability map.
+ * <p>
+ * The tree is built once, in quasi-linear time, with the union-find algorithm
+ * of Berger et al. (2007). Each node stores the area, bounding-box, centroid,
+ * probability-weighted centroid, maximal and summed probability of the
+ * connected component it represents.
+ * The spots for any threshold can then be read from the tree nodes, without
+ * thresholding and labeling the probability map again.
+ * <p>
+ * Connected components are 4-connected in 2D and 6-connected in 3D, and
+ * pixels are part of an object if their probability is strictly above the
+ * threshold, like for {@link fiji.plugin.trackmate.detection.MaskUtils}.
+ */
+public class ProbabilityMaxTree
+{
+
+	private final float[] values;
+
+	private final int[] dims;
+
+	private final long[] origin;
+
+	private final double[] calibration;
+
+	private final boolean is3D;
+
+	/** Pixel index to node index. */
+	private final int[] nodeOf;
+
+	private final int numNodes;
+
+	/** Node index to parent node index. The root is its own parent. */
+	private final int[] parent;
+
+	/** Node grey level. */
+	private final float[] level;
+
+	private final int[] area;
+
+	private final float[] max;
+
+	private final double[] sum;
+
+	private final double[] sumX;
+
+	private final double[] sumY;
+
+	private final double[] sumZ;
+
+	/** Coordinates summed weighted by probabilities, 3 per node. */
+	private final double[] weightedSum;
+
+	/** Bounding boxes, 6 ints per node: xmin, ymin, zmin, xmax, ymax, zmax. */
+	private final int[] bbox;
+
+	private final ProbabilityHistogram histogram;
+
+	private ProbabilityMaxTree( final float[] values, final int[] dims, final long[] origin, final double[] calibration, final ProbabilityHistogram histogram )
+	{
+		this.values = values;
+		this.histogram = histogram;
+		this.dims = dims;
+		this.origin = origin;
+		this.calibration = calibration;
+		this.is3D = dims.length > 2;
+		final int n = values.length;
+
+		/*
+		 * Union-find on pixels sorted by decreasing values.
+		 */
+
+		final int[] sorted = sortDecreasing( values );
+		final int[] par = new int[ n ];
+		final int[] zpar = new int[ n ];
+		Arrays.fill( zpar, -1 );
+		final int[] neighbors = new int[ 6 ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int p = sorted[ i ];
+			par[ p ] = p;
+			zpar[ p ] = p;
+			final int nn = neighbors( p, neighbors );
+			for ( int k = 0; k < nn; k++ )
+			{
+				final int q = neighbors[ k ];
+				if ( zpar[ q ] < 0 )
+					continue;
+				final int r = findRoot( zpar, q );
+				if ( r != p )
+				{
+					par[ r ] = p;
+					zpar[ r ] = p;
+				}
+			}
+		}
+
+		/*
+		 * Canonicalization: every pixel points to the canonical pixel of its
+		 * level component.
+		 */
+
+		for ( int i = n - 1; i >= 0; i-- )
+		{
+			final int p = sorted[ i ];
+			final int q = par[ p ];
+			if ( values[ par[ q ] ] == values[ q ] )
+				par[ p ] = par[ q ];
+		}
+
+		/*
+		 * Node indices. Nodes are numbered by decreasing level, so that a
+		 * parent always has a larger index than its children. We reuse zpar
+		 * to store the pixel-to-node mapping.
+		 */
+
+		final int[] node = zpar;
+		Arrays.fill( node, -1 );
+		int m = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int p = sorted[ i ];
+			if ( isCanonical( par, p ) )
+				node[ p ] = m++;
+		}
+		for ( int p = 0; p < n; p++ )
+			if ( node[ p ] < 0 )
+				node[ p ] = node[ par[ p ] ];
+
+		this.nodeOf = node;
+		this.numNodes = m;
+		this.parent = new int[ m ];
+		this.level = new float[ m ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int p = sorted[ i ];
+			if ( !isCanonical( par, p ) )
+				continue;
+			final int k = node[ p ];
+			parent[ k ] = ( par[ p ] == p ) ? k : node[ par[ p ] ];
+			level[ k ] = values[ p ];
+		}
+
+		/*
+		 * Attributes. First own pixels, then accumulated from the leaves to
+		 * the root.
+		 */
+
+		this.area = new int[ m ];
+		this.max = new float[ m ];
+		this.sum = new double[ m ];
+		this.sumX = new double[ m ];
+		this.sumY = new double[ m ];
+		this.sumZ = new double[ m ];
+		this.weightedSum = new double[ 3 * m ];
+		this.bbox = new int[ 6 * m ];
+		for ( int k = 0; k < m; k++ )
+		{
+			max[ k ] = level[ k ];
+			bbox[ 6 * k ] = Integer.MAX_VALUE;
+			bbox[ 6 * k + 1 ] = Integer.MAX_VALUE;
+			bbox[ 6 * k + 2 ] = Integer.MAX_VALUE;
+			bbox[ 6 * k + 3 ] = Integer.MIN_VALUE;
+			bbox[ 6 * k + 4 ] = Integer.MIN_VALUE;
+			bbox[ 6 * k + 5 ] = Integer.MIN_VALUE;
+		}
+		final int w = dims[ 0 ];
+		final int h = dims[ 1 ];
+		for ( int p = 0; p < n; p++ )
+		{
+			final int k = node[ p ];
+			final int x = p % w;
+			final int y = ( p / w ) % h;
+			final int z = p / ( w * h );
+			area[ k ]++;
+			sum[ k ] += values[ p ];
+			sumX[ k ] += x;
+			sumY[ k ] += y;
+			sumZ[ k ] += z;
+			weightedSum[ 3 * k ] += ( double ) values[ p ] * x;
+			weightedSum[ 3 * k + 1 ] += ( double ) values[ p ] * y;
+			weightedSum[ 3 * k + 2 ] += ( double ) values[ p ] * z;
+			final int b = 6 * k;
+			bbox[ b ] = Math.min( bbox[ b ], x );
+			bbox[ b + 1 ] = Math.min( bbox[ b + 1 ], y );
+			bbox[ b + 2 ] = Math.min( bbox[ b + 2 ], z );
+			bbox[ b + 3 ] = Math.max( bbox[ b + 3 ], x );
+			bbox[ b + 4 ] = Math.max( bbox[ b + 4 ], y );
+			bbox[ b + 5 ] = Math.max( bbox[ b + 5 ], z );
+		}
+		for ( int k = 0; k < m; k++ )
+		{
+			final int q = parent[ k ];
+			if ( q == k )
+				continue;
+			area[ q ] += area[ k ];
+			max[ q ] = Math.max( max[ q ], max[ k ] );
+			sum[ q ] += sum[ k ];
+			sumX[ q ] += sumX[ k ];
+			sumY[ q ] += sumY[ k ];
+			sumZ[ q ] += sumZ[ k ];
+			for ( int d = 0; d < 3; d++ )
+				weightedSum[ 3 * q + d ] += weightedSum[ 3 * k + d ];
+			final int b = 6 * k;
+			final int bq = 6 * q;
+			for ( int d = 0; d < 3; d++ )
+			{
+				bbox[ bq + d ] = Math.min( bbox[ bq + d ], bbox[ b + d ] );
+				bbox[ bq + 3 + d ] = Math.max( bbox[ bq + 3 + d ], bbox[ b + 3 + d ] );
+			}
+		}
+	}
+
+	/**
+	 * Builds the max-tree of the specified probability image.
+	 *
+	 * @param proba
+	 *            the probability image, 2D or 3D.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @return a new max-tree.
+	 */
+	public static < T extends RealType< T > > ProbabilityMaxTree build( final RandomAccessibleInterval< T > proba, final double[] calibration )
+	{
+		final long size = Intervals.numElements( proba );
+		if ( size > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Probability image is too large to build a max-tree: " + size + " pixels." );
+
+		// The histogram is built while the probabilities are copied.
+		final float[] values = new float[ ( int ) size ];
+		final long[] counts = new long[ ProbabilityHistogram.DEFAULT_BINS ];
+		final float scale = counts.length;
+		final int lastBin = counts.length - 1;
+		int i = 0;
+		for ( final T t : Views.flatIterable( proba ) )
+		{
+			final float v = t.getRealFloat();
+			values[ i++ ] = v;
+			counts[ Math.min( lastBin, Math.max( 0, ( int ) ( v * scale ) ) ) ]++;
+		}
+
+		final int[] dims = new int[ proba.numDimensions() ];
+		for ( int d = 0; d < dims.length; d++ )
+			dims[ d ] = ( int ) proba.dimension( d );
+
+		return new ProbabilityMaxTree( values, dims, Intervals.minAsLongArray( proba ), calibration, new ProbabilityHistogram( counts ) );
+	}
+
+	/**
+	 * Returns the number of objects found above the specified threshold. This
+	 * only iterates over the tree nodes.
+	 *
+	 * @param threshold
+	 *            the probability threshold.
+	 * @return the number of objects.
+	 */
+	public int countComponents( final double threshold )
+	{
+		return countComponents( threshold, threshold );
+	}
+
+	/**
+	 * Returns the number of objects found with hysteresis thresholding: the
+	 * components above the low threshold that contain a pixel above the seed
+	 * threshold. This only iterates over the tree nodes.
+	 *
+	 * @param threshold
+	 *            the low probability threshold.
+	 * @param seedThreshold
+	 *            the high probability threshold.
+	 * @return the number of objects.
+	 */
+	public int countComponents( final double threshold, final double seedThreshold )
+	{
+		int count = 0;
+		for ( int k = 0; k < numNodes; k++ )
+			if ( isComponent( k, threshold ) && max[ k ] > seedThreshold )
+				count++;
+		return count;
+	}
+
+	/**
+	 * Returns the spots of the objects found above the specified threshold.
+	 * The spot quality is the maximal probability in the object. In 2D, the
+	 * spots have a contour. The statistics of the nodes are stored as spot
+	 * features.
+	 *
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @return a new list of spots.
+	 */
+	public List< Spot > getSpots( final double threshold, final boolean simplify )
+	{
+		return getSpots( threshold, threshold, simplify );
+	}
+
+	/**
+	 * Returns the spots of the objects found with hysteresis thresholding:
+	 * the components above the low threshold that contain a pixel above the
+	 * seed threshold. In a max-tree, these are the nodes of the components
+	 * whose maximum is above the seed threshold, so no pixel is visited.
+	 *
+	 * @param threshold
+	 *            the low probability threshold.
+	 * @param seedThreshold
+	 *            the high probability threshold.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @return a new list of spots.
+	 */
+	public List< Spot > getSpots( final double threshold, final double seedThreshold, final boolean simplify )
+	{
+		return getTable( threshold, seedThreshold, simplify, 0., 0l ).toSpots();
+	}
+
+	/**
+	 * Returns the table of the objects found with hysteresis thresholding,
+	 * filtered before their contours are computed.
+	 *
+	 * @param threshold
+	 *            the low probability threshold.
+	 * @param seedThreshold
+	 *            the high probability threshold.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @param minQuality
+	 *            the minimal maximal probability of the objects kept.
+	 * @param minPixels
+	 *            the minimal number of pixels of the objects kept.
+	 * @return a new table, one row per object kept.
+	 */
+	public SpotTable getTable( final double threshold, final double seedThreshold, final boolean simplify, final double minQuality, final long minPixels )
+	{
+		/*
+		 * Map nodes to the object they belong to. Parents are processed first.
+		 */
+		final int[] objectOf = new int[ numNodes ];
+		final List< Integer > objects = new ArrayList<>();
+		for ( int k = numNodes - 1; k >= 0; k-- )
+		{
+			if ( level[ k ] <= threshold )
+				objectOf[ k ] = -1;
+			else if ( isComponent( k, threshold ) )
+			{
+				if ( max[ k ] > seedThreshold )
+				{
+					objectOf[ k ] = objects.size();
+					objects.add( Integer.valueOf( k ) );
+				}
+				else
+				{
+					objectOf[ k ] = -1;
+				}
+			}
+			else
+				objectOf[ k ] = objectOf[ parent[ k ] ];
+		}
+
+		final SpotTable table = new SpotTable( calibration, is3D );
+		final double[] weighted = new double[ 3 ];
+		for ( int o = 0; o < objects.size(); o++ )
+		{
+			final int k = objects.get( o ).intValue();
+			final double x = origin[ 0 ] + sumX[ k ] / area[ k ];
+			final double y = origin[ 1 ] + sumY[ k ] / area[ k ];
+			final double z = is3D ? origin[ 2 ] + sumZ[ k ] / area[ k ] : 0.;
+			for ( int d = 0; d < 3; d++ )
+				weighted[ d ] = weightedSum[ 3 * k + d ] + ( ( d < origin.length ) ? origin[ d ] * sum[ k ] : 0. );
+			table.add( x, y, z, area[ k ], max[ k ], sum[ k ], weighted, getBoundingBox( k ), o );
+		}
+		table.filter( minQuality, minPixels );
+
+		if ( !is3D )
+		{
+			for ( int row = 0; row < table.size(); row++ )
+			{
+				final int o = table.getSource( row );
+				final int k = objects.get( o ).intValue();
+				LabelUtils.contour( mask( k, o, objectOf ), table.getBoundingBox( row, 0 ), table.getBoundingBox( row, 1 ), calibration, simplify, table, row );
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Returns the number of pixels of the node with the specified index.
+	 */
+	public int getArea( final int node )
+	{
+		return area[ node ];
+	}
+
+	/**
+	 * Returns the maximal probability in the node with the specified index.
+	 */
+	public float getMax( final int node )
+	{
+		return max[ node ];
+	}
+
+	/**
+	 * Returns the mean probability in the node with the specified index.
+	 */
+	public double getMean( final int node )
+	{
+		return sum[ node ] / area[ node ];
+	}
+
+	/**
+	 * Returns the bounding box of the node with the specified index, as
+	 * <code>{ xmin, ymin, zmin, xmax, ymax, zmax }</code>, in pixel
+	 * coordinates of the probability image.
+	 */
+	public long[] getBoundingBox( final int node )
+	{
+		final long[] out = new long[ 6 ];
+		for ( int d = 0; d < 3; d++ )
+		{
+			final long o = ( d < origin.length ) ? origin[ d ] : 0l;
+			out[ d ] = o + bbox[ 6 * node + d ];
+			out[ 3 + d ] = o + bbox[ 6 * node + 3 + d ];
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the histogram of the probabilities this tree was built from,
+	 * with {@link ProbabilityHistogram#DEFAULT_BINS} bins.
+	 */
+	public ProbabilityHistogram getHistogram()
+	{
+		return histogram;
+	}
+
+	/**
+	 * Returns the number of nodes in this tree.
+	 */
+	public int numNodes()
+	{
+		return numNodes;
+	}
+
+	private boolean isComponent( final int k, final double threshold )
+	{
+		if ( level[ k ] <= threshold )
+			return false;
+		final int q = parent[ k ];
+		return q == k || level[ q ] <= threshold;
+	}
+
+	private ByteProcessor mask( final int k, final int object, final int[] objectOf )
+	{
+		final int w = dims[ 0 ];
+		final int x0 = bbox[ 6 * k ];
+		final int y0 = bbox[ 6 * k + 1 ];
+		final int mw = bbox[ 6 * k + 3 ] - x0 + 1;
+		final int mh = bbox[ 6 * k + 4 ] - y0 + 1;
+		final ByteProcessor mask = new ByteProcessor( mw, mh );
+		final byte[] pixels = ( byte[] ) mask.getPixels();
+		for ( int y = 0; y < mh; y++ )
+		{
+			final int offset = ( y0 + y ) * w + x0;
+			for ( int x = 0; x < mw; x++ )
+				if ( objectOf[ nodeOf[ offset + x ] ] == object )
+					pixels[ y * mw + x ] = ( byte ) 255;
+		}
+		return mask;
+	}
+
+	private boolean isCanonical( final int[] par, final int p )
+	{
+		return par[ p ] == p || values[ par[ p ] ] != values[ p ];
+	}
+
+	/**
+	 * Writes the 4- or 6-connected neighbors of pixel <code>p</code> in the
+	 * specified array, and returns their number.
+	 */
+	private int neighbors( final int p, final int[] out )
+	{
+		final int w = dims[ 0 ];
+		final int h = dims[ 1 ];
+		final int x = p % w;
+		final int y = ( p / w ) % h;
+		int n = 0;
+		if ( x > 0 )
+			out[ n++ ] = p - 1;
+		if ( x < w - 1 )
+			out[ n++ ] = p + 1;
+		if ( y > 0 )
+			out[ n++ ] = p - w;
+		if ( y < h - 1 )
+			out[ n++ ] = p + w;
+		if ( is3D )
+		{
+			final int z = p / ( w * h );
+			if ( z > 0 )
+				out[ n++ ] = p - w * h;
+			if ( z < dims[ 2 ] - 1 )
+				out[ n++ ] = p + w * h;
+		}
+		return n;
+	}
+
+	private static int findRoot( final int[] zpar, final int p )
+	{
+		int r = p;
+		while ( zpar[ r ] != r )
+		{
+			// Path halving.
+			zpar[ r ] = zpar[ zpar[ r ] ];
+			r = zpar[ r ];
+		}
+		return r;
+	}
+
+	/**
+	 * Returns the pixel indices sorted by decreasing values, with a 2-pass
+	 * LSD radix sort on the float bits.
+	 */
+	private static int[] sortDecreasing( final float[] values )
+	{
+		final int n = values.length;
+		final int[] keys = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int bits = Float.floatToIntBits( values[ i ] );
+			// Map to unsigned order, then invert for decreasing order.
+			final int sortable = ( bits < 0 ) ? ~bits : ( bits | 0x80000000 );
+			keys[ i ] = ~sortable;
+		}
+
+		int[] src = new int[ n ];
+		int[] dst = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			src[ i ] = i;
+		final int[] counts = new int[ 1 << 16 ];
+		for ( int shift = 0; shift < 32; shift += 16 )
+		{
+			Arrays.fill( counts, 0 );
+			for ( int i = 0; i < n; i++ )
+				counts[ ( keys[ i ] >>> shift ) & 0xffff ]++;
+			int total = 0;
+			for ( int b = 0; b < counts.length; b++ )
+			{
+				final int c = counts[ b ];
+				counts[ b ] = total;
+				total += c;
+			}
+			for ( int i = 0; i < n; i++ )
+			{
+				final int p = src[ i ];
+				dst[ counts[ ( keys[ p ] >>> shift ) & 0xffff ]++ ] = p;
+			}
+			final int[] tmp = src;
+			src = dst;
+			dst = tmp;
+		}
+		return src;
+	}
+}
@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A multi-resolution pyramid of a probability image, to display probability
+ * maps of large frames interactively.
+ * <p>
+ * Each level halves the X and Y dimensions of the previous one, down to
+ * levels that fit in {@link #MIN_LEVEL_SIZE} pixels. Z planes are kept. A
+ * pixel of a level is the maximum of the 2x2 pixels it covers, so that small
+ * objects stay visible at low resolution. The histogram of the full
+ * resolution probabilities is computed in the same pass as the first
+ * level. Levels are built in parallel, over rows.
+ */
+public class ProbabilityPyramid< T extends RealType< T > >
+{
+
+	/** Levels are built until both X and Y fit in this size. */
+	public static final int MIN_LEVEL_SIZE = 512;
+
+	private final RandomAccessibleInterval< T > source;
+
+	private final double[] calibration;
+
+	private final int nz;
+
+	private final List< float[][] > levels;
+
+	private final int[] widths;
+
+	private final int[] heights;
+
+	private final ProbabilityHistogram histogram;
+
+	private ProbabilityPyramid( final RandomAccessibleInterval< T > source, final double[] calibration, final int nz, final List< float[][] > levels, final int[] widths, final int[] heights, final ProbabilityHistogram histogram )
+	{
+		this.source = source;
+		this.calibration = calibration;
+		this.nz = nz;
+		this.levels = levels;
+		this.widths = widths;
+		this.heights = heights;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * Builds the pyramid of a probability image.
+	 * 
+	 * @param proba
+	 *            the probability image, 2D or 3D. It is kept as the full
+	 *            resolution level.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new pyramid.
+	 */
+	public static < T extends RealType< T > > ProbabilityPyramid< T > build( final RandomAccessibleInterval< T > proba, final double[] calibration, final int numThreads )
+	{
+		final int width = ( int ) proba.dimension( 0 );
+		final int height = ( int ) proba.dimension( 1 );
+		final int nz = ( proba.numDimensions() > 2 ) ? ( int ) proba.dimension( 2 ) : 1;
+		final long[] histogram = new long[ ProbabilityHistogram.DEFAULT_BINS ];
+
+		final List< Integer > ws = new ArrayList<>();
+		final List< Integer > hs = new ArrayList<>();
+		final List< float[][] > levels = new ArrayList<>();
+		ws.add( Integer.valueOf( width ) );
+		hs.add( Integer.valueOf( height ) );
+		levels.add( null );
+
+		// The first level reads the source, and fills the histogram.
+		final RowReader sourceReader = ( z, y, row ) -> {
+			final long[] min = Intervals.minAsLongArray( proba );
+			final long[] max = Intervals.maxAsLongArray( proba );
+			min[ 1 ] += y;
+			max[ 1 ] = min[ 1 ];
+			if ( min.length > 2 )
+			{
+				min[ 2 ] += z;
+				max[ 2 ] = min[ 2 ];
+			}
+			final Cursor< T > cursor = Views.flatIterable( Views.interval( proba, new FinalInterval( min, max ) ) ).cursor();
+			int x = 0;
+			while ( cursor.hasNext() )
+				row[ x++ ] = cursor.next().getRealFloat();
+		};
+		RowReader reader = sourceReader;
+		int w = width;
+		int h = height;
+		boolean first = true;
+		while ( w > MIN_LEVEL_SIZE || h > MIN_LEVEL_SIZE )
+		{
+			final float[][] level = downsample( reader, w, h, nz, first ? histogram : null, numThreads );
+			w = ( w + 1 ) / 2;
+			h = ( h + 1 ) / 2;
+			levels.add( level );
+			ws.add( Integer.valueOf( w ) );
+			hs.add( Integer.valueOf( h ) );
+			final int lw = w;
+			reader = ( z, y, row ) -> System.arraycopy( level[ z ], y * lw, row, 0, lw );
+			first = false;
+		}
+		if ( first )
+			fillHistogram( reader, width, height, nz, histogram, numThreads );
+
+		final int[] widths = new int[ ws.size() ];
+		final int[] heights = new int[ hs.size() ];
+		for ( int l = 0; l < widths.length; l++ )
+		{
+			widths[ l ] = ws.get( l ).intValue();
+			heights[ l ] = hs.get( l ).intValue();
+		}
+		return new ProbabilityPyramid<>( proba, calibration, nz, levels, widths, heights, new ProbabilityHistogram( histogram ) );
+	}
+
+	/**
+	 * Returns the number of levels, including the full resolution one.
+	 * 
+	 * @return the number of levels.
+	 */
+	public int numLevels()
+	{
+		return widths.length;
+	}
+
+	public int getWidth( final int level )
+	{
+		return widths[ level ];
+	}
+
+	public int getHeight( final int level )
+	{
+		return heights[ level ];
+	}
+
+	/**
+	 * Returns the finest level that fits in the specified size in X and Y.
+	 * 
+	 * @param maxSize
+	 *            the maximal size, in pixels.
+	 * @return the level index, the coarsest one if none fits.
+	 */
+	public int getLevelFor( final int maxSize )
+	{
+		for ( int l = 0; l < widths.length; l++ )
+			if ( widths[ l ] <= maxSize && heights[ l ] <= maxSize )
+				return l;
+		return widths.length - 1;
+	}
+
+	/**
+	 * Returns the histogram of the full resolution probabilities.
+	 * 
+	 * @return the histogram.
+	 */
+	public ProbabilityHistogram getHistogram()
+	{
+		return histogram;
+	}
+
+	/**
+	 * Returns an image of the specified level, with a display range from 0 to
+	 * 1 and a calibration scaled to the level. The full resolution level
+	 * wraps the source image.
+	 * 
+	 * @param level
+	 *            the level index.
+	 * @return a new image.
+	 */
+	public ImagePlus getImagePlus( final int level )
+	{
+		final ImagePlus imp;
+		if ( level == 0 )
+		{
+			imp = ImageJFunctions.wrap( source, "Probability map" );
+		}
+		else
+		{
+			final int w = widths[ level ];
+			final int h = heights[ level ];
+			final ImageStack stack = new ImageStack( w, h );
+			for ( final float[] plane : levels.get( level ) )
+				stack.addSlice( new FloatProcessor( w, h, plane ) );
+			imp = new ImagePlus( "Probability map (1/" + ( 1 << level ) + ")", stack );
+		}
+
+		final double scale = 1 << level;
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = calibration[ 0 ] * scale;
+		cal.pixelHeight = calibration[ 1 ] * scale;
+		if ( nz > 1 && calibration.length > 2 )
+			cal.pixelDepth = calibration[ 2 ];
+		imp.setDisplayRange( 0., 1. );
+		return imp;
+	}
+
+	/**
+	 * Reads one row of a level.
+	 */
+	@FunctionalInterface
+	private interface RowReader
+	{
+		void read( int z, int y, float[] row );
+	}
+
+	/**
+	 * Builds the next level, by taking the maximum over 2x2 pixels. The
+	 * histogram, if not <code>null</code>, receives the input values.
+	 */
+	private static float[][] downsample( final RowReader reader, final int w, final int h, final int nz, final long[] histogram, final int numThreads )
+	{
+		final int w2 = ( w + 1 ) / 2;
+		final int h2 = ( h + 1 ) / 2;
+		final float[][] out = new float[ nz ][ w2 * h2 ];
+		ParallelUtils.forEachBlock( nz * h2, numThreads, ( from, to ) -> {
+			final float[] row0 = new float[ w ];
+			final float[] row1 = new float[ w ];
+			final short[] bins = new short[ w ];
+			final long[] localHistogram = ( histogram == null ) ? null : new long[ histogram.length ];
+			for ( int r = from; r < to; r++ )
+			{
+				final int z = r / h2;
+				final int y2 = r % h2;
+				reader.read( z, 2 * y2, row0 );
+				final boolean hasRow1 = 2 * y2 + 1 < h;
+				if ( hasRow1 )
+					reader.read( z, 2 * y2 + 1, row1 );
+				else
+					System.arraycopy( row0, 0, row1, 0, w );
+
+				final float[] target = out[ z ];
+				final int offset = y2 * w2;
+				for ( int x2 = 0; x2 < w2; x2++ )
+				{
+					final int x = 2 * x2;
+					final int xn = Math.min( x + 1, w - 1 );
+					target[ offset + x2 ] = Math.max( Math.max( row0[ x ], row0[ xn ] ), Math.max( row1[ x ], row1[ xn ] ) );
+				}
+
+				if ( localHistogram != null )
+				{
+					ProbabilityHistogram.accumulate( row0, bins, localHistogram );
+					if ( hasRow1 )
+						ProbabilityHistogram.accumulate( row1, bins, localHistogram );
+				}
+			}
+			if ( localHistogram != null )
+				ProbabilityHistogram.merge( localHistogram, histogram );
+		} );
+		return out;
+	}
+
+	/**
+	 * Computes the histogram of a level without building the next one.
+	 */
+	private static void fillHistogram( final RowReader reader, final int w, final int h, final int nz, final long[] histogram, final int numThreads )
+	{
+		ParallelUtils.forEachBlock( nz * h, numThreads, ( from, to ) -> {
+			final float[] row = new float[ w ];
+			final short[] bins = new short[ w ];
+			final long[] localHistogram = new long[ histogram.length ];
+			for ( int r = from; r < to; r++ )
+			{
+				reader.read( r / h, r % h, row );
+				ProbabilityHistogram.accumulate( row, bins, localHistogram );
+			}
+			ProbabilityHistogram.merge( localHistogram, histogram );
+		} );
+	}
+}
@@ -0,0 +1,511 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Walks a Java serialization stream without instantiating the serialized
+ * classes.
+ * <p>
+ * The stream grammar is parsed completely, but only the objects whose class
+ * names are accepted by a predicate are retained, as lightweight
+ * {@link JavaObject}s that store field values and custom-written objects.
+ * Primitive arrays are skipped without being read in memory. This makes it
+ * possible to extract a few metadata objects from a large serialized
+ * classifier in a fraction of the time and memory required to deserialize
+ * it.
+ * <p>
+ * Like other generic stream parsers, this assumes that classes with a
+ * custom <code>writeObject</code> method call
+ * <code>defaultWriteObject</code> first, which is the case for the JDK
+ * collections and for Weka classes.
+ */
+public class SerializationWalker implements ObjectStreamConstants
+{
+
+	/**
+	 * Placeholder for objects that were parsed but not retained.
+	 */
+	public static final Object SKIPPED = new Object();
+
+	/**
+	 * Marker returned for block data and end of block data, not visible to
+	 * callers.
+	 */
+	private static final Object BLOCK = new Object();
+
+	private static final Object END = new Object();
+
+	/**
+	 * Generic view on a retained serialized object.
+	 */
+	public static final class JavaObject
+	{
+
+		private final String className;
+
+		private final Map< String, Object > fields = new HashMap<>();
+
+		private final List< Object > annotations = new ArrayList<>();
+
+		private JavaObject( final String className )
+		{
+			this.className = className;
+		}
+
+		public String getClassName()
+		{
+			return className;
+		}
+
+		/**
+		 * Returns the value of the field with the specified name. Primitive
+		 * values are boxed, strings are {@link String}s, retained objects are
+		 * {@link JavaObject}s, retained object arrays are
+		 * <code>Object[]</code>, other objects are {@link #SKIPPED}.
+		 *
+		 * @param name
+		 *            the field name.
+		 * @return the field value. May be <code>null</code>.
+		 */
+		public Object get( final String name )
+		{
+			return fields.get( name );
+		}
+
+		/**
+		 * Returns the objects written by the custom <code>writeObject</code>
+		 * methods of this object class hierarchy. For instance, the elements
+		 * of an {@link ArrayList}.
+		 *
+		 * @return the list of custom-written objects.
+		 */
+		public List< Object > getAnnotations()
+		{
+			return Collections.unmodifiableList( annotations );
+		}
+
+		@Override
+		public String toString()
+		{
+			return className + fields;
+		}
+	}
+
+	private static final class ClassDesc
+	{
+
+		private final String name;
+
+		private byte flags;
+
+		private char[] fieldTypes = new char[ 0 ];
+
+		private String[] fieldNames = new String[ 0 ];
+
+		private ClassDesc superDesc;
+
+		/** The class hierarchy, top-most superclass first. Built lazily. */
+		private ClassDesc[] hierarchy;
+
+		private ClassDesc( final String name )
+		{
+			this.name = name;
+		}
+
+		private ClassDesc[] hierarchy()
+		{
+			if ( hierarchy == null )
+			{
+				final List< ClassDesc > list = new ArrayList<>();
+				for ( ClassDesc d = this; d != null; d = d.superDesc )
+					list.add( 0, d );
+				hierarchy = list.toArray( new ClassDesc[ list.size() ] );
+			}
+			return hierarchy;
+		}
+	}
+
+	private final DataInputStream in;
+
+	private final Predicate< String > retain;
+
+	private final List< Object > handles = new ArrayList<>();
+
+	/**
+	 * Creates a walker on the specified stream.
+	 *
+	 * @param is
+	 *            the stream. Should be buffered.
+	 * @param retain
+	 *            the predicate that decides, from their class name, whether
+	 *            objects found in the stream are retained.
+	 * @throws IOException
+	 *             if the stream is not a Java serialization stream.
+	 */
+	public SerializationWalker( final InputStream is, final Predicate< String > retain ) throws IOException
+	{
+		this.in = new DataInputStream( is );
+		this.retain = retain;
+		if ( in.readShort() != STREAM_MAGIC || in.readShort() != STREAM_VERSION )
+			throw new IOException( "Not a Java serialization stream." );
+	}
+
+	/**
+	 * Reads the next top-level object of the stream. The top-level object is
+	 * always retained, whatever its class.
+	 *
+	 * @return the next top-level object, or <code>null</code> if the end of
+	 *         the stream is reached.
+	 * @throws IOException
+	 *             if the stream cannot be parsed.
+	 */
+	public Object readObject() throws IOException
+	{
+		while ( true )
+		{
+			final int tc = in.read();
+			if ( tc < 0 )
+				return null;
+			final Object o = readContent( ( byte ) tc, true );
+			if ( o != BLOCK && o != END )
+				return o;
+		}
+	}
+
+	private Object readContent( final boolean forceRetain ) throws IOException
+	{
+		return readContent( in.readByte(), forceRetain );
+	}
+
+	private Object readContent( final byte tc, final boolean forceRetain ) throws IOException
+	{
+		switch ( tc )
+		{
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE:
+			return handle( in.readInt() );
+		case TC_STRING:
+		{
+			final String s = in.readUTF();
+			handles.add( s );
+			return s;
+		}
+		case TC_LONGSTRING:
+		{
+			final long length = in.readLong();
+			if ( length > Integer.MAX_VALUE )
+				throw new IOException( "String too long: " + length );
+			final byte[] bytes = new byte[ ( int ) length ];
+			in.readFully( bytes );
+			final String s = new String( bytes, StandardCharsets.UTF_8 );
+			handles.add( s );
+			return s;
+		}
+		case TC_CLASSDESC:
+			return readNewClassDesc();
+		case TC_PROXYCLASSDESC:
+			return readProxyClassDesc();
+		case TC_CLASS:
+		{
+			final ClassDesc desc = readClassDesc();
+			handles.add( desc );
+			return desc;
+		}
+		case TC_ARRAY:
+			return readArray();
+		case TC_ENUM:
+		{
+			readClassDesc();
+			final int handle = handles.size();
+			handles.add( SKIPPED );
+			final Object name = readContent( false );
+			handles.set( handle, name );
+			return name;
+		}
+		case TC_OBJECT:
+			return readNewObject( forceRetain );
+		case TC_RESET:
+			handles.clear();
+			return BLOCK;
+		case TC_BLOCKDATA:
+			skipFully( in.readUnsignedByte() );
+			return BLOCK;
+		case TC_BLOCKDATALONG:
+			skipFully( in.readInt() );
+			return BLOCK;
+		case TC_ENDBLOCKDATA:
+			return END;
+		case TC_EXCEPTION:
+			throw new IOException( "The stream contains a serialized exception." );
+		default:
+			throw new IOException( String.format( "Unknown type code 0x%02X in serialization stream.", tc ) );
+		}
+	}
+
+	private Object handle( final int wireHandle ) throws IOException
+	{
+		final int index = wireHandle - baseWireHandle;
+		if ( index < 0 || index >= handles.size() )
+			throw new IOException( "Invalid handle in serialization stream: " + wireHandle );
+		return handles.get( index );
+	}
+
+	private ClassDesc readClassDesc() throws IOException
+	{
+		final byte tc = in.readByte();
+		switch ( tc )
+		{
+		case TC_NULL:
+			return null;
+		case TC_REFERENCE:
+		{
+			final Object o = handle( in.readInt() );
+			if ( !( o instanceof ClassDesc ) )
+				throw new IOException( "Handle does not point to a class descriptor." );
+			return ( ClassDesc ) o;
+		}
+		case TC_CLASSDESC:
+			return readNewClassDesc();
+		case TC_PROXYCLASSDESC:
+			return readProxyClassDesc();
+		default:
+			throw new IOException( String.format( "Expected a class descriptor, got type code 0x%02X.", tc ) );
+		}
+	}
+
+	private ClassDesc readNewClassDesc() throws IOException
+	{
+		final ClassDesc desc = new ClassDesc( in.readUTF() );
+		in.readLong(); // serialVersionUID
+		handles.add( desc );
+		desc.flags = in.readByte();
+		final int nFields = in.readShort();
+		desc.fieldTypes = new char[ nFields ];
+		desc.fieldNames = new String[ nFields ];
+		for ( int i = 0; i < nFields; i++ )
+		{
+			desc.fieldTypes[ i ] = ( char ) in.readByte();
+			desc.fieldNames[ i ] = in.readUTF();
+			if ( desc.fieldTypes[ i ] == 'L' || desc.fieldTypes[ i ] == '[' )
+				readContent( false ); // Field class name.
+		}
+		skipAnnotations( null );
+		desc.superDesc = readClassDesc();
+		return desc;
+	}
+
+	private ClassDesc readProxyClassDesc() throws IOException
+	{
+		final ClassDesc desc = new ClassDesc( "$Proxy" );
+		handles.add( desc );
+		desc.flags = SC_SERIALIZABLE;
+		final int nInterfaces = in.readInt();
+		for ( int i = 0; i < nInterfaces; i++ )
+			in.readUTF();
+		skipAnnotations( null );
+		desc.superDesc = readClassDesc();
+		return desc;
+	}
+
+	private Object readNewObject( final boolean forceRetain ) throws IOException
+	{
+		final ClassDesc desc = readClassDesc();
+		if ( desc == null )
+			throw new IOException( "Object without class descriptor." );
+
+		final JavaObject obj = ( forceRetain || retain.test( desc.name ) ) ? new JavaObject( desc.name ) : null;
+		handles.add( obj == null ? SKIPPED : obj );
+
+		// Class data, from the top-most serializable superclass down.
+		for ( final ClassDesc d : desc.hierarchy() )
+		{
+			if ( ( d.flags & SC_EXTERNALIZABLE ) != 0 )
+			{
+				if ( ( d.flags & SC_BLOCK_DATA ) == 0 )
+					throw new IOException( "Cannot parse externalizable class " + d.name + " written with protocol version 1." );
+				skipAnnotations( obj );
+				continue;
+			}
+			if ( ( d.flags & SC_SERIALIZABLE ) == 0 )
+				continue;
+
+			for ( int i = 0; i < d.fieldTypes.length; i++ )
+			{
+				if ( obj != null )
+					obj.fields.put( d.fieldNames[ i ], readFieldValue( d.fieldTypes[ i ] ) );
+				else
+					skipFieldValue( d.fieldTypes[ i ] );
+			}
+			if ( ( d.flags & SC_WRITE_METHOD ) != 0 )
+				skipAnnotations( obj );
+		}
+		return obj == null ? SKIPPED : obj;
+	}
+
+	private Object readFieldValue( final char type ) throws IOException
+	{
+		switch ( type )
+		{
+		case 'B':
+			return Byte.valueOf( in.readByte() );
+		case 'C':
+			return Character.valueOf( in.readChar() );
+		case 'D':
+			return Double.valueOf( in.readDouble() );
+		case 'F':
+			return Float.valueOf( in.readFloat() );
+		case 'I':
+			return Integer.valueOf( in.readInt() );
+		case 'J':
+			return Long.valueOf( in.readLong() );
+		case 'S':
+			return Short.valueOf( in.readShort() );
+		case 'Z':
+			return Boolean.valueOf( in.readBoolean() );
+		case 'L':
+		case '[':
+			return readContent( false );
+		default:
+			throw new IOException( "Unknown field type code: " + type );
+		}
+	}
+
+	private void skipFieldValue( final char type ) throws IOException
+	{
+		switch ( type )
+		{
+		case 'B':
+		case 'Z':
+			in.readByte();
+			return;
+		case 'C':
+		case 'S':
+			in.readShort();
+			return;
+		case 'F':
+		case 'I':
+			in.readInt();
+			return;
+		case 'D':
+		case 'J':
+			in.readLong();
+			return;
+		default:
+			readFieldValue( type );
+		}
+	}
+
+	private Object readArray() throws IOException
+	{
+		final ClassDesc desc = readClassDesc();
+		final int handle = handles.size();
+		handles.add( SKIPPED );
+		final int size = in.readInt();
+		final char component = desc.name.charAt( 1 );
+		switch ( component )
+		{
+		case 'B':
+		case 'Z':
+			skipFully( size );
+			return SKIPPED;
+		case 'C':
+		case 'S':
+			skipFully( 2l * size );
+			return SKIPPED;
+		case 'I':
+		case 'F':
+			skipFully( 4l * size );
+			return SKIPPED;
+		case 'D':
+		case 'J':
+			skipFully( 8l * size );
+			return SKIPPED;
+		default:
+		{
+			final String componentName = ( component == 'L' )
+					? desc.name.substring( 2, desc.name.length() - 1 )
+					: desc.name.substring( 1 );
+			final boolean keep = retain.test( componentName );
+			final Object[] array = keep ? new Object[ size ] : null;
+			if ( keep )
+				handles.set( handle, array );
+			for ( int i = 0; i < size; i++ )
+			{
+				final Object o = readContent( false );
+				if ( keep )
+					array[ i ] = o;
+			}
+			return keep ? array : SKIPPED;
+		}
+		}
+	}
+
+	/**
+	 * Reads contents until the end of block data marker, and stores the
+	 * objects found in the specified object annotations, if it is not
+	 * <code>null</code>.
+	 */
+	private void skipAnnotations( final JavaObject obj ) throws IOException
+	{
+		while ( true )
+		{
+			final Object o = readContent( false );
+			if ( o == END )
+				return;
+			if ( o != BLOCK && obj != null )
+				obj.annotations.add( o );
+		}
+	}
+
+	private void skipFully( final long n ) throws IOException
+	{
+		long remaining = n;
+		while ( remaining > 0 )
+		{
+			final long skipped = in.skip( remaining );
+			if ( skipped <= 0 )
+			{
+				if ( in.read() < 0 )
+					throw new EOFException( "Unexpected end of serialization stream." );
+				remaining--;
+			}
+			else
+			{
+				remaining -= skipped;
+			}
+		}
+	}
+}
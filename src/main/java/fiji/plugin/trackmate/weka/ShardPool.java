@@ -0,0 +1,711 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Shards detection over worker processes. Each worker is a JVM running
+ * {@link ShardWorker}, that loads the classifier once and then detects
+ * objects in the frames it is sent, so that several frames are processed at
+ * once without sharing one heap and one garbage collector.
+ * <p>
+ * Workers are started on this machine and connect back to a socket of the
+ * pool. Frames are sent with a halo so that objects are detected as if the
+ * whole image was processed. A worker that crashes, or does not answer
+ * within the task timeout, is replaced, and its frame sent to another worker,
+ * up to {@link #MAX_ATTEMPTS} times.
+ * <p>
+ * The {@link #detect(ImgPlus, Interval, int, double, boolean)} method can be
+ * called concurrently, typically by one thread per worker.
+ */
+public class ShardPool implements Closeable
+{
+
+	/** Number of workers a frame is sent to before giving up. */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/** Time given to a worker to start and connect, in ms. */
+	private static final int START_TIMEOUT = 60 * 1000;
+
+	/**
+	 * Default time given to a worker to load the classifier or to answer a
+	 * task, in ms.
+	 */
+	public static final int DEFAULT_TASK_TIMEOUT = 30 * 60 * 1000;
+
+	private static final long MIN_WORKER_MEMORY = 256L * 1024 * 1024;
+
+	private final String classifierFilePath;
+
+	private final boolean isProcessing3D;
+
+	private final int numWorkers;
+
+	private final int threadsPerWorker;
+
+	private ServerSocket server;
+
+	private int halo;
+
+	private int zHalo;
+
+	private int nextId;
+
+	private boolean earlyExit;
+
+	private boolean useFeatureEngine;
+
+	private double splitProminence;
+
+	private double lowThreshold = Double.NaN;
+
+	private long memoryBudget;
+
+	private int taskTimeout = DEFAULT_TASK_TIMEOUT;
+
+	private double minQuality;
+
+	private long minSize;
+
+	private String errorMessage;
+
+	private Thread shutdownHook;
+
+	/** Idle workers, guarded by itself with {@link #nAlive}. */
+	private final Deque< Worker > idle = new ArrayDeque<>();
+
+	/** Workers started or being started. */
+	private int nAlive;
+
+	private volatile boolean closed;
+
+	private final Set< Worker > all = Collections.synchronizedSet( new HashSet<>() );
+
+	/** Connections accepted for other workers than the one being started. */
+	private final Map< Integer, Socket > pending = new HashMap<>();
+
+	/**
+	 * Creates a pool. Workers are not started until {@link #start()} is
+	 * called.
+	 * 
+	 * @param classifierFilePath
+	 *            the path to the classifier file.
+	 * @param isProcessing3D
+	 *            whether workers process 3D images.
+	 * @param numWorkers
+	 *            the number of worker processes.
+	 * @param threadsPerWorker
+	 *            the number of threads each worker uses.
+	 */
+	public ShardPool( final String classifierFilePath, final boolean isProcessing3D, final int numWorkers, final int threadsPerWorker )
+	{
+		this.classifierFilePath = classifierFilePath;
+		this.isProcessing3D = isProcessing3D;
+		this.numWorkers = Math.max( 1, numWorkers );
+		this.threadsPerWorker = Math.max( 1, threadsPerWorker );
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	public int getNumWorkers()
+	{
+		return numWorkers;
+	}
+
+	/**
+	 * Sets whether workers use early-exit voting.
+	 * 
+	 * @see WekaRunner#setEarlyExit(boolean)
+	 */
+	public void setEarlyExit( final boolean earlyExit )
+	{
+		this.earlyExit = earlyExit;
+	}
+
+	/**
+	 * Sets whether workers use the native feature engine.
+	 * 
+	 * @see WekaRunner#setUseFeatureEngine(boolean)
+	 */
+	public void setUseFeatureEngine( final boolean useFeatureEngine )
+	{
+		this.useFeatureEngine = useFeatureEngine;
+	}
+
+	/**
+	 * @see WekaRunner#setSplitProminence(double)
+	 */
+	public void setSplitProminence( final double prominence )
+	{
+		this.splitProminence = prominence;
+	}
+
+	/**
+	 * @see WekaRunner#setLowThreshold(double)
+	 */
+	public void setLowThreshold( final double lowThreshold )
+	{
+		this.lowThreshold = lowThreshold;
+	}
+
+	/**
+	 * @see WekaRunner#setSpotFilter(double, long)
+	 */
+	public void setSpotFilter( final double minQuality, final long minSize )
+	{
+		this.minQuality = minQuality;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Sets the memory budget of each worker.
+	 * 
+	 * @param budget
+	 *            the budget in bytes, or 0 to use the default budget of
+	 *            workers.
+	 */
+	public void setMemoryBudget( final long budget )
+	{
+		this.memoryBudget = budget;
+	}
+
+	/**
+	 * Sets the time given to a worker to load the classifier or to answer a
+	 * task. A worker that does not answer in time is treated as crashed: it is
+	 * killed and the frame is sent to another worker.
+	 * 
+	 * @param timeout
+	 *            the timeout in ms, must be strictly positive.
+	 */
+	public void setTaskTimeout( final int timeout )
+	{
+		if ( timeout <= 0 )
+			throw new IllegalArgumentException( "The task timeout must be strictly positive, got " + timeout + "." );
+		this.taskTimeout = timeout;
+	}
+
+	/**
+	 * Starts all workers, and waits for them to load the classifier.
+	 * 
+	 * @return <code>true</code> if all workers started.
+	 */
+	public boolean start()
+	{
+		errorMessage = null;
+		try
+		{
+			final ClassifierHeader header = ClassifierHeader.read( classifierFilePath );
+			halo = MemoryPlan.halo( header.getFeatureNames() );
+			zHalo = isProcessing3D ? halo : 0;
+			server = new ServerSocket( 0, numWorkers, InetAddress.getLoopbackAddress() );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem starting the shard pool: " + e.getMessage();
+			return false;
+		}
+		shutdownHook = new Thread( this::close, "Shard pool shutdown" );
+		Runtime.getRuntime().addShutdownHook( shutdownHook );
+
+		final List< Worker > started = Collections.synchronizedList( new ArrayList<>() );
+		final AtomicReference< String > error = new AtomicReference<>();
+		final Thread[] threads = new Thread[ numWorkers ];
+		for ( int i = 0; i < numWorkers; i++ )
+		{
+			threads[ i ] = new Thread( () -> {
+				try
+				{
+					started.add( borrow() );
+				}
+				catch ( final IOException e )
+				{
+					error.compareAndSet( null, e.getMessage() );
+				}
+			}, "Shard pool start " + i );
+			threads[ i ].start();
+		}
+		try
+		{
+			for ( final Thread thread : threads )
+				thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			error.compareAndSet( null, "Interrupted." );
+		}
+		for ( final Worker worker : started )
+			release( worker );
+		if ( error.get() != null )
+		{
+			errorMessage = "Problem starting the shard workers: " + error.get();
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Detects objects in a frame on a worker.
+	 * 
+	 * @param input
+	 *            the frame, possibly larger than the interval.
+	 * @param interval
+	 *            the interval to detect in.
+	 * @param classId
+	 *            the index of the class to detect.
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param simplify
+	 *            whether to simplify the contours of 2D objects.
+	 * @return the detected spots.
+	 * @throws IOException
+	 *             if detection failed on the worker, or if no worker could
+	 *             process the frame.
+	 */
+	public < T extends RealType< T > > List< Spot > detect( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final boolean simplify ) throws IOException
+	{
+		ShardProtocol.Task task = null;
+		IOException failure = null;
+		for ( int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++ )
+		{
+			final Worker worker = borrow();
+			/*
+			 * The copy of the frame is only made once a worker is free, so that
+			 * detectors waiting for one do not pile up copies on the heap.
+			 */
+			if ( task == null )
+			{
+				try
+				{
+					task = createTask( input, interval, classId, threshold, simplify );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					release( worker );
+					throw e;
+				}
+			}
+			final boolean ok;
+			final List< Spot > spots;
+			final String error;
+			try
+			{
+				worker.out.writeInt( ShardProtocol.TASK );
+				ShardProtocol.writeTask( worker.out, task );
+				worker.out.flush();
+				ok = worker.in.readBoolean();
+				spots = ok ? ShardProtocol.readSpots( worker.in ) : null;
+				error = ok ? null : worker.in.readUTF();
+			}
+			catch ( final IOException e )
+			{
+				discard( worker );
+				failure = ( e instanceof SocketTimeoutException )
+						? new IOException( "Worker " + worker.id + " did not answer within " + taskTimeout / 1000 + " s.", e )
+						: e;
+				if ( attempt < MAX_ATTEMPTS )
+					Logger.IJ_LOGGER.log( "Shard worker " + worker.id + " failed (" + failure.getMessage() + "), sending the frame to another worker." );
+				continue;
+			}
+			release( worker );
+			if ( !ok )
+				throw new IOException( error );
+			return spots;
+		}
+		throw new IOException( "Detection failed on " + MAX_ATTEMPTS + " workers: " + failure.getMessage() );
+	}
+
+	/**
+	 * Stops all workers. Workers still processing a frame are killed.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized ( idle )
+		{
+			if ( closed )
+				return;
+			closed = true;
+			for ( final Worker worker : idle )
+			{
+				try
+				{
+					worker.out.writeInt( ShardProtocol.SHUTDOWN );
+					worker.out.flush();
+				}
+				catch ( final IOException e )
+				{
+					// The worker is killed anyway.
+				}
+			}
+			idle.clear();
+			idle.notifyAll();
+		}
+		synchronized ( all )
+		{
+			for ( final Worker worker : all )
+				worker.destroy();
+			all.clear();
+		}
+		try
+		{
+			if ( server != null )
+				server.close();
+		}
+		catch ( final IOException e )
+		{}
+		if ( shutdownHook != null && Thread.currentThread() != shutdownHook )
+		{
+			try
+			{
+				Runtime.getRuntime().removeShutdownHook( shutdownHook );
+			}
+			catch ( final IllegalStateException e )
+			{
+				// Already shutting down.
+			}
+		}
+	}
+
+	/**
+	 * Copies the interval plus a halo as floats.
+	 */
+	private < T extends RealType< T > > ShardProtocol.Task createTask( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final boolean simplify ) throws IOException
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final int h = ( d < 2 ) ? halo : zHalo;
+			min[ d ] = Math.max( input.min( d ), interval.min( d ) - h );
+			max[ d ] = Math.min( input.max( d ), interval.max( d ) + h );
+		}
+		final FinalInterval shard = new FinalInterval( min, max );
+		final long numElements = Intervals.numElements( shard );
+		if ( numElements > Integer.MAX_VALUE )
+			throw new IOException( "Frame too large to be sent to a worker: " + numElements + " pixels." );
+
+		final ShardProtocol.Task task = new ShardProtocol.Task();
+		task.classId = classId;
+		task.threshold = threshold;
+		task.lowThreshold = lowThreshold;
+		task.splitProminence = splitProminence;
+		task.earlyExit = earlyExit;
+		task.useFeatureEngine = useFeatureEngine;
+		task.simplify = simplify;
+		task.memoryBudget = memoryBudget;
+		task.minQuality = minQuality;
+		task.minSize = minSize;
+		task.calibration = TMUtils.getSpatialCalibration( input );
+		task.intervalMin = Intervals.minAsLongArray( interval );
+		task.intervalMax = Intervals.maxAsLongArray( interval );
+		task.min = min;
+		task.dims = Intervals.dimensionsAsLongArray( shard );
+		task.pixels = new float[ ( int ) numElements ];
+		final Cursor< T > cursor = Views.flatIterable( Views.interval( input, shard ) ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+			task.pixels[ i++ ] = cursor.next().getRealFloat();
+		return task;
+	}
+
+	/**
+	 * Returns an idle worker, starting one if there are less than
+	 * {@link #numWorkers}, or waits for one to be released.
+	 */
+	private Worker borrow() throws IOException
+	{
+		synchronized ( idle )
+		{
+			while ( true )
+			{
+				if ( closed )
+					throw new IOException( "The shard pool is closed." );
+				final Worker worker = idle.pollFirst();
+				if ( worker != null )
+				{
+					if ( worker.process.isAlive() )
+						return worker;
+					worker.destroy();
+					all.remove( worker );
+					nAlive--;
+					continue;
+				}
+				if ( nAlive < numWorkers )
+				{
+					nAlive++;
+					break;
+				}
+				try
+				{
+					idle.wait();
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException( "Interrupted while waiting for a shard worker." );
+				}
+			}
+		}
+		try
+		{
+			return spawn();
+		}
+		catch ( final IOException e )
+		{
+			synchronized ( idle )
+			{
+				nAlive--;
+				idle.notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private void release( final Worker worker )
+	{
+		synchronized ( idle )
+		{
+			if ( closed )
+			{
+				worker.destroy();
+				return;
+			}
+			idle.addFirst( worker );
+			idle.notifyAll();
+		}
+	}
+
+	private void discard( final Worker worker )
+	{
+		worker.destroy();
+		all.remove( worker );
+		synchronized ( idle )
+		{
+			nAlive--;
+			idle.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a worker process, and waits for it to connect and load the
+	 * classifier.
+	 */
+	private Worker spawn() throws IOException
+	{
+		final int id;
+		synchronized ( pending )
+		{
+			id = nextId++;
+		}
+		final long workerMemory = Math.max( MIN_WORKER_MEMORY, Runtime.getRuntime().maxMemory() / numWorkers );
+		final ProcessBuilder builder = new ProcessBuilder(
+				new File( System.getProperty( "java.home" ), "bin" + File.separator + "java" ).getPath(),
+				"-Xmx" + ( workerMemory >> 20 ) + "m",
+				"-Djava.awt.headless=true",
+				"-cp",
+				classPath(),
+				ShardWorker.class.getName(),
+				server.getInetAddress().getHostAddress(),
+				Integer.toString( server.getLocalPort() ),
+				Integer.toString( id ),
+				classifierFilePath,
+				Boolean.toString( isProcessing3D ),
+				Integer.toString( threadsPerWorker ) );
+		builder.inheritIO();
+		final Process process = builder.start();
+		final Worker worker;
+		try
+		{
+			worker = new Worker( id, process, accept( id, process ) );
+			all.add( worker );
+			if ( closed )
+				throw new IOException( "The shard pool is closed." );
+			// Also bounds the wait for each task answered by this worker.
+			worker.socket.setSoTimeout( taskTimeout );
+			if ( !worker.in.readBoolean() )
+				throw new IOException( worker.in.readUTF() );
+		}
+		catch ( final IOException e )
+		{
+			process.destroyForcibly();
+			synchronized ( all )
+			{
+				all.removeIf( w -> w.id == id );
+			}
+			throw e;
+		}
+		return worker;
+	}
+
+	/**
+	 * Waits for the worker with the specified id to connect. Connections of
+	 * other workers are kept for them.
+	 */
+	private Socket accept( final int id, final Process process ) throws IOException
+	{
+		final long deadline = System.currentTimeMillis() + START_TIMEOUT;
+		synchronized ( pending )
+		{
+			while ( true )
+			{
+				final Socket socket = pending.remove( id );
+				if ( socket != null )
+					return socket;
+				if ( !process.isAlive() )
+					throw new IOException( "Worker " + id + " exited with code " + process.exitValue() + " before connecting." );
+				final long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 )
+					throw new IOException( "Worker " + id + " did not connect within " + START_TIMEOUT / 1000 + " s." );
+
+				server.setSoTimeout( ( int ) Math.min( remaining, 1000 ) );
+				final Socket connection;
+				try
+				{
+					connection = server.accept();
+				}
+				catch ( final SocketTimeoutException e )
+				{
+					continue;
+				}
+				try
+				{
+					connection.setTcpNoDelay( true );
+					connection.setSoTimeout( START_TIMEOUT );
+					final DataInputStream in = new DataInputStream( connection.getInputStream() );
+					if ( in.readInt() != ShardProtocol.MAGIC || in.readInt() != ShardProtocol.VERSION )
+						connection.close();
+					else
+						pending.put( in.readInt(), connection );
+				}
+				catch ( final IOException e )
+				{
+					connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the class path of this JVM, plus the class path of the plugin
+	 * class loader when running in Fiji.
+	 */
+	private static String classPath()
+	{
+		final Set< String > entries = new LinkedHashSet<>( Arrays.asList( System.getProperty( "java.class.path" ).split( File.pathSeparator ) ) );
+		for ( ClassLoader loader = ShardPool.class.getClassLoader(); loader != null; loader = loader.getParent() )
+		{
+			if ( !( loader instanceof URLClassLoader ) )
+				continue;
+			for ( final URL url : ( ( URLClassLoader ) loader ).getURLs() )
+			{
+				if ( !"file".equals( url.getProtocol() ) )
+					continue;
+				try
+				{
+					entries.add( new File( url.toURI() ).getPath() );
+				}
+				catch ( final URISyntaxException e )
+				{}
+			}
+		}
+		entries.remove( "" );
+		return String.join( File.pathSeparator, entries );
+	}
+
+	private static final class Worker
+	{
+
+		private final int id;
+
+		private final Process process;
+
+		private final Socket socket;
+
+		private final DataInputStream in;
+
+		private final DataOutputStream out;
+
+		private Worker( final int id, final Process process, final Socket socket ) throws IOException
+		{
+			this.id = id;
+			this.process = process;
+			this.socket = socket;
+			this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+			this.out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+		}
+
+		private void destroy()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch ( final IOException e )
+			{}
+			process.destroy();
+		}
+	}
+}
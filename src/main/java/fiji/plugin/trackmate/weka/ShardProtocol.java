@@ -0,0 +1,277 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * The messages exchanged between the driver and the worker processes of
+ * sharded detection, over a stream socket.
+ * <p>
+ * A worker connects to the driver and sends {@link #MAGIC},
+ * {@link #VERSION} and its id. It then loads the classifier and sends
+ * whether it succeeded, followed by an error message if not. The driver then
+ * sends commands: {@link #TASK} followed by a task, to which the worker
+ * answers whether detection succeeded, followed by the spots or by an error
+ * message; or {@link #SHUTDOWN}. Tasks carry their pixels and all detection
+ * parameters, so that workers keep no state but the classifier, and the
+ * protocol does not depend on the driver and the workers sharing a file
+ * system.
+ */
+final class ShardProtocol
+{
+
+	static final int MAGIC = 0x574b4153;
+
+	static final int VERSION = 3;
+
+	static final int SHUTDOWN = 0;
+
+	static final int TASK = 1;
+
+	/** Size of the chunks of float arrays on the wire, in values. */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private ShardProtocol()
+	{}
+
+	/**
+	 * The pixels and parameters of a detection task.
+	 */
+	static final class Task
+	{
+
+		int classId;
+
+		double threshold;
+
+		double lowThreshold = Double.NaN;
+
+		double splitProminence;
+
+		boolean earlyExit;
+
+		boolean useFeatureEngine;
+
+		boolean simplify;
+
+		/** In bytes, 0 for the default budget of the worker. */
+		long memoryBudget;
+
+		double minQuality;
+
+		long minSize;
+
+		double[] calibration;
+
+		/** The interval to detect in, within the pixels. */
+		long[] intervalMin;
+
+		long[] intervalMax;
+
+		/** The position of the pixels, including a halo around the interval. */
+		long[] min;
+
+		long[] dims;
+
+		float[] pixels;
+	}
+
+	static void writeTask( final DataOutputStream out, final Task task ) throws IOException
+	{
+		out.writeInt( task.classId );
+		out.writeDouble( task.threshold );
+		out.writeDouble( task.lowThreshold );
+		out.writeDouble( task.splitProminence );
+		out.writeBoolean( task.earlyExit );
+		out.writeBoolean( task.useFeatureEngine );
+		out.writeBoolean( task.simplify );
+		out.writeLong( task.memoryBudget );
+		out.writeDouble( task.minQuality );
+		out.writeLong( task.minSize );
+		writeDoubles( out, task.calibration );
+		out.writeInt( task.dims.length );
+		for ( int d = 0; d < task.dims.length; d++ )
+		{
+			out.writeLong( task.intervalMin[ d ] );
+			out.writeLong( task.intervalMax[ d ] );
+			out.writeLong( task.min[ d ] );
+			out.writeLong( task.dims[ d ] );
+		}
+		out.writeInt( task.pixels.length );
+		writeFloats( out, task.pixels );
+	}
+
+	static Task readTask( final DataInputStream in ) throws IOException
+	{
+		final Task task = new Task();
+		task.classId = in.readInt();
+		task.threshold = in.readDouble();
+		task.lowThreshold = in.readDouble();
+		task.splitProminence = in.readDouble();
+		task.earlyExit = in.readBoolean();
+		task.useFeatureEngine = in.readBoolean();
+		task.simplify = in.readBoolean();
+		task.memoryBudget = in.readLong();
+		task.minQuality = in.readDouble();
+		task.minSize = in.readLong();
+		task.calibration = readDoubles( in );
+		final int n = in.readInt();
+		task.intervalMin = new long[ n ];
+		task.intervalMax = new long[ n ];
+		task.min = new long[ n ];
+		task.dims = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			task.intervalMin[ d ] = in.readLong();
+			task.intervalMax[ d ] = in.readLong();
+			task.min[ d ] = in.readLong();
+			task.dims[ d ] = in.readLong();
+		}
+		task.pixels = new float[ in.readInt() ];
+		readFloats( in, task.pixels );
+		return task;
+	}
+
+	/**
+	 * Writes spots with all their features, and their contour if any.
+	 */
+	static void writeSpots( final DataOutputStream out, final List< Spot > spots ) throws IOException
+	{
+		out.writeInt( spots.size() );
+		for ( final Spot spot : spots )
+		{
+			final Map< String, Double > features = spot.getFeatures();
+			int nFeatures = 0;
+			for ( final Double value : features.values() )
+				if ( value != null )
+					nFeatures++;
+			out.writeInt( nFeatures );
+			for ( final Map.Entry< String, Double > entry : features.entrySet() )
+			{
+				if ( entry.getValue() == null )
+					continue;
+				out.writeUTF( entry.getKey() );
+				out.writeDouble( entry.getValue().doubleValue() );
+			}
+			final SpotRoi roi = spot.getRoi();
+			out.writeBoolean( roi != null );
+			if ( roi != null )
+			{
+				writeDoubles( out, roi.x );
+				writeDoubles( out, roi.y );
+			}
+		}
+	}
+
+	static List< Spot > readSpots( final DataInputStream in ) throws IOException
+	{
+		final int nSpots = in.readInt();
+		final List< Spot > spots = new ArrayList<>( nSpots );
+		final List< String > keys = new ArrayList<>();
+		final List< Double > values = new ArrayList<>();
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			keys.clear();
+			values.clear();
+			final int nFeatures = in.readInt();
+			for ( int f = 0; f < nFeatures; f++ )
+			{
+				keys.add( in.readUTF() );
+				values.add( Double.valueOf( in.readDouble() ) );
+			}
+			final Spot spot = new Spot(
+					get( keys, values, Spot.POSITION_X ),
+					get( keys, values, Spot.POSITION_Y ),
+					get( keys, values, Spot.POSITION_Z ),
+					get( keys, values, Spot.RADIUS ),
+					get( keys, values, Spot.QUALITY ) );
+			for ( int f = 0; f < nFeatures; f++ )
+				spot.putFeature( keys.get( f ), values.get( f ) );
+			if ( in.readBoolean() )
+			{
+				final double[] x = readDoubles( in );
+				final double[] y = readDoubles( in );
+				spot.setRoi( new SpotRoi( x, y ) );
+			}
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	private static double get( final List< String > keys, final List< Double > values, final String key )
+	{
+		final int index = keys.indexOf( key );
+		return ( index < 0 ) ? 0. : values.get( index ).doubleValue();
+	}
+
+	private static void writeDoubles( final DataOutputStream out, final double[] values ) throws IOException
+	{
+		out.writeInt( values.length );
+		for ( final double v : values )
+			out.writeDouble( v );
+	}
+
+	private static double[] readDoubles( final DataInputStream in ) throws IOException
+	{
+		final double[] values = new double[ in.readInt() ];
+		for ( int i = 0; i < values.length; i++ )
+			values[ i ] = in.readDouble();
+		return values;
+	}
+
+	/**
+	 * Writes floats in chunks, much faster than one by one.
+	 */
+	private static void writeFloats( final DataOutputStream out, final float[] values ) throws IOException
+	{
+		final ByteBuffer bytes = ByteBuffer.allocate( Float.BYTES * CHUNK_SIZE );
+		for ( int start = 0; start < values.length; start += CHUNK_SIZE )
+		{
+			final int n = Math.min( CHUNK_SIZE, values.length - start );
+			bytes.clear();
+			bytes.asFloatBuffer().put( values, start, n );
+			out.write( bytes.array(), 0, Float.BYTES * n );
+		}
+	}
+
+	private static void readFloats( final DataInputStream in, final float[] values ) throws IOException
+	{
+		final ByteBuffer bytes = ByteBuffer.allocate( Float.BYTES * CHUNK_SIZE );
+		for ( int start = 0; start < values.length; start += CHUNK_SIZE )
+		{
+			final int n = Math.min( CHUNK_SIZE, values.length - start );
+			in.readFully( bytes.array(), 0, Float.BYTES * n );
+			bytes.clear();
+			bytes.asFloatBuffer().get( values, start, n );
+		}
+	}
+}
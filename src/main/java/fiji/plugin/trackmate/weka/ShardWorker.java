@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.FinalInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * The worker process of sharded detection. It connects to the driver, loads
+ * the classifier once, then detects objects in the tasks it receives until
+ * it is told to shut down, the connection is lost, or it stays idle for too
+ * long.
+ * <p>
+ * Arguments: driver host, driver port, worker id, classifier file path,
+ * whether to process 3D, number of threads.
+ * 
+ * @see ShardPool
+ * @see ShardProtocol
+ */
+public class ShardWorker
+{
+
+	/** Workers left behind by a driver that died exit after this delay. */
+	private static final int IDLE_TIMEOUT = 10 * 60 * 1000;
+
+	private static final AxisType[] AXES = new AxisType[] { Axes.X, Axes.Y, Axes.Z };
+
+	public static void main( final String[] args )
+	{
+		if ( args.length != 6 )
+		{
+			System.err.println( "Usage: ShardWorker host port workerId classifierPath is3D numThreads" );
+			System.exit( 1 );
+		}
+		final String host = args[ 0 ];
+		final int port = Integer.parseInt( args[ 1 ] );
+		final int id = Integer.parseInt( args[ 2 ] );
+		final String classifierPath = args[ 3 ];
+		final boolean is3D = Boolean.parseBoolean( args[ 4 ] );
+		final int numThreads = Integer.parseInt( args[ 5 ] );
+
+		int status = 0;
+		try (final Socket socket = new Socket( host, port ))
+		{
+			socket.setTcpNoDelay( true );
+			socket.setSoTimeout( IDLE_TIMEOUT );
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+			out.writeInt( ShardProtocol.MAGIC );
+			out.writeInt( ShardProtocol.VERSION );
+			out.writeInt( id );
+			out.flush();
+
+			final WekaRunner< FloatType > runner = new WekaRunner<>( classifierPath, is3D );
+			runner.setNumThreads( numThreads );
+			final boolean loaded = runner.loadClassifier();
+			out.writeBoolean( loaded );
+			if ( !loaded )
+				out.writeUTF( String.valueOf( runner.getErrorMessage() ) );
+			out.flush();
+			if ( !loaded )
+				status = 1;
+			else
+				serve( runner, in, out );
+		}
+		catch ( final SocketTimeoutException e )
+		{
+			System.err.println( "Shard worker " + id + " idle for too long, exiting." );
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "Shard worker " + id + " lost the driver: " + e.getMessage() );
+			status = 1;
+		}
+		// Weka may have left non-daemon threads behind.
+		System.exit( status );
+	}
+
+	private static void serve( final WekaRunner< FloatType > runner, final DataInputStream in, final DataOutputStream out ) throws IOException
+	{
+		while ( in.readInt() == ShardProtocol.TASK )
+		{
+			final ShardProtocol.Task task = ShardProtocol.readTask( in );
+			final StringBuilder errorHolder = new StringBuilder();
+			final List< Spot > spots = detect( runner, task, errorHolder );
+			out.writeBoolean( spots != null );
+			if ( spots != null )
+				ShardProtocol.writeSpots( out, spots );
+			else
+				out.writeUTF( errorHolder.toString() );
+			out.flush();
+		}
+	}
+
+	/**
+	 * Detects the objects of a task, or returns <code>null</code> and appends
+	 * the error message to the holder.
+	 */
+	private static List< Spot > detect( final WekaRunner< FloatType > runner, final ShardProtocol.Task task, final StringBuilder errorHolder )
+	{
+		runner.setEarlyExit( task.earlyExit );
+		runner.setUseFeatureEngine( task.useFeatureEngine );
+		runner.setSplitProminence( task.splitProminence );
+		runner.setLowThreshold( task.lowThreshold );
+		runner.setSpotFilter( task.minQuality, task.minSize );
+		final long[] frameDims = new long[ task.dims.length ];
+		for ( int d = 0; d < frameDims.length; d++ )
+			frameDims[ d ] = task.intervalMax[ d ] - task.intervalMin[ d ] + 1;
+		final MemoryPlan plan = runner.planMemory( frameDims, task.memoryBudget > 0 ? task.memoryBudget : MemoryPlan.defaultBudget() );
+		if ( plan != null && !plan.isFeasible() )
+		{
+			errorHolder.append( plan.getErrorMessage() );
+			return null;
+		}
+
+		final int n = task.dims.length;
+		final AxisType[] axes = new AxisType[ n ];
+		System.arraycopy( AXES, 0, axes, 0, n );
+		final double[] calibration = new double[ n ];
+		System.arraycopy( task.calibration, 0, calibration, 0, n );
+		final ImgPlus< FloatType > input = new ImgPlus<>(
+				ImgView.wrap(
+						Views.translate( ArrayImgs.floats( task.pixels, task.dims ), task.min ),
+						new ArrayImgFactory<>( new FloatType() ) ),
+				"Shard",
+				axes,
+				calibration );
+		final FinalInterval interval = new FinalInterval( task.intervalMin, task.intervalMax );
+		final List< Spot > spots = runner.detect( input, interval, task.classId, task.threshold, task.simplify );
+		if ( spots == null )
+			errorHolder.append( runner.getErrorMessage() );
+		return spots;
+	}
+}
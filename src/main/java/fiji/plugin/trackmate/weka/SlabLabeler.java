@@ -0,0 +1,612 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import ij.process.ByteProcessor;
+
+/**
+ * Labels a thresholded probability map streamed in Z-slabs, and creates one
+ * spot per connected component. A 2D probability map is a single slab of one
+ * plane.
+ * <p>
+ * Slabs are passed in Z order. Pixels above the threshold are labeled in one
+ * pass with a union-find over provisional labels, 6-connected. The labels of
+ * the last plane of a slab are kept to connect components with the first
+ * plane of the next slab, so that objects spanning several slabs give a
+ * single spot. Per-label statistics are accumulated on the fly and merged at
+ * the end, so memory scales with the slab size and the number of objects, not
+ * with the stack depth. They are stored as spot features with
+ * {@link LabelUtils#putFeatures(Spot, long, double, double, double[], long[], double[], boolean)},
+ * so that no other pass over pixels is needed to measure objects.
+ * <p>
+ * A slab can be labeled in parallel. It is then cut in bands of rows that are
+ * labeled independently, and the components touching the band borders are
+ * merged afterwards.
+ * <p>
+ * With a seed threshold above the threshold, components are grown from the
+ * threshold but only kept if they contain at least one pixel above the seed
+ * threshold (hysteresis thresholding).
+ */
+public class SlabLabeler
+{
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** Minimal number of rows in a band labeled by one thread. */
+	private static final int MIN_BAND_ROWS = 64;
+
+	private final int width;
+
+	private final int height;
+
+	private final long[] origin;
+
+	private final double[] calibration;
+
+	private final boolean is3D;
+
+	private final float threshold;
+
+	private final float seedThreshold;
+
+	/** Labels of the last plane of the previous slab, -1 for background. */
+	private final int[] previousPlane;
+
+	private long z;
+
+	private final Components components = new Components();
+
+	/**
+	 * Creates a labeler.
+	 * 
+	 * @param width
+	 *            the slab width.
+	 * @param height
+	 *            the slab height.
+	 * @param origin
+	 *            the position of the first pixel of the first slab in the
+	 *            image, X, Y, and Z for stacks.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param threshold
+	 *            the probability threshold. Pixels strictly above are
+	 *            foreground.
+	 */
+	public SlabLabeler( final int width, final int height, final long[] origin, final double[] calibration, final double threshold )
+	{
+		this( width, height, origin, calibration, threshold, threshold );
+	}
+
+	/**
+	 * Creates a labeler with hysteresis thresholding.
+	 * 
+	 * @param width
+	 *            the slab width.
+	 * @param height
+	 *            the slab height.
+	 * @param origin
+	 *            the position of the first pixel of the first slab in the
+	 *            image, X, Y, and Z for stacks.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param threshold
+	 *            the low probability threshold. Pixels strictly above are
+	 *            foreground.
+	 * @param seedThreshold
+	 *            the high probability threshold. Only components with a
+	 *            pixel strictly above it are kept.
+	 */
+	public SlabLabeler( final int width, final int height, final long[] origin, final double[] calibration, final double threshold, final double seedThreshold )
+	{
+		this.width = width;
+		this.height = height;
+		this.origin = origin;
+		this.calibration = calibration;
+		this.is3D = origin.length > 2;
+		this.threshold = ( float ) threshold;
+		this.seedThreshold = ( float ) Math.max( threshold, seedThreshold );
+		this.previousPlane = new int[ width * height ];
+		Arrays.fill( previousPlane, -1 );
+	}
+
+	/**
+	 * Labels the next planes of the stack.
+	 * 
+	 * @param proba
+	 *            the probabilities of the planes, X first, then Y, then Z.
+	 * @param nz
+	 *            the number of planes.
+	 * @param labels
+	 *            a buffer at least as large as the slab, for labels.
+	 */
+	public void accept( final float[] proba, final int nz, final int[] labels )
+	{
+		accept( proba, nz, labels, 1 );
+	}
+
+	/**
+	 * Labels the next planes of the stack, in parallel.
+	 * 
+	 * @param proba
+	 *            the probabilities of the planes, X first, then Y, then Z.
+	 * @param nz
+	 *            the number of planes.
+	 * @param labels
+	 *            a buffer at least as large as the slab, for labels.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public void accept( final float[] proba, final int nz, final int[] labels, final int numThreads )
+	{
+		final int planeSize = width * height;
+		final int nRows = nz * height;
+		final int nBands = Math.max( 1, Math.min( numThreads, nRows / MIN_BAND_ROWS ) );
+		if ( nBands == 1 )
+		{
+			label( proba, labels, 0, nRows, components );
+		}
+		else
+		{
+			// Label bands independently.
+			final Components[] bands = new Components[ nBands ];
+			ParallelUtils.forEachBlock( nBands, numThreads, ( from, to ) -> {
+				for ( int b = from; b < to; b++ )
+				{
+					bands[ b ] = new Components();
+					label( proba, labels, bandStart( b, nRows, nBands ), bandStart( b + 1, nRows, nBands ), bands[ b ] );
+				}
+			} );
+
+			// Make band labels global.
+			final int[] offsets = new int[ nBands ];
+			for ( int b = 0; b < nBands; b++ )
+			{
+				offsets[ b ] = components.append( bands[ b ] );
+				bands[ b ] = null;
+			}
+			ParallelUtils.forEachBlock( nBands, numThreads, ( from, to ) -> {
+				for ( int b = from; b < to; b++ )
+				{
+					final int offset = offsets[ b ];
+					if ( offset == 0 )
+						continue;
+					final int end = bandStart( b + 1, nRows, nBands ) * width;
+					for ( int i = bandStart( b, nRows, nBands ) * width; i < end; i++ )
+						if ( labels[ i ] >= 0 )
+							labels[ i ] += offset;
+				}
+			} );
+
+			// Merge components across band borders.
+			for ( int b = 1; b < nBands; b++ )
+			{
+				final int r0 = bandStart( b, nRows, nBands );
+				final int r1 = bandStart( b + 1, nRows, nBands );
+				if ( r0 % height > 0 )
+				{
+					final int i0 = r0 * width;
+					for ( int i = i0; i < i0 + width; i++ )
+						if ( labels[ i ] >= 0 )
+							merge( labels[ i ], labels[ i - width ] );
+				}
+				final int zEnd = Math.min( r1, r0 + height ) * width;
+				for ( int i = Math.max( r0, height ) * width; i < zEnd; i++ )
+					if ( labels[ i ] >= 0 )
+						merge( labels[ i ], labels[ i - planeSize ] );
+			}
+		}
+
+		// Connect with the previous slab.
+		if ( z > 0 && nz > 0 )
+			for ( int i = 0; i < planeSize; i++ )
+				if ( labels[ i ] >= 0 )
+					merge( labels[ i ], previousPlane[ i ] );
+
+		if ( nz > 0 )
+			System.arraycopy( labels, ( nz - 1 ) * planeSize, previousPlane, 0, planeSize );
+		z += nz;
+	}
+
+	/**
+	 * Labels rows <code>[r0, r1)</code> of a slab, ignoring the pixels
+	 * outside.
+	 */
+	private void label( final float[] proba, final int[] labels, final int r0, final int r1, final Components c )
+	{
+		final int planeSize = width * height;
+		for ( int r = r0; r < r1; r++ )
+		{
+			final int zi = r / height;
+			final int y = r % height;
+			final long zz = z + zi;
+			final boolean hasUp = y > 0 && r > r0;
+			final boolean hasBelow = r - height >= r0;
+			for ( int x = 0; x < width; x++ )
+			{
+				final int i = r * width + x;
+				final float v = proba[ i ];
+				if ( !( v > threshold ) )
+				{
+					labels[ i ] = -1;
+					continue;
+				}
+
+				int label = -1;
+				if ( x > 0 )
+					label = c.merge( label, labels[ i - 1 ] );
+				if ( hasUp )
+					label = c.merge( label, labels[ i - width ] );
+				if ( hasBelow )
+					label = c.merge( label, labels[ i - planeSize ] );
+				if ( label < 0 )
+					label = c.newLabel();
+
+				labels[ i ] = label;
+				c.add( label, x, y, zz, v );
+			}
+		}
+	}
+
+	private static int bandStart( final int b, final int nRows, final int nBands )
+	{
+		return ( int ) ( ( long ) nRows * b / nBands );
+	}
+
+	/**
+	 * Creates spots from the components labeled so far.
+	 * 
+	 * @return a new list of spots, one per connected component.
+	 */
+	public List< Spot > getSpots()
+	{
+		return getSpots( null, false );
+	}
+
+	/**
+	 * Creates spots from the components of a 2D probability map, with their
+	 * contour.
+	 * 
+	 * @param labels
+	 *            the labels buffer passed to the single call to
+	 *            {@link #accept(float[], int, int[])}, unmodified.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @return a new list of spots, one per connected component.
+	 */
+	public List< Spot > getSpots( final int[] labels, final boolean simplify )
+	{
+		return getTable( labels, simplify, 0., 0l ).toSpots();
+	}
+
+	/**
+	 * Returns the table of the components, filtered before their contours
+	 * are computed.
+	 * 
+	 * @param labels
+	 *            the labels buffer passed to the single call to
+	 *            {@link #accept(float[], int, int[])}, unmodified, or
+	 *            <code>null</code> not to compute contours.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @param minQuality
+	 *            the minimal maximal probability of the components kept.
+	 * @param minPixels
+	 *            the minimal number of pixels of the components kept.
+	 * @return a new table, one row per component kept.
+	 */
+	public SpotTable getTable( final int[] labels, final boolean simplify, final double minQuality, final long minPixels )
+	{
+		final Components c = components;
+		c.mergeStatistics();
+
+		final SpotTable table = new SpotTable( calibration, is3D );
+		final double[] weighted = new double[ 3 ];
+		final long[] box = new long[ 6 ];
+		for ( int label = 0; label < c.nLabels; label++ )
+		{
+			if ( !isKept( label ) )
+				continue;
+			final long n = c.count[ label ];
+			final double x = origin[ 0 ] + c.sumX[ label ] / n;
+			final double y = origin[ 1 ] + c.sumY[ label ] / n;
+			final double zc = is3D ? origin[ 2 ] + c.sumZ[ label ] / n : 0.;
+			for ( int d = 0; d < 3; d++ )
+			{
+				final long o = ( d < origin.length ) ? origin[ d ] : 0l;
+				weighted[ d ] = c.weightedSum[ 3 * label + d ] + o * c.sum[ label ];
+				box[ d ] = o + c.bbox[ 6 * label + d ];
+				box[ 3 + d ] = o + c.bbox[ 6 * label + 3 + d ];
+			}
+			table.add( x, y, zc, n, c.max[ label ], c.sum[ label ], weighted, box, label );
+		}
+		table.filter( minQuality, minPixels );
+
+		if ( labels != null && !is3D )
+			for ( int row = 0; row < table.size(); row++ )
+				LabelUtils.contour( mask( table.getSource( row ), labels ), table.getBoundingBox( row, 0 ), table.getBoundingBox( row, 1 ), calibration, simplify, table, row );
+		return table;
+	}
+
+	/**
+	 * Rewrites the labels of a probability map labeled in a single slab into
+	 * component indices, numbered from 0 in the order of
+	 * {@link #getSpots()}. Background pixels, and the pixels of components
+	 * without seed, are set to -1.
+	 * 
+	 * @param labels
+	 *            the labels buffer passed to the single call to
+	 *            {@link #accept(float[], int, int[])}.
+	 * @param n
+	 *            the number of pixels in the slab.
+	 * @return the number of components.
+	 */
+	public int relabel( final int[] labels, final int n )
+	{
+		final Components c = components;
+		c.mergeStatistics();
+		final int[] component = new int[ c.nLabels ];
+		int nComponents = 0;
+		for ( int label = 0; label < c.nLabels; label++ )
+			component[ label ] = isKept( label ) ? nComponents++ : -1;
+		for ( int i = 0; i < n; i++ )
+			if ( labels[ i ] >= 0 )
+				labels[ i ] = component[ c.find( labels[ i ] ) ];
+		return nComponents;
+	}
+
+	/**
+	 * Returns the number of planes labeled so far.
+	 * 
+	 * @return a number of planes.
+	 */
+	public long numPlanes()
+	{
+		return z;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified label is the root of a
+	 * component that has a seed. Statistics must be merged.
+	 */
+	private boolean isKept( final int label )
+	{
+		return components.parent[ label ] == label && components.max[ label ] > seedThreshold;
+	}
+
+	/**
+	 * Returns the mask of a component of a 2D probability map, over its
+	 * bounding box.
+	 */
+	private ByteProcessor mask( final int root, final int[] labels )
+	{
+		final Components c = components;
+		final int x0 = ( int ) c.bbox[ 6 * root ];
+		final int y0 = ( int ) c.bbox[ 6 * root + 1 ];
+		final int mw = ( int ) c.bbox[ 6 * root + 3 ] - x0 + 1;
+		final int mh = ( int ) c.bbox[ 6 * root + 4 ] - y0 + 1;
+		final ByteProcessor mask = new ByteProcessor( mw, mh );
+		final byte[] pixels = ( byte[] ) mask.getPixels();
+		for ( int y = 0; y < mh; y++ )
+		{
+			final int offset = ( y0 + y ) * width + x0;
+			for ( int x = 0; x < mw; x++ )
+			{
+				final int label = labels[ offset + x ];
+				if ( label >= 0 && c.find( label ) == root )
+					pixels[ y * mw + x ] = ( byte ) 255;
+			}
+		}
+		return mask;
+	}
+
+	private void merge( final int label, final int neighbor )
+	{
+		components.merge( label, neighbor );
+	}
+
+	/**
+	 * Provisional labels with their union-find and statistics.
+	 */
+	private static final class Components
+	{
+
+		private int nLabels;
+
+		private int[] parent = new int[ INITIAL_CAPACITY ];
+
+		private long[] count = new long[ INITIAL_CAPACITY ];
+
+		private double[] sumX = new double[ INITIAL_CAPACITY ];
+
+		private double[] sumY = new double[ INITIAL_CAPACITY ];
+
+		private double[] sumZ = new double[ INITIAL_CAPACITY ];
+
+		private float[] max = new float[ INITIAL_CAPACITY ];
+
+		private double[] sum = new double[ INITIAL_CAPACITY ];
+
+		/** Coordinates summed weighted by probabilities, 3 per label. */
+		private double[] weightedSum = new double[ 3 * INITIAL_CAPACITY ];
+
+		/** Bounding boxes, 6 per label: xmin, ymin, zmin, xmax, ymax, zmax. */
+		private long[] bbox = new long[ 6 * INITIAL_CAPACITY ];
+
+		/**
+		 * Accumulates a pixel in the statistics of a label.
+		 */
+		private void add( final int label, final int x, final int y, final long zz, final float v )
+		{
+			count[ label ]++;
+			sumX[ label ] += x;
+			sumY[ label ] += y;
+			sumZ[ label ] += zz;
+			if ( v > max[ label ] )
+				max[ label ] = v;
+			sum[ label ] += v;
+			weightedSum[ 3 * label ] += ( double ) v * x;
+			weightedSum[ 3 * label + 1 ] += ( double ) v * y;
+			weightedSum[ 3 * label + 2 ] += ( double ) v * zz;
+			final int b = 6 * label;
+			bbox[ b ] = Math.min( bbox[ b ], x );
+			bbox[ b + 1 ] = Math.min( bbox[ b + 1 ], y );
+			bbox[ b + 2 ] = Math.min( bbox[ b + 2 ], zz );
+			bbox[ b + 3 ] = Math.max( bbox[ b + 3 ], x );
+			bbox[ b + 4 ] = Math.max( bbox[ b + 4 ], y );
+			bbox[ b + 5 ] = Math.max( bbox[ b + 5 ], zz );
+		}
+
+		/**
+		 * Appends the labels of another instance, and returns the offset
+		 * added to them.
+		 */
+		private int append( final Components other )
+		{
+			final int offset = nLabels;
+			final int n = other.nLabels;
+			ensureCapacity( offset + n );
+			for ( int label = 0; label < n; label++ )
+				parent[ offset + label ] = offset + other.parent[ label ];
+			System.arraycopy( other.count, 0, count, offset, n );
+			System.arraycopy( other.sumX, 0, sumX, offset, n );
+			System.arraycopy( other.sumY, 0, sumY, offset, n );
+			System.arraycopy( other.sumZ, 0, sumZ, offset, n );
+			System.arraycopy( other.max, 0, max, offset, n );
+			System.arraycopy( other.sum, 0, sum, offset, n );
+			System.arraycopy( other.weightedSum, 0, weightedSum, 3 * offset, 3 * n );
+			System.arraycopy( other.bbox, 0, bbox, 6 * offset, 6 * n );
+			nLabels += n;
+			return offset;
+		}
+
+		/**
+		 * Merges the statistics of provisional labels into their roots.
+		 */
+		private void mergeStatistics()
+		{
+			for ( int label = 0; label < nLabels; label++ )
+			{
+				final int root = find( label );
+				if ( root == label || count[ label ] == 0 )
+					continue;
+				count[ root ] += count[ label ];
+				sumX[ root ] += sumX[ label ];
+				sumY[ root ] += sumY[ label ];
+				sumZ[ root ] += sumZ[ label ];
+				max[ root ] = Math.max( max[ root ], max[ label ] );
+				sum[ root ] += sum[ label ];
+				for ( int d = 0; d < 3; d++ )
+					weightedSum[ 3 * root + d ] += weightedSum[ 3 * label + d ];
+				for ( int d = 0; d < 3; d++ )
+				{
+					bbox[ 6 * root + d ] = Math.min( bbox[ 6 * root + d ], bbox[ 6 * label + d ] );
+					bbox[ 6 * root + 3 + d ] = Math.max( bbox[ 6 * root + 3 + d ], bbox[ 6 * label + 3 + d ] );
+				}
+				count[ label ] = 0;
+				sumX[ label ] = 0.;
+				sumY[ label ] = 0.;
+				sumZ[ label ] = 0.;
+				max[ label ] = Float.NEGATIVE_INFINITY;
+				sum[ label ] = 0.;
+				for ( int d = 0; d < 3; d++ )
+				{
+					weightedSum[ 3 * label + d ] = 0.;
+					bbox[ 6 * label + d ] = Long.MAX_VALUE;
+					bbox[ 6 * label + 3 + d ] = Long.MIN_VALUE;
+				}
+			}
+		}
+
+		/**
+		 * Unites the label of a neighbor with the current label of a pixel.
+		 */
+		private int merge( final int label, final int neighbor )
+		{
+			if ( neighbor < 0 )
+				return label;
+			if ( label < 0 )
+				return neighbor;
+			union( label, neighbor );
+			return label;
+		}
+
+		private int newLabel()
+		{
+			ensureCapacity( nLabels + 1 );
+			final int label = nLabels++;
+			parent[ label ] = label;
+			max[ label ] = Float.NEGATIVE_INFINITY;
+			final int b = 6 * label;
+			for ( int d = 0; d < 3; d++ )
+			{
+				bbox[ b + d ] = Long.MAX_VALUE;
+				bbox[ b + 3 + d ] = Long.MIN_VALUE;
+			}
+			return label;
+		}
+
+		private void ensureCapacity( final int n )
+		{
+			if ( n <= parent.length )
+				return;
+			final int capacity = Math.max( n, 2 * parent.length );
+			parent = Arrays.copyOf( parent, capacity );
+			count = Arrays.copyOf( count, capacity );
+			sumX = Arrays.copyOf( sumX, capacity );
+			sumY = Arrays.copyOf( sumY, capacity );
+			sumZ = Arrays.copyOf( sumZ, capacity );
+			max = Arrays.copyOf( max, capacity );
+			sum = Arrays.copyOf( sum, capacity );
+			weightedSum = Arrays.copyOf( weightedSum, 3 * capacity );
+			bbox = Arrays.copyOf( bbox, 6 * capacity );
+		}
+
+		private int find( int label )
+		{
+			while ( parent[ label ] != label )
+			{
+				// Path halving.
+				parent[ label ] = parent[ parent[ label ] ];
+				label = parent[ label ];
+			}
+			return label;
+		}
+
+		private void union( final int a, final int b )
+		{
+			final int ra = find( a );
+			final int rb = find( b );
+			if ( ra == rb )
+				return;
+			// The smallest label becomes the root, so that roots are stable.
+			if ( ra < rb )
+				parent[ rb ] = ra;
+			else
+				parent[ ra ] = rb;
+		}
+	}
+}
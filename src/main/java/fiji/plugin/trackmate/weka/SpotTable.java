@@ -0,0 +1,369 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * The objects found in a probability map, stored column by column in
+ * primitive arrays before they are turned into spots. Objects are filtered
+ * in the table, and the contours of the objects that are kept are stored in
+ * shared vertex arrays, so that no spot, feature map or contour is created
+ * for the objects that are discarded.
+ * <p>
+ * Positions and bounding boxes are in pixel coordinates of the source image,
+ * contour vertices in physical units. Objects with a contour are positioned
+ * at the centroid of their contour, and their pixel centroid is kept as a
+ * feature.
+ */
+public class SpotTable
+{
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final double[] calibration;
+
+	private final boolean is3D;
+
+	private int size;
+
+	private double[] x = new double[ INITIAL_CAPACITY ];
+
+	private double[] y = new double[ INITIAL_CAPACITY ];
+
+	private double[] z = new double[ INITIAL_CAPACITY ];
+
+	private long[] numPixels = new long[ INITIAL_CAPACITY ];
+
+	private float[] max = new float[ INITIAL_CAPACITY ];
+
+	private double[] sum = new double[ INITIAL_CAPACITY ];
+
+	/** 3 per row. */
+	private double[] weightedSum = new double[ 3 * INITIAL_CAPACITY ];
+
+	/** 6 per row, <code>{ xmin, ymin, zmin, xmax, ymax, zmax }</code>. */
+	private long[] bbox = new long[ 6 * INITIAL_CAPACITY ];
+
+	/** The index of the object in the structure it was found in. */
+	private int[] source = new int[ INITIAL_CAPACITY ];
+
+	/** Index of the first vertex of the contour of each row, -1 if none. */
+	private int[] contourStart = new int[ INITIAL_CAPACITY ];
+
+	private int[] contourLength = new int[ INITIAL_CAPACITY ];
+
+	/**
+	 * Position and radius of the objects with a contour, in physical units,
+	 * NaN if none.
+	 */
+	private double[] outlineX = new double[ INITIAL_CAPACITY ];
+
+	private double[] outlineY = new double[ INITIAL_CAPACITY ];
+
+	private double[] outlineRadius = new double[ INITIAL_CAPACITY ];
+
+	private int nVertices;
+
+	private double[] vx = new double[ 0 ];
+
+	private double[] vy = new double[ 0 ];
+
+	private int lastContour = -1;
+
+	/**
+	 * Creates an empty table.
+	 * 
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param is3D
+	 *            whether objects are 3D objects.
+	 */
+	public SpotTable( final double[] calibration, final boolean is3D )
+	{
+		this.calibration = calibration;
+		this.is3D = is3D;
+	}
+
+	/**
+	 * Adds an object.
+	 * 
+	 * @param cx
+	 *            the X position of the object, in pixel coordinates.
+	 * @param cy
+	 *            the Y position of the object, in pixel coordinates.
+	 * @param cz
+	 *            the Z position of the object, in pixel coordinates.
+	 * @param n
+	 *            the number of pixels in the object.
+	 * @param maxValue
+	 *            the maximal probability in the object.
+	 * @param sumValue
+	 *            the probability summed over the object.
+	 * @param weighted
+	 *            the pixel coordinates summed over the object, weighted by
+	 *            probabilities, X, Y and Z.
+	 * @param box
+	 *            the bounding box of the object, in pixel coordinates, as
+	 *            <code>{ xmin, ymin, zmin, xmax, ymax, zmax }</code>.
+	 * @param sourceIndex
+	 *            the index of the object in the structure it was found in,
+	 *            to compute its contour later.
+	 * @return the row of the object.
+	 */
+	public int add( final double cx, final double cy, final double cz, final long n, final float maxValue, final double sumValue, final double[] weighted, final long[] box, final int sourceIndex )
+	{
+		ensureCapacity( size + 1 );
+		final int row = size++;
+		x[ row ] = cx;
+		y[ row ] = cy;
+		z[ row ] = cz;
+		numPixels[ row ] = n;
+		max[ row ] = maxValue;
+		sum[ row ] = sumValue;
+		System.arraycopy( weighted, 0, weightedSum, 3 * row, 3 );
+		System.arraycopy( box, 0, bbox, 6 * row, 6 );
+		source[ row ] = sourceIndex;
+		contourStart[ row ] = -1;
+		contourLength[ row ] = 0;
+		outlineX[ row ] = Double.NaN;
+		outlineY[ row ] = Double.NaN;
+		outlineRadius[ row ] = Double.NaN;
+		return row;
+	}
+
+	/**
+	 * Appends all the rows of another table, with their contours.
+	 */
+	public void addAll( final SpotTable other )
+	{
+		ensureCapacity( size + other.size );
+		ensureVertexCapacity( nVertices + other.nVertices );
+		final int n = other.size;
+		System.arraycopy( other.x, 0, x, size, n );
+		System.arraycopy( other.y, 0, y, size, n );
+		System.arraycopy( other.z, 0, z, size, n );
+		System.arraycopy( other.numPixels, 0, numPixels, size, n );
+		System.arraycopy( other.max, 0, max, size, n );
+		System.arraycopy( other.sum, 0, sum, size, n );
+		System.arraycopy( other.weightedSum, 0, weightedSum, 3 * size, 3 * n );
+		System.arraycopy( other.bbox, 0, bbox, 6 * size, 6 * n );
+		System.arraycopy( other.source, 0, source, size, n );
+		System.arraycopy( other.contourLength, 0, contourLength, size, n );
+		System.arraycopy( other.outlineX, 0, outlineX, size, n );
+		System.arraycopy( other.outlineY, 0, outlineY, size, n );
+		System.arraycopy( other.outlineRadius, 0, outlineRadius, size, n );
+		for ( int i = 0; i < n; i++ )
+			contourStart[ size + i ] = ( other.contourStart[ i ] < 0 ) ? -1 : other.contourStart[ i ] + nVertices;
+		System.arraycopy( other.vx, 0, vx, nVertices, other.nVertices );
+		System.arraycopy( other.vy, 0, vy, nVertices, other.nVertices );
+		size += n;
+		nVertices += other.nVertices;
+	}
+
+	/**
+	 * Removes the objects smaller than a number of pixels or with a quality
+	 * below a threshold. Rows keep their order.
+	 * 
+	 * @param minQuality
+	 *            the minimal quality, that is the maximal probability in the
+	 *            object.
+	 * @param minPixels
+	 *            the minimal number of pixels.
+	 * @return the number of objects removed.
+	 */
+	public int filter( final double minQuality, final long minPixels )
+	{
+		int kept = 0;
+		for ( int row = 0; row < size; row++ )
+		{
+			if ( max[ row ] < minQuality || numPixels[ row ] < minPixels )
+				continue;
+			if ( kept != row )
+				move( row, kept );
+			kept++;
+		}
+		final int removed = size - kept;
+		size = kept;
+		return removed;
+	}
+
+	/**
+	 * Returns the number of objects.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the index of an object in the structure it was found in.
+	 */
+	public int getSource( final int row )
+	{
+		return source[ row ];
+	}
+
+	/**
+	 * Returns the bounding box bound of an object, in pixel coordinates.
+	 * 
+	 * @param row
+	 *            the row of the object.
+	 * @param bound
+	 *            the index of the bound in
+	 *            <code>{ xmin, ymin, zmin, xmax, ymax, zmax }</code>.
+	 */
+	public long getBoundingBox( final int row, final int bound )
+	{
+		return bbox[ 6 * row + bound ];
+	}
+
+	/**
+	 * Sets the position and radius of an object from its contour, in physical
+	 * units. They replace the ones computed from the object pixels.
+	 */
+	void setOutline( final int row, final double cx, final double cy, final double radius )
+	{
+		outlineX[ row ] = cx;
+		outlineY[ row ] = cy;
+		outlineRadius[ row ] = radius;
+	}
+
+	/**
+	 * Starts the contour of an object. Its vertices must be added next, with
+	 * {@link #addVertex(double, double)}.
+	 */
+	void startContour( final int row )
+	{
+		contourStart[ row ] = nVertices;
+		contourLength[ row ] = 0;
+		lastContour = row;
+	}
+
+	/**
+	 * Adds a vertex to the contour last started, in physical units.
+	 */
+	void addVertex( final double px, final double py )
+	{
+		ensureVertexCapacity( nVertices + 1 );
+		vx[ nVertices ] = px;
+		vy[ nVertices ] = py;
+		nVertices++;
+		contourLength[ lastContour ]++;
+	}
+
+	/**
+	 * Creates the spots of all the objects, with their features and
+	 * contours.
+	 * 
+	 * @return a new list of spots, in the order of rows.
+	 */
+	public List< Spot > toSpots()
+	{
+		final List< Spot > spots = new ArrayList<>( size );
+		final double[] centroid = new double[ 3 ];
+		final double[] weighted = new double[ 3 ];
+		final long[] box = new long[ 6 ];
+		for ( int row = 0; row < size; row++ )
+		{
+			final Spot spot = Double.isNaN( outlineX[ row ] )
+					? LabelUtils.createSpot( x[ row ], y[ row ], is3D ? z[ row ] : 0., numPixels[ row ], calibration, is3D, max[ row ] )
+					: new Spot( outlineX[ row ], outlineY[ row ], 0., outlineRadius[ row ], max[ row ] );
+			centroid[ 0 ] = x[ row ];
+			centroid[ 1 ] = y[ row ];
+			centroid[ 2 ] = z[ row ];
+			System.arraycopy( weightedSum, 3 * row, weighted, 0, 3 );
+			System.arraycopy( bbox, 6 * row, box, 0, 6 );
+			LabelUtils.putFeatures( spot, numPixels[ row ], max[ row ], sum[ row ], centroid, weighted, box, calibration, is3D );
+			if ( contourStart[ row ] >= 0 && contourLength[ row ] > 0 )
+			{
+				final int from = contourStart[ row ];
+				final int n = contourLength[ row ];
+				final double cx = spot.getDoublePosition( 0 );
+				final double cy = spot.getDoublePosition( 1 );
+				final double[] xs = new double[ n ];
+				final double[] ys = new double[ n ];
+				for ( int i = 0; i < n; i++ )
+				{
+					xs[ i ] = vx[ from + i ] - cx;
+					ys[ i ] = vy[ from + i ] - cy;
+				}
+				spot.setRoi( new SpotRoi( xs, ys ) );
+			}
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	private void move( final int from, final int to )
+	{
+		x[ to ] = x[ from ];
+		y[ to ] = y[ from ];
+		z[ to ] = z[ from ];
+		numPixels[ to ] = numPixels[ from ];
+		max[ to ] = max[ from ];
+		sum[ to ] = sum[ from ];
+		System.arraycopy( weightedSum, 3 * from, weightedSum, 3 * to, 3 );
+		System.arraycopy( bbox, 6 * from, bbox, 6 * to, 6 );
+		source[ to ] = source[ from ];
+		contourStart[ to ] = contourStart[ from ];
+		contourLength[ to ] = contourLength[ from ];
+		outlineX[ to ] = outlineX[ from ];
+		outlineY[ to ] = outlineY[ from ];
+		outlineRadius[ to ] = outlineRadius[ from ];
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= x.length )
+			return;
+		final int n = Math.max( capacity, 2 * x.length );
+		x = Arrays.copyOf( x, n );
+		y = Arrays.copyOf( y, n );
+		z = Arrays.copyOf( z, n );
+		numPixels = Arrays.copyOf( numPixels, n );
+		max = Arrays.copyOf( max, n );
+		sum = Arrays.copyOf( sum, n );
+		weightedSum = Arrays.copyOf( weightedSum, 3 * n );
+		bbox = Arrays.copyOf( bbox, 6 * n );
+		source = Arrays.copyOf( source, n );
+		contourStart = Arrays.copyOf( contourStart, n );
+		contourLength = Arrays.copyOf( contourLength, n );
+		outlineX = Arrays.copyOf( outlineX, n );
+		outlineY = Arrays.copyOf( outlineY, n );
+		outlineRadius = Arrays.copyOf( outlineRadius, n );
+	}
+
+	private void ensureVertexCapacity( final int capacity )
+	{
+		if ( capacity <= vx.length )
+			return;
+		final int n = Math.max( capacity, Math.max( 256, 2 * vx.length ) );
+		vx = Arrays.copyOf( vx, n );
+		vy = Arrays.copyOf( vy, n );
+	}
+}
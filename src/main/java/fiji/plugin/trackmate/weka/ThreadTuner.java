@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+import fiji.plugin.trackmate.Logger;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Picks the number of threads that classifies pixels fastest. Using all the
+ * processors is not always the fastest: with hyperthreading or several
+ * memory nodes, feature computation can be limited by memory bandwidth
+ * well before all threads are busy.
+ * <p>
+ * The throughput is measured on a tile at a few thread counts, from the
+ * number of processors down, and the fastest count is stored per host,
+ * classifier and image type, so that later runs skip the measurement. The
+ * throughput of the frames processed next is monitored, and the measurement
+ * is done again if it drifts away from that of the first frame.
+ */
+public class ThreadTuner
+{
+
+	/** Side of the tile throughput is measured on, in 2D. */
+	private static final int TILE_SIZE = 256;
+
+	/** Side and depth of the tile throughput is measured on, in 3D. */
+	private static final int TILE_SIZE_3D = 96;
+
+	private static final int TILE_DEPTH_3D = 16;
+
+	/**
+	 * Ratio of the throughput of a frame to the reference one, or its
+	 * inverse, below which the frame is considered to drift.
+	 */
+	private static final double DRIFT_RATIO = 0.7;
+
+	/** Number of consecutive drifting frames that trigger a new measurement. */
+	private static final int DRIFT_FRAMES = 3;
+
+	private final String key;
+
+	private final int maxThreads;
+
+	private final File file;
+
+	private int numThreads;
+
+	private boolean needsTuning;
+
+	/** Throughput of the first frame after tuning, in pixels per second. */
+	private double reference = Double.NaN;
+
+	private int driftingFrames;
+
+	/**
+	 * Creates a tuner, with the number of threads stored for the key if any.
+	 * 
+	 * @param key
+	 *            the key the number of threads is stored under, as returned
+	 *            by {@link #key(String, boolean, String, int)}.
+	 * @param maxThreads
+	 *            the maximal number of threads.
+	 * @param file
+	 *            the file the numbers of threads are stored in.
+	 */
+	public ThreadTuner( final String key, final int maxThreads, final File file )
+	{
+		this.key = key;
+		this.maxThreads = Math.max( 1, maxThreads );
+		this.file = file;
+		final int stored = load( file, key );
+		this.numThreads = ( stored > 0 && stored <= this.maxThreads ) ? stored : this.maxThreads;
+		this.needsTuning = stored <= 0 || stored > this.maxThreads;
+	}
+
+	/**
+	 * Returns the default file the numbers of threads are stored in, in the
+	 * home folder of the user.
+	 */
+	public static File defaultFile()
+	{
+		return new File( System.getProperty( "user.home" ), ".trackmate-weka" + File.separator + "threads.properties" );
+	}
+
+	/**
+	 * Returns the key of a host, classifier and image type.
+	 * 
+	 * @param classifierFilePath
+	 *            the path to the classifier file. Its size and modification
+	 *            date are part of the key.
+	 * @param isProcessing3D
+	 *            whether images are processed in 3D.
+	 * @param pixelType
+	 *            the name of the pixel type of images.
+	 * @param maxThreads
+	 *            the maximal number of threads.
+	 * @return the key.
+	 */
+	public static String key( final String classifierFilePath, final boolean isProcessing3D, final String pixelType, final int maxThreads )
+	{
+		String host;
+		try
+		{
+			host = InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final IOException e )
+		{
+			host = "localhost";
+		}
+		final File classifier = new File( classifierFilePath ).getAbsoluteFile();
+		return host + '|' + classifier.getPath() + '|' + classifier.length() + '|' + classifier.lastModified()
+				+ '|' + ( isProcessing3D ? "3D" : "2D" ) + '|' + pixelType + '|' + maxThreads;
+	}
+
+	/**
+	 * Returns the tile throughput is measured on: the center of an interval,
+	 * or the whole interval if it is small.
+	 */
+	public static Interval tile( final Interval interval, final boolean isProcessing3D )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+		{
+			final long size = ( d < 2 )
+					? ( isProcessing3D ? TILE_SIZE_3D : TILE_SIZE )
+					: ( isProcessing3D ? TILE_DEPTH_3D : 1 );
+			final long s = Math.min( size, interval.dimension( d ) );
+			min[ d ] = interval.min( d ) + ( interval.dimension( d ) - s ) / 2;
+			max[ d ] = min[ d ] + s - 1;
+		}
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Returns the thread counts that are measured: the maximal number of
+	 * threads, then halved down to a quarter of it, and 1.
+	 */
+	static int[] candidates( final int maxThreads )
+	{
+		return IntStream.of( maxThreads, ( 3 * maxThreads ) / 4, maxThreads / 2, maxThreads / 4, 1 )
+				.filter( c -> c >= 1 )
+				.distinct()
+				.toArray();
+	}
+
+	/**
+	 * Returns whether the throughput must be measured before the next frame.
+	 */
+	public boolean needsTuning()
+	{
+		return needsTuning;
+	}
+
+	public int getMaxThreads()
+	{
+		return maxThreads;
+	}
+
+	/**
+	 * Returns the number of threads to use.
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Measures the throughput at a few thread counts, picks the fastest one
+	 * and stores it.
+	 * 
+	 * @param throughput
+	 *            measures the throughput with the specified number of
+	 *            threads, in pixels per second, or returns 0 if it failed.
+	 *            It is first called once with the maximal number of threads,
+	 *            to warm up, and this measurement is discarded.
+	 * @return the number of threads to use.
+	 */
+	public int tune( final IntToDoubleFunction throughput )
+	{
+		/*
+		 * The first measurement includes the compilation of the hot loops and
+		 * the allocation of the buffers, and would favor the counts measured
+		 * after it. If it fails, the other ones are skipped.
+		 */
+		final boolean warmedUp = throughput.applyAsDouble( maxThreads ) > 0.;
+		double best = 0.;
+		int bestThreads = maxThreads;
+		final StringBuilder str = new StringBuilder();
+		for ( final int threads : warmedUp ? candidates( maxThreads ) : new int[ 0 ] )
+		{
+			final double t = throughput.applyAsDouble( threads );
+			str.append( String.format( " %d: %.2f Mpx/s;", threads, t / 1e6 ) );
+			if ( t > best )
+			{
+				best = t;
+				bestThreads = threads;
+			}
+		}
+		numThreads = bestThreads;
+		needsTuning = false;
+		reference = Double.NaN;
+		driftingFrames = 0;
+		Logger.IJ_LOGGER.log( "Classification throughput per number of threads:" + str + " using " + numThreads + " threads." );
+		if ( best > 0. )
+			store( file, key, numThreads );
+		return numThreads;
+	}
+
+	/**
+	 * Records the throughput of a frame, and asks for a new measurement if
+	 * the throughput drifted for several frames.
+	 * 
+	 * @param pixels
+	 *            the number of pixels in the frame.
+	 * @param nanos
+	 *            the time taken to process the frame, in ns.
+	 */
+	public void record( final long pixels, final long nanos )
+	{
+		if ( nanos <= 0 || needsTuning )
+			return;
+		final double throughput = pixels * 1e9 / nanos;
+		if ( Double.isNaN( reference ) )
+		{
+			reference = throughput;
+			return;
+		}
+		final double ratio = throughput / reference;
+		if ( ratio < DRIFT_RATIO || ratio > 1. / DRIFT_RATIO )
+			driftingFrames++;
+		else
+			driftingFrames = 0;
+		if ( driftingFrames >= DRIFT_FRAMES )
+		{
+			Logger.IJ_LOGGER.log( String.format( "Throughput drifted from %.2f to %.2f Mpx/s, measuring again.", reference / 1e6, throughput / 1e6 ) );
+			needsTuning = true;
+		}
+	}
+
+	private static int load( final File file, final String key )
+	{
+		synchronized ( ThreadTuner.class )
+		{
+			if ( !file.isFile() )
+				return 0;
+			final Properties properties = new Properties();
+			try (final InputStream in = new FileInputStream( file ))
+			{
+				properties.load( in );
+				return Integer.parseInt( properties.getProperty( key, "0" ) );
+			}
+			catch ( final IOException | NumberFormatException e )
+			{
+				return 0;
+			}
+		}
+	}
+
+	private static void store( final File file, final String key, final int numThreads )
+	{
+		synchronized ( ThreadTuner.class )
+		{
+			final Properties properties = new Properties();
+			if ( file.isFile() )
+			{
+				try (final InputStream in = new FileInputStream( file ))
+				{
+					properties.load( in );
+				}
+				catch ( final IOException e )
+				{
+					// Start over.
+				}
+			}
+			properties.setProperty( key, Integer.toString( numThreads ) );
+			final File folder = file.getAbsoluteFile().getParentFile();
+			try
+			{
+				if ( !folder.isDirectory() && !folder.mkdirs() )
+					throw new IOException( "Cannot create the folder " + folder );
+				final File tmp = File.createTempFile( "threads", ".tmp", folder );
+				try (final OutputStream out = new FileOutputStream( tmp ))
+				{
+					properties.store( out, "Number of threads per host, classifier and image type" );
+				}
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( final IOException e )
+			{
+				Logger.IJ_LOGGER.log( "Could not store the number of threads: " + e.getMessage() );
+			}
+		}
+	}
+}
@@ -0,0 +1,415 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import ij.process.ByteProcessor;
+
+/**
+ * Splits touching objects of a thresholded probability map with a seeded
+ * watershed on the probabilities.
+ * <p>
+ * Each connected component of the thresholded map is flooded from its
+ * probability maxima, by decreasing probability. When two basins meet, the
+ * one with the lowest peak is merged into the other if its peak is less
+ * than a prominence above the meeting level. The remaining basins are the
+ * split objects, so that a maximum seeds an object only if it is prominent
+ * enough. The flooding never leaves the component, so components are
+ * independent and are processed in parallel. Pixels of large components are
+ * sorted in parallel.
+ * <p>
+ * Objects are 4-connected in 2D and 6-connected in 3D, like the components.
+ * Spots are created as by {@link SlabLabeler}, with the object statistics as
+ * features.
+ */
+public class WatershedSplitter
+{
+
+	private WatershedSplitter()
+	{}
+
+	/**
+	 * Splits the components of a labeled probability map.
+	 * 
+	 * @param values
+	 *            the probabilities, X first, then Y, then Z.
+	 * @param components
+	 *            the component index of each pixel, -1 for background, as
+	 *            returned by {@link SlabLabeler#relabel(int[], int)}.
+	 * @param nComponents
+	 *            the number of components.
+	 * @param dims
+	 *            the dimensions of the probability map, 2D or 3D.
+	 * @param origin
+	 *            the position of the first pixel in the image.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param prominence
+	 *            the minimal height of a maximum above the level where its
+	 *            basin meets another one, for the maximum to seed an object.
+	 * @param simplify
+	 *            if <code>true</code>, 2D contours will be simplified.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return a new list of spots, one per object.
+	 */
+	public static List< Spot > split(
+			final float[] values,
+			final int[] components,
+			final int nComponents,
+			final int[] dims,
+			final long[] origin,
+			final double[] calibration,
+			final double prominence,
+			final boolean simplify,
+			final int numThreads )
+	{
+		return splitToTable( values, components, nComponents, dims, origin, calibration, prominence, simplify, 0., 0l, numThreads ).toSpots();
+	}
+
+	/**
+	 * Splits the components of a labeled probability map, and returns the
+	 * table of the objects, filtered before their contours are computed.
+	 * Parameters are those of
+	 * {@link #split(float[], int[], int, int[], long[], double[], double, boolean, int)},
+	 * plus:
+	 * 
+	 * @param minQuality
+	 *            the minimal maximal probability of the objects kept.
+	 * @param minPixels
+	 *            the minimal number of pixels of the objects kept.
+	 * @return a new table, one row per object kept.
+	 */
+	public static SpotTable splitToTable(
+			final float[] values,
+			final int[] components,
+			final int nComponents,
+			final int[] dims,
+			final long[] origin,
+			final double[] calibration,
+			final double prominence,
+			final boolean simplify,
+			final double minQuality,
+			final long minPixels,
+			final int numThreads )
+	{
+		/*
+		 * Pixels of each component, contiguous, by increasing index.
+		 */
+
+		final int n = values.length;
+		final int[] start = new int[ nComponents + 1 ];
+		for ( int i = 0; i < n; i++ )
+			if ( components[ i ] >= 0 )
+				start[ components[ i ] + 1 ]++;
+		for ( int c = 0; c < nComponents; c++ )
+			start[ c + 1 ] += start[ c ];
+		final int[] pixels = new int[ start[ nComponents ] ];
+		final int[] fill = Arrays.copyOf( start, nComponents );
+		for ( int i = 0; i < n; i++ )
+			if ( components[ i ] >= 0 )
+				pixels[ fill[ components[ i ] ]++ ] = i;
+
+		/*
+		 * Flood components in parallel. Components are disjoint, so that
+		 * threads write in disjoint parts of the basin array.
+		 */
+
+		final int[] basin = new int[ n ];
+		final SpotTable[] tables = new SpotTable[ nComponents ];
+		ParallelUtils.forEachBlock( nComponents, numThreads, ( from, to ) -> {
+			for ( int c = from; c < to; c++ )
+			{
+				final Component component = new Component( values, components, basin, dims, c, pixels, start[ c ], start[ c + 1 ] );
+				component.flood( ( float ) prominence );
+				tables[ c ] = component.getTable( origin, calibration, simplify, minQuality, minPixels );
+			}
+		} );
+
+		final SpotTable out = new SpotTable( calibration, dims.length > 2 );
+		for ( final SpotTable table : tables )
+			out.addAll( table );
+		return out;
+	}
+
+	/**
+	 * The flooding of one component. Basins are identified by the rank, in
+	 * flooding order, of the pixel that created them.
+	 */
+	private static final class Component
+	{
+
+		private final float[] values;
+
+		private final int[] components;
+
+		private final int[] basin;
+
+		private final int[] dims;
+
+		private final int index;
+
+		/** Pixel indices, sorted by decreasing probability when flooded. */
+		private final int[] order;
+
+		private final int[] parent;
+
+		private final float[] peak;
+
+		private Component( final float[] values, final int[] components, final int[] basin, final int[] dims, final int index, final int[] pixels, final int from, final int to )
+		{
+			this.values = values;
+			this.components = components;
+			this.basin = basin;
+			this.dims = dims;
+			this.index = index;
+			this.order = sortDecreasing( values, pixels, from, to );
+			this.parent = new int[ order.length ];
+			this.peak = new float[ order.length ];
+		}
+
+		private void flood( final float prominence )
+		{
+			for ( final int p : order )
+				basin[ p ] = -1;
+
+			final int[] neighbors = new int[ 6 ];
+			final int[] roots = new int[ 6 ];
+			for ( int rank = 0; rank < order.length; rank++ )
+			{
+				final int p = order[ rank ];
+				final float v = values[ p ];
+
+				// Basins of the neighbors already flooded.
+				int nRoots = 0;
+				int best = -1;
+				final int nn = neighbors( p, neighbors );
+				for ( int k = 0; k < nn; k++ )
+				{
+					final int q = neighbors[ k ];
+					if ( components[ q ] != index || basin[ q ] < 0 )
+						continue;
+					final int r = find( basin[ q ] );
+					boolean known = false;
+					for ( int j = 0; j < nRoots; j++ )
+						known |= roots[ j ] == r;
+					if ( known )
+						continue;
+					roots[ nRoots++ ] = r;
+					if ( best < 0 || peak[ r ] > peak[ best ] )
+						best = r;
+				}
+
+				if ( best < 0 )
+				{
+					// A new maximum.
+					parent[ rank ] = rank;
+					peak[ rank ] = v;
+					basin[ p ] = rank;
+					continue;
+				}
+
+				// Basins that are not prominent enough join the highest one.
+				for ( int j = 0; j < nRoots; j++ )
+					if ( roots[ j ] != best && peak[ roots[ j ] ] - v < prominence )
+						parent[ roots[ j ] ] = best;
+				basin[ p ] = best;
+			}
+
+			for ( final int p : order )
+				basin[ p ] = find( basin[ p ] );
+		}
+
+		private SpotTable getTable( final long[] origin, final double[] calibration, final boolean simplify, final double minQuality, final long minPixels )
+		{
+			final boolean is3D = dims.length > 2;
+			final int w = dims[ 0 ];
+			final int h = dims[ 1 ];
+
+			// Object index of basin roots.
+			final int[] objectOf = new int[ order.length ];
+			Arrays.fill( objectOf, -1 );
+			int m = 0;
+			for ( final int p : order )
+				if ( objectOf[ basin[ p ] ] < 0 )
+					objectOf[ basin[ p ] ] = m++;
+			final int[] rootOf = new int[ m ];
+			for ( int r = 0; r < order.length; r++ )
+				if ( objectOf[ r ] >= 0 )
+					rootOf[ objectOf[ r ] ] = r;
+
+			// Statistics per object.
+			final long[] count = new long[ m ];
+			final double[] sum = new double[ m ];
+			final float[] max = new float[ m ];
+			final double[] sumPos = new double[ 3 * m ];
+			final double[] weightedSum = new double[ 3 * m ];
+			final long[] bbox = new long[ 6 * m ];
+			Arrays.fill( max, Float.NEGATIVE_INFINITY );
+			for ( int o = 0; o < m; o++ )
+			{
+				for ( int d = 0; d < 3; d++ )
+				{
+					bbox[ 6 * o + d ] = Long.MAX_VALUE;
+					bbox[ 6 * o + 3 + d ] = Long.MIN_VALUE;
+				}
+			}
+			final long[] pos = new long[ 3 ];
+			for ( final int p : order )
+			{
+				final int o = objectOf[ basin[ p ] ];
+				final float v = values[ p ];
+				pos[ 0 ] = p % w;
+				pos[ 1 ] = ( p / w ) % h;
+				pos[ 2 ] = p / ( w * h );
+				count[ o ]++;
+				sum[ o ] += v;
+				max[ o ] = Math.max( max[ o ], v );
+				for ( int d = 0; d < 3; d++ )
+				{
+					sumPos[ 3 * o + d ] += pos[ d ];
+					weightedSum[ 3 * o + d ] += ( double ) v * pos[ d ];
+					bbox[ 6 * o + d ] = Math.min( bbox[ 6 * o + d ], pos[ d ] );
+					bbox[ 6 * o + 3 + d ] = Math.max( bbox[ 6 * o + 3 + d ], pos[ d ] );
+				}
+			}
+
+			final SpotTable table = new SpotTable( calibration, is3D );
+			final double[] center = new double[ 3 ];
+			final double[] weighted = new double[ 3 ];
+			final long[] box = new long[ 6 ];
+			for ( int o = 0; o < m; o++ )
+			{
+				final long no = count[ o ];
+				for ( int d = 0; d < 3; d++ )
+				{
+					final long offset = ( d < origin.length ) ? origin[ d ] : 0l;
+					center[ d ] = offset + sumPos[ 3 * o + d ] / no;
+					weighted[ d ] = weightedSum[ 3 * o + d ] + offset * sum[ o ];
+					box[ d ] = offset + bbox[ 6 * o + d ];
+					box[ 3 + d ] = offset + bbox[ 6 * o + 3 + d ];
+				}
+				table.add( center[ 0 ], center[ 1 ], is3D ? center[ 2 ] : 0., no, max[ o ], sum[ o ], weighted, box, o );
+			}
+			table.filter( minQuality, minPixels );
+
+			if ( !is3D )
+			{
+				for ( int row = 0; row < table.size(); row++ )
+				{
+					final int o = table.getSource( row );
+					LabelUtils.contour( mask( rootOf[ o ], bbox, 6 * o ), table.getBoundingBox( row, 0 ), table.getBoundingBox( row, 1 ), calibration, simplify, table, row );
+				}
+			}
+			return table;
+		}
+
+		/**
+		 * Returns the mask of a 2D basin, over its bounding box, stored in
+		 * the specified array at the specified offset.
+		 */
+		private ByteProcessor mask( final int r, final long[] bbox, final int b )
+		{
+			final int w = dims[ 0 ];
+			final int x0 = ( int ) bbox[ b ];
+			final int y0 = ( int ) bbox[ b + 1 ];
+			final int mw = ( int ) bbox[ b + 3 ] - x0 + 1;
+			final int mh = ( int ) bbox[ b + 4 ] - y0 + 1;
+			final ByteProcessor mask = new ByteProcessor( mw, mh );
+			final byte[] pixels = ( byte[] ) mask.getPixels();
+			for ( int y = 0; y < mh; y++ )
+			{
+				final int offset = ( y0 + y ) * w + x0;
+				for ( int x = 0; x < mw; x++ )
+					if ( components[ offset + x ] == index && basin[ offset + x ] == r )
+						pixels[ y * mw + x ] = ( byte ) 255;
+			}
+			return mask;
+		}
+
+		private int find( int r )
+		{
+			while ( parent[ r ] != r )
+			{
+				parent[ r ] = parent[ parent[ r ] ];
+				r = parent[ r ];
+			}
+			return r;
+		}
+
+		/**
+		 * Writes the 4- or 6-connected neighbors of pixel <code>p</code> in
+		 * the specified array, and returns their number.
+		 */
+		private int neighbors( final int p, final int[] out )
+		{
+			final int w = dims[ 0 ];
+			final int h = dims[ 1 ];
+			final int x = p % w;
+			final int y = ( p / w ) % h;
+			int nn = 0;
+			if ( x > 0 )
+				out[ nn++ ] = p - 1;
+			if ( x < w - 1 )
+				out[ nn++ ] = p + 1;
+			if ( y > 0 )
+				out[ nn++ ] = p - w;
+			if ( y < h - 1 )
+				out[ nn++ ] = p + w;
+			if ( dims.length > 2 )
+			{
+				final int z = p / ( w * h );
+				if ( z > 0 )
+					out[ nn++ ] = p - w * h;
+				if ( z < dims[ 2 ] - 1 )
+					out[ nn++ ] = p + w * h;
+			}
+			return nn;
+		}
+	}
+
+	/**
+	 * Returns the pixels of a range sorted by decreasing value, ties by
+	 * increasing index.
+	 */
+	private static int[] sortDecreasing( final float[] values, final int[] pixels, final int from, final int to )
+	{
+		final long[] keys = new long[ to - from ];
+		for ( int i = from; i < to; i++ )
+		{
+			final int p = pixels[ i ];
+			// Order-preserving integer for floats, negated for decreasing order.
+			final int bits = Float.floatToIntBits( values[ p ] );
+			final int ordered = bits ^ ( ( bits >> 31 ) & 0x7fffffff );
+			keys[ i - from ] = ( ( long ) -ordered << 32 ) | ( i - from );
+		}
+		// Large components dominate, sort them with several threads too.
+		Arrays.parallelSort( keys );
+		final int[] sorted = new int[ keys.length ];
+		for ( int i = 0; i < keys.length; i++ )
+			sorted[ i ] = pixels[ from + ( int ) ( keys[ i ] & 0xffffffffl ) ];
+		return sorted;
+	}
+}
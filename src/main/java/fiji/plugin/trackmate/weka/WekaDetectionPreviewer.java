@@ -26,15 +26,23 @@ import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_CLASSIFIER_FILE
 import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_CLASS_INDEX;
 import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_PROBA_THRESHOLD;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
 import java.util.function.Supplier;
 
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.features.FeatureFilter;
@@ -46,15 +54,20 @@ import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 
 public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > > extends DetectionPreview
 {
 
+	/**
+	 * Probability maps larger than this in X or Y are shown downsampled.
+	 */
+	private static final int MAX_DISPLAY_SIZE = 2048;
+
 	private ImagePlus previousImp;
 
 	private int previousFrame = -1;
@@ -67,6 +80,31 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 
 	private int previousChannel;
 
+	private boolean previousProcessing3D;
+
+	/**
+	 * Loads classifiers off the event dispatch thread, one at a time.
+	 */
+	private final ExecutorService classifierLoader = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "TrackMate-Weka classifier loading thread" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private Future< WekaRunner< T > > runnerFuture;
+
+	private String loadingClassifierFilePath;
+
+	private boolean loading3D;
+
+	private final Model model;
+
+	/**
+	 * Guards the runner and the preview spots between a preview and a
+	 * threshold update.
+	 */
+	private final Object previewLock = new Object();
+
 	public WekaDetectionPreviewer(
 			final Model model,
 			final Settings settings,
@@ -82,15 +120,44 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 				null,
 				null,
 				null );
+		this.model = model;
 	}
 
+	/**
+	 * Returns an image of the last probability map. Large maps are shown
+	 * downsampled, at the finest level of their pyramid that fits in
+	 * {@value #MAX_DISPLAY_SIZE} pixels in X and Y.
+	 * 
+	 * @return a new image, or <code>null</code> if no probability map has
+	 *         been computed yet.
+	 */
 	public ImagePlus getLastProbabilityImage()
 	{
-		final RandomAccessibleInterval< T > img = wekaRunner.getLastOutput();
-		if ( img == null )
+		if ( wekaRunner == null )
+			return null;
+		final ProbabilityPyramid< T > pyramid = wekaRunner.computePyramid();
+		if ( pyramid == null )
 			return null;
 
-		return ImageJFunctions.wrap( img, "Probability map" );
+		final int level = pyramid.getLevelFor( MAX_DISPLAY_SIZE );
+		if ( level > 0 )
+			getLogger().log( String.format( "Showing the probability map downsampled %d times.", 1 << level ) );
+		return pyramid.getImagePlus( level );
+	}
+
+	/**
+	 * Returns the histogram of the last probability map. It is built with the
+	 * probabilities, so that the foreground of any threshold can be estimated
+	 * without creating spots.
+	 * 
+	 * @return the histogram, or <code>null</code> if no probability map has
+	 *         been computed yet.
+	 */
+	public ProbabilityHistogram getLastProbabilityHistogram()
+	{
+		if ( wekaRunner == null )
+			return null;
+		return wekaRunner.getLastHistogram();
 	}
 
 	@Override
@@ -100,6 +167,14 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 			final SpotDetectorFactoryBase< ? > detectorFactory,
 			final Map< String, Object > detectorSettings,
 			final String thresholdKey )
+	{
+		synchronized ( previewLock )
+		{
+			return computePreview( settings, frame, detectorSettings );
+		}
+	}
+
+	private Pair< Model, Double > computePreview( final Settings settings, final int frame, final Map< String, Object > detectorSettings )
 	{
 		final Logger logger = getLogger();
 
@@ -116,7 +191,7 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 		final double probaThreshold = ( Double ) dsettings.get( KEY_PROBA_THRESHOLD );
 		final boolean simplify = true;
 
-		final boolean is3D = input.dimensionIndex( Axes.Z ) >= 0;
+		final boolean processing3D = input.dimensionIndex( Axes.Z ) >= 0 && !WekaDetectorFactory.isSliceWise( dsettings );
 		// First test to make sure we can read the classifier file.
 		final Object obj = dsettings.get( KEY_CLASSIFIER_FILEPATH );
 		if ( obj == null )
@@ -158,28 +233,47 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 			recomputeProba = true;
 		previousChannel = channel;
 
+		if ( processing3D != previousProcessing3D )
+			recomputeProba = true;
+		previousProcessing3D = processing3D;
+
 		if ( recomputeProba || wekaRunner == null )
 		{
-			logger.log( "Recomputing probabilities." );
-			wekaRunner = new WekaRunner<>( classifierFilePath, is3D );
-			wekaRunner.setNumThreads();
+			wekaRunner = getRunner( classifierFilePath, processing3D, logger );
+			if ( wekaRunner == null )
+				return null;
 
-			if ( !wekaRunner.loadClassifier() )
+			wekaRunner.setUseFeatureEngine( Boolean.TRUE.equals( dsettings.get( WekaDetectorFactory.KEY_FEATURE_ENGINE ) ) );
+			final Interval interval = DetectionUtils.squeeze( TMUtils.getInterval( img, settings ) );
+			final MemoryPlan plan = wekaRunner.planMemory( Intervals.dimensionsAsLongArray( interval ), WekaDetectorFactory.getMemoryBudget( dsettings ) );
+			if ( plan != null )
 			{
-				logger.error( wekaRunner.getErrorMessage() );
-				return null;
+				if ( !plan.isFeasible() )
+				{
+					logger.error( plan.getErrorMessage() );
+					return null;
+				}
+				logger.log( plan.toString() );
 			}
 
-			final Interval interval = DetectionUtils.squeeze( TMUtils.getInterval( img, settings ) );
+			logger.log( "Recomputing probabilities." );
 			final RandomAccessibleInterval< T > probabilities = wekaRunner.computeProbabilities( input, interval, classIndex );
 			if ( probabilities == null )
 			{
 				logger.error( "Problem computing probabilities: " + wekaRunner.getErrorMessage() );
 				return null;
 			}
+
+			// Index the probabilities so that threshold changes are cheap.
+			wekaRunner.computeMaxTree();
+			final ProbabilityHistogram histogram = wekaRunner.computeHistogram();
+			logger.log( String.format( "Suggested thresholds: Otsu %.3f, triangle %.3f.", histogram.otsu(), histogram.triangle() ) );
 		}
 
 		logger.log( "Creating spots from probabilities." );
+		wekaRunner.setSplitProminence( WekaDetectorFactory.getSplitProminence( dsettings ) );
+		wekaRunner.setLowThreshold( WekaDetectorFactory.getLowThreshold( dsettings ) );
+		wekaRunner.setSpotFilter( WekaDetectorFactory.getMinQuality( dsettings ), WekaDetectorFactory.getMinSize( dsettings ) );
 		final List< Spot > spots = wekaRunner.getSpotsFromLastProbabilities( probaThreshold, simplify );
 		if ( spots == null )
 		{
@@ -194,23 +288,154 @@ public class WekaDetectionPreviewer< T extends RealType< T > & NativeType< T > >
 		return new ValuePair< Model, Double >( model, Double.NaN );
 	}
 
-	public List< String > getClassNames( final String classifierFilePath, final Logger logger, final boolean is3D )
+	/**
+	 * Replaces the spots of the last preview by the spots found above a new
+	 * threshold. Spots are created from the max-tree of the last probability
+	 * map, so probabilities are not computed again. Must not be called on the
+	 * event dispatch thread.
+	 * <p>
+	 * The threshold is read once the preview lock is held, so that when
+	 * several updates wait for the lock, the last one to run uses the current
+	 * threshold and not the one it was requested with.
+	 * 
+	 * @param thresholdSupplier
+	 *            supplies the current probability threshold.
+	 * @return the number of spots and the threshold they were found with, or
+	 *         <code>null</code> if no preview was run yet.
+	 */
+	public Pair< Integer, Double > updateSpots( final DoubleSupplier thresholdSupplier )
 	{
-		if ( !classifierFilePath.equals( previousClassifierFilePath ) || wekaRunner == null )
+		synchronized ( previewLock )
 		{
-			logger.log( "Discovering class names in classifier." );
-			wekaRunner = new WekaRunner<>( classifierFilePath, is3D );
-			wekaRunner.setNumThreads();
-
-			if ( !wekaRunner.loadClassifier() )
+			if ( wekaRunner == null || wekaRunner.getLastMaxTree() == null )
+				return null;
+			final double threshold = thresholdSupplier.getAsDouble();
+			final List< Spot > spots = wekaRunner.getSpotsFromLastProbabilities( threshold, true );
+			if ( spots == null )
 			{
-				logger.error( wekaRunner.getErrorMessage() );
+				getLogger().error( "Problem creating spots: " + wekaRunner.getErrorMessage() );
 				return null;
 			}
+
+			int count = 0;
+			model.beginUpdate();
+			try
+			{
+				final List< Spot > previous = new ArrayList<>();
+				for ( final Spot spot : model.getSpots().iterable( previousFrame, false ) )
+					previous.add( spot );
+				for ( final Spot spot : previous )
+					model.removeSpot( spot );
+				for ( final Spot spot : spots )
+				{
+					if ( spot.getFeature( Spot.QUALITY ) < threshold )
+						continue;
+					spot.putFeature( SpotCollection.VISIBILITY, SpotCollection.ONE );
+					model.addSpotTo( spot, previousFrame );
+					count++;
+				}
+			}
+			finally
+			{
+				model.endUpdate();
+			}
+			return new ValuePair<>( Integer.valueOf( count ), Double.valueOf( threshold ) );
 		}
-		previousClassifierFilePath = classifierFilePath;
-		final List< String > classNames = wekaRunner.getClassNames();
+	}
+
+	public List< String > getClassNames( final String classifierFilePath, final Logger logger, final boolean is3D )
+	{
+		// Fast path: read the class labels from the header only.
+		try
+		{
+			final List< String > classNames = ClassifierHeader.read( classifierFilePath ).getClassLabels();
+			logger.log( "Found " + classNames.size() + " classes in classifier header." );
+			return classNames;
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not read classifier header (" + e.getMessage() + "), loading the classifier." );
+		}
+
+		final WekaRunner< T > runner = getRunner( classifierFilePath, is3D, logger );
+		if ( runner == null )
+			return null;
+
+		logger.log( "Discovering class names in classifier." );
+		final List< String > classNames = runner.getClassNames();
 		logger.log( "Found " + classNames.size() + " classes in classifier." );
 		return classNames;
 	}
+
+	/**
+	 * Starts loading the specified classifier in the background, if it is not
+	 * loaded or loading already. The loaded classifier is then used for class
+	 * name discovery and for the preview, so that it is only loaded once.
+	 * 
+	 * @param classifierFilePath
+	 *            the path to the classifier file.
+	 * @param is3D
+	 *            whether the classifier will process 3D images.
+	 * @return a future on the runner holding the loaded classifier. Its value
+	 *         is <code>null</code> if loading failed.
+	 */
+	public synchronized Future< WekaRunner< T > > loadClassifier( final String classifierFilePath, final boolean is3D )
+	{
+		if ( runnerFuture != null && classifierFilePath.equals( loadingClassifierFilePath ) && is3D == loading3D )
+			return runnerFuture;
+
+		loadingClassifierFilePath = classifierFilePath;
+		loading3D = is3D;
+		final Logger logger = getLogger();
+		runnerFuture = classifierLoader.submit( () -> {
+			logger.log( "Loading classifier " + classifierFilePath );
+			logger.setStatus( "Loading classifier" );
+			logger.setProgress( 0. );
+			final long start = System.currentTimeMillis();
+			final WekaRunner< T > runner = new WekaRunner<>( classifierFilePath, is3D );
+			final boolean ok = runner.loadClassifier();
+			logger.setProgress( 1. );
+			logger.setStatus( "" );
+			if ( !ok )
+			{
+				logger.error( runner.getErrorMessage() );
+				return null;
+			}
+			final long end = System.currentTimeMillis();
+			logger.log( String.format( "Classifier loaded in %.1f s.", ( end - start ) / 1000. ) );
+			return runner;
+		} );
+		return runnerFuture;
+	}
+
+	/**
+	 * Waits for the specified classifier to be loaded. Must not be called on
+	 * the event dispatch thread.
+	 */
+	private WekaRunner< T > getRunner( final String classifierFilePath, final boolean is3D, final Logger logger )
+	{
+		final Future< WekaRunner< T > > future = loadClassifier( classifierFilePath, is3D );
+		try
+		{
+			final WekaRunner< T > runner = future.get();
+			if ( runner == null )
+				forget( future );
+			return runner;
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			forget( future );
+			logger.error( "Problem loading the classifier: " + e.getMessage() );
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets a failed loading, so that the next request retries it.
+	 */
+	private synchronized void forget( final Future< WekaRunner< T > > future )
+	{
+		if ( runnerFuture == future )
+			runnerFuture = null;
+	}
 }
@@ -21,18 +21,19 @@
  */
 package fiji.plugin.trackmate.weka;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.detection.DetectionUtils;
 import fiji.plugin.trackmate.detection.SpotDetector;
-import fiji.plugin.trackmate.util.TMUtils;
 import net.imagej.ImgPlus;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 
 public class WekaDetector< T extends RealType< T > & NativeType< T > > implements SpotDetector< T >
 {
@@ -51,6 +52,8 @@ public class WekaDetector< T extends RealType< T > & NativeType< T > > implement
 
 	private final WekaRunner< T > runner;
 
+	private final ShardPool pool;
+
 	private final ImgPlus< T > img;
 
 	private final int classIndex;
@@ -59,6 +62,14 @@ public class WekaDetector< T extends RealType< T > & NativeType< T > > implement
 
 	private final boolean simplify;
 
+	private DetectionCheckpoint checkpoint;
+
+	private int frame;
+
+	private DetectionMetrics metrics;
+
+	private Runnable onDone;
+
 	public WekaDetector(
 			final WekaRunner< T > runner,
 			final ImgPlus< T > img,
@@ -66,8 +77,35 @@ public class WekaDetector< T extends RealType< T > & NativeType< T > > implement
 			final int classIndex,
 			final double probaThreshold,
 			final boolean simplify )
+	{
+		this( runner, null, img, interval, classIndex, probaThreshold, simplify );
+	}
+
+	/**
+	 * Creates a detector that sends its frame to a worker process of a pool.
+	 */
+	public WekaDetector(
+			final ShardPool pool,
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int classIndex,
+			final double probaThreshold,
+			final boolean simplify )
+	{
+		this( null, pool, img, interval, classIndex, probaThreshold, simplify );
+	}
+
+	private WekaDetector(
+			final WekaRunner< T > runner,
+			final ShardPool pool,
+			final ImgPlus< T > img,
+			final Interval interval,
+			final int classIndex,
+			final double probaThreshold,
+			final boolean simplify )
 	{
 		this.runner = runner;
+		this.pool = pool;
 		this.img = img;
 		this.interval = DetectionUtils.squeeze( interval );
 		this.classIndex = classIndex;
@@ -76,6 +114,44 @@ public class WekaDetector< T extends RealType< T > & NativeType< T > > implement
 		this.baseErrorMessage = BASE_ERROR_MESSAGE;
 	}
 
+	/**
+	 * Sets the checkpoint this detector reads its spots from if the frame is
+	 * finished, and writes them to otherwise.
+	 * 
+	 * @param checkpoint
+	 *            the checkpoint, or <code>null</code> not to use one.
+	 * @param frame
+	 *            the frame this detector processes.
+	 */
+	public void setCheckpoint( final DetectionCheckpoint checkpoint, final int frame )
+	{
+		this.checkpoint = checkpoint;
+		this.frame = frame;
+	}
+
+	/**
+	 * Sets the metrics the detection of the frame is recorded to.
+	 * 
+	 * @param metrics
+	 *            the metrics, or <code>null</code> not to record them.
+	 */
+	public void setMetrics( final DetectionMetrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the action run when this detector returns from
+	 * {@link #process()}, whether the detection succeeded or not.
+	 * 
+	 * @param onDone
+	 *            the action, or <code>null</code>.
+	 */
+	public void setOnDone( final Runnable onDone )
+	{
+		this.onDone = onDone;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
@@ -89,28 +165,101 @@ public class WekaDetector< T extends RealType< T > & NativeType< T > > implement
 
 	@Override
 	public boolean process()
+	{
+		try
+		{
+			return processFrame();
+		}
+		finally
+		{
+			if ( onDone != null )
+				onDone.run();
+		}
+	}
+
+	private boolean processFrame()
 	{
 		final long start = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+		if ( metrics != null )
+			metrics.frameStarted();
 
-		final RandomAccessibleInterval< T > probabilities = runner.computeProbabilities( img, interval, classIndex );
-		if ( probabilities == null )
+		final long hash = ( checkpoint == null ) ? 0l : DetectionCheckpoint.hash( img, interval );
+		final List< Spot > finished = ( checkpoint == null ) ? null : checkpoint.get( frame, interval, hash );
+		if ( finished != null )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "Problem computing probabilities: " + runner.getErrorMessage();
-			return false;
+			spots = finished;
+			this.processingTime = System.currentTimeMillis() - start;
+			if ( metrics != null )
+				metrics.frameFinished( Intervals.numElements( interval ), System.nanoTime() - startNanos, true );
+			return true;
 		}
 
-		spots = runner.getSpots( probabilities, TMUtils.getSpatialCalibration( img ), probaThreshold, simplify );
+		spots = detect();
 		if ( spots == null )
 		{
-			System.err.println( "Problem creating spots: " + runner.getErrorMessage() );
+			if ( metrics != null )
+				metrics.frameFailed();
 			return false;
 		}
+		if ( metrics != null )
+			metrics.frameFinished( Intervals.numElements( interval ), System.nanoTime() - startNanos, false );
+
+		if ( checkpoint != null )
+		{
+			try
+			{
+				checkpoint.append( frame, interval, hash, spots );
+			}
+			catch ( final IOException e )
+			{
+				// The spots are still good.
+				Logger.IJ_LOGGER.error( "Problem writing frame " + frame + " to the detection checkpoint: " + e.getMessage() );
+			}
+		}
 
 		final long end = System.currentTimeMillis();
 		this.processingTime = end - start;
 		return true;
 	}
 
+	/**
+	 * Detects objects in this JVM or on a worker process.
+	 * 
+	 * @return the spots, or <code>null</code> if an error occurred.
+	 */
+	private List< Spot > detect()
+	{
+		if ( pool == null && runner == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The worker processes could not be started.";
+			return null;
+		}
+		if ( pool != null )
+		{
+			try
+			{
+				return pool.detect( img, interval, classIndex, probaThreshold, simplify );
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Problem detecting objects: " + e.getMessage();
+				return null;
+			}
+		}
+
+		final List< Spot > detected = runner.detect( img, interval, classIndex, probaThreshold, simplify );
+		if ( detected == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem detecting objects: " + runner.getErrorMessage();
+			return null;
+		}
+
+		if ( runner.isEarlyExit() && !Double.isNaN( runner.getMeanTreesEvaluated() ) )
+			Logger.IJ_LOGGER.log( String.format( "Early-exit voting: %.1f trees evaluated per pixel on average.", runner.getMeanTreesEvaluated() ) );
+		return detected;
+	}
+
 	@Override
 	public List< Spot > getResult()
 	{
@@ -26,9 +26,22 @@ import static fiji.plugin.trackmate.gui.Fonts.BIG_FONT;
 import static fiji.plugin.trackmate.gui.Fonts.FONT;
 import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
 import static fiji.plugin.trackmate.gui.Icons.MAGNIFIER_ICON;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_AUTOTUNE_THREADS;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_CHECKPOINT;
 import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_CLASSIFIER_FILEPATH;
 import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_CLASS_INDEX;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_EARLY_EXIT;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_FEATURE_ENGINE;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_MEMORY_BUDGET;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_METRICS_LOG_INTERVAL;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_LOW_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_MIN_QUALITY;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_MIN_SIZE;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_NUM_WORKERS;
 import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_PROBA_THRESHOLD;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_SLICE_WISE;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_SPLIT_PROMINENCE;
+import static fiji.plugin.trackmate.weka.WekaDetectorFactory.KEY_WARMUP;
 
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
@@ -44,17 +57,28 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
 
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
+import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -64,14 +88,13 @@ import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.components.ConfigurationPanel;
-import fiji.plugin.trackmate.util.EverythingDisablerAndReenabler;
 import fiji.plugin.trackmate.util.FileChooser;
 import fiji.plugin.trackmate.util.FileChooser.DialogType;
-import fiji.plugin.trackmate.util.JLabelLogger;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.ImagePlus;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
+import net.imglib2.util.Pair;
 
 public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 {
@@ -84,7 +107,7 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 	private static final String TITLE = WekaDetectorFactory.NAME;
 
-	private static final FileFilter fileFilter = new FileNameExtensionFilter( "Weka classifier files.", "model" );
+	private static final FileFilter fileFilter = new FileNameExtensionFilter( "Weka classifier files.", "model", ClassifierSnapshot.EXTENSION );
 
 	private final JSlider sliderChannel;
 
@@ -94,14 +117,60 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final JButton btnBrowse;
 
+	private final JButton btnLastProba;
+
 	private final JFormattedTextField ftfProbaThreshold;
 
+	private final JCheckBox chkboxSliceWise;
+
+	private final JCheckBox chkboxCheckpoint;
+
 	protected final PrefService prefService;
 
 	private final WekaDetectionPreviewer< ? > previewer;
 
 	private final boolean is3D;
 
+	/**
+	 * Starts loading the classifier shortly after the user stops typing its
+	 * path.
+	 */
+	private final Timer loadTimer;
+
+	/**
+	 * Updates the preview spots when the threshold changes. Holds at most one
+	 * pending update: the updates requested while it waits are dropped, since
+	 * it reads the latest threshold when it runs.
+	 */
+	private final ThreadPoolExecutor updateExecutor;
+
+	/**
+	 * The last threshold typed in, read by the preview spot updates.
+	 */
+	private volatile double latestThreshold = Double.NaN;
+
+	private Double memoryBudget;
+
+	private Boolean earlyExit;
+
+	private Boolean featureEngine;
+
+	private Double splitProminence;
+
+	private Double lowProbaThreshold;
+
+	private Integer numWorkers;
+
+	private Integer minSize;
+
+	private Double minQuality;
+
+	private Boolean autoTuneThreads;
+
+	private Boolean warmUp;
+
+	private Integer metricsLogInterval;
+
 	/**
 	 * Create the panel.
 	 */
@@ -114,9 +183,9 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 144, 0, 32 };
-		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 0, 0, 37, 23 };
+		gridBagLayout.rowHeights = new int[] { 0, 84, 0, 27, 0, 0, 0, 0, 0, 0, 37, 23 };
 		gridBagLayout.columnWeights = new double[] { 0.0, 1.0, 0.0 };
-		gridBagLayout.rowWeights = new double[] { 0., 1., 0., 0., 0., 0., 0., 0., 0., 0. };
+		gridBagLayout.rowWeights = new double[] { 0., 1., 0., 0., 0., 0., 0., 0., 0., 0., 0., 0. };
 		setLayout( gridBagLayout );
 
 		final JLabel lblDetector = new JLabel( TITLE, ICON, JLabel.RIGHT );
@@ -258,6 +327,62 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 		gbcScore.gridy = 6;
 		add( ftfProbaThreshold, gbcScore );
 
+		final JButton btnAutoThreshold = new JButton( "Auto" );
+		btnAutoThreshold.setFont( SMALL_FONT );
+		btnAutoThreshold.setToolTipText( "<html>Suggests a threshold from the histogram "
+				+ "<br>of the last probability map.</html>" );
+		final GridBagConstraints gbcBtnAutoThreshold = new GridBagConstraints();
+		gbcBtnAutoThreshold.insets = new Insets( 5, 5, 5, 0 );
+		gbcBtnAutoThreshold.gridx = 2;
+		gbcBtnAutoThreshold.gridy = 6;
+		add( btnAutoThreshold, gbcBtnAutoThreshold );
+
+		final JPopupMenu autoThresholdMenu = new JPopupMenu();
+		final JMenuItem otsuItem = new JMenuItem( "Otsu" );
+		otsuItem.addActionListener( e -> autoThreshold( "Otsu", ProbabilityHistogram::otsu ) );
+		autoThresholdMenu.add( otsuItem );
+		final JMenuItem triangleItem = new JMenuItem( "Triangle" );
+		triangleItem.addActionListener( e -> autoThreshold( "Triangle", ProbabilityHistogram::triangle ) );
+		autoThresholdMenu.add( triangleItem );
+		final JMenuItem fractionItem = new JMenuItem( "Foreground fraction..." );
+		fractionItem.addActionListener( e -> autoThresholdFromFraction() );
+		autoThresholdMenu.add( fractionItem );
+		btnAutoThreshold.addActionListener( e -> autoThresholdMenu.show( btnAutoThreshold, 0, btnAutoThreshold.getHeight() ) );
+
+		/*
+		 * Slice-wise classification.
+		 */
+
+		chkboxSliceWise = new JCheckBox( "Classify Z planes independently (2D classifier)" );
+		chkboxSliceWise.setFont( SMALL_FONT );
+		chkboxSliceWise.setToolTipText( "<html>Applies a classifier trained on 2D images to each Z plane, "
+				+ "<br>and assembles 3D objects from the stacked probabilities.</html>" );
+		final GridBagConstraints gbcChkboxSliceWise = new GridBagConstraints();
+		gbcChkboxSliceWise.anchor = GridBagConstraints.WEST;
+		gbcChkboxSliceWise.gridwidth = 3;
+		gbcChkboxSliceWise.insets = new Insets( 5, 5, 5, 5 );
+		gbcChkboxSliceWise.gridx = 0;
+		gbcChkboxSliceWise.gridy = 7;
+		add( chkboxSliceWise, gbcChkboxSliceWise );
+		chkboxSliceWise.setVisible( is3D );
+
+		/*
+		 * Checkpoint.
+		 */
+
+		chkboxCheckpoint = new JCheckBox( "Save finished frames to resume interrupted runs" );
+		chkboxCheckpoint.setFont( SMALL_FONT );
+		chkboxCheckpoint.setToolTipText( "<html>Writes the spots of each finished frame to a file in the "
+				+ "<br>home folder. A run with the same classifier, settings and image "
+				+ "<br>then skips the frames already detected.</html>" );
+		final GridBagConstraints gbcChkboxCheckpoint = new GridBagConstraints();
+		gbcChkboxCheckpoint.anchor = GridBagConstraints.WEST;
+		gbcChkboxCheckpoint.gridwidth = 3;
+		gbcChkboxCheckpoint.insets = new Insets( 5, 5, 5, 5 );
+		gbcChkboxCheckpoint.gridx = 0;
+		gbcChkboxCheckpoint.gridy = 8;
+		add( chkboxCheckpoint, gbcChkboxCheckpoint );
+
 		/*
 		 * Refresh class names.
 		 */
@@ -269,21 +394,21 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 		gbcBtnClassNames.anchor = GridBagConstraints.SOUTHWEST;
 		gbcBtnClassNames.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnClassNames.gridx = 0;
-		gbcBtnClassNames.gridy = 7;
+		gbcBtnClassNames.gridy = 9;
 		add( btnClassNames, gbcBtnClassNames );
 
 		/*
 		 * View last proba.
 		 */
 
-		final JButton btnLastProba = new JButton( "Last proba map", MAGNIFIER_ICON );
+		btnLastProba = new JButton( "Last proba map", MAGNIFIER_ICON );
 		btnLastProba.setFont( FONT );
 		final GridBagConstraints gbcBtnLastProba = new GridBagConstraints();
 		gbcBtnLastProba.gridwidth = 2;
 		gbcBtnLastProba.anchor = GridBagConstraints.SOUTHEAST;
 		gbcBtnLastProba.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnLastProba.gridx = 1;
-		gbcBtnLastProba.gridy = 7;
+		gbcBtnLastProba.gridy = 9;
 		add( btnLastProba, gbcBtnLastProba );
 
 		/*
@@ -295,7 +420,7 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 		gbcBtnPreview.fill = GridBagConstraints.BOTH;
 		gbcBtnPreview.insets = new Insets( 5, 5, 5, 5 );
 		gbcBtnPreview.gridx = 0;
-		gbcBtnPreview.gridy = 8;
+		gbcBtnPreview.gridy = 10;
 
 		previewer = new WekaDetectionPreviewer<>(
 				model,
@@ -310,6 +435,8 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 		btnClassNames.addActionListener( e -> updateClassNames() );
 		btnLastProba.addActionListener( e -> showProbaImg() );
+		// The classifier is loaded for 2D or 3D processing.
+		chkboxSliceWise.addActionListener( e -> preloadClassifier() );
 
 		/*
 		 * Deal with channels: the slider and channel labels are only visible if
@@ -340,6 +467,39 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 		final PropertyChangeListener l = e -> prefService.put(
 				WekaDetectorConfigurationPanel.class, KEY_CLASSIFIER_FILEPATH, modelFileTextField.getText() );
 		modelFileTextField.addPropertyChangeListener( "value", l );
+
+		updateExecutor = new ThreadPoolExecutor( 1, 1, 0l, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>( 1 ),
+				r -> {
+					final Thread thread = new Thread( r, "TrackMate-Weka preview update thread" );
+					thread.setDaemon( true );
+					return thread;
+				},
+				new ThreadPoolExecutor.DiscardPolicy() );
+
+		loadTimer = new Timer( 500, e -> preloadClassifier() );
+		loadTimer.setRepeats( false );
+		modelFileTextField.getDocument().addDocumentListener( new DocumentListener()
+		{
+
+			@Override
+			public void removeUpdate( final DocumentEvent e )
+			{
+				loadTimer.restart();
+			}
+
+			@Override
+			public void insertUpdate( final DocumentEvent e )
+			{
+				loadTimer.restart();
+			}
+
+			@Override
+			public void changedUpdate( final DocumentEvent e )
+			{
+				loadTimer.restart();
+			}
+		} );
+		ftfProbaThreshold.addPropertyChangeListener( "value", e -> updatePreviewSpots() );
 	}
 
 	@Override
@@ -357,6 +517,32 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 		final double probaThreshold = ( ( Number ) ftfProbaThreshold.getValue() ).doubleValue();
 		settings.put( KEY_PROBA_THRESHOLD, probaThreshold );
+		settings.put( KEY_SLICE_WISE, chkboxSliceWise.isSelected() );
+		settings.put( KEY_CHECKPOINT, chkboxCheckpoint.isSelected() );
+
+		// Not editable here, but kept.
+		if ( memoryBudget != null )
+			settings.put( KEY_MEMORY_BUDGET, memoryBudget );
+		if ( earlyExit != null )
+			settings.put( KEY_EARLY_EXIT, earlyExit );
+		if ( featureEngine != null )
+			settings.put( KEY_FEATURE_ENGINE, featureEngine );
+		if ( splitProminence != null )
+			settings.put( KEY_SPLIT_PROMINENCE, splitProminence );
+		if ( lowProbaThreshold != null )
+			settings.put( KEY_LOW_PROBA_THRESHOLD, lowProbaThreshold );
+		if ( numWorkers != null )
+			settings.put( KEY_NUM_WORKERS, numWorkers );
+		if ( minSize != null )
+			settings.put( KEY_MIN_SIZE, minSize );
+		if ( minQuality != null )
+			settings.put( KEY_MIN_QUALITY, minQuality );
+		if ( autoTuneThreads != null )
+			settings.put( KEY_AUTOTUNE_THREADS, autoTuneThreads );
+		if ( warmUp != null )
+			settings.put( KEY_WARMUP, warmUp );
+		if ( metricsLogInterval != null )
+			settings.put( KEY_METRICS_LOG_INTERVAL, metricsLogInterval );
 		return settings;
 	}
 
@@ -367,14 +553,30 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 		if ( filePath == null || filePath.isEmpty() )
 			filePath = prefService.get( WekaDetectorConfigurationPanel.class, KEY_CLASSIFIER_FILEPATH );
 		modelFileTextField.setText( filePath );
+		memoryBudget = ( Double ) settings.get( KEY_MEMORY_BUDGET );
+		earlyExit = ( Boolean ) settings.get( KEY_EARLY_EXIT );
+		featureEngine = ( Boolean ) settings.get( KEY_FEATURE_ENGINE );
+		splitProminence = ( Double ) settings.get( KEY_SPLIT_PROMINENCE );
+		lowProbaThreshold = ( Double ) settings.get( KEY_LOW_PROBA_THRESHOLD );
+		numWorkers = ( Integer ) settings.get( KEY_NUM_WORKERS );
+		minSize = ( Integer ) settings.get( KEY_MIN_SIZE );
+		minQuality = ( Double ) settings.get( KEY_MIN_QUALITY );
+		autoTuneThreads = ( Boolean ) settings.get( KEY_AUTOTUNE_THREADS );
+		warmUp = ( Boolean ) settings.get( KEY_WARMUP );
+		metricsLogInterval = ( Integer ) settings.get( KEY_METRICS_LOG_INTERVAL );
 		cmbboxClassId.setSelectedIndex( ( Integer ) settings.get( KEY_CLASS_INDEX ) );
 		sliderChannel.setValue( ( Integer ) settings.get( KEY_TARGET_CHANNEL ) );
 		ftfProbaThreshold.setValue( settings.get( KEY_PROBA_THRESHOLD ) );
+		chkboxSliceWise.setSelected( Boolean.TRUE.equals( settings.get( KEY_SLICE_WISE ) ) );
+		chkboxCheckpoint.setSelected( Boolean.TRUE.equals( settings.get( KEY_CHECKPOINT ) ) );
 	}
 
 	@Override
 	public void clean()
-	{}
+	{
+		loadTimer.stop();
+		updateExecutor.shutdownNow();
+	}
 
 	protected void browse()
 	{
@@ -386,7 +588,8 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 			{
 				modelFileTextField.setText( file.getAbsolutePath() );
 				prefService.put( WekaDetectorConfigurationPanel.class, KEY_CLASSIFIER_FILEPATH, file.getAbsolutePath() );
-				updateClassNames();
+				loadTimer.stop();
+				preloadClassifier();
 			}
 		}
 		finally
@@ -397,39 +600,137 @@ public class WekaDetectorConfigurationPanel extends ConfigurationPanel
 
 	private void showProbaImg()
 	{
-		final ImagePlus proba = previewer.getLastProbabilityImage();
-		proba.show();
+		btnLastProba.setEnabled( false );
+		new Thread( "TrackMate-Weka probability map display thread" )
+		{
+			@Override
+			public void run()
+			{
+				// Building the pyramid of a large map takes a while.
+				final ImagePlus proba = previewer.getLastProbabilityImage();
+				SwingUtilities.invokeLater( () -> {
+					btnLastProba.setEnabled( true );
+					if ( proba == null )
+						previewer.getLogger().error( "No probability map computed yet." );
+					else
+						proba.show();
+				} );
+			}
+		}.start();
+	}
+
+	/**
+	 * Updates the preview spots when the threshold changes, from the last
+	 * probability map.
+	 */
+	private void updatePreviewSpots()
+	{
+		final Object value = ftfProbaThreshold.getValue();
+		if ( value == null )
+			return;
+		latestThreshold = ( ( Number ) value ).doubleValue();
+		updateExecutor.execute( () -> {
+			final Pair< Integer, Double > update = previewer.updateSpots( () -> latestThreshold );
+			if ( update == null )
+				return;
+			final int count = update.getA().intValue();
+			final double threshold = update.getB().doubleValue();
+			final ProbabilityHistogram histogram = previewer.getLastProbabilityHistogram();
+			final String foreground = ( histogram == null )
+					? ""
+					: String.format( ", %.2f%% foreground", 100. * histogram.getForegroundFraction( threshold ) );
+			previewer.getLogger().setStatus( String.format( "Threshold %.2f: %d spots%s.", threshold, count, foreground ) );
+		} );
+	}
+
+	/**
+	 * Sets the threshold suggested by a method from the histogram of the last
+	 * probability map.
+	 */
+	private void autoThreshold( final String method, final ToDoubleFunction< ProbabilityHistogram > suggestion )
+	{
+		final ProbabilityHistogram histogram = previewer.getLastProbabilityHistogram();
+		if ( histogram == null )
+		{
+			previewer.getLogger().error( "Thresholds are suggested from the last probability map. Please run a preview first." );
+			return;
+		}
+		final double threshold = suggestion.applyAsDouble( histogram );
+		previewer.getLogger().log( String.format( "%s threshold: %.3f.", method, threshold ) );
+		ftfProbaThreshold.setValue( Double.valueOf( threshold ) );
+	}
+
+	private void autoThresholdFromFraction()
+	{
+		final String input = JOptionPane.showInputDialog( this, "Target foreground, in % of the pixels:", "5" );
+		if ( input == null )
+			return;
+		final double percent;
+		try
+		{
+			percent = Double.parseDouble( input.trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			previewer.getLogger().error( "Not a number: " + input );
+			return;
+		}
+		final double fraction = Math.max( 0., Math.min( 100., percent ) ) / 100.;
+		autoThreshold( String.format( "%.2f%% foreground", 100. * fraction ), h -> h.thresholdForFraction( fraction ) );
+	}
+
+	/**
+	 * Returns whether the classifier processes 3D images, or Z planes one by
+	 * one.
+	 */
+	private boolean isProcessing3D()
+	{
+		return is3D && !chkboxSliceWise.isSelected();
+	}
+
+	/**
+	 * Starts loading the classifier in the background if its path points to a
+	 * file, and updates the class names when it is loaded.
+	 */
+	private void preloadClassifier()
+	{
+		final String classifierPath = modelFileTextField.getText();
+		if ( classifierPath == null || !new File( classifierPath ).isFile() )
+			return;
+
+		previewer.loadClassifier( classifierPath, isProcessing3D() );
+		updateClassNames();
 	}
 
 	private void updateClassNames()
 	{
-		new Thread( "TrackMate preview detection thread" )
+		final String classifierPath = modelFileTextField.getText();
+		if ( classifierPath == null || classifierPath.isEmpty() )
+			return;
+
+		final boolean processing3D = isProcessing3D();
+		new Thread( "TrackMate-Weka class names discovery thread" )
 		{
 			@Override
 			public void run()
 			{
-				final EverythingDisablerAndReenabler enabler = new EverythingDisablerAndReenabler(
-						SwingUtilities.getWindowAncestor( WekaDetectorConfigurationPanel.this ), new Class[] { JLabel.class, JLabelLogger.class } );
-				enabler.disable();
-				try
-				{
-					// Get class names from classifier file.
-					final String classifierPath = modelFileTextField.getText();
-					if ( classifierPath == null || classifierPath.isEmpty() )
+				// Get class names from classifier file, off the EDT.
+				final List< String > classNames = previewer.getClassNames(
+						classifierPath,
+						previewer.getLogger(),
+						processing3D );
+				if ( classNames == null )
+					return;
+
+				// Update GUI.
+				SwingUtilities.invokeLater( () -> {
+					if ( !classifierPath.equals( modelFileTextField.getText() ) )
 						return;
-
-					final List< String > classNames = previewer.getClassNames(
-							classifierPath,
-							previewer.getLogger(),
-							is3D );
-
-					// Update GUI.
+					final int selected = cmbboxClassId.getSelectedIndex();
 					cmbboxClassId.setModel( new DefaultComboBoxModel<>( new Vector<>( classNames ) ) );
-				}
-				finally
-				{
-					enabler.reenable();
-				}
+					if ( selected >= 0 && selected < classNames.size() )
+						cmbboxClassId.setSelectedIndex( selected );
+				} );
 			}
 		}.start();
 	}
@@ -23,6 +23,7 @@ package fiji.plugin.trackmate.weka;
 
 import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.io.IOUtils.readBooleanAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readDoubleAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readIntegerAttribute;
 import static fiji.plugin.trackmate.io.IOUtils.readStringAttribute;
@@ -31,16 +32,20 @@ import static fiji.plugin.trackmate.io.IOUtils.writeTargetChannel;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.swing.ImageIcon;
 
 import org.jdom2.Element;
 import org.scijava.plugin.Plugin;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.detection.SpotDetector;
@@ -63,6 +68,7 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 	 */
 	/**
 	 * The key to the parameter that stores the path to the Weka classifier.
+	 * It can be a <code>.model</code> file or a {@link ClassifierSnapshot}.
 	 */
 	public static final String KEY_CLASSIFIER_FILEPATH = "CLASSIFIER_FILEPATH";
 
@@ -74,6 +80,15 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 
 	public static final Double DEFAULT_PROBA_THRESHOLD = Double.valueOf( 0.5 );
 
+	/**
+	 * The key to the optional parameter that stores the low probability
+	 * threshold of hysteresis thresholding. When present and lower than the
+	 * probability threshold, objects are grown over the pixels above this
+	 * threshold, and only kept if they contain a pixel above the probability
+	 * threshold. Values are {@link Double}s from 0 to 1.
+	 */
+	public static final String KEY_LOW_PROBA_THRESHOLD = "LOW_PROBA_THRESHOLD";
+
 	/**
 	 * The key to the parameter that stores the index of the class to use to
 	 * create objects. Values are positive integers.
@@ -82,6 +97,139 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 
 	public static final Integer DEFAULT_CLASS_INDEX = Integer.valueOf( 0 );
 
+	/**
+	 * The key to the optional parameter that stores the memory budget for
+	 * processing one frame, in MB. Values are {@link Double}s. When absent or
+	 * not strictly positive, the budget is most of the free heap memory.
+	 */
+	public static final String KEY_MEMORY_BUDGET = "MEMORY_BUDGET";
+
+	public static final Double DEFAULT_MEMORY_BUDGET = Double.valueOf( 0. );
+
+	/**
+	 * The key to the optional parameter that stores whether the Z planes of
+	 * 3D images are classified independently, with a classifier trained on 2D
+	 * images. Objects are then assembled in 3D from the stacked
+	 * probabilities. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_SLICE_WISE = "SLICE_WISE";
+
+	public static final Boolean DEFAULT_SLICE_WISE = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores whether the trees of the
+	 * classifier vote with early exit: for each pixel, trees are evaluated
+	 * until the remaining ones cannot move the probability across the
+	 * threshold. Detected objects are the same, and detection is faster, but
+	 * probabilities are approximate away from the threshold. The quality of
+	 * spots and their probability features are then approximate too. Ignored
+	 * with hysteresis thresholding, when touching objects are split, and when
+	 * the minimal quality is above the threshold. Values are
+	 * {@link Boolean}s.
+	 */
+	public static final String KEY_EARLY_EXIT = "EARLY_EXIT";
+
+	public static final Boolean DEFAULT_EARLY_EXIT = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores whether features are
+	 * computed by the native feature engine instead of the Weka segmentation,
+	 * when the classifier and the image permit it. The engine is checked
+	 * against the Weka segmentation on a few tiles of the first frame, and is
+	 * not used if they differ. Values are {@link Boolean}s.
+	 * <p>
+	 * Experimental: off by default and not shown in the configuration panel.
+	 * The engine is tested against the Weka feature stack on synthetic images
+	 * and on a single real image, which is not enough to rely on it.
+	 */
+	public static final String KEY_FEATURE_ENGINE = "FEATURE_ENGINE";
+
+	public static final Boolean DEFAULT_FEATURE_ENGINE = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores the prominence used to
+	 * split touching objects. When strictly positive, objects are split by a
+	 * watershed on the probabilities, seeded by the maxima more prominent
+	 * than this value. Not possible when stacks do not fit in the memory
+	 * budget and are streamed in Z-slabs. Values are {@link Double}s, in
+	 * probability units.
+	 */
+	public static final String KEY_SPLIT_PROMINENCE = "SPLIT_PROMINENCE";
+
+	/**
+	 * The key to the optional parameter that stores the number of worker
+	 * processes frames are sharded over. When strictly positive, each worker
+	 * is a separate JVM that loads the classifier once, and several frames
+	 * are processed at once. When absent or 0, frames are processed one after
+	 * the other in this JVM. Values are {@link Integer}s.
+	 */
+	public static final String KEY_NUM_WORKERS = "NUM_WORKERS";
+
+	public static final Integer DEFAULT_NUM_WORKERS = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the optional parameter that stores whether the spots of
+	 * each finished frame are written to a {@link DetectionCheckpoint}. A run
+	 * with the same classifier, settings and image then resumes from the
+	 * finished frames instead of detecting them again. Values are
+	 * {@link Boolean}s.
+	 */
+	public static final String KEY_CHECKPOINT = "CHECKPOINT";
+
+	public static final Boolean DEFAULT_CHECKPOINT = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores the minimal number of
+	 * pixels, or voxels in 3D, of the objects turned into spots. Smaller
+	 * objects are discarded before their spot and contour are created.
+	 * Values are {@link Integer}s.
+	 */
+	public static final String KEY_MIN_SIZE = "MIN_SIZE";
+
+	public static final Integer DEFAULT_MIN_SIZE = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the optional parameter that stores the minimal quality of
+	 * the objects turned into spots, that is their maximal probability.
+	 * Objects of lower quality are discarded before their spot and contour
+	 * are created. Early-exit voting is not used when it is above the
+	 * probability threshold. Values are {@link Double}s from 0 to 1.
+	 */
+	public static final String KEY_MIN_QUALITY = "MIN_QUALITY";
+
+	public static final Double DEFAULT_MIN_QUALITY = Double.valueOf( 0. );
+
+	/**
+	 * The key to the optional parameter that stores whether the number of
+	 * threads is tuned for throughput, instead of using all processors. See
+	 * {@link ThreadTuner}. Values are {@link Boolean}s.
+	 */
+	public static final String KEY_AUTOTUNE_THREADS = "AUTOTUNE_THREADS";
+
+	public static final Boolean DEFAULT_AUTOTUNE_THREADS = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores whether the classifier
+	 * is warmed up in the background once loaded, on a small tile of the
+	 * first frame, so that the first frame is processed at full speed.
+	 * Values are {@link Boolean}s.
+	 */
+	public static final String KEY_WARMUP = "WARMUP";
+
+	public static final Boolean DEFAULT_WARMUP = Boolean.FALSE;
+
+	/**
+	 * The key to the optional parameter that stores the period at which the
+	 * live detection metrics are written to the log, in seconds. Metrics are
+	 * published through JMX until all frames are detected. When absent or 0,
+	 * they are not logged. Values are {@link Integer}s.
+	 */
+	public static final String KEY_METRICS_LOG_INTERVAL = "METRICS_LOG_INTERVAL";
+
+	public static final Integer DEFAULT_METRICS_LOG_INTERVAL = Integer.valueOf( 0 );
+
+	public static final Double DEFAULT_SPLIT_PROMINENCE = Double.valueOf( 0. );
+
 	/** A string key identifying this factory. */
 	public static final String DETECTOR_KEY = "WEKA_DETECTOR";
 
@@ -92,10 +240,14 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 	public static final String INFO_TEXT = "<html>"
 			+ "This detector relies on the 'Trainable Weka segmentation' plugin to detect objects."
 			+ "<p>"
-			+ "It works for 2D and 3D images, but returns contours only for 2D images."
+			+ "It works for 2D and 3D images, but returns contours only for 2D images. "
+			+ "Classifiers trained on 2D images can be used on 3D images by classifying "
+			+ "Z planes independently."
 			+ "<p>"
 			+ "You need to provide the path to a classifier previously trained and saved using the "
 			+ "'Trainable Weka segmentation' plugin. It will classically be a '.model' file. "
+			+ "Random forest classifiers can also be converted to a snapshot file that loads faster, "
+			+ "with the 'Convert Weka classifier to snapshot' command. "
 			+ "<p>"
 			+ "If you use this detector for your work, please "
 			+ "also cite the Weka IJ paper: <a href=\"https://doi.org/10.1093/bioinformatics/btx180\">Arganda-Carreras, I.; Kaynig, V. & Rueden, C. et al. (2017), "
@@ -120,6 +272,27 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 
 	protected WekaRunner< T > runner;
 
+	protected ShardPool pool;
+
+	protected DetectionCheckpoint checkpoint;
+
+	protected DetectionMetrics metrics;
+
+	/**
+	 * The frames of the image not returned by a detector yet. TrackMate does
+	 * not tell factories when detection is over, so the worker processes are
+	 * stopped and the metrics unregistered when the last frame is returned. If
+	 * only some frames are detected, workers exit on their own once idle, and
+	 * both are closed by the next call to {@link #setTarget(ImgPlus, Map)}.
+	 */
+	private final Set< Integer > pendingFrames = new HashSet<>();
+
+	private String classifierFilePath;
+
+	private boolean processing3D;
+
+	private int numWorkers;
+
 	/*
 	 * METHODS
 	 */
@@ -132,24 +305,96 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		final int classIndex = ( Integer ) settings.get( KEY_CLASS_INDEX );
 		final double probaThreshold = ( Double ) settings.get( KEY_PROBA_THRESHOLD );
 		final boolean simplify = true;
-		final WekaDetector< T > detector = new WekaDetector<>(
-				runner,
-				input,
-				interval,
-				classIndex,
-				probaThreshold,
-				simplify );
+		final WekaDetector< T > detector = ( numWorkers > 0 )
+				? new WekaDetector<>( getPool(), input, interval, classIndex, probaThreshold, simplify )
+				: new WekaDetector<>( runner, input, interval, classIndex, probaThreshold, simplify );
+		if ( checkpoint != null )
+			detector.setCheckpoint( checkpoint, frame );
+		detector.setMetrics( getMetrics() );
+		detector.setOnDone( () -> frameDone( frame ) );
 		return detector;
 	}
 
+	/**
+	 * Returns the worker pool, started again if it was stopped after the last
+	 * frame, or <code>null</code> if it cannot be started.
+	 */
+	private synchronized ShardPool getPool()
+	{
+		if ( pool != null )
+			return pool;
+		if ( !startPool( img, settings, classifierFilePath, processing3D, numWorkers ) )
+		{
+			Logger.IJ_LOGGER.error( errorMessage );
+			return null;
+		}
+		resetPendingFrames();
+		return pool;
+	}
+
+	/**
+	 * Returns the metrics of this run, published again if they were closed
+	 * after the last frame.
+	 */
+	private synchronized DetectionMetrics getMetrics()
+	{
+		if ( metrics == null )
+		{
+			startMetrics( classifierFilePath );
+			resetPendingFrames();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Marks a frame as returned by its detector, and stops the worker
+	 * processes and unregisters the metrics once all the frames of the image
+	 * are.
+	 */
+	private synchronized void frameDone( final int frame )
+	{
+		if ( !pendingFrames.remove( Integer.valueOf( frame ) ) || !pendingFrames.isEmpty() )
+			return;
+		if ( pool != null )
+		{
+			pool.close();
+			pool = null;
+			Logger.IJ_LOGGER.log( "All frames detected, stopped the worker processes." );
+		}
+		if ( metrics != null )
+		{
+			metrics.close();
+			metrics = null;
+			if ( runner != null )
+				runner.setMetrics( null );
+		}
+	}
+
+	private synchronized void resetPendingFrames()
+	{
+		pendingFrames.clear();
+		for ( int t = 0; t < numFrames( img ); t++ )
+			pendingFrames.add( Integer.valueOf( t ) );
+	}
+
+	/**
+	 * Returns the number of frames of an image.
+	 */
+	private static int numFrames( final ImgPlus< ? > img )
+	{
+		final int timeIndex = img.dimensionIndex( Axes.TIME );
+		return ( timeIndex < 0 ) ? 1 : ( int ) img.dimension( timeIndex );
+	}
+
 	@Override
 	public boolean forbidMultithreading()
 	{
 		/*
-		 * We want to run one frame after another, giving all resources to one
-		 * frame at a time.
+		 * In this JVM, we want to run one frame after another, giving all
+		 * resources to one frame at a time. Worker processes can each take a
+		 * frame.
 		 */
-		return true;
+		return pool == null;
 	}
 
 	@Override
@@ -172,7 +417,47 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 
 		final String classifierFilePath = ( String ) obj;
 		final boolean is3D = img.dimensionIndex( Axes.Z ) >= 0;
-		this.runner = new WekaRunner<>( classifierFilePath, is3D );
+		final boolean processing3D = is3D && !isSliceWise( settings );
+
+		// Catch classifiers trained on the wrong dimensionality before loading.
+		final ClassifierHeader header = readHeader( classifierFilePath );
+		if ( header != null && header.is3D() != null && header.is3D().booleanValue() != processing3D )
+		{
+			if ( is3D && !processing3D )
+				errorMessage = "The classifier was trained on 3D images, but Z planes are classified independently, "
+						+ "which needs a classifier trained on 2D images. Uncheck slice-wise classification to use this classifier.";
+			else
+				errorMessage = "The classifier was trained on " + ( header.is3D() ? "3D" : "2D" )
+						+ " images, but the image to process is " + ( is3D ? "3D" : "2D" )
+						+ ( is3D ? ". Classify Z planes independently to use a 2D classifier." : "." );
+			return false;
+		}
+
+		if ( pool != null )
+		{
+			pool.close();
+			pool = null;
+		}
+		closeCheckpoint();
+		if ( metrics != null )
+		{
+			metrics.close();
+			metrics = null;
+		}
+		this.classifierFilePath = classifierFilePath;
+		this.processing3D = processing3D;
+		this.numWorkers = getNumWorkers( settings );
+		if ( numWorkers > 0 )
+		{
+			if ( !startPool( img, settings, classifierFilePath, processing3D, numWorkers )
+					|| !openCheckpoint( classifierFilePath ) )
+				return false;
+			resetPendingFrames();
+			startMetrics( classifierFilePath );
+			return true;
+		}
+
+		this.runner = new WekaRunner<>( classifierFilePath, processing3D );
 		if ( !runner.loadClassifier() )
 		{
 			errorMessage = runner.getErrorMessage();
@@ -180,7 +465,227 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		}
 		this.img = img;
 		this.settings = settings;
-		return checkSettings( settings );
+		if ( !checkSettings( settings ) )
+			return false;
+		runner.setEarlyExit( Boolean.TRUE.equals( settings.get( KEY_EARLY_EXIT ) ) );
+		runner.setUseFeatureEngine( Boolean.TRUE.equals( settings.get( KEY_FEATURE_ENGINE ) ) );
+		runner.setSplitProminence( getSplitProminence( settings ) );
+		runner.setLowThreshold( getLowThreshold( settings ) );
+		runner.setSpotFilter( getMinQuality( settings ), getMinSize( settings ) );
+		runner.setAutoTuneThreads( Boolean.TRUE.equals( settings.get( KEY_AUTOTUNE_THREADS ) ) );
+
+		// Fail now if frames cannot fit in memory.
+		final long[] frameDims = frameDimensions( img );
+		final MemoryPlan plan = runner.planMemory( frameDims, getMemoryBudget( settings ) );
+		if ( plan != null && !plan.isFeasible() )
+		{
+			errorMessage = plan.getErrorMessage();
+			return false;
+		}
+		if ( plan != null && !plan.isWholeFrameOnHeap() )
+			Logger.IJ_LOGGER.log( plan.toString() );
+		if ( plan != null && plan.getSlabThickness() > 0 && frameDims.length > 2 && frameDims[ 2 ] > plan.getSlabThickness()
+				&& runner.getSplitProminence() > 0. )
+		{
+			errorMessage = WekaRunner.SPLIT_IN_SLABS_ERROR;
+			return false;
+		}
+
+		// Runs while TrackMate finishes its setup. Detection waits for it.
+		if ( Boolean.TRUE.equals( settings.get( KEY_WARMUP ) ) )
+		{
+			final int channel = ( Integer ) settings.get( KEY_TARGET_CHANNEL ) - 1;
+			runner.startWarmUp(
+					TMUtils.hyperSlice( img, channel, 0 ),
+					( Integer ) settings.get( KEY_CLASS_INDEX ),
+					( Double ) settings.get( KEY_PROBA_THRESHOLD ) );
+		}
+		if ( !openCheckpoint( classifierFilePath ) )
+			return false;
+		resetPendingFrames();
+		startMetrics( classifierFilePath );
+		return true;
+	}
+
+	/**
+	 * Publishes the metrics of this run, and logs them periodically if the
+	 * settings ask for it.
+	 */
+	private void startMetrics( final String classifierFilePath )
+	{
+		metrics = new DetectionMetrics();
+		if ( runner != null )
+			runner.setMetrics( metrics );
+		metrics.register( img.getName(), classifierFilePath );
+		metrics.startLogging( Logger.IJ_LOGGER, getMetricsLogInterval( settings ) );
+	}
+
+	/**
+	 * Opens the checkpoint of this run if the settings ask for one, so that
+	 * detectors skip the frames it already holds.
+	 */
+	private boolean openCheckpoint( final String classifierFilePath )
+	{
+		if ( !Boolean.TRUE.equals( settings.get( KEY_CHECKPOINT ) ) )
+			return true;
+		try
+		{
+			final String key = DetectionCheckpoint.key( classifierFilePath, settings, img );
+			checkpoint = DetectionCheckpoint.open( DetectionCheckpoint.defaultFolder(), key );
+			checkpoint.setNumFrames( numFrames( img ) );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem opening the detection checkpoint: " + e.getMessage();
+			return false;
+		}
+		if ( checkpoint.numCompletedFrames() > 0 )
+			Logger.IJ_LOGGER.log( "Resuming from checkpoint " + checkpoint.getFile() + ": "
+					+ checkpoint.numCompletedFrames() + " frames already detected." );
+		return true;
+	}
+
+	private void closeCheckpoint()
+	{
+		if ( checkpoint == null )
+			return;
+		try
+		{
+			checkpoint.close();
+		}
+		catch ( final IOException e )
+		{
+			Logger.IJ_LOGGER.error( "Problem closing the detection checkpoint: " + e.getMessage() );
+		}
+		checkpoint = null;
+	}
+
+	/**
+	 * Starts the worker processes frames are sharded over. Workers load the
+	 * classifier themselves.
+	 */
+	private boolean startPool( final ImgPlus< T > img, final Map< String, Object > settings, final String classifierFilePath, final boolean processing3D, final int numWorkers )
+	{
+		this.img = img;
+		this.settings = settings;
+		this.runner = null;
+		if ( !checkSettings( settings ) )
+			return false;
+		final int threadsPerWorker = Math.max( 1, Runtime.getRuntime().availableProcessors() / numWorkers );
+		final ShardPool shardPool = new ShardPool( classifierFilePath, processing3D, numWorkers, threadsPerWorker );
+		shardPool.setEarlyExit( Boolean.TRUE.equals( settings.get( KEY_EARLY_EXIT ) ) );
+		shardPool.setUseFeatureEngine( Boolean.TRUE.equals( settings.get( KEY_FEATURE_ENGINE ) ) );
+		shardPool.setSplitProminence( getSplitProminence( settings ) );
+		shardPool.setLowThreshold( getLowThreshold( settings ) );
+		shardPool.setSpotFilter( getMinQuality( settings ), getMinSize( settings ) );
+		// Workers use their own default budget unless one is set.
+		if ( settings.get( KEY_MEMORY_BUDGET ) != null )
+			shardPool.setMemoryBudget( ( long ) ( Math.max( 0., ( Double ) settings.get( KEY_MEMORY_BUDGET ) ) * 1e6 ) );
+		if ( !shardPool.start() )
+		{
+			errorMessage = shardPool.getErrorMessage();
+			return false;
+		}
+		Logger.IJ_LOGGER.log( "Detection sharded over " + numWorkers + " worker processes, with " + threadsPerWorker + " threads each." );
+		this.pool = shardPool;
+		return true;
+	}
+
+	/**
+	 * Returns the dimensions of one frame of an image: X, Y, and Z if any.
+	 */
+	private static long[] frameDimensions( final ImgPlus< ? > img )
+	{
+		final int zIndex = img.dimensionIndex( Axes.Z );
+		final long width = img.dimension( img.dimensionIndex( Axes.X ) );
+		final long height = img.dimension( img.dimensionIndex( Axes.Y ) );
+		return ( zIndex < 0 )
+				? new long[] { width, height }
+				: new long[] { width, height, img.dimension( zIndex ) };
+	}
+
+	/**
+	 * Returns whether the settings ask for Z planes to be classified
+	 * independently.
+	 */
+	static boolean isSliceWise( final Map< String, Object > settings )
+	{
+		return Boolean.TRUE.equals( settings.get( KEY_SLICE_WISE ) );
+	}
+
+	/**
+	 * Returns the prominence used to split touching objects specified in the
+	 * settings, or 0 if objects are not split.
+	 */
+	static double getSplitProminence( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_SPLIT_PROMINENCE );
+		return ( obj == null ) ? 0. : Math.max( 0., ( ( Number ) obj ).doubleValue() );
+	}
+
+	/**
+	 * Returns the minimal number of pixels of the objects turned into spots
+	 * specified in the settings, or 0 if objects are not filtered on size.
+	 */
+	static long getMinSize( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_MIN_SIZE );
+		return ( obj == null ) ? 0l : Math.max( 0l, ( ( Number ) obj ).longValue() );
+	}
+
+	/**
+	 * Returns the minimal quality of the objects turned into spots specified
+	 * in the settings, or 0 if objects are not filtered on quality.
+	 */
+	static double getMinQuality( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_MIN_QUALITY );
+		return ( obj == null ) ? 0. : ( ( Number ) obj ).doubleValue();
+	}
+
+	/**
+	 * Returns the number of worker processes specified in the settings, or 0
+	 * if frames are processed in this JVM.
+	 */
+	static int getNumWorkers( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_NUM_WORKERS );
+		return ( obj == null ) ? 0 : Math.max( 0, ( ( Number ) obj ).intValue() );
+	}
+
+	/**
+	 * Returns the period at which metrics are logged specified in the
+	 * settings, in seconds, or 0 if they are not logged.
+	 */
+	static int getMetricsLogInterval( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_METRICS_LOG_INTERVAL );
+		return ( obj == null ) ? 0 : Math.max( 0, ( ( Number ) obj ).intValue() );
+	}
+
+	/**
+	 * Returns the low probability threshold of hysteresis thresholding
+	 * specified in the settings, or {@link Double#NaN} if a single threshold
+	 * is used.
+	 */
+	static double getLowThreshold( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_LOW_PROBA_THRESHOLD );
+		return ( obj == null ) ? Double.NaN : ( ( Number ) obj ).doubleValue();
+	}
+
+	/**
+	 * Returns the memory budget specified in the settings, or the default
+	 * one.
+	 * 
+	 * @return the budget, in bytes.
+	 */
+	static long getMemoryBudget( final Map< String, Object > settings )
+	{
+		final Object obj = settings.get( KEY_MEMORY_BUDGET );
+		if ( obj == null || ( ( Double ) obj ).doubleValue() <= 0. )
+			return MemoryPlan.defaultBudget();
+		return ( long ) ( ( Double ) obj * 1e6 );
 	}
 
 	@Override
@@ -197,6 +702,32 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		ok = ok && writeAttribute( settings, element, KEY_CLASSIFIER_FILEPATH, String.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_CLASS_INDEX, Integer.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_PROBA_THRESHOLD, Double.class, errorHolder );
+		if ( settings.get( KEY_MEMORY_BUDGET ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_MEMORY_BUDGET, Double.class, errorHolder );
+		if ( settings.get( KEY_SLICE_WISE ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_SLICE_WISE, Boolean.class, errorHolder );
+		if ( settings.get( KEY_EARLY_EXIT ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_EARLY_EXIT, Boolean.class, errorHolder );
+		if ( settings.get( KEY_FEATURE_ENGINE ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_FEATURE_ENGINE, Boolean.class, errorHolder );
+		if ( settings.get( KEY_SPLIT_PROMINENCE ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_SPLIT_PROMINENCE, Double.class, errorHolder );
+		if ( settings.get( KEY_LOW_PROBA_THRESHOLD ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_LOW_PROBA_THRESHOLD, Double.class, errorHolder );
+		if ( settings.get( KEY_NUM_WORKERS ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_NUM_WORKERS, Integer.class, errorHolder );
+		if ( settings.get( KEY_CHECKPOINT ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_CHECKPOINT, Boolean.class, errorHolder );
+		if ( settings.get( KEY_MIN_SIZE ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_MIN_SIZE, Integer.class, errorHolder );
+		if ( settings.get( KEY_MIN_QUALITY ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_MIN_QUALITY, Double.class, errorHolder );
+		if ( settings.get( KEY_AUTOTUNE_THREADS ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_AUTOTUNE_THREADS, Boolean.class, errorHolder );
+		if ( settings.get( KEY_WARMUP ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_WARMUP, Boolean.class, errorHolder );
+		if ( settings.get( KEY_METRICS_LOG_INTERVAL ) != null )
+			ok = ok && writeAttribute( settings, element, KEY_METRICS_LOG_INTERVAL, Integer.class, errorHolder );
 
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -214,6 +745,33 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		ok = ok && readStringAttribute( element, settings, KEY_CLASSIFIER_FILEPATH, errorHolder );
 		ok = ok && readIntegerAttribute( element, settings, KEY_CLASS_INDEX, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_PROBA_THRESHOLD, errorHolder );
+		// Optional, absent from older files.
+		if ( element.getAttribute( KEY_MEMORY_BUDGET ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_MEMORY_BUDGET, errorHolder );
+		if ( element.getAttribute( KEY_SLICE_WISE ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_SLICE_WISE, errorHolder );
+		if ( element.getAttribute( KEY_EARLY_EXIT ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_EARLY_EXIT, errorHolder );
+		if ( element.getAttribute( KEY_FEATURE_ENGINE ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_FEATURE_ENGINE, errorHolder );
+		if ( element.getAttribute( KEY_SPLIT_PROMINENCE ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_SPLIT_PROMINENCE, errorHolder );
+		if ( element.getAttribute( KEY_LOW_PROBA_THRESHOLD ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_LOW_PROBA_THRESHOLD, errorHolder );
+		if ( element.getAttribute( KEY_NUM_WORKERS ) != null )
+			ok = ok && readIntegerAttribute( element, settings, KEY_NUM_WORKERS, errorHolder );
+		if ( element.getAttribute( KEY_CHECKPOINT ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_CHECKPOINT, errorHolder );
+		if ( element.getAttribute( KEY_MIN_SIZE ) != null )
+			ok = ok && readIntegerAttribute( element, settings, KEY_MIN_SIZE, errorHolder );
+		if ( element.getAttribute( KEY_MIN_QUALITY ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_MIN_QUALITY, errorHolder );
+		if ( element.getAttribute( KEY_AUTOTUNE_THREADS ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_AUTOTUNE_THREADS, errorHolder );
+		if ( element.getAttribute( KEY_WARMUP ) != null )
+			ok = ok && readBooleanAttribute( element, settings, KEY_WARMUP, errorHolder );
+		if ( element.getAttribute( KEY_METRICS_LOG_INTERVAL ) != null )
+			ok = ok && readIntegerAttribute( element, settings, KEY_METRICS_LOG_INTERVAL, errorHolder );
 
 		if ( !ok )
 		{
@@ -236,6 +794,7 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		settings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
 		settings.put( KEY_CLASS_INDEX, DEFAULT_CLASS_INDEX );
 		settings.put( KEY_PROBA_THRESHOLD, DEFAULT_PROBA_THRESHOLD );
+		settings.put( KEY_SLICE_WISE, DEFAULT_SLICE_WISE );
 		settings.put( KEY_CLASSIFIER_FILEPATH, null );
 		return settings;
 	}
@@ -254,7 +813,47 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 		mandatoryKeys.add( KEY_CLASS_INDEX );
 		mandatoryKeys.add( KEY_PROBA_THRESHOLD );
 		mandatoryKeys.add( KEY_CLASSIFIER_FILEPATH );
-		ok = ok & checkMapKeys( settings, mandatoryKeys, null, errorHolder );
+		final List< String > optionalKeys = new ArrayList<>();
+		optionalKeys.add( KEY_MEMORY_BUDGET );
+		optionalKeys.add( KEY_SLICE_WISE );
+		optionalKeys.add( KEY_EARLY_EXIT );
+		optionalKeys.add( KEY_FEATURE_ENGINE );
+		optionalKeys.add( KEY_SPLIT_PROMINENCE );
+		optionalKeys.add( KEY_LOW_PROBA_THRESHOLD );
+		optionalKeys.add( KEY_NUM_WORKERS );
+		optionalKeys.add( KEY_CHECKPOINT );
+		optionalKeys.add( KEY_MIN_SIZE );
+		optionalKeys.add( KEY_MIN_QUALITY );
+		optionalKeys.add( KEY_AUTOTUNE_THREADS );
+		optionalKeys.add( KEY_WARMUP );
+		optionalKeys.add( KEY_METRICS_LOG_INTERVAL );
+		if ( settings.get( KEY_MEMORY_BUDGET ) != null )
+			ok = ok & checkParameter( settings, KEY_MEMORY_BUDGET, Double.class, errorHolder );
+		if ( settings.get( KEY_SLICE_WISE ) != null )
+			ok = ok & checkParameter( settings, KEY_SLICE_WISE, Boolean.class, errorHolder );
+		if ( settings.get( KEY_EARLY_EXIT ) != null )
+			ok = ok & checkParameter( settings, KEY_EARLY_EXIT, Boolean.class, errorHolder );
+		if ( settings.get( KEY_FEATURE_ENGINE ) != null )
+			ok = ok & checkParameter( settings, KEY_FEATURE_ENGINE, Boolean.class, errorHolder );
+		if ( settings.get( KEY_SPLIT_PROMINENCE ) != null )
+			ok = ok & checkParameter( settings, KEY_SPLIT_PROMINENCE, Double.class, errorHolder );
+		if ( settings.get( KEY_LOW_PROBA_THRESHOLD ) != null )
+			ok = ok & checkParameter( settings, KEY_LOW_PROBA_THRESHOLD, Double.class, errorHolder );
+		if ( settings.get( KEY_NUM_WORKERS ) != null )
+			ok = ok & checkParameter( settings, KEY_NUM_WORKERS, Integer.class, errorHolder );
+		if ( settings.get( KEY_CHECKPOINT ) != null )
+			ok = ok & checkParameter( settings, KEY_CHECKPOINT, Boolean.class, errorHolder );
+		if ( settings.get( KEY_MIN_SIZE ) != null )
+			ok = ok & checkParameter( settings, KEY_MIN_SIZE, Integer.class, errorHolder );
+		if ( settings.get( KEY_MIN_QUALITY ) != null )
+			ok = ok & checkParameter( settings, KEY_MIN_QUALITY, Double.class, errorHolder );
+		if ( settings.get( KEY_AUTOTUNE_THREADS ) != null )
+			ok = ok & checkParameter( settings, KEY_AUTOTUNE_THREADS, Boolean.class, errorHolder );
+		if ( settings.get( KEY_WARMUP ) != null )
+			ok = ok & checkParameter( settings, KEY_WARMUP, Boolean.class, errorHolder );
+		if ( settings.get( KEY_METRICS_LOG_INTERVAL ) != null )
+			ok = ok & checkParameter( settings, KEY_METRICS_LOG_INTERVAL, Integer.class, errorHolder );
+		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
 
@@ -273,11 +872,41 @@ public class WekaDetectorFactory< T extends RealType< T > & NativeType< T > > im
 				errorMessage = "Problem with Weka classifier file: " + errorHolder.toString();
 				return false;
 			}
+
+			// Check the class index against the classes of the classifier.
+			final ClassifierHeader header = readHeader( ( String ) obj );
+			final int classIndex = ( Integer ) settings.get( KEY_CLASS_INDEX );
+			if ( header != null && ( classIndex < 0 || classIndex >= header.getNumClasses() ) )
+			{
+				errorMessage = "Requested class #" + ( classIndex + 1 ) + ", but classifier only knows "
+						+ header.getNumClasses() + " classes: " + header.getClassLabels() + ".";
+				return false;
+			}
 		}
 
 		return ok;
 	}
 
+	/**
+	 * Reads the header of the specified classifier file, without loading the
+	 * classifier.
+	 * 
+	 * @return the header, or <code>null</code> if it cannot be read. In that
+	 *         case the checks it allows are skipped, and problems will be
+	 *         reported when loading the classifier.
+	 */
+	private static ClassifierHeader readHeader( final String classifierFilePath )
+	{
+		try
+		{
+			return ClassifierHeader.read( classifierFilePath );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+	}
+
 	@Override
 	public String getInfoText()
 	{
@@ -21,31 +21,75 @@
  */
 package fiji.plugin.trackmate.weka;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.detection.MaskUtils;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.NewImage;
 import net.imagej.ImgPlus;
 import net.imagej.ops.MetadataUtil;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import trainableSegmentation.WekaSegmentation;
+import weka.core.Instances;
 
 public class WekaRunner< T extends RealType< T > & NativeType< T > > implements MultiThreaded
 {
 
+	/**
+	 * Size of the tiles used to validate the native feature engine against the
+	 * Weka segmentation.
+	 */
+	private static final int VALIDATION_TILE_SIZE = 64;
+
+	/**
+	 * Number of tiles used to validate the native feature engine.
+	 */
+	private static final int VALIDATION_NUM_TILES = 4;
+
+	private static final double VALIDATION_TOLERANCE = 1e-4;
+
+	/**
+	 * Fraction of pixels of the validation tile allowed to differ. Feature
+	 * values equal to a split point of the forest may go either way with
+	 * rounding.
+	 */
+	private static final double VALIDATION_MAX_DIFF_FRACTION = 1e-3;
+
+	static final String SPLIT_IN_SLABS_ERROR = "Touching objects cannot be split when stacks are streamed in Z-slabs "
+			+ "to fit in memory. Increase the memory budget, or set the split prominence to 0.";
+
+	/**
+	 * Size of the tile classified to warm up, in X and Y, and in Z when
+	 * processing in 3D.
+	 */
+	private static final int WARMUP_SIZE = 64;
+
+	private static final int WARMUP_DEPTH = 8;
+
+	/** Number of times the warm-up tile is processed. */
+	private static final int WARMUP_ROUNDS = 3;
+
 	private final String classifierFilePath;
 
 	private final boolean isProcessing3D;
@@ -60,6 +104,75 @@ public class WekaRunner< T extends RealType< T > & NativeType< T > > implements
 
 	private double[] lastCalibration;
 
+	private ProbabilityMaxTree lastMaxTree;
+
+	private ProbabilityPyramid< T > lastPyramid;
+
+	private ProbabilityHistogram lastHistogram;
+
+	private FlatForest forest;
+
+	private boolean useFeatureEngine = false;
+
+	/**
+	 * The native feature engine, <code>null</code> if it cannot be used with
+	 * the classifier or failed validation.
+	 */
+	private FeatureEngine featureEngine;
+
+	/**
+	 * Classifiers evaluated on the features of the main one, and their
+	 * forests.
+	 */
+	private final List< String > sharedClassifierFilePaths = new ArrayList<>();
+
+	private final List< FlatForest > sharedForests = new ArrayList<>();
+
+	private boolean featureEngineChecked;
+
+	/**
+	 * Buffers recycled across frames. By default, pooled buffers may use a
+	 * quarter of the maximal heap size.
+	 */
+	private final BufferPool pool = new BufferPool( Runtime.getRuntime().maxMemory() / 4 );
+
+	private FeaturePlanes.Storage featureStorage = FeaturePlanes.Storage.HEAP;
+
+	private File scratchDir;
+
+	private MemoryPlan memoryPlan;
+
+	/**
+	 * The pixels of the last output, if they come from the pool.
+	 */
+	private float[] lastProbaBuffer;
+
+	private boolean earlyExit;
+
+	private double splitProminence;
+
+	private double lowThreshold = Double.NaN;
+
+	private double minQuality;
+
+	private long minSize;
+
+	/** Picks the number of threads, <code>null</code> if it is not tuned. */
+	private ThreadTuner threadTuner;
+
+	private boolean autoTuneThreads;
+
+	/** The thread warming up this runner, <code>null</code> if none. */
+	private volatile Thread warmUpThread;
+
+	private volatile boolean warmingUp;
+
+	private DetectionMetrics metrics;
+
+	private final AtomicLong treesEvaluated = new AtomicLong();
+
+	private final AtomicLong pixelsClassified = new AtomicLong();
+
 	public WekaRunner( final String classifierFilePath, final boolean isProcessing3D )
 	{
 		this.classifierFilePath = classifierFilePath;
@@ -78,6 +191,14 @@ public class WekaRunner< T extends RealType< T > & NativeType< T > > implements
 		IJ.redirectErrorMessages();
 		segmentation = new WekaSegmentation( isProcessing3D );
 		segmentation.setTrainingImage( NewImage.createByteImage( "DummyImage", 16, 16, 1, NewImage.FILL_BLACK ) );
+		forest = null;
+		featureEngine = null;
+		featureEngineChecked = false;
+		sharedClassifierFilePaths.clear();
+		sharedForests.clear();
+		if ( ClassifierSnapshot.isSnapshot( classifierFilePath ) )
+			return loadSnapshot();
+
 		final boolean loadingOk = segmentation.loadClassifier( classifierFilePath );
 		if ( !loadingOk )
 		{
@@ -87,6 +208,59 @@ public class WekaRunner< T extends RealType< T > & NativeType< T > > implements
 		return true;
 	}
 
+	/**
+	 * Loads a classifier snapshot, and configures the Weka segmentation with
+	 * its header so that it computes the features the forest expects.
+	 */
+	private boolean loadSnapshot()
+	{
+		final ClassifierSnapshot snapshot;
+		try
+		{
+			snapshot = ClassifierSnapshot.read( classifierFilePath );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem loading the classifier snapshot " + classifierFilePath + ": " + e.getMessage();
+			return false;
+		}
+
+		final Instances header = snapshot.createWekaHeader();
+		if ( !segmentation.adjustSegmentationStateToData( header ) )
+		{
+			errorMessage = "The features and classes of the classifier snapshot " + classifierFilePath
+					+ " are not compatible with the " + ( isProcessing3D ? "3D" : "2D" ) + " segmentation.";
+			return false;
+		}
+		segmentation.setClassifier( new FlatForestClassifier( snapshot.getForest() ) );
+		segmentation.setTrainHeader( header );
+		forest = snapshot.getForest();
+		return true;
+	}
+
+	/**
+	 * Returns the loaded classifier as a flat forest, if it is a
+	 * <code>FastRandomForest</code> or was loaded from a snapshot.
+	 * 
+	 * @return the flat forest, or <code>null</code> if the classifier is not
+	 *         loaded or cannot be flattened.
+	 */
+	public FlatForest getFlatForest()
+	{
+		if ( forest == null && segmentation != null )
+		{
+			try
+			{
+				forest = FlatForest.flatten( segmentation.getClassifier(), segmentation.getNumOfClasses() );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				return null;
+			}
+		}
+		return forest;
+	}
+
 	public List< String > getClassNames()
 	{
 		errorMessage = null;
@@ -103,134 +277,1493 @@ public class WekaRunner< T extends RealType< T > & NativeType< T > > implements
 		return Collections.unmodifiableList( classNames );
 	}
 
+	/**
+	 * Computes the probabilities of a class in an interval of the input.
+	 * <p>
+	 * The pixels of the returned image may be recycled for the next call, so
+	 * the image must not be used after this method is called again. Use
+	 * {@link #getLastOutput()} to access the latest one.
+	 * 
+	 * @param input
+	 *            the input image.
+	 * @param interval
+	 *            the interval to process.
+	 * @param classId
+	 *            the index of the class to return the probabilities of.
+	 * @return the probability image, or <code>null</code> if an error
+	 *         occurred.
+	 */
 	public RandomAccessibleInterval< T > computeProbabilities(
 			final ImgPlus< T > input,
 			final Interval interval,
 			final int classId )
 	{
-		errorMessage = null;
-		if ( segmentation == null )
-		{
-			errorMessage = "The classifier is not loaded.";
+		awaitWarmUp();
+		return compute( input, interval, classId, Double.NaN );
+	}
+
+	/**
+	 * Computes the probabilities of a class, with early-exit voting against
+	 * the specified threshold if it is not {@link Double#NaN}.
+	 */
+	private RandomAccessibleInterval< T > compute(
+			final ImgPlus< T > input,
+			final Interval interval,
+			final int classId,
+			final double threshold )
+	{
+		if ( !prepare( classId ) )
 			return null;
-		}
-		if ( classId >= segmentation.getNumOfClasses() )
+
+		final boolean useEngine = getFeatureEngine( input, interval, classId ) != null;
+		final int tileSize = ( memoryPlan == null ) ? 0 : useEngine ? memoryPlan.getEngineTileSize() : memoryPlan.getWekaTileSize();
+		if ( tileSize < 0 )
 		{
-			errorMessage = "Requested class #" + ( classId + 1 ) + ", but classifier only knows " + segmentation.getNumOfClasses() + " classes.";
+			errorMessage = memoryPlan.getErrorMessage();
 			return null;
 		}
 
-		// Properly set the image to process: crop it.
-		final RandomAccessibleInterval< T > crop = Views.interval( input, interval );
-		final RandomAccessibleInterval< T > zeroMinCrop = Views.zeroMin( crop );
-		final ImgPlus< T > cropped = new ImgPlus<>( ImgView.wrap( zeroMinCrop, input.factory() ) );
-		MetadataUtil.copyImgPlusMetadata( input, cropped );
-
-		// Run Weka.
-		final ImagePlus vimp = ImageJFunctions.wrap( cropped, "Weka-to-segment" );
-		final ImagePlus probas = segmentation.applyClassifier( vimp, numThreads, true );
-
-		// Convert to Img and extract desired class.
-		@SuppressWarnings( "unchecked" )
-		final ImgPlus< T > probaImp = TMUtils.rawWraps( probas );
-		final ImgPlus< T > classProba = TMUtils.hyperSlice( probaImp, classId, 0 );
-
-
-		// Translate back to ROI origin.
 		final RandomAccessibleInterval< T > output;
-		if ( isProcessing3D )
+		if ( tileSize > 0 && ( interval.dimension( 0 ) > tileSize || interval.dimension( 1 ) > tileSize ) )
 		{
-			/*
-			 * In 3D, the output for each class are interleaved in the Z
-			 * dimension.... So we need to de-interleave them manually.
-			 */
-			final RandomAccessibleInterval< T > deinterleaved = deinterleave( classProba, classId, segmentation.getNumOfClasses() );
-			output = Views.translate( deinterleaved, interval.min( 0 ), interval.min( 1 ), interval.min( 2 ) );
+			lastProbaBuffer = pool.borrowFloats( ( int ) Intervals.numElements( interval ) );
+			output = computeTiled( input, interval, classId, useEngine, tileSize, threshold, lastProbaBuffer );
+			if ( output == null )
+				return null;
+		}
+		else if ( useEngine )
+		{
+			lastProbaBuffer = pool.borrowFloats( ( int ) Intervals.numElements( interval ) );
+			output = computeWithFeatureEngine( input, interval, classId, threshold, lastProbaBuffer );
+			if ( output == null )
+				return null;
 		}
 		else
 		{
-			output = Views.translate( classProba, interval.min( 0 ), interval.min( 1 ) );
+			output = computeWithWeka( input, interval, classId );
 		}
 		this.lastOutput = output;
 		this.lastCalibration = TMUtils.getSpatialCalibration( input );
+		this.lastMaxTree = null;
+		this.lastPyramid = null;
+		this.lastHistogram = null;
 		return output;
 	}
 
-	public List< Spot > getSpotsFromLastProbabilities( final double threshold, final boolean simplify )
+	/**
+	 * Detects objects in an interval of the input, as
+	 * {@link #computeProbabilities(ImgPlus, Interval, int)} followed by
+	 * {@link #getSpots(RandomAccessibleInterval, double[], double, boolean)}
+	 * do. When the memory plan streams Z-slabs, stacks are processed slab by
+	 * slab and the probabilities of the whole stack are not kept. With
+	 * early-exit voting, probabilities are only exact relative to the
+	 * threshold. Early-exit voting is not used with hysteresis thresholding.
+	 * 
+	 * @param input
+	 *            the input image.
+	 * @param interval
+	 *            the interval to process.
+	 * @param classId
+	 *            the index of the class to detect.
+	 * @param threshold
+	 *            the probability threshold.
+	 * @param simplify
+	 *            whether to simplify the contours of 2D objects.
+	 * @return the detected spots, or <code>null</code> if an error occurred.
+	 */
+	public List< Spot > detect( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final boolean simplify )
+	{
+		awaitWarmUp();
+		if ( !autoTuneThreads )
+			return detectFrame( input, interval, classId, threshold, simplify );
+
+		tuneThreads( input, interval, classId );
+		final long start = System.nanoTime();
+		final List< Spot > spots = detectFrame( input, interval, classId, threshold, simplify );
+		if ( spots != null )
+			threadTuner.record( Intervals.numElements( interval ), System.nanoTime() - start );
+		return spots;
+	}
+
+	private List< Spot > detectFrame( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final boolean simplify )
+	{
+		final double voteThreshold = getVoteThreshold( threshold );
+		final int slabThickness = ( memoryPlan == null || interval.numDimensions() < 3 ) ? 0 : memoryPlan.getSlabThickness();
+		if ( slabThickness > 0 && interval.dimension( 2 ) > slabThickness )
+		{
+			if ( splitProminence > 0. )
+			{
+				errorMessage = SPLIT_IN_SLABS_ERROR;
+				return null;
+			}
+			return detectInSlabs( input, interval, classId, threshold, voteThreshold, slabThickness );
+		}
+
+		final RandomAccessibleInterval< T > proba = compute( input, interval, classId, voteThreshold );
+		if ( proba == null )
+			return null;
+		final long start = System.nanoTime();
+		final List< Spot > spots = getSpots( proba, TMUtils.getSpatialCalibration( input ), threshold, simplify );
+		record( DetectionMetrics.STAGE_OBJECTS, start );
+		return spots;
+	}
+
+	/**
+	 * Adds a classifier evaluated on the features computed for the main one,
+	 * by {@link #computeAllProbabilities(ImgPlus, Interval, int[])} and
+	 * {@link #detectAll(ImgPlus, Interval, int[], double[], boolean)}. It must
+	 * use the same features, in the same order, and be a random forest or a
+	 * classifier snapshot. Features are only shared with the native feature
+	 * engine, see {@link #setUseFeatureEngine(boolean)}. Classifiers added are
+	 * forgotten when the main one is loaded again.
+	 * 
+	 * @param path
+	 *            the path to the classifier file.
+	 * @return <code>true</code> if the classifier was added. If not, the
+	 *         error message says why, and lists the mismatched features.
+	 */
+	public boolean addClassifier( final String path )
 	{
 		errorMessage = null;
 		if ( segmentation == null )
 		{
 			errorMessage = "The classifier is not loaded.";
+			return false;
+		}
+		if ( getFlatForest() == null )
+		{
+			errorMessage = "Only random forests and classifier snapshots can share their features with other classifiers.";
+			return false;
+		}
+
+		// Check features before paying for loading.
+		try
+		{
+			final ClassifierHeader header = ClassifierHeader.read( classifierFilePath );
+			final ClassifierHeader other = ClassifierHeader.read( path );
+			if ( other.is3D() != null && other.is3D().booleanValue() != isProcessing3D )
+			{
+				errorMessage = "The classifier " + path + " was trained on " + ( other.is3D() ? "3D" : "2D" )
+						+ " images, but the main classifier processes " + ( isProcessing3D ? "3D" : "2D" ) + " images.";
+				return false;
+			}
+			final String mismatch = header.compareFeatures( other );
+			if ( mismatch != null )
+			{
+				errorMessage = "The features of the classifier " + path + " do not match those of " + classifierFilePath + ": " + mismatch + ".";
+				return false;
+			}
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem reading the classifier header: " + e.getMessage();
+			return false;
+		}
+
+		final FlatForest sharedForest;
+		if ( ClassifierSnapshot.isSnapshot( path ) )
+		{
+			try
+			{
+				sharedForest = ClassifierSnapshot.read( path ).getForest();
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = "Problem loading the classifier snapshot " + path + ": " + e.getMessage();
+				return false;
+			}
+		}
+		else
+		{
+			final WekaSegmentation other = new WekaSegmentation( isProcessing3D );
+			other.setTrainingImage( NewImage.createByteImage( "DummyImage", 16, 16, 1, NewImage.FILL_BLACK ) );
+			if ( !other.loadClassifier( path ) )
+			{
+				errorMessage = "Problem loading the classifier for file " + path;
+				return false;
+			}
+			try
+			{
+				sharedForest = FlatForest.flatten( other.getClassifier(), other.getNumOfClasses() );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorMessage = "The classifier " + path + " is not a random forest, and cannot share features: " + e.getMessage();
+				return false;
+			}
+		}
+		sharedClassifierFilePaths.add( path );
+		sharedForests.add( sharedForest );
+		return true;
+	}
+
+	/**
+	 * Returns the paths to the classifiers evaluated by
+	 * {@link #computeAllProbabilities(ImgPlus, Interval, int[])}: the main
+	 * one first, then the added ones.
+	 */
+	public List< String > getClassifierFilePaths()
+	{
+		final List< String > paths = new ArrayList<>();
+		paths.add( classifierFilePath );
+		paths.addAll( sharedClassifierFilePaths );
+		return paths;
+	}
+
+	/**
+	 * Computes the probabilities of a class in an interval of the input, for
+	 * the main classifier and each added one. The features are computed once
+	 * per tile by the native feature engine, and all forests are evaluated on
+	 * them. Without the engine, only the main classifier can be evaluated.
+	 * The last output is not replaced.
+	 * 
+	 * @param input
+	 *            the input image.
+	 * @param interval
+	 *            the interval to process.
+	 * @param classIds
+	 *            the index of the class to return the probabilities of, for
+	 *            each classifier, in the order of
+	 *            {@link #getClassifierFilePaths()}.
+	 * @return the probability images, one per classifier, or
+	 *         <code>null</code> if an error occurred.
+	 */
+	public List< RandomAccessibleInterval< T > > computeAllProbabilities( final ImgPlus< T > input, final Interval interval, final int[] classIds )
+	{
+		awaitWarmUp();
+		errorMessage = null;
+		final int nClassifiers = 1 + sharedForests.size();
+		if ( classIds.length != nClassifiers )
+		{
+			errorMessage = "Expected " + nClassifiers + " class indices, one per classifier, but got " + classIds.length + ".";
 			return null;
 		}
-		if ( lastOutput == null )
+		if ( !canCompute( classIds[ 0 ] ) )
+			return null;
+		for ( int k = 1; k < nClassifiers; k++ )
 		{
-			errorMessage = "Probabilities have not been computed yet.";
+			if ( classIds[ k ] >= sharedForests.get( k - 1 ).numClasses() )
+			{
+				errorMessage = "Requested class #" + ( classIds[ k ] + 1 ) + ", but classifier " + sharedClassifierFilePaths.get( k - 1 )
+						+ " only knows " + sharedForests.get( k - 1 ).numClasses() + " classes.";
+				return null;
+			}
+		}
+
+		final boolean useEngine = getFeatureEngine( input, interval, classIds[ 0 ] ) != null;
+		final int tileSize = ( memoryPlan == null ) ? 0 : useEngine ? memoryPlan.getEngineTileSize() : memoryPlan.getWekaTileSize();
+		if ( tileSize < 0 )
+		{
+			errorMessage = memoryPlan.getErrorMessage();
 			return null;
 		}
-		return getSpots( lastOutput, lastCalibration, threshold, simplify );
+		final boolean tiled = tileSize > 0 && ( interval.dimension( 0 ) > tileSize || interval.dimension( 1 ) > tileSize );
+		final int nPixels = ( int ) Intervals.numElements( interval );
+
+		final List< RandomAccessibleInterval< T > > outputs = new ArrayList<>( nClassifiers );
+		if ( useEngine )
+		{
+			final FlatForest[] forests = new FlatForest[ nClassifiers ];
+			forests[ 0 ] = forest;
+			for ( int k = 1; k < nClassifiers; k++ )
+				forests[ k ] = sharedForests.get( k - 1 );
+			// Returned to the caller, not pooled.
+			final float[][] probas = new float[ nClassifiers ][ nPixels ];
+			final boolean ok = tiled
+					? computeTiled( input, interval, classIds, forests, true, tileSize, Double.NaN, probas )
+					: computeWithFeatureEngine( input, interval, classIds, forests, Double.NaN, probas );
+			if ( !ok )
+				return null;
+			for ( final float[] proba : probas )
+			{
+				// Same type as the Weka output, which is float too.
+				@SuppressWarnings( { "unchecked", "rawtypes" } )
+				final RandomAccessibleInterval< T > output = ( RandomAccessibleInterval ) Views.translate(
+						ArrayImgs.floats( proba, Intervals.dimensionsAsLongArray( interval ) ),
+						Intervals.minAsLongArray( interval ) );
+				outputs.add( output );
+			}
+			return outputs;
+		}
+
+		/*
+		 * The Weka segmentation does not expose the features it computes, so
+		 * they could only be shared by computing them again for each
+		 * classifier, which is what separate runners do.
+		 */
+		if ( nClassifiers > 1 )
+		{
+			errorMessage = "Several classifiers can only share their features with the native feature engine, "
+					+ "which is not used for this image.";
+			return null;
+		}
+		final RandomAccessibleInterval< T > output = tiled
+				? computeTiled( input, interval, classIds[ 0 ], false, tileSize, Double.NaN, new float[ nPixels ] )
+				: computeWithWeka( input, interval, classIds[ 0 ] );
+		if ( output == null )
+			return null;
+		outputs.add( output );
+		return outputs;
 	}
 
 	/**
-	 * Exposes the last probability image calculated.
+	 * Detects objects in an interval of the input with the main classifier
+	 * and each added one, as
+	 * {@link #computeAllProbabilities(ImgPlus, Interval, int[])} followed by
+	 * {@link #getSpots(RandomAccessibleInterval, double[], double, boolean)}
+	 * for each classifier do. Stacks are not streamed in Z-slabs.
 	 * 
-	 * @return the last probability image calculated. May be <code>null</code>
+	 * @param input
+	 *            the input image.
+	 * @param interval
+	 *            the interval to process.
+	 * @param classIds
+	 *            the index of the class to detect, for each classifier.
+	 * @param thresholds
+	 *            the probability threshold, for each classifier.
+	 * @param simplify
+	 *            whether to simplify the contours of 2D objects.
+	 * @return the detected spots, one list per classifier, or
+	 *         <code>null</code> if an error occurred.
 	 */
-	public RandomAccessibleInterval< T > getLastOutput()
+	public List< List< Spot > > detectAll( final ImgPlus< T > input, final Interval interval, final int[] classIds, final double[] thresholds, final boolean simplify )
 	{
-		return lastOutput;
+		if ( thresholds.length != classIds.length )
+		{
+			errorMessage = "Expected one threshold per class index, but got " + thresholds.length + " thresholds for " + classIds.length + " class indices.";
+			return null;
+		}
+		final List< RandomAccessibleInterval< T > > probas = computeAllProbabilities( input, interval, classIds );
+		if ( probas == null )
+			return null;
+
+		final double[] calibration = TMUtils.getSpatialCalibration( input );
+		final List< List< Spot > > spots = new ArrayList<>( probas.size() );
+		for ( int k = 0; k < probas.size(); k++ )
+		{
+			final long start = System.nanoTime();
+			spots.add( getSpots( probas.get( k ), calibration, thresholds[ k ], simplify ) );
+			record( DetectionMetrics.STAGE_OBJECTS, start );
+		}
+		return spots;
 	}
 
-	public List< Spot > getSpots( final RandomAccessibleInterval< T > proba, final double[] calibration, final double threshold, final boolean simplify )
+	/**
+	 * Classifies and thresholds a small tile at the center of an image a few
+	 * times, so that classes are loaded and hot code is compiled before the
+	 * first frame. The last probabilities are then those of the tile.
+	 * 
+	 * @param input
+	 *            the input image.
+	 * @param classId
+	 *            the index of the class to detect.
+	 * @param threshold
+	 *            the probability threshold.
+	 * @return <code>true</code> if the warm-up succeeded.
+	 */
+	public boolean warmUp( final ImgPlus< T > input, final int classId, final double threshold )
 	{
-		final List< Spot > spots;
-		if ( isProcessing3D )
+		final int n = input.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; d++ )
 		{
-			spots = MaskUtils.fromThreshold(
-					proba,
-					proba,
-					calibration,
-					threshold,
-					numThreads,
-					proba );
+			final long size = Math.min( ( d < 2 ) ? WARMUP_SIZE : ( isProcessing3D ? WARMUP_DEPTH : 1 ), input.dimension( d ) );
+			min[ d ] = input.min( d ) + ( input.dimension( d ) - size ) / 2;
+			max[ d ] = min[ d ] + size - 1;
 		}
-		else
+		final Interval tile = new FinalInterval( min, max );
+		warmingUp = true;
+		try
 		{
-			spots = MaskUtils.fromThresholdWithROI(
-					proba,
-					proba,
-					calibration,
-					threshold,
-					simplify,
-					numThreads,
-					proba );
+			for ( int i = 0; i < WARMUP_ROUNDS; i++ )
+			{
+				if ( compute( input, tile, classId, Double.NaN ) == null )
+					return false;
+				if ( getSpots( lastOutput, lastCalibration, threshold, true ) == null )
+					return false;
+			}
+			return true;
+		}
+		finally
+		{
+			warmingUp = false;
 		}
-		return spots;
 	}
 
-	private RandomAccessibleInterval< T > deinterleave( final RandomAccessibleInterval< T > proba, final long start, final long step )
+	/**
+	 * Warms up this runner in a background thread. Methods that compute
+	 * probabilities or spots wait for the warm-up to finish.
+	 * 
+	 * @see #warmUp(ImgPlus, int, double)
+	 */
+	public void startWarmUp( final ImgPlus< T > input, final int classId, final double threshold )
 	{
-		final List< RandomAccessibleInterval< T > > slices = new ArrayList<>();
-		final long nz = proba.dimension( 2 );
-		for ( long z = start; z < nz; z = z + step )
+		awaitWarmUp();
+		final Thread thread = new Thread( () -> warmUp( input, classId, threshold ), "TrackMate-Weka warm-up thread" );
+		thread.setDaemon( true );
+		thread.setPriority( Thread.MIN_PRIORITY );
+		warmUpThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Waits for the warm-up thread, if any.
+	 */
+	private void awaitWarmUp()
+	{
+		final Thread thread = warmUpThread;
+		if ( thread == null || thread == Thread.currentThread() )
+			return;
+		// The runner must not be used by two threads at once.
+		boolean interrupted = false;
+		while ( thread.isAlive() )
 		{
-			final RandomAccessibleInterval< T > slice = Views.hyperSlice( proba, 2, z );
-			slices.add( slice );
+			try
+			{
+				thread.join();
+			}
+			catch ( final InterruptedException e )
+			{
+				interrupted = true;
+			}
 		}
-		return Views.stack( slices );
+		warmUpThread = null;
+		if ( interrupted )
+			Thread.currentThread().interrupt();
 	}
 
-	@Override
-	public void setNumThreads()
+	/**
+	 * Sets the number of threads from the thread tuner, measuring the
+	 * throughput on a tile of the frame first if needed.
+	 */
+	private void tuneThreads( final ImgPlus< T > input, final Interval interval, final int classId )
+	{
+		if ( threadTuner == null )
+		{
+			final String pixelType = Util.getTypeFromInterval( input ).getClass().getSimpleName();
+			threadTuner = new ThreadTuner( ThreadTuner.key( classifierFilePath, isProcessing3D, pixelType, numThreads ), numThreads, ThreadTuner.defaultFile() );
+		}
+		if ( threadTuner.needsTuning() )
+		{
+			final Interval tile = ThreadTuner.tile( interval, isProcessing3D );
+			threadTuner.tune( n -> {
+				numThreads = n;
+				final long start = System.nanoTime();
+				if ( computeProbabilities( input, tile, classId ) == null )
+					return 0.;
+				return Intervals.numElements( tile ) * 1e9 / ( System.nanoTime() - start );
+			} );
+		}
+		numThreads = threadTuner.getNumThreads();
+	}
+
+	/**
+	 * Processes a stack in Z-slabs. Each slab is computed with a Z halo, and
+	 * its core is labeled right away, connected to the previous slab. When
+	 * planes are classified independently, slabs need no Z halo.
+	 */
+	private List< Spot > detectInSlabs( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final double voteThreshold, final int slabThickness )
+	{
+		if ( !prepare( classId ) )
+			return null;
+
+		final boolean useEngine = getFeatureEngine( input, interval, classId ) != null;
+		final int halo = memoryPlan.getZHalo();
+		final int planeSize = ( int ) ( interval.dimension( 0 ) * interval.dimension( 1 ) );
+		final SlabLabeler labeler = new SlabLabeler(
+				( int ) interval.dimension( 0 ),
+				( int ) interval.dimension( 1 ),
+				Intervals.minAsLongArray( interval ),
+				TMUtils.getSpatialCalibration( input ),
+				getGrowThreshold( threshold ),
+				threshold );
+		final float[] proba = pool.borrowFloats( planeSize * slabThickness );
+		final int[] labels = pool.borrowInts( planeSize * slabThickness );
+		long labelingTime = 0l;
+		try
+		{
+			for ( long z0 = interval.min( 2 ); z0 <= interval.max( 2 ); z0 += slabThickness )
+			{
+				final long z1 = Math.min( z0 + slabThickness - 1, interval.max( 2 ) );
+				final long[] min = Intervals.minAsLongArray( interval );
+				final long[] max = Intervals.maxAsLongArray( interval );
+				min[ 2 ] = z0;
+				max[ 2 ] = z1;
+				final Interval core = new FinalInterval( min, max );
+				min[ 2 ] = Math.max( interval.min( 2 ), z0 - halo );
+				max[ 2 ] = Math.min( interval.max( 2 ), z1 + halo );
+				final Interval slab = new FinalInterval( min, max );
+
+				final float[] buffer = useEngine ? pool.borrowFloats( ( int ) Intervals.numElements( slab ) ) : null;
+				final RandomAccessibleInterval< T > slabProba = useEngine
+						? computeWithFeatureEngine( input, slab, classId, voteThreshold, buffer )
+						: computeWithWeka( input, slab, classId );
+				if ( slabProba == null )
+				{
+					pool.release( buffer );
+					return null;
+				}
+				final Cursor< T > cursor = Views.flatIterable( Views.interval( slabProba, core ) ).cursor();
+				int i = 0;
+				while ( cursor.hasNext() )
+					proba[ i++ ] = cursor.next().getRealFloat();
+				pool.release( buffer );
+				final long start = System.nanoTime();
+				labeler.accept( proba, ( int ) ( z1 - z0 + 1 ), labels, numThreads );
+				labelingTime += System.nanoTime() - start;
+			}
+		}
+		finally
+		{
+			pool.release( proba );
+			pool.release( labels );
+		}
+		final long start = System.nanoTime();
+		final List< Spot > spots = labeler.getTable( null, false, minQuality, minSize ).toSpots();
+		record( DetectionMetrics.STAGE_OBJECTS, start - labelingTime );
+		return spots;
+	}
+
+	/**
+	 * Checks that probabilities can be computed for a class, and forgets the
+	 * last output.
+	 */
+	private boolean prepare( final int classId )
 	{
-		this.numThreads = Runtime.getRuntime().availableProcessors();
+		errorMessage = null;
+		if ( !canCompute( classId ) )
+			return false;
+
+		// The previous output is replaced, its pixels can be recycled.
+		pool.release( lastProbaBuffer );
+		lastProbaBuffer = null;
+		lastOutput = null;
+		lastMaxTree = null;
+		lastPyramid = null;
+		lastHistogram = null;
+		return true;
 	}
 
+	/**
+	 * Checks that probabilities can be computed for a class.
+	 */
+	private boolean canCompute( final int classId )
+	{
+		if ( segmentation == null )
+		{
+			errorMessage = "The classifier is not loaded.";
+			return false;
+		}
+		if ( classId >= segmentation.getNumOfClasses() )
+		{
+			errorMessage = "Requested class #" + ( classId + 1 ) + ", but classifier only knows " + segmentation.getNumOfClasses() + " classes.";
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the probabilities of a class tile by tile, in the specified
+	 * buffer. Tiles are square in XY and span the whole Z extent. Each tile is
+	 * processed with a halo, so that features are computed as on the whole
+	 * interval.
+	 */
+	private RandomAccessibleInterval< T > computeTiled( final ImgPlus< T > input, final Interval interval, final int classId, final boolean useEngine, final int tileSize, final double threshold, final float[] proba )
+	{
+		if ( !computeTiled( input, interval, new int[] { classId }, new FlatForest[] { forest }, useEngine, tileSize, threshold, new float[][] { proba } ) )
+			return null;
+
+		// Same type as the Weka output, which is float too.
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessibleInterval< T > output = ( RandomAccessibleInterval ) Views.translate(
+				ArrayImgs.floats( proba, Intervals.dimensionsAsLongArray( interval ) ),
+				Intervals.minAsLongArray( interval ) );
+		return output;
+	}
+
+	/**
+	 * Computes the probabilities of a class tile by tile for each of the
+	 * specified forests, in the specified buffers, computing the features of
+	 * each tile once. The Weka segmentation only computes the first one.
+	 * 
+	 * @return <code>false</code> if an error occurred.
+	 */
+	private boolean computeTiled( final ImgPlus< T > input, final Interval interval, final int[] classIds, final FlatForest[] forests, final boolean useEngine, final int tileSize, final double threshold, final float[][] probas )
+	{
+		final int halo = memoryPlan.getHalo();
+		final int nOutputs = useEngine ? forests.length : 1;
+		final List< RandomAccessibleInterval< FloatType > > outs = new ArrayList<>( nOutputs );
+		for ( int k = 0; k < nOutputs; k++ )
+			outs.add( Views.translate(
+					ArrayImgs.floats( probas[ k ], Intervals.dimensionsAsLongArray( interval ) ),
+					Intervals.minAsLongArray( interval ) ) );
+
+		for ( long y0 = interval.min( 1 ); y0 <= interval.max( 1 ); y0 += tileSize )
+		{
+			for ( long x0 = interval.min( 0 ); x0 <= interval.max( 0 ); x0 += tileSize )
+			{
+				final long[] coreMin = Intervals.minAsLongArray( interval );
+				final long[] coreMax = Intervals.maxAsLongArray( interval );
+				coreMin[ 0 ] = x0;
+				coreMin[ 1 ] = y0;
+				coreMax[ 0 ] = Math.min( x0 + tileSize - 1, interval.max( 0 ) );
+				coreMax[ 1 ] = Math.min( y0 + tileSize - 1, interval.max( 1 ) );
+				final Interval core = new FinalInterval( coreMin, coreMax );
+
+				final long[] min = coreMin.clone();
+				final long[] max = coreMax.clone();
+				for ( int d = 0; d < 2; d++ )
+				{
+					min[ d ] = Math.max( interval.min( d ), min[ d ] - halo );
+					max[ d ] = Math.min( interval.max( d ), max[ d ] + halo );
+				}
+				final Interval tile = new FinalInterval( min, max );
+
+				final List< RandomAccessibleInterval< ? extends RealType< ? > > > tileProbas = new ArrayList<>( nOutputs );
+				final float[][] buffers = new float[ nOutputs ][];
+				if ( useEngine )
+				{
+					for ( int k = 0; k < nOutputs; k++ )
+						buffers[ k ] = pool.borrowFloats( ( int ) Intervals.numElements( tile ) );
+					final boolean ok = computeWithFeatureEngine( input, tile, classIds, forests, threshold, buffers );
+					if ( ok )
+						for ( int k = 0; k < nOutputs; k++ )
+							tileProbas.add( Views.translate(
+									ArrayImgs.floats( buffers[ k ], Intervals.dimensionsAsLongArray( tile ) ),
+									Intervals.minAsLongArray( tile ) ) );
+				}
+				else
+				{
+					final RandomAccessibleInterval< T > tileProba = computeWithWeka( input, tile, classIds[ 0 ] );
+					if ( tileProba != null )
+						tileProbas.add( tileProba );
+				}
+				if ( tileProbas.size() < nOutputs )
+				{
+					for ( final float[] buffer : buffers )
+						pool.release( buffer );
+					return false;
+				}
+
+				for ( int k = 0; k < nOutputs; k++ )
+				{
+					final Cursor< ? extends RealType< ? > > source = Views.flatIterable( Views.interval( tileProbas.get( k ), core ) ).cursor();
+					final Cursor< FloatType > target = Views.flatIterable( Views.interval( outs.get( k ), core ) ).cursor();
+					while ( source.hasNext() )
+						target.next().set( source.next().getRealFloat() );
+					pool.release( buffers[ k ] );
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the probabilities of a class with the Weka segmentation.
+	 */
+	private RandomAccessibleInterval< T > computeWithWeka( final ImgPlus< T > input, final Interval interval, final int classId )
+	{
+		// Properly set the image to process: crop it.
+		final RandomAccessibleInterval< T > crop = Views.interval( input, interval );
+		final RandomAccessibleInterval< T > zeroMinCrop = Views.zeroMin( crop );
+		final ImgPlus< T > cropped = new ImgPlus<>( ImgView.wrap( zeroMinCrop, input.factory() ) );
+		MetadataUtil.copyImgPlusMetadata( input, cropped );
+
+		// Run Weka.
+		final ImagePlus vimp = ImageJFunctions.wrap( cropped, "Weka-to-segment" );
+		final long start = System.nanoTime();
+		final ImagePlus probas = segmentation.applyClassifier( vimp, numThreads, true );
+		record( DetectionMetrics.STAGE_WEKA, start );
+
+		// Convert to Img and extract desired class.
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > probaImp = TMUtils.rawWraps( probas );
+		final ImgPlus< T > classProba = TMUtils.hyperSlice( probaImp, classId, 0 );
+
+		// Translate back to ROI origin.
+		if ( isProcessing3D )
+		{
+			/*
+			 * In 3D, the output for each class are interleaved in the Z
+			 * dimension.... So we need to de-interleave them manually.
+			 */
+			final RandomAccessibleInterval< T > deinterleaved = deinterleave( classProba, classId, segmentation.getNumOfClasses() );
+			return Views.translate( deinterleaved, interval.min( 0 ), interval.min( 1 ), interval.min( 2 ) );
+		}
+		else
+		{
+			/*
+			 * In 2D, the planes of a stack are classified independently. A
+			 * single plane comes back without its Z dimension.
+			 */
+			final RandomAccessibleInterval< T > stack = ( classProba.numDimensions() < interval.numDimensions() )
+					? Views.addDimension( classProba, 0, 0 )
+					: classProba;
+			return Views.translate( stack, Intervals.minAsLongArray( interval ) );
+		}
+	}
+
+	/**
+	 * Computes the probabilities of a class with the native feature engine
+	 * and the flat forest, in the specified buffer. 2D only: the planes of a
+	 * stack are classified independently and in parallel, sharing the
+	 * threads. Trees vote with early exit if the threshold is not
+	 * {@link Double#NaN}.
+	 */
+	private RandomAccessibleInterval< T > computeWithFeatureEngine( final ImgPlus< T > input, final Interval interval, final int classId, final double threshold, final float[] proba )
+	{
+		if ( !computeWithFeatureEngine( input, interval, new int[] { classId }, new FlatForest[] { forest }, threshold, new float[][] { proba } ) )
+			return null;
+
+		// Same type as the Weka output, which is float too.
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessibleInterval< T > img = ( RandomAccessibleInterval ) ArrayImgs.floats( proba, Intervals.dimensionsAsLongArray( interval ) );
+		return Views.translate( img, Intervals.minAsLongArray( interval ) );
+	}
+
+	/**
+	 * Computes the probabilities of a class for each of the specified
+	 * forests, in the specified buffers, computing features once.
+	 * 
+	 * @return <code>false</code> if an error occurred.
+	 */
+	private boolean computeWithFeatureEngine( final ImgPlus< T > input, final Interval interval, final int[] classIds, final FlatForest[] forests, final double threshold, final float[][] probas )
+	{
+		final int nForests = forests.length;
+		final int width = ( int ) interval.dimension( 0 );
+		final int height = ( int ) interval.dimension( 1 );
+		final int planeSize = width * height;
+		final boolean isStack = interval.numDimensions() > 2;
+		final int nPlanes = isStack ? ( int ) interval.dimension( 2 ) : 1;
+		final int nConcurrent = Math.max( 1, Math.min( nPlanes, numThreads ) );
+		final int threadsPerPlane = Math.max( 1, numThreads / nConcurrent );
+		final Interval planeInterval = new FinalInterval(
+				new long[] { interval.min( 0 ), interval.min( 1 ) },
+				new long[] { interval.max( 0 ), interval.max( 1 ) } );
+
+		final AtomicReference< String > error = new AtomicReference<>();
+		ParallelUtils.forEachBlock( nPlanes, nConcurrent, ( from, to ) -> {
+			for ( int z = from; z < to && error.get() == null; z++ )
+			{
+				final RandomAccessibleInterval< T > plane = isStack
+						? Views.interval( Views.hyperSlice( input, 2, interval.min( 2 ) + z ), planeInterval )
+						: Views.interval( input, interval );
+				final float[][] outs = new float[ nForests ][];
+				for ( int k = 0; k < nForests; k++ )
+					outs[ k ] = isStack ? pool.borrowFloats( planeSize ) : probas[ k ];
+				try
+				{
+					classifyPlane( plane, width, height, classIds, forests, threshold, outs, threadsPerPlane );
+					if ( isStack )
+						for ( int k = 0; k < nForests; k++ )
+							System.arraycopy( outs[ k ], 0, probas[ k ], z * planeSize, planeSize );
+				}
+				catch ( final IOException e )
+				{
+					error.compareAndSet( null, "Problem creating the feature scratch file: " + e.getMessage() );
+				}
+				finally
+				{
+					if ( isStack )
+						for ( final float[] out : outs )
+							pool.release( out );
+				}
+			}
+		} );
+		if ( error.get() != null )
+		{
+			errorMessage = error.get();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the features of a plane once, and classifies its pixels with
+	 * each forest.
+	 */
+	private void classifyPlane( final RandomAccessibleInterval< T > plane, final int width, final int height, final int[] classIds, final FlatForest[] forests, final double threshold, final float[][] outs, final int nThreads ) throws IOException
+	{
+		final float[] pixels = pool.borrowFloats( width * height );
+		final Cursor< T > cursor = Views.flatIterable( plane ).cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+			pixels[ i++ ] = cursor.next().getRealFloat();
+
+		try (final FeaturePlanes planes = FeaturePlanes.create( featureStorage, featureEngine.numFeatures(), width * height, pool, scratchDir ))
+		{
+			final long start = System.nanoTime();
+			featureEngine.computeFeatures( pixels, width, height, nThreads, planes );
+			final long featuresEnd = System.nanoTime();
+			record( DetectionMetrics.STAGE_FEATURES, start );
+			for ( int k = 0; k < forests.length; k++ )
+			{
+				treesEvaluated.addAndGet( FeatureEngine.classify( planes, forests[ k ], classIds[ k ], threshold, outs[ k ], nThreads ) );
+				pixelsClassified.addAndGet( outs[ k ].length );
+			}
+			record( DetectionMetrics.STAGE_CLASSIFICATION, featuresEnd );
+		}
+		finally
+		{
+			pool.release( pixels );
+		}
+	}
+
+	/**
+	 * Sets whether the native feature engine should be used when the
+	 * classifier and the image permit it. When <code>false</code>, the
+	 * default, features are always computed by the Weka segmentation.
+	 * 
+	 * @param useFeatureEngine
+	 *            whether to use the native feature engine.
+	 */
+	public void setUseFeatureEngine( final boolean useFeatureEngine )
+	{
+		this.useFeatureEngine = useFeatureEngine;
+	}
+
+	/**
+	 * Sets whether {@link #detect(ImgPlus, Interval, int, double, boolean)}
+	 * uses early-exit voting. Trees of the forest are then evaluated in
+	 * sequence for each pixel, and the evaluation stops as soon as the
+	 * remaining trees cannot move the probability across the detection
+	 * threshold. Objects are the same, but probabilities are approximate away
+	 * from the threshold: so are the quality of spots, which is their maximal
+	 * probability, and their probability statistics. Only applies to the
+	 * native feature engine, and not with hysteresis thresholding, when
+	 * touching objects are split, or when objects are filtered on a quality
+	 * above the threshold, which need exact probabilities.
+	 * 
+	 * @param earlyExit
+	 *            whether to use early-exit voting.
+	 */
+	public void setEarlyExit( final boolean earlyExit )
+	{
+		this.earlyExit = earlyExit;
+		treesEvaluated.set( 0l );
+		pixelsClassified.set( 0l );
+	}
+
+	public boolean isEarlyExit()
+	{
+		return earlyExit;
+	}
+
+	/**
+	 * Sets whether touching objects are split, with a seeded watershed on the
+	 * probabilities. Objects are seeded by the maxima that are more prominent
+	 * than the specified value. Detection fails when stacks are streamed in
+	 * Z-slabs, as the watershed needs the whole stack.
+	 * 
+	 * @param prominence
+	 *            the minimal prominence of a maximum, in probability units,
+	 *            or 0 not to split objects.
+	 * @see WatershedSplitter
+	 */
+	public void setSplitProminence( final double prominence )
+	{
+		this.splitProminence = prominence;
+	}
+
+	public double getSplitProminence()
+	{
+		return splitProminence;
+	}
+
+	/**
+	 * Sets the low threshold of hysteresis thresholding. Objects are then
+	 * grown over the pixels above the low threshold, and only kept if they
+	 * contain at least one pixel above the detection threshold, which acts as
+	 * the seed threshold.
+	 * 
+	 * @param lowThreshold
+	 *            the low probability threshold, or {@link Double#NaN} to
+	 *            use a single threshold.
+	 */
+	public void setLowThreshold( final double lowThreshold )
+	{
+		this.lowThreshold = lowThreshold;
+	}
+
+	public double getLowThreshold()
+	{
+		return lowThreshold;
+	}
+
+	/**
+	 * Sets whether the number of threads is tuned for throughput. The
+	 * current number of threads is then the maximal one. Before the first
+	 * frame, throughput is measured on a tile for a few numbers of threads,
+	 * unless a number was stored for this host, classifier and image type,
+	 * and measured again when the throughput of frames drifts.
+	 * 
+	 * @param autoTune
+	 *            whether to tune the number of threads.
+	 * @see ThreadTuner
+	 */
+	public void setAutoTuneThreads( final boolean autoTune )
+	{
+		if ( autoTune == autoTuneThreads )
+			return;
+		if ( !autoTune && threadTuner != null )
+			numThreads = threadTuner.getMaxThreads();
+		this.autoTuneThreads = autoTune;
+		this.threadTuner = null;
+	}
+
+	public boolean isAutoTuneThreads()
+	{
+		return autoTuneThreads;
+	}
+
+	/**
+	 * Sets the filters applied to objects before they are turned into spots.
+	 * Contours are only computed for the objects that pass the filters.
+	 * 
+	 * @param minQuality
+	 *            the minimal quality, that is the maximal probability in the
+	 *            object, 0 to keep all objects.
+	 * @param minSize
+	 *            the minimal number of pixels in the object, 0 to keep all
+	 *            objects.
+	 */
+	public void setSpotFilter( final double minQuality, final long minSize )
+	{
+		this.minQuality = minQuality;
+		this.minSize = minSize;
+	}
+
+	public double getMinQuality()
+	{
+		return minQuality;
+	}
+
+	public long getMinSize()
+	{
+		return minSize;
+	}
+
+	/**
+	 * Returns the threshold trees vote against with early exit, or
+	 * {@link Double#NaN} if probabilities must be exact. Partial votes are
+	 * only exact relative to the threshold, so they cannot be used to grow
+	 * objects below it with hysteresis, nor to find the seeds and saddles
+	 * that split touching objects, nor to filter objects on a quality above
+	 * it.
+	 */
+	private double getVoteThreshold( final double threshold )
+	{
+		if ( !earlyExit || getGrowThreshold( threshold ) != threshold || splitProminence > 0. || minQuality > threshold )
+			return Double.NaN;
+		return threshold;
+	}
+
+	/**
+	 * Returns the threshold objects are grown from, for the specified
+	 * detection threshold.
+	 */
+	private double getGrowThreshold( final double threshold )
+	{
+		return ( lowThreshold < threshold ) ? lowThreshold : threshold;
+	}
+
+	/**
+	 * Returns the average number of trees evaluated per pixel by the native
+	 * feature engine, since early-exit voting was last set.
+	 * 
+	 * @return the average number of trees, or {@link Double#NaN} if no pixel
+	 *         was classified by the native feature engine.
+	 */
+	public double getMeanTreesEvaluated()
+	{
+		final long nPixels = pixelsClassified.get();
+		return ( nPixels == 0l ) ? Double.NaN : ( double ) treesEvaluated.get() / nPixels;
+	}
+
+	/**
+	 * Sets the memory budget of the pool of buffers recycled across frames.
+	 * 
+	 * @param budget
+	 *            the maximal size of pooled buffers, in bytes. With a budget
+	 *            of 0, buffers are allocated for each frame.
+	 */
+	public void setBufferPoolBudget( final long budget )
+	{
+		pool.setBudget( budget );
+	}
+
+	/**
+	 * Sets where the native feature engine stores feature planes. Off-heap
+	 * storage keeps the heap small with many features on large frames. The
+	 * storage is freed at the end of each frame. Probabilities of the target
+	 * class are a single plane, and stay on the heap.
+	 * 
+	 * @param storage
+	 *            where to store feature planes.
+	 * @param scratchDir
+	 *            the folder of the scratch file, for
+	 *            {@link FeaturePlanes.Storage#MAPPED} storage. If
+	 *            <code>null</code>, the default temporary folder is used.
+	 */
+	public void setFeatureStorage( final FeaturePlanes.Storage storage, final File scratchDir )
+	{
+		this.featureStorage = storage;
+		this.scratchDir = scratchDir;
+	}
+
+	/**
+	 * Plans the processing of frames so that they fit in a memory budget, and
+	 * uses the plan for the next frames. Returns a plan that is not feasible
+	 * if frames cannot be processed within the budget, in which case the plan
+	 * is not used.
+	 * 
+	 * @param frameDims
+	 *            the frame dimensions, X, Y, and Z if any.
+	 * @param budget
+	 *            the memory budget, in bytes.
+	 * @return the plan, or <code>null</code> if the classifier header cannot
+	 *         be read.
+	 */
+	public MemoryPlan planMemory( final long[] frameDims, final long budget )
+	{
+		errorMessage = null;
+		final ClassifierHeader header;
+		try
+		{
+			header = ClassifierHeader.read( classifierFilePath );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = "Problem reading the classifier header: " + e.getMessage();
+			return null;
+		}
+
+		final FeatureEngine engine = ( useFeatureEngine && !isProcessing3D && getFlatForest() != null )
+				? FeatureEngine.create( header.getFeatureNames() )
+				: null;
+		final int halo = MemoryPlan.halo( header.getFeatureNames() );
+		final MemoryPlan plan = MemoryPlan.create(
+				frameDims,
+				header.getFeatureNames().size(),
+				header.getNumClasses(),
+				( engine == null ) ? 0 : engine.numBlurPlanes(),
+				engine != null,
+				numThreads,
+				halo,
+				isProcessing3D ? halo : 0,
+				budget );
+		if ( plan.isFeasible() )
+			setMemoryPlan( plan );
+		else
+			errorMessage = plan.getErrorMessage();
+		return plan;
+	}
+
+	/**
+	 * Sets the plan used to process frames within a memory budget: tile
+	 * sizes, and where feature planes are stored.
+	 * 
+	 * @param plan
+	 *            the plan, or <code>null</code> to process whole frames.
+	 */
+	public void setMemoryPlan( final MemoryPlan plan )
+	{
+		this.memoryPlan = plan;
+		if ( plan != null )
+			this.featureStorage = plan.getStorage();
+	}
+
+	public MemoryPlan getMemoryPlan()
+	{
+		return memoryPlan;
+	}
+
+	/**
+	 * Sets the metrics the latency of processing stages is recorded to. The
+	 * warm-up is not recorded.
+	 * 
+	 * @param metrics
+	 *            the metrics, or <code>null</code> not to record them.
+	 */
+	public void setMetrics( final DetectionMetrics metrics )
+	{
+		this.metrics = metrics;
+		if ( metrics != null )
+			metrics.setBufferPool( pool );
+	}
+
+	public DetectionMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Records the time elapsed since the specified start to the metrics, if
+	 * any.
+	 */
+	private void record( final String stage, final long start )
+	{
+		final DetectionMetrics m = metrics;
+		if ( m != null && !warmingUp )
+			m.record( stage, System.nanoTime() - start );
+	}
+
+	/**
+	 * Exposes the pool of buffers recycled across frames.
+	 * 
+	 * @return the buffer pool.
+	 */
+	public BufferPool getBufferPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Returns the native feature engine to use for the current classifier, or
+	 * <code>null</code> if the Weka segmentation has to be used. On first
+	 * call, the engine results are compared to the Weka ones on the most
+	 * textured tiles of the image, one plane at a time, and the engine is
+	 * discarded if they differ on any of them.
+	 */
+	private FeatureEngine getFeatureEngine( final ImgPlus< T > input, final Interval interval, final int classId )
+	{
+		if ( !useFeatureEngine || isProcessing3D )
+			return null;
+		if ( featureEngineChecked )
+			return featureEngine;
+
+		featureEngineChecked = true;
+		featureEngine = null;
+		if ( getFlatForest() == null )
+			return null;
+		final ClassifierHeader header;
+		try
+		{
+			header = ClassifierHeader.read( classifierFilePath );
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+		featureEngine = FeatureEngine.create( header.getFeatureNames() );
+		if ( featureEngine == null )
+			return null;
+
+		for ( final Interval tile : getValidationTiles( input, interval ) )
+		{
+			final RandomAccessibleInterval< T > expected = computeWithWeka( input, tile, classId );
+			if ( expected == null )
+			{
+				featureEngine = null;
+				return null;
+			}
+			final float[] buffer = pool.borrowFloats( ( int ) Intervals.numElements( tile ) );
+			final RandomAccessibleInterval< T > actual = computeWithFeatureEngine( input, tile, classId, Double.NaN, buffer );
+			if ( actual == null )
+			{
+				pool.release( buffer );
+				featureEngine = null;
+				return null;
+			}
+			long nDiffs = 0;
+			final Cursor< T > ce = Views.flatIterable( expected ).cursor();
+			final Cursor< T > ca = Views.flatIterable( actual ).cursor();
+			while ( ce.hasNext() )
+				if ( Math.abs( ce.next().getRealDouble() - ca.next().getRealDouble() ) > VALIDATION_TOLERANCE )
+					nDiffs++;
+			pool.release( buffer );
+			if ( nDiffs > Intervals.numElements( tile ) * VALIDATION_MAX_DIFF_FRACTION )
+			{
+				featureEngine = null;
+				return null;
+			}
+		}
+		return featureEngine;
+	}
+
+	/**
+	 * Returns the tiles the feature engine is validated on: the
+	 * {@link #VALIDATION_NUM_TILES} tiles of a grid over the first, middle and
+	 * last planes of the interval with the largest intensity variance, so that
+	 * the validation covers objects rather than an empty background. Each
+	 * tile is a single plane.
+	 */
+	private List< Interval > getValidationTiles( final ImgPlus< T > input, final Interval interval )
+	{
+		final int n = interval.numDimensions();
+		final List< Long > planes = new ArrayList<>();
+		if ( n > 2 )
+		{
+			final long[] candidates = new long[] { interval.min( 2 ), ( interval.min( 2 ) + interval.max( 2 ) ) / 2, interval.max( 2 ) };
+			for ( final long z : candidates )
+				if ( !planes.contains( z ) )
+					planes.add( z );
+		}
+		else
+		{
+			planes.add( 0l );
+		}
+
+		final List< Interval > tiles = new ArrayList<>();
+		final List< Double > variances = new ArrayList<>();
+		for ( final long z : planes )
+		{
+			for ( long y = interval.min( 1 ); y <= interval.max( 1 ); y += VALIDATION_TILE_SIZE )
+			{
+				for ( long x = interval.min( 0 ); x <= interval.max( 0 ); x += VALIDATION_TILE_SIZE )
+				{
+					final long[] min = Intervals.minAsLongArray( interval );
+					final long[] max = Intervals.maxAsLongArray( interval );
+					min[ 0 ] = x;
+					min[ 1 ] = y;
+					max[ 0 ] = Math.min( interval.max( 0 ), x + VALIDATION_TILE_SIZE - 1 );
+					max[ 1 ] = Math.min( interval.max( 1 ), y + VALIDATION_TILE_SIZE - 1 );
+					for ( int d = 2; d < n; d++ )
+					{
+						min[ d ] = ( d == 2 ) ? z : interval.min( d );
+						max[ d ] = min[ d ];
+					}
+					final Interval tile = new FinalInterval( min, max );
+
+					double sum = 0.;
+					double sumSq = 0.;
+					for ( final T t : Views.interval( input, tile ) )
+					{
+						final double v = t.getRealDouble();
+						sum += v;
+						sumSq += v * v;
+					}
+					final long count = Intervals.numElements( tile );
+					final double variance = sumSq / count - ( sum / count ) * ( sum / count );
+
+					// Keep the tiles sorted by decreasing variance.
+					int i = 0;
+					while ( i < variances.size() && variances.get( i ) >= variance )
+						i++;
+					if ( i >= VALIDATION_NUM_TILES )
+						continue;
+					tiles.add( i, tile );
+					variances.add( i, variance );
+					if ( tiles.size() > VALIDATION_NUM_TILES )
+					{
+						tiles.remove( VALIDATION_NUM_TILES );
+						variances.remove( VALIDATION_NUM_TILES );
+					}
+				}
+			}
+		}
+		return tiles;
+	}
+
+	public List< Spot > getSpotsFromLastProbabilities( final double threshold, final boolean simplify )
+	{
+		awaitWarmUp();
+		errorMessage = null;
+		if ( segmentation == null )
+		{
+			errorMessage = "The classifier is not loaded.";
+			return null;
+		}
+		if ( lastOutput == null )
+		{
+			errorMessage = "Probabilities have not been computed yet.";
+			return null;
+		}
+		if ( lastMaxTree != null && splitProminence <= 0. )
+			return lastMaxTree.getTable( getGrowThreshold( threshold ), threshold, simplify, minQuality, minSize ).toSpots();
+		return getSpots( lastOutput, lastCalibration, threshold, simplify );
+	}
+
+	/**
+	 * Builds the max-tree of the last probability image calculated, if it is
+	 * not built already. Once built, spots are created from the tree by
+	 * {@link #getSpotsFromLastProbabilities(double, boolean)}, so that
+	 * changing the threshold does not require to threshold and label the
+	 * probability image again.
+	 * 
+	 * @return the max-tree of the last probability image, or <code>null</code>
+	 *         if probabilities have not been computed yet.
+	 */
+	public ProbabilityMaxTree computeMaxTree()
+	{
+		errorMessage = null;
+		if ( lastOutput == null )
+		{
+			errorMessage = "Probabilities have not been computed yet.";
+			return null;
+		}
+		if ( lastMaxTree == null )
+			lastMaxTree = ProbabilityMaxTree.build( lastOutput, lastCalibration );
+		return lastMaxTree;
+	}
+
+	/**
+	 * Builds the multi-resolution pyramid of the last probability image
+	 * calculated, if it is not built already. The pyramid is built in
+	 * parallel, and comes with the histogram of the probabilities.
+	 * 
+	 * @return the pyramid of the last probability image, or
+	 *         <code>null</code> if probabilities have not been computed yet.
+	 */
+	public ProbabilityPyramid< T > computePyramid()
+	{
+		errorMessage = null;
+		if ( lastOutput == null )
+		{
+			errorMessage = "Probabilities have not been computed yet.";
+			return null;
+		}
+		if ( lastPyramid == null )
+			lastPyramid = ProbabilityPyramid.build( lastOutput, lastCalibration, numThreads );
+		return lastPyramid;
+	}
+
+	/**
+	 * Builds the histogram of the last probability image calculated, if it is
+	 * not built already. It is taken from the max-tree or the pyramid if one
+	 * of them was built, as they build it while they read the probabilities.
+	 * Otherwise it is built in parallel, directly from the pixel buffer of the
+	 * probabilities when there is one.
+	 * 
+	 * @return the histogram of the last probability image, or
+	 *         <code>null</code> if probabilities have not been computed yet.
+	 */
+	public ProbabilityHistogram computeHistogram()
+	{
+		errorMessage = null;
+		if ( lastOutput == null )
+		{
+			errorMessage = "Probabilities have not been computed yet.";
+			return null;
+		}
+		if ( lastHistogram == null )
+		{
+			if ( lastMaxTree != null )
+				lastHistogram = lastMaxTree.getHistogram();
+			else if ( lastPyramid != null )
+				lastHistogram = lastPyramid.getHistogram();
+			else if ( lastProbaBuffer != null )
+				lastHistogram = ProbabilityHistogram.build( lastProbaBuffer, ( int ) Intervals.numElements( lastOutput ), numThreads );
+			else
+				lastHistogram = ProbabilityHistogram.build( lastOutput, numThreads );
+		}
+		return lastHistogram;
+	}
+
+	/**
+	 * Exposes the histogram of the last probability image calculated.
+	 * 
+	 * @return the histogram, or <code>null</code> if it was not built for the
+	 *         last probability image.
+	 */
+	public ProbabilityHistogram getLastHistogram()
+	{
+		return lastHistogram;
+	}
+
+	/**
+	 * Exposes the max-tree of the last probability image calculated.
+	 * 
+	 * @return the max-tree, or <code>null</code> if it was not built for the
+	 *         last probability image.
+	 */
+	public ProbabilityMaxTree getLastMaxTree()
+	{
+		return lastMaxTree;
+	}
+
+	/**
+	 * Exposes the last probability image calculated.
+	 * 
+	 * @return the last probability image calculated. May be <code>null</code>
+	 */
+	public RandomAccessibleInterval< T > getLastOutput()
+	{
+		return lastOutput;
+	}
+
+	/**
+	 * Creates spots from the objects of a probability image. Objects are
+	 * labeled in a single pass, which also measures them: their statistics
+	 * are stored as spot features. The spot quality is the maximal
+	 * probability in the object. In 2D, the spots have the contour, position
+	 * and radius given by {@link fiji.plugin.trackmate.detection.MaskUtils},
+	 * and the pixel centroid is stored as a feature. Touching objects are
+	 * split if a split prominence is set. With a low threshold
+	 * set, objects are extracted with hysteresis thresholding.
+	 * 
+	 * @param proba
+	 *            the probability image, 2D or 3D.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param threshold
+	 *            the probability threshold, used as the seed threshold with
+	 *            hysteresis thresholding.
+	 * @param simplify
+	 *            if <code>true</code>, contours will be simplified.
+	 * @return a new list of spots.
+	 */
+	public List< Spot > getSpots( final RandomAccessibleInterval< T > proba, final double[] calibration, final double threshold, final boolean simplify )
+	{
+		final int width = ( int ) proba.dimension( 0 );
+		final int height = ( int ) proba.dimension( 1 );
+		final int nz = ( proba.numDimensions() > 2 ) ? ( int ) proba.dimension( 2 ) : 1;
+		final int n = ( int ) Intervals.numElements( proba );
+		final float[] values = pool.borrowFloats( n );
+		final int[] labels = pool.borrowInts( n );
+		try
+		{
+			final Cursor< T > cursor = Views.flatIterable( proba ).cursor();
+			int i = 0;
+			while ( cursor.hasNext() )
+				values[ i++ ] = cursor.next().getRealFloat();
+
+			final SlabLabeler labeler = new SlabLabeler( width, height, Intervals.minAsLongArray( proba ), calibration, getGrowThreshold( threshold ), threshold );
+			labeler.accept( values, nz, labels, numThreads );
+			if ( splitProminence <= 0. )
+				return labeler.getTable( labels, simplify, minQuality, minSize ).toSpots();
+
+			final int nComponents = labeler.relabel( labels, n );
+			final int[] dims = ( nz > 1 || proba.numDimensions() > 2 )
+					? new int[] { width, height, nz }
+					: new int[] { width, height };
+			return WatershedSplitter.splitToTable( values, labels, nComponents, dims, Intervals.minAsLongArray( proba ), calibration, splitProminence, simplify, minQuality, minSize, numThreads ).toSpots();
+		}
+		finally
+		{
+			pool.release( values );
+			pool.release( labels );
+		}
+	}
+
+	private RandomAccessibleInterval< T > deinterleave( final RandomAccessibleInterval< T > proba, final long start, final long step )
+	{
+		final List< RandomAccessibleInterval< T > > slices = new ArrayList<>();
+		final long nz = proba.dimension( 2 );
+		for ( long z = start; z < nz; z = z + step )
+		{
+			final RandomAccessibleInterval< T > slice = Views.hyperSlice( proba, 2, z );
+			slices.add( slice );
+		}
+		return Views.stack( slices );
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		setNumThreads( Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Sets the number of threads, or the maximal number of threads if they
+	 * are tuned.
+	 */
 	@Override
 	public void setNumThreads( final int numThreads )
 	{
 		this.numThreads = numThreads;
+		this.threadTuner = null;
 	}
 
 	@Override
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that a snapshot of a trained <code>FastRandomForest</code> gives the
+ * same class distributions as the classifier it was made from.
+ */
+public class ClassifierSnapshotTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[] FEATURES = new String[] { "original", "Gaussian_blur_2.0", "Sobel_filter_2.0", "Hessian_2.0" };
+
+	private static final String[] CLASSES = new String[] { "class 1", "class 2", "class 3" };
+
+	private static Instances createHeader()
+	{
+		final ArrayList< Attribute > attributes = new ArrayList<>();
+		for ( final String name : FEATURES )
+			attributes.add( new Attribute( name ) );
+		attributes.add( new Attribute( "class", Arrays.asList( CLASSES ) ) );
+		final Instances instances = new Instances( "segment", attributes, 0 );
+		instances.setClassIndex( FEATURES.length );
+		return instances;
+	}
+
+	/**
+	 * Random feature values, with a class that depends on the first two
+	 * features plus some noise.
+	 */
+	private static Instance randomInstance( final Random random, final Instances dataset )
+	{
+		final double[] values = new double[ FEATURES.length + 1 ];
+		for ( int i = 0; i < FEATURES.length; i++ )
+			values[ i ] = random.nextDouble();
+		final double score = values[ 0 ] + 0.5 * values[ 1 ] + 0.2 * random.nextGaussian();
+		values[ FEATURES.length ] = score < 0.5 ? 0 : score < 1. ? 1 : 2;
+		final Instance instance = new DenseInstance( 1., values );
+		instance.setDataset( dataset );
+		return instance;
+	}
+
+	/**
+	 * Saves a classifier the way the 'Trainable Weka segmentation' plugin
+	 * does: the classifier then the training header, gzipped.
+	 */
+	private static void save( final Object classifier, final Instances header, final File file ) throws IOException
+	{
+		try (ObjectOutputStream out = new ObjectOutputStream( new GZIPOutputStream( new FileOutputStream( file ) ) ))
+		{
+			out.writeObject( classifier );
+			out.writeObject( header );
+		}
+	}
+
+	@Test
+	public void testRoundTripGivesSameDistributions() throws Exception
+	{
+		final Random random = new Random( 29l );
+		final Instances training = createHeader();
+		for ( int i = 0; i < 500; i++ )
+			training.add( randomInstance( random, training ) );
+
+		final FastRandomForest rf = new FastRandomForest();
+		rf.setNumTrees( 20 );
+		rf.setNumFeatures( 2 );
+		rf.setSeed( 1 );
+		rf.buildClassifier( training );
+
+		final File model = new File( folder.getRoot(), "classifier.model" );
+		final File snapshotFile = new File( folder.getRoot(), "classifier." + ClassifierSnapshot.EXTENSION );
+		save( rf, new Instances( training, 0 ), model );
+		ClassifierSnapshot.convert( model.getPath(), snapshotFile.getPath() );
+		assertTrue( ClassifierSnapshot.isSnapshot( snapshotFile.getPath() ) );
+
+		final ClassifierSnapshot snapshot = ClassifierSnapshot.read( snapshotFile.getPath() );
+		assertEquals( Arrays.asList( FEATURES ), snapshot.getHeader().getFeatureNames() );
+		assertEquals( Arrays.asList( CLASSES ), snapshot.getHeader().getClassLabels() );
+		assertEquals( 20, snapshot.getForest().numTrees() );
+
+		final Instances header = snapshot.createWekaHeader();
+		assertEquals( training.numAttributes(), header.numAttributes() );
+		assertEquals( training.classIndex(), header.classIndex() );
+
+		final FlatForestClassifier flat = new FlatForestClassifier( snapshot.getForest() );
+		final Random fixed = new Random( 7l );
+		for ( int i = 0; i < 1000; i++ )
+		{
+			final Instance instance = randomInstance( fixed, header );
+			assertArrayEquals( "Instance " + i, rf.distributionForInstance( instance ), flat.distributionForInstance( instance ), 1e-12 );
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class DetectionCheckpointTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final Interval INTERVAL = new FinalInterval( new long[] { 0, 0 }, new long[] { 99, 99 } );
+
+	private static List< Spot > spots( final int n )
+	{
+		final List< Spot > spots = new ArrayList<>();
+		for ( int i = 0; i < n; i++ )
+			spots.add( new Spot( i, 2. * i, 0., 1., 0.5 + i / 100. ) );
+		return spots;
+	}
+
+	private String key( final Map< String, Object > settings ) throws IOException
+	{
+		final File classifier = new File( folder.getRoot(), "classifier.model" );
+		if ( !classifier.exists() )
+			try (FileOutputStream out = new FileOutputStream( classifier ))
+			{
+				out.write( new byte[] { 1, 2, 3 } );
+			}
+		final ImgPlus< FloatType > img = new ImgPlus<>( ArrayImgs.floats( 100, 100 ), "movie" );
+		return DetectionCheckpoint.key( classifier.getPath(), settings, img );
+	}
+
+	@Test
+	public void testKeyIgnoresSettingsThatDoNotChangeSpots() throws IOException
+	{
+		final Map< String, Object > settings = new HashMap<>();
+		settings.put( "PROBA_THRESHOLD", 0.5 );
+		settings.put( WekaDetectorFactory.KEY_NUM_WORKERS, 2 );
+		final String key = key( settings );
+
+		settings.put( WekaDetectorFactory.KEY_NUM_WORKERS, 4 );
+		assertEquals( key, key( settings ) );
+
+		settings.put( "PROBA_THRESHOLD", 0.6 );
+		assertNotEquals( key, key( settings ) );
+	}
+
+	@Test
+	public void testResume() throws IOException
+	{
+		final File dir = folder.newFolder();
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "resume" ))
+		{
+			assertEquals( 0, checkpoint.numCompletedFrames() );
+			for ( int frame = 0; frame < 5; frame++ )
+				checkpoint.append( frame, INTERVAL, 100 + frame, spots( frame + 1 ) );
+		}
+
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "resume" ))
+		{
+			assertEquals( 5, checkpoint.numCompletedFrames() );
+			final List< Spot > spots = checkpoint.get( 3, INTERVAL, 103 );
+			assertNotNull( spots );
+			assertEquals( 4, spots.size() );
+			assertEquals( 6., spots.get( 3 ).getDoublePosition( 1 ), 0. );
+			assertEquals( 0.53, spots.get( 3 ).getFeature( Spot.QUALITY ), 1e-9 );
+
+			assertNull( "Other interval", checkpoint.get( 3, new FinalInterval( 10, 10 ), 103 ) );
+			assertNull( "Unfinished frame", checkpoint.get( 7, INTERVAL, 107 ) );
+			assertNull( "Edited pixels", checkpoint.get( 3, INTERVAL, 999 ) );
+		}
+	}
+
+	@Test
+	public void testTornRecordIsDropped() throws IOException
+	{
+		final File dir = folder.newFolder();
+		final File file;
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "torn" ))
+		{
+			for ( int frame = 0; frame < 3; frame++ )
+				checkpoint.append( frame, INTERVAL, frame, spots( 2 ) );
+			file = checkpoint.getFile();
+		}
+		try (RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			raf.setLength( raf.length() - 5 );
+		}
+
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "torn" ))
+		{
+			assertEquals( 2, checkpoint.numCompletedFrames() );
+			assertNull( checkpoint.get( 2, INTERVAL, 2 ) );
+			checkpoint.append( 2, INTERVAL, 2, spots( 0 ) );
+		}
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "torn" ))
+		{
+			assertEquals( 3, checkpoint.numCompletedFrames() );
+			assertEquals( 0, checkpoint.get( 2, INTERVAL, 2 ).size() );
+		}
+	}
+
+	@Test
+	public void testDeletedWhenAllFramesAreFinished() throws IOException
+	{
+		final File dir = folder.newFolder();
+		final File file;
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "complete" ))
+		{
+			checkpoint.setNumFrames( 3 );
+			file = checkpoint.getFile();
+			checkpoint.append( 0, INTERVAL, 0, spots( 1 ) );
+			checkpoint.append( 1, INTERVAL, 1, spots( 1 ) );
+			assertTrue( file.exists() );
+			checkpoint.append( 2, INTERVAL, 2, spots( 1 ) );
+			assertFalse( file.exists() );
+		}
+
+		try (DetectionCheckpoint checkpoint = DetectionCheckpoint.open( dir, "complete" ))
+		{
+			assertEquals( 0, checkpoint.numCompletedFrames() );
+		}
+	}
+
+	@Test
+	public void testHashChangesWithPixels()
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( 20, 10 );
+		final long hash = DetectionCheckpoint.hash( img, img );
+		assertEquals( hash, DetectionCheckpoint.hash( img, img ) );
+
+		img.update( null ).getCurrentStorageArray()[ 57 ] = 0.25f;
+		assertNotEquals( hash, DetectionCheckpoint.hash( img, img ) );
+		assertEquals( "Outside of the interval", DetectionCheckpoint.hash( img, new FinalInterval( 5, 5 ) ),
+				DetectionCheckpoint.hash( ArrayImgs.floats( 20, 10 ), new FinalInterval( 5, 5 ) ) );
+	}
+}
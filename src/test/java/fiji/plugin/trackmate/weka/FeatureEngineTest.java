@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import trainableSegmentation.FeatureStack;
+
+/**
+ * Checks that the native feature engine computes the same features as the
+ * Weka feature stack, feature by feature.
+ */
+public class FeatureEngineTest
+{
+
+	private static final double TOLERANCE = 1e-4;
+
+	private static final int[] SUPPORTED_FEATURES = new int[] { FeatureStack.GAUSSIAN, FeatureStack.DOG, FeatureStack.SOBEL,
+			FeatureStack.MEAN, FeatureStack.VARIANCE, FeatureStack.MINIMUM, FeatureStack.MAXIMUM, FeatureStack.MEDIAN };
+
+	/**
+	 * Blobs of various sizes on a slanted background, with noise. Odd sizes
+	 * so that borders are handled differently in X and Y.
+	 */
+	private static float[] createImage( final int width, final int height, final long seed )
+	{
+		final Random random = new Random( seed );
+		final float[] pixels = new float[ width * height ];
+		for ( int y = 0; y < height; y++ )
+			for ( int x = 0; x < width; x++ )
+				pixels[ x + y * width ] = 10f + 0.2f * x + 0.1f * y + ( float ) random.nextGaussian();
+
+		for ( int b = 0; b < 12; b++ )
+		{
+			final double cx = random.nextDouble() * width;
+			final double cy = random.nextDouble() * height;
+			final double r = 1.5 + random.nextDouble() * 8.;
+			final double amplitude = 50. + random.nextDouble() * 200.;
+			for ( int y = 0; y < height; y++ )
+				for ( int x = 0; x < width; x++ )
+				{
+					final double d2 = ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy );
+					pixels[ x + y * width ] += ( float ) ( amplitude * Math.exp( -d2 / ( 2. * r * r ) ) );
+				}
+		}
+		return pixels;
+	}
+
+	/**
+	 * The TrackMate-Weka logo, in gray levels: a real image with sharp edges,
+	 * flat areas and antialiasing, that the synthetic images do not have.
+	 */
+	private static FloatProcessor loadLogo() throws IOException
+	{
+		final URL url = FeatureEngineTest.class.getResource( "/images/TrackMateWeka-logo.png" );
+		assertNotNull( "Logo not found", url );
+		final BufferedImage image = ImageIO.read( url );
+		return new ColorProcessor( image ).convertToFloatProcessor();
+	}
+
+	private static void assertSameFeatures( final int width, final int height, final long seed, final int... featureTypes )
+	{
+		assertSameFeatures( new FloatProcessor( width, height, createImage( width, height, seed ) ), featureTypes );
+	}
+
+	private static void assertSameFeatures( final FloatProcessor fp, final int... featureTypes )
+	{
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+		final float[] pixels = ( float[] ) fp.getPixels();
+		final ImagePlus imp = new ImagePlus( "image", new FloatProcessor( width, height, pixels.clone() ) );
+
+		final boolean[] enabled = new boolean[ FeatureStack.availableFeatures.length ];
+		for ( final int type : featureTypes )
+			enabled[ type ] = true;
+		final FeatureStack featureStack = new FeatureStack( imp );
+		featureStack.setEnabledFeatures( enabled );
+		featureStack.setMinimumSigma( 1. );
+		featureStack.setMaximumSigma( 16. );
+		featureStack.updateFeaturesMT();
+
+		final ImageStack stack = featureStack.getStack();
+		final List< String > names = new ArrayList<>();
+		for ( int i = 1; i <= stack.getSize(); i++ )
+			names.add( stack.getSliceLabel( i ) );
+
+		final FeatureEngine engine = FeatureEngine.create( names );
+		assertNotNull( "Unsupported features in " + names, engine );
+		final float[][] planes = engine.computeFeatures( pixels, width, height, 2 );
+		assertEquals( names.size(), planes.length );
+
+		for ( int f = 0; f < names.size(); f++ )
+		{
+			final float[] expected = ( float[] ) stack.getProcessor( f + 1 ).convertToFloat().getPixels();
+			for ( int i = 0; i < expected.length; i++ )
+			{
+				final double tolerance = TOLERANCE * Math.max( 1., Math.abs( expected[ i ] ) );
+				if ( Math.abs( expected[ i ] - planes[ f ][ i ] ) > tolerance )
+					throw new AssertionError( String.format( "Feature %s differs at (%d, %d): expected %f, got %f.",
+							names.get( f ), i % width, i / width, expected[ i ], planes[ f ][ i ] ) );
+			}
+		}
+	}
+
+	@Test
+	public void testGaussianBlur()
+	{
+		assertSameFeatures( 131, 97, 1l, FeatureStack.GAUSSIAN );
+	}
+
+	@Test
+	public void testDifferenceOfGaussians()
+	{
+		assertSameFeatures( 131, 97, 2l, FeatureStack.DOG );
+	}
+
+	@Test
+	public void testSobel()
+	{
+		assertSameFeatures( 131, 97, 3l, FeatureStack.SOBEL );
+	}
+
+	@Test
+	public void testMean()
+	{
+		assertSameFeatures( 131, 97, 4l, FeatureStack.MEAN );
+	}
+
+	@Test
+	public void testVariance()
+	{
+		assertSameFeatures( 131, 97, 5l, FeatureStack.VARIANCE );
+	}
+
+	@Test
+	public void testMinimum()
+	{
+		assertSameFeatures( 131, 97, 6l, FeatureStack.MINIMUM );
+	}
+
+	@Test
+	public void testMaximum()
+	{
+		assertSameFeatures( 131, 97, 7l, FeatureStack.MAXIMUM );
+	}
+
+	@Test
+	public void testMedian()
+	{
+		assertSameFeatures( 131, 97, 8l, FeatureStack.MEDIAN );
+	}
+
+	@Test
+	public void testAllSupportedFeaturesTogether()
+	{
+		assertSameFeatures( 64, 257, 9l, SUPPORTED_FEATURES );
+	}
+
+	@Test
+	public void testEachSupportedFeatureOnARealImage() throws IOException
+	{
+		final FloatProcessor logo = loadLogo();
+		for ( final int type : SUPPORTED_FEATURES )
+			assertSameFeatures( logo, type );
+	}
+
+	@Test
+	public void testUnsupportedFeatures()
+	{
+		assertNull( FeatureEngine.create( Arrays.asList( "original", "Hessian_1.0" ) ) );
+		assertNull( FeatureEngine.create( Arrays.asList( "Gaussian_blur_1.0_2.0" ) ) );
+		assertNull( FeatureEngine.create( Arrays.asList( "Difference_of_gaussians_1.0" ) ) );
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks early-exit voting against the full evaluation of the forest.
+ */
+public class FlatForestTest
+{
+
+	private static final int NUM_FEATURES = 6;
+
+	/**
+	 * Creates a forest of full binary trees with random splits and leaf
+	 * values, stored in breadth-first order.
+	 */
+	private static FlatForest createForest( final Random random, final int numTrees, final int depth, final int numClasses )
+	{
+		final int nodesPerTree = ( 1 << ( depth + 1 ) ) - 1;
+		final int firstLeaf = ( 1 << depth ) - 1;
+		final int n = numTrees * nodesPerTree;
+		final int[] roots = new int[ numTrees ];
+		final int[] attribute = new int[ n ];
+		final int[] child = new int[ n ];
+		final double[] split = new double[ n ];
+		final double[] leafValues = new double[ numTrees * ( nodesPerTree - firstLeaf ) * numClasses ];
+		int nLeaves = 0;
+		for ( int t = 0; t < numTrees; t++ )
+		{
+			final int root = t * nodesPerTree;
+			roots[ t ] = root;
+			for ( int i = 0; i < nodesPerTree; i++ )
+			{
+				final int node = root + i;
+				if ( i < firstLeaf )
+				{
+					attribute[ node ] = random.nextInt( NUM_FEATURES );
+					split[ node ] = random.nextDouble();
+					child[ node ] = root + 2 * i + 1;
+				}
+				else
+				{
+					attribute[ node ] = -1;
+					child[ node ] = nLeaves * numClasses;
+					// Unnormalized, as leaves hold class counts in some trees.
+					final double weight = 1. + random.nextInt( 3 );
+					for ( int c = 0; c < numClasses; c++ )
+						leafValues[ nLeaves * numClasses + c ] = weight * random.nextDouble();
+					nLeaves++;
+				}
+			}
+		}
+		return new FlatForest( numClasses, roots, attribute, child, split, leafValues );
+	}
+
+	private static double[] randomFeatures( final Random random )
+	{
+		final double[] features = new double[ NUM_FEATURES ];
+		for ( int i = 0; i < features.length; i++ )
+			features[ i ] = random.nextDouble();
+		return features;
+	}
+
+	@Test
+	public void testEarlyExitKeepsTheSideOfTheThreshold()
+	{
+		final Random random = new Random( 37l );
+		final double[] thresholds = new double[] { 0.1, 0.3, 0.5, 0.7, 0.9 };
+		for ( int f = 0; f < 5; f++ )
+		{
+			final int numClasses = 2 + f % 3;
+			final FlatForest forest = createForest( random, 50, 4, numClasses );
+			final double[] exact = new double[ numClasses ];
+			final double[] approx = new double[ numClasses ];
+			long evaluated = 0;
+			long total = 0;
+			for ( int p = 0; p < 2000; p++ )
+			{
+				final double[] features = randomFeatures( random );
+				forest.distribution( features, exact );
+				for ( final double threshold : thresholds )
+				{
+					final int classId = p % numClasses;
+					final int trees = forest.probability( features, classId, threshold, approx );
+					assertTrue( trees >= 1 && trees <= forest.numTrees() );
+					if ( Math.abs( exact[ classId ] - threshold ) > 1e-6 )
+						assertEquals( "Probability " + exact[ classId ] + " vs threshold " + threshold,
+								exact[ classId ] > threshold, approx[ classId ] > threshold );
+					if ( trees == forest.numTrees() )
+						assertEquals( exact[ classId ], approx[ classId ], 1e-12 );
+					evaluated += trees;
+					total += forest.numTrees();
+				}
+			}
+			assertTrue( "Early exit should skip trees", evaluated < total );
+		}
+	}
+
+	@Test
+	public void testNoThresholdEvaluatesAllTrees()
+	{
+		final Random random = new Random( 1l );
+		final FlatForest forest = createForest( random, 20, 3, 3 );
+		final double[] exact = new double[ 3 ];
+		final double[] approx = new double[ 3 ];
+		for ( int p = 0; p < 500; p++ )
+		{
+			final double[] features = randomFeatures( random );
+			forest.distribution( features, exact );
+			assertEquals( forest.numTrees(), forest.probability( features, 1, Double.NaN, approx ) );
+			assertEquals( exact[ 1 ], approx[ 1 ], 1e-12 );
+		}
+	}
+
+	@Test
+	public void testDistributionIsNormalized()
+	{
+		final Random random = new Random( 2l );
+		final FlatForest forest = createForest( random, 10, 5, 4 );
+		final double[] distribution = new double[ 4 ];
+		for ( int p = 0; p < 100; p++ )
+		{
+			forest.distribution( randomFeatures( random ), distribution );
+			double sum = 0.;
+			for ( final double d : distribution )
+				sum += d;
+			assertEquals( 1., sum, 1e-12 );
+		}
+	}
+}
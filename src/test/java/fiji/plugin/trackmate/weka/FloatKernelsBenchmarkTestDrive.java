@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ij.plugin.filter.GaussianBlur;
+
+/**
+ * Compares the pixel-outer and kernel-outer loop layouts of the float
+ * kernels. Whether the kernel-outer layout is faster depends on the JIT
+ * vectorizing its inner loops. On x86 CPUs, run with
+ * <code>-XX:UseAVX=2</code> or <code>-XX:UseAVX=3</code> to compare AVX2 and
+ * AVX-512.
+ */
+public class FloatKernelsBenchmarkTestDrive
+{
+
+	private static final int SIZE = 2048;
+
+	private static final int N_RUNS = 20;
+
+	public static void main( final String[] args )
+	{
+		System.out.println( "Float kernels: " + ( FloatKernels.KERNEL_OUTER_LOOP ? "kernel-outer" : "pixel-outer" ) + " loops by default." );
+		final Random ran = new Random( 1l );
+		final float[] image = new float[ SIZE * SIZE ];
+		for ( int i = 0; i < image.length; i++ )
+			image[ i ] = ran.nextFloat();
+
+		for ( final double sigma : new double[] { 0.4, 1.6, 3.2 } )
+		{
+			final float[][] kernel = new GaussianBlur().makeGaussianKernel( sigma, FeatureEngine.GAUSSIAN_ACCURACY, SIZE );
+			for ( final boolean xDirection : new boolean[] { true, false } )
+			{
+				final double pixelOuter = timeConvolution( image, kernel, xDirection, false );
+				final double kernelOuter = timeConvolution( image, kernel, xDirection, true );
+				System.out.println( String.format( "Convolution sigma=%.1f %s: pixel-outer %.1f ms, kernel-outer %.1f ms, speedup x%.2f",
+						sigma, xDirection ? "X" : "Y", pixelOuter, kernelOuter, pixelOuter / kernelOuter ) );
+			}
+		}
+
+		final short[] levels = new short[ image.length ];
+		final double quantize = time( () -> FloatKernels.quantize( image, 0f, 1f, 256, levels ) );
+		System.out.println( String.format( "Quantize: %.1f ms, %.2f Gpixel/s", quantize, image.length / quantize / 1e6 ) );
+	}
+
+	private static double timeConvolution( final float[] image, final float[][] kernel, final boolean xDirection, final boolean kernelOuter )
+	{
+		final float[] pixels = image.clone();
+		return time( () -> FloatKernels.convolve( pixels, SIZE, SIZE, kernel, xDirection, 1, kernelOuter, null ) );
+	}
+
+	/**
+	 * Returns the median time of a task, in ms, after warm-up.
+	 */
+	private static double time( final Runnable task )
+	{
+		for ( int i = 0; i < N_RUNS; i++ )
+			task.run();
+		final double[] times = new double[ N_RUNS ];
+		for ( int i = 0; i < N_RUNS; i++ )
+		{
+			final long start = System.nanoTime();
+			task.run();
+			times[ i ] = ( System.nanoTime() - start ) / 1e6;
+		}
+		Arrays.sort( times );
+		return times[ N_RUNS / 2 ];
+	}
+}
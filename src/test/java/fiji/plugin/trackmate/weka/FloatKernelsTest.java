@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+
+/**
+ * Checks that the two loop layouts of the convolution give bit-identical
+ * results, also identical to the ImageJ Gaussian blur.
+ */
+public class FloatKernelsTest
+{
+
+	private static final double[] SIGMAS = new double[] { 0.4, 1., 1.6, 3.2, 4.5 };
+
+	/**
+	 * Image sizes, with lines shorter than some of the kernels.
+	 */
+	private static final int[][] SIZES = new int[][] { { 131, 97 }, { 64, 7 }, { 5, 40 }, { 1, 23 } };
+
+	private static float[] randomImage( final Random random, final int size )
+	{
+		final float[] pixels = new float[ size ];
+		for ( int i = 0; i < size; i++ )
+			pixels[ i ] = 100f * random.nextFloat() - 20f;
+		return pixels;
+	}
+
+	private static float[] convolve( final float[] image, final int width, final int height, final double sigma, final boolean xDirection, final int numThreads, final boolean kernelOuter )
+	{
+		final float[][] kernel = new GaussianBlur().makeGaussianKernel( sigma, FeatureEngine.GAUSSIAN_ACCURACY, xDirection ? width : height );
+		final float[] pixels = image.clone();
+		FloatKernels.convolve( pixels, width, height, kernel, xDirection, numThreads, kernelOuter, null );
+		return pixels;
+	}
+
+	@Test
+	public void testLoopLayoutsAreBitIdentical()
+	{
+		final Random random = new Random( 31l );
+		for ( final int[] size : SIZES )
+		{
+			final float[] image = randomImage( random, size[ 0 ] * size[ 1 ] );
+			for ( final double sigma : SIGMAS )
+				for ( final boolean xDirection : new boolean[] { true, false } )
+				{
+					final float[] pixelOuter = convolve( image, size[ 0 ], size[ 1 ], sigma, xDirection, 1, false );
+					final float[] kernelOuter = convolve( image, size[ 0 ], size[ 1 ], sigma, xDirection, 3, true );
+					assertArrayEquals( String.format( "Size %dx%d, sigma %.1f, %s", size[ 0 ], size[ 1 ], sigma, xDirection ? "X" : "Y" ),
+							pixelOuter, kernelOuter, 0f );
+				}
+		}
+	}
+
+	@Test
+	public void testSameAsImageJ()
+	{
+		final Random random = new Random( 32l );
+		for ( final int[] size : SIZES )
+		{
+			final float[] image = randomImage( random, size[ 0 ] * size[ 1 ] );
+			for ( final double sigma : SIGMAS )
+				for ( final boolean xDirection : new boolean[] { true, false } )
+				{
+					final FloatProcessor fp = new FloatProcessor( size[ 0 ], size[ 1 ], image.clone() );
+					new GaussianBlur().blur1Direction( fp, sigma, FeatureEngine.GAUSSIAN_ACCURACY, xDirection, 0 );
+					final float[] expected = ( float[] ) fp.getPixels();
+					for ( final boolean kernelOuter : new boolean[] { false, true } )
+						assertArrayEquals( String.format( "Size %dx%d, sigma %.1f, %s, %s", size[ 0 ], size[ 1 ], sigma,
+								xDirection ? "X" : "Y", kernelOuter ? "kernel-outer" : "pixel-outer" ),
+								expected, convolve( image, size[ 0 ], size[ 1 ], sigma, xDirection, 2, kernelOuter ), 0f );
+				}
+		}
+	}
+
+	@Test
+	public void testQuantize()
+	{
+		final float[] values = new float[] { -1f, 0f, 0.1f, 0.499f, 0.5f, 0.999f, 1f, 2f, Float.NaN };
+		final short[] levels = new short[ values.length ];
+		FloatKernels.quantize( values, 0f, 1f, 256, levels );
+		final int[] expected = new int[] { 0, 0, 25, 127, 128, 255, 255, 255, 0 };
+		for ( int i = 0; i < values.length; i++ )
+			assertEquals( "Value " + values[ i ], expected[ i ], levels[ i ] & 0xffff );
+	}
+}
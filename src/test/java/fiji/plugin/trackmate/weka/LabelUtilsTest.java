@@ -0,0 +1,164 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import ij.process.ByteProcessor;
+
+/**
+ * Checks the contours traced on object masks: their area, and the position
+ * and radius of the spots they give.
+ */
+public class LabelUtilsTest
+{
+
+	private static Spot contour( final ByteProcessor mask, final long xmin, final long ymin, final double[] calibration, final boolean simplify )
+	{
+		final SpotTable table = new SpotTable( calibration, false );
+		final long[] bbox = new long[] { xmin, ymin, 0, xmin + mask.getWidth() - 1, ymin + mask.getHeight() - 1, 0 };
+		final int row = table.add( 0., 0., 0., 1, 1f, 1., new double[ 3 ], bbox, 0 );
+		LabelUtils.contour( mask, xmin, ymin, calibration, simplify, table, row );
+		final List< Spot > spots = table.toSpots();
+		assertEquals( 1, spots.size() );
+		return spots.get( 0 );
+	}
+
+	private static double area( final SpotRoi roi )
+	{
+		double a = 0.;
+		for ( int i = 0; i < roi.x.length; i++ )
+		{
+			final int j = ( i + 1 ) % roi.x.length;
+			a += roi.x[ i ] * roi.y[ j ] - roi.x[ j ] * roi.y[ i ];
+		}
+		return Math.abs( a / 2. );
+	}
+
+	private static ByteProcessor disk( final int size, final double radius )
+	{
+		final ByteProcessor mask = new ByteProcessor( size, size );
+		final double c = ( size - 1 ) / 2.;
+		for ( int y = 0; y < size; y++ )
+			for ( int x = 0; x < size; x++ )
+				if ( ( x - c ) * ( x - c ) + ( y - c ) * ( y - c ) <= radius * radius )
+					mask.set( x, y, 255 );
+		return mask;
+	}
+
+	private static int count( final ByteProcessor mask )
+	{
+		int n = 0;
+		for ( int i = 0; i < mask.getPixelCount(); i++ )
+			if ( mask.get( i ) != 0 )
+				n++;
+		return n;
+	}
+
+	@Test
+	public void testRectangle()
+	{
+		final ByteProcessor mask = new ByteProcessor( 6, 4 );
+		mask.setValue( 255 );
+		mask.fill();
+		final double[] calibration = new double[] { 0.5, 2. };
+		final Spot spot = contour( mask, 10, 20, calibration, false );
+
+		assertEquals( ( 10 + 2.5 ) * 0.5, spot.getDoublePosition( 0 ), 1e-12 );
+		assertEquals( ( 20 + 1.5 ) * 2., spot.getDoublePosition( 1 ), 1e-12 );
+		assertEquals( Math.sqrt( 24. / Math.PI ), spot.getFeature( Spot.RADIUS ), 1e-12 );
+
+		final SpotRoi roi = spot.getRoi();
+		assertNotNull( roi );
+		assertEquals( 4, roi.x.length );
+		assertEquals( 24., area( roi ), 1e-12 );
+		for ( int i = 0; i < roi.x.length; i++ )
+		{
+			// Vertices on the pixel corners.
+			assertEquals( 1.5, Math.abs( roi.x[ i ] ), 1e-12 );
+			assertEquals( 4., Math.abs( roi.y[ i ] ), 1e-12 );
+		}
+	}
+
+	@Test
+	public void testDisk()
+	{
+		final ByteProcessor mask = disk( 31, 12. );
+		final int n = count( mask );
+		final double[] calibration = new double[] { 1., 1. };
+		final Spot traced = contour( ( ByteProcessor ) mask.duplicate(), 100, 50, calibration, false );
+		final Spot simplified = contour( ( ByteProcessor ) mask.duplicate(), 100, 50, calibration, true );
+
+		// The traced contour follows the pixel edges.
+		assertEquals( n, area( traced.getRoi() ), 1e-9 );
+		assertEquals( Math.sqrt( n / Math.PI ), traced.getFeature( Spot.RADIUS ), 1e-9 );
+
+		// Symmetric: both contours are centered on the pixel centroid.
+		for ( final Spot spot : new Spot[] { traced, simplified } )
+		{
+			assertEquals( 115., spot.getDoublePosition( 0 ), 0.05 );
+			assertEquals( 65., spot.getDoublePosition( 1 ), 0.05 );
+		}
+
+		// The simplified contour is smoother, with fewer vertices.
+		final SpotRoi roi = simplified.getRoi();
+		assertTrue( roi.x.length < traced.getRoi().x.length );
+		assertEquals( n, area( roi ), 0.05 * n );
+		for ( int i = 0; i < roi.x.length; i++ )
+		{
+			final double r = Math.sqrt( roi.x[ i ] * roi.x[ i ] + roi.y[ i ] * roi.y[ i ] );
+			assertEquals( 12.5, r, 1. );
+		}
+	}
+
+	@Test
+	public void testHolesAreFilled()
+	{
+		final ByteProcessor mask = new ByteProcessor( 10, 10 );
+		mask.setValue( 255 );
+		mask.fill();
+		mask.setValue( 0 );
+		mask.setRoi( 3, 3, 4, 4 );
+		mask.fill();
+		mask.resetRoi();
+		final Spot spot = contour( mask, 0, 0, new double[] { 1., 1. }, false );
+		assertEquals( 100., area( spot.getRoi() ), 1e-12 );
+		assertEquals( 4.5, spot.getDoublePosition( 0 ), 1e-12 );
+		assertEquals( 4.5, spot.getDoublePosition( 1 ), 1e-12 );
+	}
+
+	@Test
+	public void testEmptyMaskHasNoContour()
+	{
+		final Spot spot = contour( new ByteProcessor( 5, 5 ), 0, 0, new double[] { 1., 1. }, true );
+		assertNull( spot.getRoi() );
+	}
+}
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.view.Views;
+
+public class ProbabilityHistogramTest
+{
+
+	private static final int N = ProbabilityHistogram.DEFAULT_BINS;
+
+	/**
+	 * Two modes, around 0.1 and 0.8, with 10% of the values in the upper one,
+	 * plus some values out of range and on bin edges.
+	 */
+	private static float[] bimodal( final long seed, final int n )
+	{
+		final Random random = new Random( seed );
+		final float[] values = new float[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final boolean foreground = random.nextDouble() < 0.1;
+			values[ i ] = ( float ) ( ( foreground ? 0.8 : 0.1 ) + 0.03 * random.nextGaussian() );
+		}
+		values[ 0 ] = -0.5f;
+		values[ 1 ] = 1.5f;
+		values[ 2 ] = 1f;
+		values[ 3 ] = 0f;
+		values[ 4 ] = 0.5f;
+		return values;
+	}
+
+	private static long[] naiveCounts( final float[] values )
+	{
+		final long[] counts = new long[ N ];
+		for ( final float v : values )
+		{
+			int bin = ( int ) Math.floor( ( double ) v * N );
+			bin = Math.max( 0, Math.min( N - 1, bin ) );
+			counts[ bin ]++;
+		}
+		return counts;
+	}
+
+	@Test
+	public void testBuild()
+	{
+		final float[] values = bimodal( 43l, 1009 * 99 );
+		final long[] expected = naiveCounts( values );
+		for ( final int numThreads : new int[] { 1, 3, 8 } )
+		{
+			assertArrayEquals( expected, ProbabilityHistogram.build( values, values.length, numThreads ).getCounts() );
+			assertArrayEquals( expected, ProbabilityHistogram.build(
+					Views.translate( ArrayImgs.floats( values, 1009, 99, 1 ), 4, 5, 6 ), numThreads ).getCounts() );
+		}
+		assertArrayEquals( expected, ProbabilityHistogram.build( ArrayImgs.floats( values, 1009, 99 ), 2 ).getCounts() );
+		assertArrayEquals( expected, ProbabilityMaxTree.build( ArrayImgs.floats( values, 1009, 99 ), new double[] { 1., 1. } ).getHistogram().getCounts() );
+		assertEquals( values.length, ProbabilityHistogram.build( values, values.length, 2 ).getTotal() );
+	}
+
+	@Test
+	public void testCountAbove()
+	{
+		final float[] values = bimodal( 44l, 50_000 );
+		final ProbabilityHistogram histogram = ProbabilityHistogram.build( values, values.length, 2 );
+		for ( int k = 1; k < N; k += 37 )
+		{
+			final double threshold = ( double ) k / N;
+			long count = 0;
+			for ( final float v : values )
+				if ( v >= threshold || v > 1f )
+					count++;
+			assertEquals( "At bin edge " + k, count, histogram.countAbove( threshold ), 0.5 );
+		}
+		assertEquals( 0., histogram.countAbove( 2. ), 0. );
+		assertEquals( values.length, histogram.countAbove( -1. ), 0. );
+		assertEquals( 0.1, histogram.getForegroundFraction( 0.45 ), 0.01 );
+	}
+
+	@Test
+	public void testSuggestedThresholds()
+	{
+		final float[] values = bimodal( 45l, 200_000 );
+		final ProbabilityHistogram histogram = ProbabilityHistogram.build( values, values.length, 4 );
+
+		// Both separate the modes.
+		final double otsu = histogram.otsu();
+		assertTrue( "Otsu " + otsu, otsu > 0.2 && otsu < 0.7 );
+		assertEquals( 0.1, histogram.getForegroundFraction( otsu ), 0.005 );
+
+		final double triangle = histogram.triangle();
+		assertTrue( "Triangle " + triangle, triangle > 0.15 && triangle < 0.7 );
+		assertEquals( 0.1, histogram.getForegroundFraction( triangle ), 0.005 );
+
+		for ( final double fraction : new double[] { 0.01, 0.05, 0.1, 0.5 } )
+		{
+			final double threshold = histogram.thresholdForFraction( fraction );
+			assertTrue( histogram.getForegroundFraction( threshold ) <= fraction );
+			assertTrue( histogram.getForegroundFraction( threshold - 1. / N ) > fraction );
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that the objects read from the max-tree at any threshold are the
+ * ones found by thresholding and labeling the probability map.
+ */
+public class ProbabilityMaxTreeTest
+{
+
+	private static final double[] CALIBRATION = new double[] { 1., 1., 1. };
+
+	private static final double[] THRESHOLDS = new double[] { 0., 0.3, 0.5, 0.55, 0.7, 0.9, 1. };
+
+	private static ProbabilityMaxTree build( final float[] values, final int[] dims, final long[] origin )
+	{
+		final long[] size = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			size[ d ] = dims[ d ];
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( values, size );
+		return ProbabilityMaxTree.build( Views.translate( img, origin ), CALIBRATION );
+	}
+
+	private static void assertSameObjects( final int[] dims, final long seed )
+	{
+		final long[] origin = new long[ dims.length ];
+		for ( int d = 0; d < dims.length; d++ )
+			origin[ d ] = 3 * d - 2;
+		final float[] values = ReferenceLabeling.blobs( new Random( seed ), dims, 3 );
+		final ProbabilityMaxTree tree = build( values, dims, origin );
+		for ( final double threshold : THRESHOLDS )
+		{
+			final List< String > expected = ReferenceLabeling.objects( values, dims, origin, threshold, threshold, 0., 0l );
+			assertEquals( "Count at " + threshold, expected.size(), tree.countComponents( threshold ) );
+			assertEquals( "Objects at " + threshold, expected,
+					ReferenceLabeling.signatures( tree.getTable( threshold, threshold, false, 0., 0l ).toSpots(), dims.length ) );
+		}
+	}
+
+	@Test
+	public void test2D()
+	{
+		assertSameObjects( new int[] { 83, 67 }, 26l );
+	}
+
+	@Test
+	public void test3D()
+	{
+		assertSameObjects( new int[] { 31, 27, 13 }, 27l );
+	}
+
+	@Test
+	public void testHysteresisAndFilters()
+	{
+		final int[] dims = new int[] { 64, 48 };
+		final long[] origin = new long[] { 0, 0 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 28l ), dims, 3 );
+		final ProbabilityMaxTree tree = build( values, dims, origin );
+		final List< String > expected = ReferenceLabeling.objects( values, dims, origin, 0.4, 0.65, 0.7, 5l );
+		assertFalse( expected.isEmpty() );
+		assertEquals( ReferenceLabeling.objects( values, dims, origin, 0.4, 0.65, 0., 0l ).size(), tree.countComponents( 0.4, 0.65 ) );
+		assertEquals( expected, ReferenceLabeling.signatures( tree.getTable( 0.4, 0.65, false, 0.7, 5l ).toSpots(), 2 ) );
+	}
+}
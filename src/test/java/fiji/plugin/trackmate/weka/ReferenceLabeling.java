@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Brute-force flood-fill labeling of a thresholded probability map, used as
+ * a reference by the tests of the labeling classes.
+ */
+class ReferenceLabeling
+{
+
+	private ReferenceLabeling()
+	{}
+
+	/**
+	 * Creates a random probability map with blobs: uniform noise smoothed by
+	 * a box filter a few times, and quantized so that equal values occur.
+	 */
+	static float[] blobs( final Random random, final int[] dims, final int smoothing )
+	{
+		int n = 1;
+		for ( final int d : dims )
+			n *= d;
+		float[] values = new float[ n ];
+		for ( int i = 0; i < n; i++ )
+			values[ i ] = random.nextFloat();
+		for ( int s = 0; s < smoothing; s++ )
+			for ( int d = 0; d < dims.length; d++ )
+				values = boxFilter( values, dims, d );
+
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for ( final float v : values )
+		{
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		for ( int i = 0; i < n; i++ )
+			values[ i ] = Math.round( 64f * ( values[ i ] - min ) / ( max - min ) ) / 64f;
+		return values;
+	}
+
+	private static float[] boxFilter( final float[] values, final int[] dims, final int d )
+	{
+		int step = 1;
+		for ( int k = 0; k < d; k++ )
+			step *= dims[ k ];
+		final float[] out = new float[ values.length ];
+		for ( int i = 0; i < values.length; i++ )
+		{
+			final int c = ( i / step ) % dims[ d ];
+			float sum = values[ i ];
+			int count = 1;
+			if ( c > 0 )
+			{
+				sum += values[ i - step ];
+				count++;
+			}
+			if ( c < dims[ d ] - 1 )
+			{
+				sum += values[ i + step ];
+				count++;
+			}
+			out[ i ] = sum / count;
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the signatures of the objects found with hysteresis
+	 * thresholding, 4-connected in 2D and 6-connected in 3D, sorted.
+	 */
+	static List< String > objects( final float[] values, final int[] dims, final long[] origin, final double threshold, final double seedThreshold, final double minQuality, final long minPixels )
+	{
+		final int n = values.length;
+		final boolean[] visited = new boolean[ n ];
+		final List< String > objects = new ArrayList<>();
+		final Deque< Integer > queue = new ArrayDeque<>();
+		for ( int start = 0; start < n; start++ )
+		{
+			if ( visited[ start ] || !( values[ start ] > threshold ) )
+				continue;
+			long count = 0;
+			double max = Double.NEGATIVE_INFINITY;
+			double sum = 0.;
+			final double[] centroid = new double[ 3 ];
+			final double[] weighted = new double[ 3 ];
+			final long[] bbox = new long[] { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE, Long.MIN_VALUE };
+			visited[ start ] = true;
+			queue.add( start );
+			while ( !queue.isEmpty() )
+			{
+				final int i = queue.poll();
+				count++;
+				max = Math.max( max, values[ i ] );
+				sum += values[ i ];
+				int rest = i;
+				int step = 1;
+				for ( int d = 0; d < dims.length; d++ )
+				{
+					final int c = rest % dims[ d ];
+					rest /= dims[ d ];
+					centroid[ d ] += c + origin[ d ];
+					weighted[ d ] += values[ i ] * ( c + origin[ d ] );
+					bbox[ d ] = Math.min( bbox[ d ], c + origin[ d ] );
+					bbox[ 3 + d ] = Math.max( bbox[ 3 + d ], c + origin[ d ] );
+					if ( c > 0 )
+						visit( i - step, values, threshold, visited, queue );
+					if ( c < dims[ d ] - 1 )
+						visit( i + step, values, threshold, visited, queue );
+					step *= dims[ d ];
+				}
+			}
+			if ( !( max > seedThreshold ) || max < minQuality || count < minPixels )
+				continue;
+			for ( int d = 0; d < dims.length; d++ )
+			{
+				centroid[ d ] /= count;
+				weighted[ d ] /= sum;
+			}
+			objects.add( signature( dims.length, count, max, sum, centroid, weighted, bbox ) );
+		}
+		Collections.sort( objects );
+		return objects;
+	}
+
+	private static void visit( final int j, final float[] values, final double threshold, final boolean[] visited, final Deque< Integer > queue )
+	{
+		if ( visited[ j ] || !( values[ j ] > threshold ) )
+			return;
+		visited[ j ] = true;
+		queue.add( j );
+	}
+
+	/**
+	 * Returns the sorted signatures of spots created with a unit calibration.
+	 */
+	static List< String > signatures( final List< Spot > spots, final int nDims )
+	{
+		final List< String > objects = new ArrayList<>();
+		for ( final Spot spot : spots )
+		{
+			final double[] centroid = new double[ 3 ];
+			final double[] weighted = new double[ 3 ];
+			final long[] bbox = new long[ 6 ];
+			for ( int d = 0; d < nDims; d++ )
+			{
+				centroid[ d ] = spot.getFeature( LabelUtils.PIXEL_POSITION[ d ] );
+				weighted[ d ] = spot.getFeature( LabelUtils.WEIGHTED_POSITION[ d ] );
+				bbox[ d ] = Math.round( spot.getFeature( LabelUtils.BBOX_MIN[ d ] ) );
+				bbox[ 3 + d ] = Math.round( spot.getFeature( LabelUtils.BBOX_MAX[ d ] ) );
+			}
+			objects.add( signature( nDims,
+					Math.round( spot.getFeature( LabelUtils.NUM_PIXELS ) ),
+					spot.getFeature( LabelUtils.MAX_PROBA ),
+					spot.getFeature( LabelUtils.TOTAL_PROBA ),
+					centroid, weighted, bbox ) );
+			assertEquals( spot.getFeature( LabelUtils.MAX_PROBA ), spot.getFeature( Spot.QUALITY ), 0. );
+		}
+		Collections.sort( objects );
+		return objects;
+	}
+
+	private static String signature( final int nDims, final long count, final double max, final double sum, final double[] centroid, final double[] weighted, final long[] bbox )
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( "n=%08d max=%.4f sum=%.2f", count, max, sum ) );
+		for ( int d = 0; d < nDims; d++ )
+			str.append( String.format( " c%d=%.3f w%d=%.3f [%d, %d]", d, centroid[ d ], d, weighted[ d ], bbox[ d ], bbox[ 3 + d ] ) );
+		return str.toString();
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Spot;
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Detects bright disks in a few frames with 2 worker processes and a tiny
+ * classifier.
+ */
+public class ShardPoolTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[] FEATURES = new String[] { "original", "Gaussian_blur_2.0" };
+
+	private static final String[] CLASSES = new String[] { "background", "disk" };
+
+	private static final int SIZE = 64;
+
+	private static final double RADIUS = 6.;
+
+	/** The disk centers of each frame. */
+	private static final double[][][] CENTERS = new double[][][] {
+			{ { 20, 20 } },
+			{ { 40, 24 } },
+			{ { 16, 44 }, { 46, 46 } },
+			{ { 32, 32 } } };
+
+	/**
+	 * Trains a forest that tells pixels around 1 from pixels around 0, and
+	 * saves it the way the 'Trainable Weka segmentation' plugin does.
+	 */
+	private static File createClassifier( final File folder ) throws Exception
+	{
+		final ArrayList< Attribute > attributes = new ArrayList<>();
+		for ( final String name : FEATURES )
+			attributes.add( new Attribute( name ) );
+		attributes.add( new Attribute( "class", Arrays.asList( CLASSES ) ) );
+		final Instances training = new Instances( "segment", attributes, 0 );
+		training.setClassIndex( FEATURES.length );
+
+		final Random random = new Random( 44l );
+		for ( int i = 0; i < 400; i++ )
+		{
+			final int c = i % 2;
+			final double[] values = new double[ FEATURES.length + 1 ];
+			for ( int f = 0; f < FEATURES.length; f++ )
+				values[ f ] = c + 0.1 * random.nextGaussian();
+			values[ FEATURES.length ] = c;
+			final Instance instance = new DenseInstance( 1., values );
+			instance.setDataset( training );
+			training.add( instance );
+		}
+
+		final FastRandomForest rf = new FastRandomForest();
+		rf.setNumTrees( 10 );
+		rf.setNumFeatures( 1 );
+		rf.setSeed( 1 );
+		rf.buildClassifier( training );
+
+		final File file = new File( folder, "disks.model" );
+		try (ObjectOutputStream out = new ObjectOutputStream( new GZIPOutputStream( new FileOutputStream( file ) ) ))
+		{
+			out.writeObject( rf );
+			out.writeObject( new Instances( training, 0 ) );
+		}
+		return file;
+	}
+
+	private static ImgPlus< FloatType > createFrame( final double[][] centers )
+	{
+		final Img< FloatType > img = ArrayImgs.floats( SIZE, SIZE );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			for ( final double[] center : centers )
+			{
+				final double dx = cursor.getDoublePosition( 0 ) - center[ 0 ];
+				final double dy = cursor.getDoublePosition( 1 ) - center[ 1 ];
+				if ( dx * dx + dy * dy <= RADIUS * RADIUS )
+					cursor.get().setReal( 1. );
+			}
+		}
+		return new ImgPlus<>( img, "frame", new AxisType[] { Axes.X, Axes.Y } );
+	}
+
+	@Test
+	public void testDetectFramesOnTwoWorkers() throws Exception
+	{
+		final File classifier = createClassifier( folder.getRoot() );
+		try (final ShardPool pool = new ShardPool( classifier.getPath(), false, 2, 1 ))
+		{
+			assertTrue( pool.getErrorMessage(), pool.start() );
+			for ( int frame = 0; frame < CENTERS.length; frame++ )
+			{
+				final ImgPlus< FloatType > input = createFrame( CENTERS[ frame ] );
+				final List< Spot > spots = pool.detect( input, input, 1, 0.5, true );
+				assertEquals( "Frame " + frame, CENTERS[ frame ].length, spots.size() );
+				for ( final double[] center : CENTERS[ frame ] )
+					assertTrue( "Frame " + frame + ": no spot at " + Arrays.toString( center ), hasSpotAt( spots, center ) );
+			}
+		}
+	}
+
+	@Test( expected = IOException.class )
+	public void testDetectFailsOnceClosed() throws Exception
+	{
+		final File classifier = createClassifier( folder.getRoot() );
+		final ShardPool pool = new ShardPool( classifier.getPath(), false, 2, 1 );
+		assertTrue( pool.getErrorMessage(), pool.start() );
+		pool.close();
+		final ImgPlus< FloatType > input = createFrame( CENTERS[ 0 ] );
+		pool.detect( input, input, 1, 0.5, true );
+	}
+
+	private static boolean hasSpotAt( final List< Spot > spots, final double[] center )
+	{
+		for ( final Spot spot : spots )
+		{
+			final double dx = spot.getDoublePosition( 0 ) - center[ 0 ];
+			final double dy = spot.getDoublePosition( 1 ) - center[ 1 ];
+			if ( dx * dx + dy * dy <= 1. )
+				return true;
+		}
+		return false;
+	}
+}
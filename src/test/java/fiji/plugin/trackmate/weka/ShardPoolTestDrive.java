@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.io.IOException;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+public class ShardPoolTestDrive
+{
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args ) throws IOException
+	{
+		final String classifierPath = "/Users/tinevez/Projects/CCharendoff/Data/jyclassifier.model";
+		final String targetImagePath = "/Users/tinevez/Projects/CCharendoff/Data/crop-2tp.tif";
+		final int classId = 0;
+		final double probaThreshold = 0.5;
+		final boolean simplify = true;
+		final int numWorkers = 2;
+
+		final ImagePlus imp = IJ.openImage( targetImagePath );
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > allChannels = TMUtils.rawWraps( imp );
+		final boolean is3D = allChannels.dimensionIndex( Axes.Z ) >= 0;
+
+		final WekaRunner< T > wekaRunner = new WekaRunner<>( classifierPath, is3D );
+		if ( !wekaRunner.loadClassifier() )
+		{
+			System.err.println( wekaRunner.getErrorMessage() );
+			return;
+		}
+
+		final int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / numWorkers );
+		try (final ShardPool pool = new ShardPool( classifierPath, is3D, numWorkers, numThreads ))
+		{
+			final long start0 = System.currentTimeMillis();
+			if ( !pool.start() )
+			{
+				System.err.println( pool.getErrorMessage() );
+				return;
+			}
+			System.out.println( String.format( "Started %d workers in %.2f seconds.", numWorkers, ( System.currentTimeMillis() - start0 ) / 1000. ) );
+
+			for ( int frame = 0; frame < imp.getNFrames(); frame++ )
+			{
+				final ImgPlus< T > input = TMUtils.hyperSlice( allChannels, 0, frame );
+
+				final long start1 = System.currentTimeMillis();
+				final List< Spot > local = wekaRunner.detect( input, input, classId, probaThreshold, simplify );
+				final long end1 = System.currentTimeMillis();
+				final List< Spot > sharded = pool.detect( input, input, classId, probaThreshold, simplify );
+				final long end2 = System.currentTimeMillis();
+
+				System.out.println( String.format( "Frame %d: %d spots in this JVM in %.2f s, %d spots on a worker in %.2f s.",
+						frame, local.size(), ( end1 - start1 ) / 1000., sharded.size(), ( end2 - end1 ) / 1000. ) );
+			}
+		}
+	}
+}
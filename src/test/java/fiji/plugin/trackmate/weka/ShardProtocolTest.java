@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+public class ShardProtocolTest
+{
+
+	private static DataInputStream roundTrip( final ByteArrayOutputStream bytes )
+	{
+		return new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+	}
+
+	@Test
+	public void testTask() throws IOException
+	{
+		final ShardProtocol.Task task = new ShardProtocol.Task();
+		task.classId = 2;
+		task.threshold = 0.65;
+		task.lowThreshold = 0.4;
+		task.splitProminence = 0.1;
+		task.earlyExit = true;
+		task.useFeatureEngine = true;
+		task.simplify = false;
+		task.memoryBudget = 123_456_789l;
+		task.minQuality = 0.7;
+		task.minSize = 12l;
+		task.calibration = new double[] { 0.2, 0.2, 1.5 };
+		task.intervalMin = new long[] { 10, 20, 0 };
+		task.intervalMax = new long[] { 109, 119, 4 };
+		task.min = new long[] { 0, 5, 0 };
+		task.dims = new long[] { 130, 135, 5 };
+		// Not a multiple of the chunk size.
+		task.pixels = new float[ 130 * 135 * 5 ];
+		final Random random = new Random( 44l );
+		for ( int i = 0; i < task.pixels.length; i++ )
+			task.pixels[ i ] = random.nextFloat();
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		ShardProtocol.writeTask( out, task );
+		out.writeInt( 42 );
+		out.flush();
+
+		final DataInputStream in = roundTrip( bytes );
+		final ShardProtocol.Task read = ShardProtocol.readTask( in );
+		assertEquals( "Task fully read", 42, in.readInt() );
+		assertEquals( task.classId, read.classId );
+		assertEquals( task.threshold, read.threshold, 0. );
+		assertEquals( task.lowThreshold, read.lowThreshold, 0. );
+		assertEquals( task.splitProminence, read.splitProminence, 0. );
+		assertEquals( task.earlyExit, read.earlyExit );
+		assertEquals( task.useFeatureEngine, read.useFeatureEngine );
+		assertEquals( task.simplify, read.simplify );
+		assertEquals( task.memoryBudget, read.memoryBudget );
+		assertEquals( task.minQuality, read.minQuality, 0. );
+		assertEquals( task.minSize, read.minSize );
+		assertArrayEquals( task.calibration, read.calibration, 0. );
+		assertArrayEquals( task.intervalMin, read.intervalMin );
+		assertArrayEquals( task.intervalMax, read.intervalMax );
+		assertArrayEquals( task.min, read.min );
+		assertArrayEquals( task.dims, read.dims );
+		assertArrayEquals( task.pixels, read.pixels, 0f );
+	}
+
+	@Test
+	public void testSpots() throws IOException
+	{
+		final List< Spot > spots = new ArrayList<>();
+		final Spot withRoi = new Spot( 1.5, 2.5, 0., 3., 0.9 );
+		withRoi.putFeature( LabelUtils.NUM_PIXELS, Double.valueOf( 28. ) );
+		withRoi.putFeature( LabelUtils.MEAN_PROBA, Double.valueOf( 0.75 ) );
+		withRoi.setRoi( new SpotRoi( new double[] { -1., 1., 1., -1. }, new double[] { -2., -2., 2., 2. } ) );
+		spots.add( withRoi );
+		final Spot without = new Spot( -4., 5., 6.25, 1., 0.55 );
+		without.putFeature( LabelUtils.TOTAL_PROBA, Double.valueOf( 12.5 ) );
+		spots.add( without );
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream( bytes );
+		ShardProtocol.writeSpots( out, spots );
+		ShardProtocol.writeSpots( out, new ArrayList<>() );
+		out.flush();
+
+		final DataInputStream in = roundTrip( bytes );
+		final List< Spot > read = ShardProtocol.readSpots( in );
+		assertEquals( 0, ShardProtocol.readSpots( in ).size() );
+		assertEquals( spots.size(), read.size() );
+		for ( int i = 0; i < spots.size(); i++ )
+		{
+			final Spot expected = spots.get( i );
+			final Spot actual = read.get( i );
+			for ( int d = 0; d < 3; d++ )
+				assertEquals( expected.getDoublePosition( d ), actual.getDoublePosition( d ), 0. );
+			for ( final String key : expected.getFeatures().keySet() )
+				assertEquals( key, expected.getFeature( key ), actual.getFeature( key ) );
+		}
+		assertArrayEquals( withRoi.getRoi().x, read.get( 0 ).getRoi().x, 0. );
+		assertArrayEquals( withRoi.getRoi().y, read.get( 0 ).getRoi().y, 0. );
+		assertNull( read.get( 1 ).getRoi() );
+	}
+}
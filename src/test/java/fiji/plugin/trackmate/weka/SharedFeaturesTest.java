@@ -0,0 +1,178 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Checks that classifiers sharing a feature stack give the same
+ * probabilities as when they are evaluated by separate runners.
+ */
+public class SharedFeaturesTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String[] FEATURES = new String[] { "original", "Gaussian_blur_2.0" };
+
+	private static final String[] CLASSES = new String[] { "background", "object" };
+
+	/**
+	 * Trains a forest that tells pixels above a level from pixels below it,
+	 * and saves it the way the 'Trainable Weka segmentation' plugin does.
+	 */
+	private File createClassifier( final String name, final double level, final long seed ) throws Exception
+	{
+		final ArrayList< Attribute > attributes = new ArrayList<>();
+		for ( final String feature : FEATURES )
+			attributes.add( new Attribute( feature ) );
+		attributes.add( new Attribute( "class", Arrays.asList( CLASSES ) ) );
+		final Instances training = new Instances( "segment", attributes, 0 );
+		training.setClassIndex( FEATURES.length );
+
+		final Random random = new Random( seed );
+		for ( int i = 0; i < 400; i++ )
+		{
+			final double[] values = new double[ FEATURES.length + 1 ];
+			for ( int f = 0; f < FEATURES.length; f++ )
+				values[ f ] = random.nextDouble();
+			values[ FEATURES.length ] = ( values[ 0 ] + 0.1 * random.nextGaussian() > level ) ? 1 : 0;
+			final Instance instance = new DenseInstance( 1., values );
+			instance.setDataset( training );
+			training.add( instance );
+		}
+
+		final FastRandomForest rf = new FastRandomForest();
+		rf.setNumTrees( 10 );
+		rf.setNumFeatures( 1 );
+		rf.setSeed( ( int ) seed );
+		rf.buildClassifier( training );
+
+		final File file = new File( folder.getRoot(), name + ".model" );
+		try (ObjectOutputStream out = new ObjectOutputStream( new GZIPOutputStream( new FileOutputStream( file ) ) ))
+		{
+			out.writeObject( rf );
+			out.writeObject( new Instances( training, 0 ) );
+		}
+		return file;
+	}
+
+	private static ImgPlus< FloatType > createImage()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 96, 80 );
+		final Random random = new Random( 50l );
+		final Cursor< FloatType > cursor = img.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			final double x = cursor.getDoublePosition( 0 );
+			final double y = cursor.getDoublePosition( 1 );
+			final double v = 0.5 + 0.4 * Math.sin( x / 7. ) * Math.cos( y / 9. ) + 0.05 * random.nextGaussian();
+			cursor.get().setReal( v );
+		}
+		return new ImgPlus<>( img, "image", new AxisType[] { Axes.X, Axes.Y } );
+	}
+
+	private static WekaRunner< FloatType > createRunner( final File classifier, final boolean useFeatureEngine )
+	{
+		final WekaRunner< FloatType > runner = new WekaRunner<>( classifier.getPath(), false );
+		runner.setUseFeatureEngine( useFeatureEngine );
+		assertTrue( runner.getErrorMessage(), runner.loadClassifier() );
+		return runner;
+	}
+
+	private static void assertSameProbabilities( final String message, final RandomAccessibleInterval< FloatType > expected, final RandomAccessibleInterval< FloatType > actual )
+	{
+		final Iterator< FloatType > it = Views.flatIterable( actual ).iterator();
+		for ( final FloatType e : Views.flatIterable( expected ) )
+			assertEquals( message, e.get(), it.next().get(), 1e-6 );
+	}
+
+	@Test
+	public void testSharedFeaturesGiveSameProbabilities() throws Exception
+	{
+		final File first = createClassifier( "first", 0.5, 1l );
+		final File second = createClassifier( "second", 0.3, 2l );
+		final ImgPlus< FloatType > input = createImage();
+
+		final WekaRunner< FloatType > shared = createRunner( first, true );
+		assertTrue( shared.getErrorMessage(), shared.addClassifier( second.getPath() ) );
+		final List< RandomAccessibleInterval< FloatType > > both = shared.computeAllProbabilities( input, input, new int[] { 1, 1 } );
+		assertNotNull( shared.getErrorMessage(), both );
+		assertEquals( 2, both.size() );
+
+		final File[] classifiers = new File[] { first, second };
+		for ( int k = 0; k < classifiers.length; k++ )
+		{
+			final WekaRunner< FloatType > separate = createRunner( classifiers[ k ], true );
+			final RandomAccessibleInterval< FloatType > expected = separate.computeProbabilities( input, input, 1 );
+			assertNotNull( separate.getErrorMessage(), expected );
+			assertSameProbabilities( classifiers[ k ].getName(), expected, both.get( k ) );
+		}
+	}
+
+	@Test
+	public void testSeveralClassifiersNeedTheFeatureEngine() throws Exception
+	{
+		final File first = createClassifier( "first", 0.5, 1l );
+		final File second = createClassifier( "second", 0.3, 2l );
+		final ImgPlus< FloatType > input = createImage();
+
+		final WekaRunner< FloatType > runner = createRunner( first, false );
+		assertTrue( runner.getErrorMessage(), runner.addClassifier( second.getPath() ) );
+		assertNull( runner.computeAllProbabilities( input, input, new int[] { 1, 1 } ) );
+		assertTrue( runner.getErrorMessage(), runner.getErrorMessage().contains( "feature engine" ) );
+	}
+}
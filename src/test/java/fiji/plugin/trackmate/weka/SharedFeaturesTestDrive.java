@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+public class SharedFeaturesTestDrive
+{
+
+	public static < T extends RealType< T > & NativeType< T > > void main( final String[] args )
+	{
+		final String classifierPath = "/Users/tinevez/Projects/CCharendoff/Data/jyclassifier.model";
+		final String otherClassifierPath = "/Users/tinevez/Projects/CCharendoff/Data/jyclassifier-v2.model";
+		final String targetImagePath = "/Users/tinevez/Projects/CCharendoff/Data/crop-2tp.tif";
+		final double probaThreshold = 0.5;
+		final boolean simplify = true;
+
+		final ImagePlus imp = IJ.openImage( targetImagePath );
+		@SuppressWarnings( "unchecked" )
+		final ImgPlus< T > allChannels = TMUtils.rawWraps( imp );
+		final boolean is3D = allChannels.dimensionIndex( Axes.Z ) >= 0;
+
+		final WekaRunner< T > shared = new WekaRunner<>( classifierPath, is3D );
+		final WekaRunner< T > other = new WekaRunner<>( otherClassifierPath, is3D );
+		// Features are only shared by the native feature engine.
+		shared.setUseFeatureEngine( true );
+		other.setUseFeatureEngine( true );
+		if ( !shared.loadClassifier() || !other.loadClassifier() )
+		{
+			System.err.println( shared.getErrorMessage() + " " + other.getErrorMessage() );
+			return;
+		}
+		if ( !shared.addClassifier( otherClassifierPath ) )
+		{
+			System.err.println( shared.getErrorMessage() );
+			return;
+		}
+
+		for ( int frame = 0; frame < imp.getNFrames(); frame++ )
+		{
+			final ImgPlus< T > input = TMUtils.hyperSlice( allChannels, 0, frame );
+
+			final long start1 = System.currentTimeMillis();
+			final List< List< Spot > > both = shared.detectAll( input, input, new int[] { 0, 0 }, new double[] { probaThreshold, probaThreshold }, simplify );
+			final long end1 = System.currentTimeMillis();
+			final List< Spot > first = shared.detect( input, input, 0, probaThreshold, simplify );
+			final List< Spot > second = other.detect( input, input, 0, probaThreshold, simplify );
+			final long end2 = System.currentTimeMillis();
+
+			System.out.println( String.format( "Frame %d: %d + %d spots with shared features in %.2f s, %d + %d spots separately in %.2f s.",
+					frame, both.get( 0 ).size(), both.get( 1 ).size(), ( end1 - start1 ) / 1000.,
+					first.size(), second.size(), ( end2 - end1 ) / 1000. ) );
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SlabLabelerTest
+{
+
+	private static final double[] CALIBRATION = new double[] { 1., 1., 1. };
+
+	/**
+	 * Labels a stack fed in slabs of the specified thickness.
+	 */
+	private static List< String > labelInSlabs( final float[] values, final int[] dims, final long[] origin, final int thickness, final double threshold, final double seedThreshold, final int numThreads )
+	{
+		final int planeSize = dims[ 0 ] * dims[ 1 ];
+		final SlabLabeler labeler = new SlabLabeler( dims[ 0 ], dims[ 1 ], origin, CALIBRATION, threshold, seedThreshold );
+		final int[] labels = new int[ thickness * planeSize ];
+		for ( int z = 0; z < dims[ 2 ]; z += thickness )
+		{
+			final int nz = Math.min( thickness, dims[ 2 ] - z );
+			final float[] slab = Arrays.copyOfRange( values, z * planeSize, ( z + nz ) * planeSize );
+			labeler.accept( slab, nz, labels, numThreads );
+		}
+		assertEquals( dims[ 2 ], labeler.numPlanes() );
+		return ReferenceLabeling.signatures( labeler.getSpots(), 3 );
+	}
+
+	@Test
+	public void testSlabsGiveTheSameObjectsAsTheWholeStack()
+	{
+		final int[] dims = new int[] { 40, 30, 23 };
+		final long[] origin = new long[] { 5, -3, 2 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 35l ), dims, 3 );
+		for ( final double threshold : new double[] { 0.5, 0.6, 0.7 } )
+		{
+			final List< String > expected = ReferenceLabeling.objects( values, dims, origin, threshold, threshold, 0., 0l );
+			assertFalse( expected.isEmpty() );
+			for ( final int thickness : new int[] { 1, 2, 5, 23 } )
+				assertEquals( "Slabs of " + thickness + " planes", expected, labelInSlabs( values, dims, origin, thickness, threshold, threshold, 1 ) );
+		}
+	}
+
+	@Test
+	public void test2D()
+	{
+		final int[] dims = new int[] { 97, 61 };
+		final long[] origin = new long[] { 10, 20 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 2l ), dims, 4 );
+		final SlabLabeler labeler = new SlabLabeler( dims[ 0 ], dims[ 1 ], origin, CALIBRATION, 0.55 );
+		final int[] labels = new int[ values.length ];
+		labeler.accept( values, 1, labels );
+		final List< String > expected = ReferenceLabeling.objects( values, dims, origin, 0.55, 0.55, 0.6, 3l );
+		assertFalse( expected.isEmpty() );
+		assertEquals( expected, ReferenceLabeling.signatures( labeler.getTable( labels, false, 0.6, 3l ).toSpots(), 2 ) );
+	}
+
+	@Test
+	public void testHysteresis()
+	{
+		final int[] dims = new int[] { 40, 30, 23 };
+		final long[] origin = new long[] { 0, 0, 0 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 40l ), dims, 3 );
+		final List< String > expected = ReferenceLabeling.objects( values, dims, origin, 0.45, 0.7, 0., 0l );
+		assertFalse( expected.isEmpty() );
+		assertNotEquals( ReferenceLabeling.objects( values, dims, origin, 0.45, 0.45, 0., 0l ), expected );
+		for ( final int thickness : new int[] { 1, 4, 23 } )
+			assertEquals( "Slabs of " + thickness + " planes", expected, labelInSlabs( values, dims, origin, thickness, 0.45, 0.7, 1 ) );
+	}
+
+	@Test
+	public void testParallelBands()
+	{
+		// Tall slabs, so that they are cut in several bands.
+		final int[] dims = new int[] { 50, 300, 7 };
+		final long[] origin = new long[] { 0, 0, 0 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 41l ), dims, 3 );
+		for ( final double seedThreshold : new double[] { 0.55, 0.7 } )
+		{
+			final List< String > expected = ReferenceLabeling.objects( values, dims, origin, 0.55, seedThreshold, 0., 0l );
+			for ( final int numThreads : new int[] { 2, 3, 8 } )
+				for ( final int thickness : new int[] { 1, 3, 7 } )
+					assertEquals( numThreads + " threads, slabs of " + thickness + " planes", expected,
+							labelInSlabs( values, dims, origin, thickness, 0.55, seedThreshold, numThreads ) );
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThreadTunerTest
+{
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int MAX_THREADS = 16;
+
+	/**
+	 * Throughput that peaks at 8 threads, in pixels per second.
+	 */
+	private static double throughput( final int threads )
+	{
+		return 1e6 * ( threads <= 8 ? threads : 17 - threads );
+	}
+
+	private File file()
+	{
+		return new File( folder.getRoot(), "threads.properties" );
+	}
+
+	@Test
+	public void testTunePicksFastestCount()
+	{
+		final ThreadTuner tuner = new ThreadTuner( "key", MAX_THREADS, file() );
+		assertTrue( tuner.needsTuning() );
+		assertEquals( MAX_THREADS, tuner.getNumThreads() );
+		assertEquals( 8, tuner.tune( ThreadTunerTest::throughput ) );
+		assertEquals( 8, tuner.getNumThreads() );
+		assertFalse( tuner.needsTuning() );
+	}
+
+	@Test
+	public void testWarmUpIsDiscarded()
+	{
+		final List< Integer > calls = new ArrayList<>();
+		final IntToDoubleFunction outlierFirst = threads -> {
+			// An outlier first measurement, that must not be picked.
+			final double t = calls.isEmpty() ? 1e9 : throughput( threads );
+			calls.add( threads );
+			return t;
+		};
+		final ThreadTuner tuner = new ThreadTuner( "key", MAX_THREADS, file() );
+		assertEquals( 8, tuner.tune( outlierFirst ) );
+
+		final List< Integer > expected = new ArrayList<>();
+		expected.add( MAX_THREADS );
+		for ( final int c : ThreadTuner.candidates( MAX_THREADS ) )
+			expected.add( c );
+		assertEquals( expected, calls );
+	}
+
+	@Test
+	public void testFailedWarmUpSkipsMeasurements()
+	{
+		final List< Integer > calls = new ArrayList<>();
+		final ThreadTuner tuner = new ThreadTuner( "key", MAX_THREADS, file() );
+		assertEquals( MAX_THREADS, tuner.tune( threads -> {
+			calls.add( threads );
+			return 0.;
+		} ) );
+		assertEquals( Arrays.asList( MAX_THREADS ), calls );
+		assertFalse( file().exists() );
+	}
+
+	@Test
+	public void testStoreAndLoad()
+	{
+		new ThreadTuner( "key 1", MAX_THREADS, file() ).tune( ThreadTunerTest::throughput );
+		new ThreadTuner( "key 2", 4, file() ).tune( ThreadTunerTest::throughput );
+		assertTrue( file().isFile() );
+
+		final ThreadTuner loaded1 = new ThreadTuner( "key 1", MAX_THREADS, file() );
+		assertFalse( loaded1.needsTuning() );
+		assertEquals( 8, loaded1.getNumThreads() );
+
+		final ThreadTuner loaded2 = new ThreadTuner( "key 2", 4, file() );
+		assertFalse( loaded2.needsTuning() );
+		assertEquals( 4, loaded2.getNumThreads() );
+
+		final ThreadTuner unknown = new ThreadTuner( "key 3", MAX_THREADS, file() );
+		assertTrue( unknown.needsTuning() );
+		assertEquals( MAX_THREADS, unknown.getNumThreads() );
+	}
+
+	@Test
+	public void testStoredCountAboveMaximumIsIgnored()
+	{
+		new ThreadTuner( "key", MAX_THREADS, file() ).tune( ThreadTunerTest::throughput );
+		final ThreadTuner fewer = new ThreadTuner( "key", 4, file() );
+		assertTrue( fewer.needsTuning() );
+		assertEquals( 4, fewer.getNumThreads() );
+	}
+
+	@Test
+	public void testDriftAsksForTuning()
+	{
+		final ThreadTuner tuner = new ThreadTuner( "key", MAX_THREADS, file() );
+		tuner.tune( ThreadTunerTest::throughput );
+
+		// The first frame is the reference: 1000 px/s.
+		tuner.record( 1000, 1_000_000_000l );
+		// Within the drift ratio.
+		tuner.record( 800, 1_000_000_000l );
+		tuner.record( 1300, 1_000_000_000l );
+		assertFalse( tuner.needsTuning() );
+
+		// Two drifting frames then a normal one start the count over.
+		tuner.record( 500, 1_000_000_000l );
+		tuner.record( 2000, 1_000_000_000l );
+		tuner.record( 1000, 1_000_000_000l );
+		assertFalse( tuner.needsTuning() );
+
+		tuner.record( 500, 1_000_000_000l );
+		tuner.record( 500, 1_000_000_000l );
+		assertFalse( tuner.needsTuning() );
+		tuner.record( 500, 1_000_000_000l );
+		assertTrue( tuner.needsTuning() );
+
+		// Tuning again resets the reference.
+		tuner.tune( ThreadTunerTest::throughput );
+		assertFalse( tuner.needsTuning() );
+		tuner.record( 500, 1_000_000_000l );
+		tuner.record( 500, 1_000_000_000l );
+		tuner.record( 500, 1_000_000_000l );
+		tuner.record( 500, 1_000_000_000l );
+		assertFalse( tuner.needsTuning() );
+	}
+}
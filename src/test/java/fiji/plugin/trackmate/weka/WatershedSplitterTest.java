@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * TrackMate: your buddy for everyday tracking.
+ * %%
+ * Copyright (C) 2021 - 2023 TrackMate developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.weka;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+
+public class WatershedSplitterTest
+{
+
+	private static final double[] CALIBRATION = new double[] { 1., 1., 1. };
+
+	/**
+	 * Two Gaussian blobs of peaks 1 and 0.8, centered at X = 12 and X = 26,
+	 * with a saddle near 0.37 between them.
+	 */
+	private static float[] twoBlobs( final int[] dims )
+	{
+		final int n = dims[ 0 ] * dims[ 1 ] * ( dims.length > 2 ? dims[ 2 ] : 1 );
+		final float[] values = new float[ n ];
+		final double cz = ( dims.length > 2 ) ? dims[ 2 ] / 2 : 0.;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int x = i % dims[ 0 ];
+			final int y = ( i / dims[ 0 ] ) % dims[ 1 ];
+			final int z = i / ( dims[ 0 ] * dims[ 1 ] );
+			final double dy2 = ( y - dims[ 1 ] / 2 ) * ( y - dims[ 1 ] / 2 ) + ( z - cz ) * ( z - cz );
+			final double a = Math.exp( -( ( x - 12 ) * ( x - 12 ) + dy2 ) / 50. );
+			final double b = 0.8 * Math.exp( -( ( x - 26 ) * ( x - 26 ) + dy2 ) / 50. );
+			values[ i ] = ( float ) Math.max( a, b );
+		}
+		return values;
+	}
+
+	private static List< Spot > split( final float[] values, final int[] dims, final double prominence, final int numThreads )
+	{
+		final int nz = ( dims.length > 2 ) ? dims[ 2 ] : 1;
+		final long[] origin = new long[ dims.length ];
+		final SlabLabeler labeler = new SlabLabeler( dims[ 0 ], dims[ 1 ], origin, CALIBRATION, 0.2 );
+		final int[] labels = new int[ values.length ];
+		labeler.accept( values, nz, labels );
+		final int nComponents = labeler.relabel( labels, values.length );
+		assertEquals( 1, nComponents );
+		return WatershedSplitter.split( values, labels, nComponents, dims, origin, CALIBRATION, prominence, false, numThreads );
+	}
+
+	private static long numPixels( final List< Spot > spots )
+	{
+		long n = 0;
+		for ( final Spot spot : spots )
+			n += Math.round( spot.getFeature( LabelUtils.NUM_PIXELS ) );
+		return n;
+	}
+
+	private static void assertSplit( final int[] dims )
+	{
+		final float[] values = twoBlobs( dims );
+		final List< Spot > whole = split( values, dims, 1., 1 );
+		assertEquals( "Saddle above the prominence", 1, whole.size() );
+
+		for ( final int numThreads : new int[] { 1, 4 } )
+		{
+			final List< Spot > spots = split( values, dims, 0.1, numThreads );
+			assertEquals( "Two prominent maxima", 2, spots.size() );
+			assertEquals( "Pixels are shared between objects", numPixels( whole ), numPixels( spots ) );
+			final double max0 = spots.get( 0 ).getFeature( LabelUtils.MAX_PROBA );
+			final double max1 = spots.get( 1 ).getFeature( LabelUtils.MAX_PROBA );
+			assertEquals( 1., Math.max( max0, max1 ), 1e-6 );
+			assertEquals( 0.8, Math.min( max0, max1 ), 1e-3 );
+			for ( final Spot spot : spots )
+			{
+				final double x = spot.getFeature( LabelUtils.PIXEL_POSITION[ 0 ] );
+				final boolean left = spot.getFeature( LabelUtils.MAX_PROBA ) > 0.9;
+				assertEquals( left, x < 19. );
+			}
+		}
+	}
+
+	@Test
+	public void testSplit2D()
+	{
+		assertSplit( new int[] { 40, 25 } );
+	}
+
+	@Test
+	public void testSplit3D()
+	{
+		assertSplit( new int[] { 40, 21, 15 } );
+	}
+
+	@Test
+	public void testThreadsGiveTheSameObjects()
+	{
+		final int[] dims = new int[] { 60, 50, 9 };
+		final float[] values = ReferenceLabeling.blobs( new Random( 39l ), dims, 2 );
+		final SlabLabeler labeler = new SlabLabeler( dims[ 0 ], dims[ 1 ], new long[ 3 ], CALIBRATION, 0.4 );
+		final int[] labels = new int[ values.length ];
+		labeler.accept( values, dims[ 2 ], labels );
+		final int nComponents = labeler.relabel( labels, values.length );
+		final List< String > expected = ReferenceLabeling.signatures(
+				WatershedSplitter.split( values, labels, nComponents, dims, new long[ 3 ], CALIBRATION, 0.05, false, 1 ), 3 );
+		for ( final int numThreads : new int[] { 2, 5 } )
+			assertEquals( expected, ReferenceLabeling.signatures(
+					WatershedSplitter.split( values, labels, nComponents, dims, new long[ 3 ], CALIBRATION, 0.05, false, numThreads ), 3 ) );
+	}
+}